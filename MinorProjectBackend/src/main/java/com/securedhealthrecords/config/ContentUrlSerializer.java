@@ -0,0 +1,35 @@
+package com.securedhealthrecords.config;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.securedhealthrecords.model.FileRecord;
+import com.securedhealthrecords.service.SignedUrlService;
+
+import java.io.IOException;
+
+/**
+ * Writes FileRecord.url as a signed link to the file's proxied content (/files/{id}/content)
+ * instead of the backend URL stored in it, so clients never see a Cloudinary or Drive address.
+ * The link is signed rather than bearer-authenticated so it still works as an img src or in
+ * a new tab. Registered in JacksonConfig; Spring's ObjectMapper creates it through the
+ * application context.
+ */
+public class ContentUrlSerializer extends JsonSerializer<String> {
+
+    private final SignedUrlService signedUrlService;
+
+    public ContentUrlSerializer(SignedUrlService signedUrlService) {
+        this.signedUrlService = signedUrlService;
+    }
+
+    @Override
+    public void serialize(String url, JsonGenerator gen, SerializerProvider serializers) throws IOException {
+        if (gen.currentValue() instanceof FileRecord file && file.getId() != null) {
+            gen.writeString(signedUrlService.signContent(file.getId()).url());
+        } else {
+            // Not written as part of a saved record: there is nothing to proxy it through
+            gen.writeNull();
+        }
+    }
+}
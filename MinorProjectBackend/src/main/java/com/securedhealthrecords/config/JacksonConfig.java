@@ -0,0 +1,60 @@
+package com.securedhealthrecords.config;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import com.securedhealthrecords.model.FileRecord;
+import com.securedhealthrecords.model.FileVersion;
+import org.springframework.boot.autoconfigure.jackson.Jackson2ObjectMapperBuilderCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Keeps storage backend URLs out of API responses. File content is proxied, so a FileRecord's
+ * url is written as a signed link to /files/{id}/content, and earlier versions don't expose
+ * theirs at all (restore a version to read it). Bookkeeping that only the server uses (backend
+ * ids, blob hashes, the offload spool path and its errors) isn't written either.
+ */
+@Configuration
+public class JacksonConfig {
+
+    @Bean
+    public Jackson2ObjectMapperBuilderCustomizer storageUrlMixIns() {
+        return builder -> builder
+                .mixIn(FileRecord.class, FileRecordMixIn.class)
+                .mixIn(FileVersion.class, FileVersionMixIn.class);
+    }
+
+    abstract static class FileRecordMixIn {
+        @JsonSerialize(using = ContentUrlSerializer.class)
+        private String url;
+
+        @JsonIgnore
+        private String cloudinaryPublicId;
+
+        @JsonIgnore
+        private String contentHash;
+
+        @JsonIgnore
+        private String originalHash;
+
+        @JsonIgnore
+        private String spoolPath;
+
+        @JsonIgnore
+        private String lastError;
+    }
+
+    abstract static class FileVersionMixIn {
+        @JsonIgnore
+        private String url;
+
+        @JsonIgnore
+        private String cloudinaryPublicId;
+
+        @JsonIgnore
+        private String contentHash;
+
+        @JsonIgnore
+        private String originalHash;
+    }
+}
@@ -0,0 +1,47 @@
+package com.securedhealthrecords.config;
+
+import com.securedhealthrecords.service.BlobEncryptionService;
+import com.securedhealthrecords.service.BlobLayoutMigrationService;
+import com.securedhealthrecords.service.BlobTieringService;
+import com.securedhealthrecords.service.ImageNormalizationService;
+import com.securedhealthrecords.service.RemoteBlobCacheService;
+import com.securedhealthrecords.service.UnifiedStorageService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Actuator endpoint (/actuator/storage) showing circuit breaker state per storage backend
+ * remote blob cache usage, the at-rest encryption key cache, hot/cold tiering, the layout migration
+ * and the bytes image normalization kept out of storage.
+ * Read-only: the layout migration runs at startup (app.storage.migration.auto-start), a restart
+ * resumes it.
+ */
+@Component
+@Endpoint(id = "storage")
+@RequiredArgsConstructor
+public class StorageEndpoint {
+
+    private final UnifiedStorageService unifiedStorageService;
+    private final RemoteBlobCacheService remoteBlobCacheService;
+    private final BlobEncryptionService blobEncryptionService;
+    private final BlobLayoutMigrationService blobLayoutMigrationService;
+    private final BlobTieringService blobTieringService;
+    private final ImageNormalizationService imageNormalizationService;
+
+    @ReadOperation
+    public Map<String, Object> storage() {
+        Map<String, Object> storage = new LinkedHashMap<>();
+        storage.put("backends", unifiedStorageService.getBackendStates());
+        storage.put("cache", remoteBlobCacheService.getStats());
+        storage.put("encryption", blobEncryptionService.getStats());
+        storage.put("tiering", blobTieringService.getStats());
+        storage.put("layoutMigration", blobLayoutMigrationService.getStatus());
+        storage.put("images", imageNormalizationService.getStats());
+        return storage;
+    }
+}
@@ -0,0 +1,38 @@
+package com.securedhealthrecords.config;
+
+import com.securedhealthrecords.service.StorageGcService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Actuator endpoint (storagegc) with the report of the last orphan collection. The run
+ * operation starts one; dryRun false actually deletes, otherwise the configured default
+ * applies. Exposed over JMX only, never on the web: actuator paths are not authenticated.
+ */
+@Component
+@Endpoint(id = "storagegc")
+@RequiredArgsConstructor
+public class StorageGcEndpoint {
+
+    private final StorageGcService storageGcService;
+
+    @ReadOperation
+    public Map<String, Object> report() {
+        return storageGcService.getLastReport();
+    }
+
+    @WriteOperation
+    public Map<String, Object> run(@Nullable Boolean dryRun) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("started", storageGcService.start(dryRun != null ? dryRun : storageGcService.isDefaultDryRun()));
+        result.put("report", storageGcService.getLastReport());
+        return result;
+    }
+}
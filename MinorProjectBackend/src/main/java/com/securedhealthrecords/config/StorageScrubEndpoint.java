@@ -0,0 +1,37 @@
+package com.securedhealthrecords.config;
+
+import com.securedhealthrecords.service.BlobScrubService;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Actuator endpoint (storagescrub) with the report of the last blob integrity scrub, including
+ * a sample of corrupt or missing blobs. The run operation starts one. Exposed over JMX only,
+ * like storagegc.
+ */
+@Component
+@Endpoint(id = "storagescrub")
+@RequiredArgsConstructor
+public class StorageScrubEndpoint {
+
+    private final BlobScrubService blobScrubService;
+
+    @ReadOperation
+    public Map<String, Object> report() {
+        return blobScrubService.getLastReport();
+    }
+
+    @WriteOperation
+    public Map<String, Object> run() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("started", blobScrubService.start());
+        result.put("report", blobScrubService.getLastReport());
+        return result;
+    }
+}
@@ -0,0 +1,124 @@
+package com.securedhealthrecords.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Global budget of upload bytes in flight. Several backends still read a whole file into
+ * memory (Cloudinary's non-streamed upload calls getBytes()), so without a cap a burst of
+ * large uploads can exhaust the heap.
+ *
+ * Each multipart request claims its Content-Length (or unknown-length-bytes when the body is
+ * chunked) before anything reads it, and gives it back when the request completes. A request
+ * that doesn't fit waits up to queue-timeout-ms for others to finish, then gets 429 with
+ * Retry-After. A request larger than the whole budget waits until it has the budget to itself.
+ */
+@Slf4j
+@Component
+public class UploadAdmissionFilter extends OncePerRequestFilter {
+
+    // Semaphore permits are ints, count in KB so the budget can exceed 2 GB
+    private static final long UNIT = 1024;
+
+    private final boolean enabled;
+    private final long budgetBytes;
+    private final long unknownLengthBytes;
+    private final long queueTimeoutMs;
+    private final long retryAfterSeconds;
+    private final int totalPermits;
+    private final Semaphore budget;
+
+    private final Counter admitted;
+    private final Counter rejected;
+    private final Timer waits;
+
+    public UploadAdmissionFilter(
+            MeterRegistry meterRegistry,
+            @Value("${app.upload.admission.enabled:true}") boolean enabled,
+            @Value("${app.upload.admission.max-in-flight-bytes:268435456}") long budgetBytes,
+            @Value("${app.upload.admission.unknown-length-bytes:52428800}") long unknownLengthBytes,
+            @Value("${app.upload.admission.queue-timeout-ms:2000}") long queueTimeoutMs,
+            @Value("${app.upload.admission.retry-after-seconds:5}") long retryAfterSeconds) {
+        this.enabled = enabled;
+        this.budgetBytes = budgetBytes;
+        this.unknownLengthBytes = unknownLengthBytes;
+        this.queueTimeoutMs = queueTimeoutMs;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.totalPermits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes / UNIT));
+        // Fair, so a large upload isn't starved by a stream of small ones
+        this.budget = new Semaphore(totalPermits, true);
+
+        this.admitted = meterRegistry.counter("upload.admission.admitted");
+        this.rejected = meterRegistry.counter("upload.admission.rejected");
+        this.waits = meterRegistry.timer("upload.admission.wait");
+        Gauge.builder("upload.admission.in-flight.bytes", budget, b -> (double) (totalPermits - b.availablePermits()) * UNIT)
+                .register(meterRegistry);
+        Gauge.builder("upload.admission.budget.bytes", () -> budgetBytes)
+                .register(meterRegistry);
+        Gauge.builder("upload.admission.queued", budget, Semaphore::getQueueLength)
+                .register(meterRegistry);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String contentType = request.getContentType();
+        return !enabled
+                || !("POST".equals(request.getMethod()) || "PUT".equals(request.getMethod()))
+                || contentType == null
+                || !contentType.toLowerCase().startsWith("multipart/");
+    }
+
+    @Override
+    protected void doFilterInternal(@org.springframework.lang.NonNull HttpServletRequest request,
+                                    @org.springframework.lang.NonNull HttpServletResponse response,
+                                    @org.springframework.lang.NonNull FilterChain chain) throws ServletException, IOException {
+        long length = request.getContentLengthLong();
+        long claimed = length >= 0 ? length : unknownLengthBytes;
+        int permits = (int) Math.min(totalPermits, Math.max(1, (claimed + UNIT - 1) / UNIT));
+
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = budget.tryAcquire(permits, queueTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        waits.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+        if (!acquired) {
+            rejected.increment();
+            log.warn("🚦 Upload of {} bytes to {} rejected, {} of {} bytes in flight",
+                    claimed, request.getRequestURI(), (long) (totalPermits - budget.availablePermits()) * UNIT, budgetBytes);
+            response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds));
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            response.getWriter().write("{\"error\":\"Too many uploads in progress, retry in " + retryAfterSeconds + " seconds\"}");
+            return;
+        }
+
+        admitted.increment();
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            budget.release(permits);
+        }
+    }
+}
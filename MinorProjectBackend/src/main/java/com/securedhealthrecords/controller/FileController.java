@@ -1,16 +1,45 @@
 package com.securedhealthrecords.controller;
 
+import com.securedhealthrecords.dto.BatchUploadResultDTO;
+import com.securedhealthrecords.dto.DirectUploadCompleteRequest;
+import com.securedhealthrecords.dto.DirectUploadTicketDTO;
+import com.securedhealthrecords.exception.ConflictException;
+import com.securedhealthrecords.exception.QuotaExceededException;
+import com.securedhealthrecords.exception.ResourceNotFoundException;
 import com.securedhealthrecords.model.FileRecord;
+import com.securedhealthrecords.model.FileVersion;
+import com.securedhealthrecords.model.UploadStatus;
+import com.securedhealthrecords.service.BatchUploadService;
+import com.securedhealthrecords.service.BlobContentService;
+import com.securedhealthrecords.service.DirectUploadService;
 import com.securedhealthrecords.service.FileService;
+import com.securedhealthrecords.service.LocalFileStorageService;
+import com.securedhealthrecords.service.SignedUrlService;
+import com.securedhealthrecords.service.StreamingUploadService;
+import com.securedhealthrecords.util.BlobResource;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.util.MultiValueMap;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.util.UriComponentsBuilder;
+import org.springframework.web.util.UriUtils;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -22,6 +51,11 @@ import java.util.Optional;
 public class FileController {
 
     private final FileService fileService;
+    private final LocalFileStorageService localFileStorageService;
+    private final BatchUploadService batchUploadService;
+    private final StreamingUploadService streamingUploadService;
+    private final SignedUrlService signedUrlService;
+    private final DirectUploadService directUploadService;
 
 
 
@@ -51,11 +85,20 @@ public class FileController {
             
             FileRecord uploadedFile = fileService.uploadFile(file, userId, folderId);
             
+            if (uploadedFile.getStatus() == UploadStatus.PENDING) {
+                // Accepted into the spool, poll /files/{id}/status for completion
+                System.out.println("📥 FileController: Upload accepted, File ID: " + uploadedFile.getId());
+                return ResponseEntity.accepted().body(uploadedFile);
+            }
+            
             System.out.println("✅ FileController: Upload successful");
             System.out.println("   File ID: " + uploadedFile.getId());
             System.out.println("   URL: " + uploadedFile.getUrl());
             
             return ResponseEntity.ok(uploadedFile);
+        } catch (QuotaExceededException e) {
+            System.err.println("❌ FileController: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body(Map.of("error", e.getMessage()));
         } catch (IOException e) {
             System.err.println("❌ FileController: IO Exception - " + e.getMessage());
             e.printStackTrace();
@@ -67,6 +110,93 @@ public class FileController {
         }
     }
 
+    @PostMapping("/batch-upload")
+    public ResponseEntity<?> batchUpload(
+            @RequestParam("files") List<MultipartFile> files,
+            @RequestParam("userId") String userId,
+            @RequestParam(value = "folderId", required = false) String folderId) {
+        System.out.println("📥 FileController: Batch upload request received");
+        System.out.println("   Files: " + files.size());
+        System.out.println("   User ID: " + userId);
+        
+        if (files.isEmpty()) {
+            return ResponseEntity.badRequest().body(Map.of("error", "No files provided"));
+        }
+        if (files.size() > batchUploadService.getMaxFiles()) {
+            return ResponseEntity.badRequest().body(Map.of("error",
+                    "Too many files, at most " + batchUploadService.getMaxFiles() + " per batch"));
+        }
+        
+        List<BatchUploadResultDTO> results = batchUploadService.uploadAll(files, userId, folderId);
+        long failed = results.stream().filter(result -> "failed".equals(result.getStatus())).count();
+        
+        Map<String, Object> response = new HashMap<>();
+        response.put("uploaded", results.size() - failed);
+        response.put("failed", failed);
+        response.put("results", results);
+        
+        // 207 tells the client to look at the per-file statuses
+        return ResponseEntity.status(failed == 0 ? HttpStatus.OK : HttpStatus.MULTI_STATUS).body(response);
+    }
+
+    /**
+     * Same as /upload, but the body is parsed while it arrives and the file part is piped
+     * straight into storage. userId / folderId come from the query string: touching request
+     * parameters would make the container parse (and buffer) the whole multipart body.
+     */
+    @PostMapping("/stream-upload")
+    public ResponseEntity<?> streamUpload(HttpServletRequest request) {
+        MultiValueMap<String, String> query = UriComponentsBuilder.newInstance()
+                .query(request.getQueryString()).build().getQueryParams();
+        String userId = queryParam(query, "userId");
+        if (userId == null || userId.isEmpty()) {
+            return ResponseEntity.badRequest().body(Map.of("error", "userId is required"));
+        }
+        
+        try {
+            FileRecord uploadedFile = streamingUploadService.upload(request.getInputStream(), request.getContentType(),
+                    request.getContentLengthLong(), userId, queryParam(query, "folderId"));
+            System.out.println("✅ FileController: Streamed upload successful, File ID: " + uploadedFile.getId());
+            return ResponseEntity.ok(uploadedFile);
+        } catch (MaxUploadSizeExceededException e) {
+            System.err.println("❌ FileController: Streamed file exceeds " + streamingUploadService.getMaxFileSize() + " bytes");
+            return ResponseEntity.badRequest().body(Map.of("error",
+                    "File size exceeds " + streamingUploadService.getMaxFileSize() / (1024 * 1024) + "MB limit"));
+        } catch (QuotaExceededException e) {
+            System.err.println("❌ FileController: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body(Map.of("error", e.getMessage()));
+        } catch (IOException e) {
+            System.err.println("❌ FileController: Streamed upload failed - " + e.getMessage());
+            return ResponseEntity.status(500).body(Map.of("error", "File upload failed: " + e.getMessage()));
+        }
+    }
+
+    private static String queryParam(MultiValueMap<String, String> query, String name) {
+        String value = query.getFirst(name);
+        return value == null ? null : UriUtils.decode(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Signed parameters for uploading straight to Cloudinary; the bytes never pass through here.
+     * Call /direct-upload/complete with Cloudinary's response afterwards.
+     */
+    @PostMapping("/direct-upload")
+    @PreAuthorize("hasRole('USER')")
+    public ResponseEntity<DirectUploadTicketDTO> directUploadTicket(
+            @RequestParam(value = "size", defaultValue = "0") long size,
+            @RequestParam(value = "contentType", required = false) String contentType) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        return ResponseEntity.ok(directUploadService.issueTicket(authentication.getName(), size, contentType));
+    }
+
+    @PostMapping("/direct-upload/complete")
+    @PreAuthorize("hasRole('USER')")
+    public ResponseEntity<FileRecord> completeDirectUpload(@Valid @RequestBody DirectUploadCompleteRequest request) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        return ResponseEntity.status(HttpStatus.CREATED)
+                .body(directUploadService.confirmFile(authentication.getName(), request));
+    }
+
     @GetMapping("/user/{userId}")
     public ResponseEntity<List<FileRecord>> getUserFiles(@PathVariable String userId) {
         List<FileRecord> files = fileService.getUserFiles(userId);
@@ -152,11 +282,37 @@ public class FileController {
             
             FileRecord updatedFile = fileService.updateFile(fileId, userId, file);
             return ResponseEntity.ok(updatedFile);
+        } catch (ConflictException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("error", e.getMessage()));
         } catch (Exception e) {
             return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
         }
     }
 
+    @GetMapping("/{fileId}/versions")
+    @PreAuthorize("hasRole('USER')")
+    public ResponseEntity<List<FileVersion>> getFileVersions(@PathVariable String fileId) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        return ResponseEntity.ok(fileService.getVersions(fileId, authentication.getName()));
+    }
+
+    /**
+     * Makes an earlier version current again; the replaced content is kept as a new version.
+     */
+    @PostMapping("/{fileId}/versions/{version}/restore")
+    @PreAuthorize("hasRole('USER')")
+    public ResponseEntity<?> restoreFileVersion(@PathVariable String fileId, @PathVariable int version) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        try {
+            return ResponseEntity.ok(fileService.restoreVersion(fileId, authentication.getName(), version));
+        } catch (ResourceNotFoundException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            // Lost a race with another update or the retention job
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("error", e.getMessage()));
+        }
+    }
+
     @GetMapping("/{fileId}")
     @PreAuthorize("hasRole('USER')")
     public ResponseEntity<?> getFile(@PathVariable String fileId) {
@@ -174,6 +330,91 @@ public class FileController {
         }
     }
 
+    /**
+     * The file's content, read from its backend. Either the owner asks with their token, or the
+     * request carries the exp/sig of the signed link responses give out as the file's url.
+     */
+    @GetMapping("/{fileId}/content")
+    public ResponseEntity<?> getFileContent(
+            @PathVariable String fileId,
+            @RequestParam(value = "exp", required = false) Long expiresAt,
+            @RequestParam(value = "sig", required = false) String signature) {
+        try {
+            Optional<FileRecord> fileOpt;
+            if (signature != null) {
+                fileOpt = fileService.getFileBySignedLink(fileId, expiresAt != null ? expiresAt : 0, signature);
+            } else {
+                Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+                fileOpt = fileService.getFileById(fileId, authentication.getName());
+            }
+            if (fileOpt.isEmpty()) {
+                return ResponseEntity.notFound().build();
+            }
+            
+            FileRecord file = fileOpt.get();
+            Optional<BlobContentService.BlobContent> content = fileService.openContent(file);
+            if (content.isEmpty()) {
+                return ResponseEntity.notFound().build();
+            }
+            
+            // Read from the backend with its own credentials, clients never get the backend URL
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                    .header("Content-Type", file.getMimeType() != null ? file.getMimeType() : "application/octet-stream")
+                    .header("Content-Disposition", ContentDisposition.inline().filename(file.getName(), StandardCharsets.UTF_8).build().toString());
+            if (content.get().length() >= 0) {
+                response.contentLength(content.get().length());
+            }
+            return response.body(new InputStreamResource(content.get().stream()));
+        } catch (Exception e) {
+            return ResponseEntity.status(502).body(Map.of("error", "Could not fetch file content: " + e.getMessage()));
+        }
+    }
+
+    @GetMapping("/{fileId}/signed-url")
+    @PreAuthorize("hasRole('USER')")
+    public ResponseEntity<?> getSignedUrl(@PathVariable String fileId) {
+        try {
+            Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+            String userId = authentication.getName();
+            
+            Optional<FileRecord> fileOpt = fileService.getFileById(fileId, userId);
+            if (fileOpt.isEmpty()) {
+                return ResponseEntity.notFound().build();
+            }
+            
+            Optional<SignedUrlService.SignedUrl> signed = fileService.signedDownloadUrl(fileOpt.get());
+            if (signed.isEmpty()) {
+                return ResponseEntity.status(HttpStatus.CONFLICT)
+                        .body(Map.of("error", "File is not in local storage, use /files/" + fileId + "/content"));
+            }
+            return ResponseEntity.ok(Map.of(
+                "url", signed.get().url(),
+                "expiresAt", signed.get().expiresAt().toString()
+            ));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    @GetMapping("/{fileId}/status")
+    @PreAuthorize("hasRole('USER')")
+    public ResponseEntity<?> getUploadStatus(@PathVariable String fileId) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        Optional<FileRecord> fileOpt = fileService.getFileById(fileId, authentication.getName());
+        if (fileOpt.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        
+        FileRecord file = fileOpt.get();
+        Map<String, Object> status = new HashMap<>();
+        status.put("id", file.getId());
+        status.put("status", file.getStatus() != null ? file.getStatus() : UploadStatus.READY);
+        status.put("url", file.getUrl() != null ? signedUrlService.signContent(file.getId()).url() : null);
+        status.put("attempts", file.getUploadAttempts());
+        status.put("lastError", file.getLastError());
+        return ResponseEntity.ok(status);
+    }
+
     @PostMapping("/simple-upload")
     public ResponseEntity<?> simpleUpload(@RequestParam("file") MultipartFile file) {
         System.out.println("🚀 SIMPLE UPLOAD - Direct to FileController!");
@@ -226,26 +467,66 @@ public class FileController {
 
     @GetMapping("/download/{userId}/{filename}")
     public ResponseEntity<?> downloadLocalFile(@PathVariable String userId, @PathVariable String filename) {
+        if (!signedUrlService.isUnsignedDownloadsEnabled()) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN)
+                    .body(Map.of("error", "Unsigned downloads are disabled, request a signed URL"));
+        }
         try {
             // This endpoint serves local files when Cloudinary is not available
-            java.nio.file.Path filePath = java.nio.file.Paths.get("uploads", "health_records", userId, filename);
+            Optional<BlobResource> blob = localFileStorageService.openDownload(userId, filename);
             
-            if (!java.nio.file.Files.exists(filePath)) {
+            if (blob.isEmpty()) {
                 return ResponseEntity.notFound().build();
             }
             
-            byte[] fileContent = java.nio.file.Files.readAllBytes(filePath);
-            String contentType = java.nio.file.Files.probeContentType(filePath);
+            // Blobs are stored under their hash, so detect the type from the requested name
+            String contentType = java.net.URLConnection.guessContentTypeFromName(filename);
             if (contentType == null) {
                 contentType = "application/octet-stream";
             }
             
+            // Streamed and decrypted segment by segment; Range requests get a 206 from Spring
             return ResponseEntity.ok()
                     .header("Content-Type", contentType)
                     .header("Content-Disposition", "inline; filename=\"" + filename + "\"")
-                    .body(fileContent);
+                    .body(blob.get());
         } catch (Exception e) {
             return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
         }
     }
+
+    /**
+     * Serves a blob behind a signed URL from /files/{fileId}/signed-url. Everything needed is in
+     * the URL and covered by its HMAC, so no FileRecord or user is loaded.
+     */
+    @GetMapping("/signed/{hash}")
+    public ResponseEntity<?> downloadSigned(
+            @PathVariable String hash,
+            @RequestParam("name") String name,
+            @RequestParam("len") long length,
+            @RequestParam("exp") long expiresAt,
+            @RequestParam("sig") String signature) {
+        if (!signedUrlService.verify(hash, name, length, expiresAt, signature)) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).body(Map.of("error", "Invalid or expired download link"));
+        }
+        
+        Optional<BlobResource> blob = localFileStorageService.openBlob(hash, name, length);
+        if (blob.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        
+        String contentType = java.net.URLConnection.guessContentTypeFromName(name);
+        if (contentType == null) {
+            contentType = "application/octet-stream";
+        }
+        
+        // Blobs are content addressed, so the hash is a strong ETag; Spring answers If-None-Match with 304
+        long maxAge = Math.max(0, expiresAt - Instant.now().getEpochSecond());
+        return ResponseEntity.ok()
+                .header("Content-Type", contentType)
+                .header("Content-Disposition", ContentDisposition.inline().filename(name, StandardCharsets.UTF_8).build().toString())
+                .eTag("\"" + hash + "\"")
+                .cacheControl(CacheControl.maxAge(Duration.ofSeconds(maxAge)).cachePrivate())
+                .body(blob.get());
+    }
 }
@@ -1,18 +1,29 @@
 package com.securedhealthrecords.controller;
 
+import com.securedhealthrecords.dto.DirectUploadCompleteRequest;
+import com.securedhealthrecords.dto.DirectUploadTicketDTO;
 import com.securedhealthrecords.dto.NodeDTO;
 import com.securedhealthrecords.exception.UnauthorizedException;
+import com.securedhealthrecords.model.Node;
+import com.securedhealthrecords.model.UploadStatus;
 import com.securedhealthrecords.model.User;
 import com.securedhealthrecords.repository.UserRepository;
+import com.securedhealthrecords.service.BlobContentService;
+import com.securedhealthrecords.service.DirectUploadService;
+import com.securedhealthrecords.service.FolderArchiveService;
 import com.securedhealthrecords.service.NodeService;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
 
@@ -23,7 +34,9 @@ import java.util.Map;
 public class NodeController {
     
     private final NodeService nodeService;
+    private final FolderArchiveService folderArchiveService;
     private final UserRepository userRepository;
+    private final DirectUploadService directUploadService;
     
     @GetMapping
     public ResponseEntity<List<NodeDTO>> getNodes(
@@ -71,9 +84,80 @@ public class NodeController {
             encryptedFileKey,
             file
         );
+        if (fileNode.getStatus() == UploadStatus.PENDING) {
+            // Content is still being pushed to storage, poll /nodes/{id}/status
+            return ResponseEntity.accepted().body(fileNode);
+        }
         return ResponseEntity.ok(fileNode);
     }
     
+    @PostMapping("/direct-upload")
+    public ResponseEntity<DirectUploadTicketDTO> directUploadTicket(
+            @RequestParam(value = "size", defaultValue = "0") long size,
+            @RequestParam(value = "contentType", required = false) String contentType,
+            Authentication authentication) {
+        String userEmail = authentication.getName();
+        String userId = getUserIdFromEmail(userEmail);
+        
+        return ResponseEntity.ok(directUploadService.issueTicket(userId, size, contentType));
+    }
+    
+    @PostMapping("/direct-upload/complete")
+    public ResponseEntity<NodeDTO> completeDirectUpload(
+            @Valid @RequestBody DirectUploadCompleteRequest request,
+            Authentication authentication) {
+        String userEmail = authentication.getName();
+        String userId = getUserIdFromEmail(userEmail);
+        
+        return ResponseEntity.ok(directUploadService.confirmNode(userId, request));
+    }
+    
+    @GetMapping("/{nodeId}/status")
+    public ResponseEntity<NodeDTO> getNodeStatus(
+            @PathVariable String nodeId,
+            Authentication authentication) {
+        String userEmail = authentication.getName();
+        String userId = getUserIdFromEmail(userEmail);
+        
+        return ResponseEntity.ok(nodeService.getNode(nodeId, userId));
+    }
+    
+    @GetMapping("/{nodeId}/content")
+    public ResponseEntity<InputStreamResource> getNodeContent(
+            @PathVariable String nodeId,
+            Authentication authentication) throws IOException {
+        String userEmail = authentication.getName();
+        String userId = getUserIdFromEmail(userEmail);
+        
+        NodeDTO node = nodeService.getNode(nodeId, userId);
+        BlobContentService.BlobContent content = nodeService.openContent(nodeId, userId);
+        
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+            .header("Content-Type", node.getMimeType() != null ? node.getMimeType() : "application/octet-stream")
+            .header("Content-Disposition", ContentDisposition.inline().filename(node.getName(), StandardCharsets.UTF_8).build().toString());
+        if (content.length() >= 0) {
+            response.contentLength(content.length());
+        }
+        return response.body(new InputStreamResource(content.stream()));
+    }
+    
+    @GetMapping("/{nodeId}/archive")
+    public ResponseEntity<StreamingResponseBody> getFolderArchive(
+            @PathVariable String nodeId,
+            Authentication authentication) {
+        String userEmail = authentication.getName();
+        String userId = getUserIdFromEmail(userEmail);
+        
+        // Validate before committing to a 200, the body is written after this returns
+        Node folder = folderArchiveService.getArchivableFolder(nodeId, userId);
+        StreamingResponseBody body = out -> folderArchiveService.writeArchive(folder, out);
+        
+        return ResponseEntity.ok()
+            .header("Content-Type", "application/zip")
+            .header("Content-Disposition", ContentDisposition.attachment().filename(folder.getName() + ".zip", StandardCharsets.UTF_8).build().toString())
+            .body(body);
+    }
+    
     @PutMapping("/{nodeId}")
     public ResponseEntity<NodeDTO> updateNode(
             @PathVariable String nodeId,
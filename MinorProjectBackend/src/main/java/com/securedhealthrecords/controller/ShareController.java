@@ -2,15 +2,21 @@ package com.securedhealthrecords.controller;
 
 import com.securedhealthrecords.dto.ShareDTO;
 import com.securedhealthrecords.exception.UnauthorizedException;
+import com.securedhealthrecords.model.Node;
 import com.securedhealthrecords.model.User;
 import com.securedhealthrecords.repository.UserRepository;
+import com.securedhealthrecords.service.BlobContentService;
 import com.securedhealthrecords.service.ShareService;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 @RestController
@@ -39,6 +45,22 @@ public class ShareController {
         return ResponseEntity.ok(share);
     }
     
+    @GetMapping("/view/{accessToken}/nodes/{nodeId}/content")
+    public ResponseEntity<InputStreamResource> getSharedContent(
+            @PathVariable String accessToken,
+            @PathVariable String nodeId) throws IOException {
+        Node node = shareService.getSharedNode(accessToken, nodeId);
+        BlobContentService.BlobContent content = shareService.openSharedContent(node);
+        
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+            .header("Content-Type", node.getMimeType() != null ? node.getMimeType() : "application/octet-stream")
+            .header("Content-Disposition", ContentDisposition.inline().filename(node.getName(), StandardCharsets.UTF_8).build().toString());
+        if (content.length() >= 0) {
+            response.contentLength(content.length());
+        }
+        return response.body(new InputStreamResource(content.stream()));
+    }
+    
     @GetMapping("/patient/shares")
     public ResponseEntity<List<ShareDTO>> getUserShares(Authentication authentication) {
         String userEmail = authentication.getName();
@@ -0,0 +1,23 @@
+package com.securedhealthrecords.dto;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BatchUploadResultDTO {
+
+    private int index; // Position of the part in the request
+    private String fileName;
+    private String status; // "uploaded" or "failed"
+    private String fileId;
+    private String url; // Signed link to /files/{id}/content
+    private String storageType;
+    private String error;
+
+    public static BatchUploadResultDTO failed(int index, String fileName, String error) {
+        return new BatchUploadResultDTO(index, fileName, "failed", null, null, null, error);
+    }
+}
@@ -0,0 +1,35 @@
+package com.securedhealthrecords.dto;
+
+import jakarta.validation.constraints.NotBlank;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Sent after a direct-to-Cloudinary upload, carrying the parts of Cloudinary's response that
+ * its signature covers plus what the record should look like.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DirectUploadCompleteRequest {
+
+    @NotBlank(message = "Public id is required")
+    private String publicId;
+
+    @NotBlank(message = "Version is required")
+    private String version;
+
+    @NotBlank(message = "Signature is required")
+    private String signature;
+
+    @NotBlank(message = "File name is required")
+    private String fileName;
+
+    private String mimeType;
+    private String folderId; // FileRecord uploads
+
+    // Node uploads
+    private String parentId;
+    private String encryptedFileKey;
+}
@@ -0,0 +1,19 @@
+package com.securedhealthrecords.dto;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+
+import java.time.Instant;
+import java.util.Map;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DirectUploadTicketDTO {
+
+    private String uploadUrl; // Cloudinary upload endpoint to POST the file to
+    private Map<String, String> fields; // Form fields to send along with the "file" part, unchanged
+    private String publicId;
+    private Instant expiresAt; // Cloudinary rejects signed parameters older than an hour
+}
@@ -1,6 +1,7 @@
 package com.securedhealthrecords.dto;
 
 import com.securedhealthrecords.model.Node.NodeType;
+import com.securedhealthrecords.model.UploadStatus;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.AllArgsConstructor;
@@ -23,9 +24,10 @@ public class NodeDTO {
     
     // File-specific fields
     private String mimeType;
-    private String storageKey;
     private String encryptedFileKey;
-    private String downloadUrl; // Pre-signed URL for file download
+    private String downloadUrl; // Proxied content (/nodes/{id}/content), never the backend URL
+    private String thumbnailUrl;
+    private UploadStatus status; // PENDING until the content reaches its storage backend
     
     private LocalDateTime createdAt;
 }
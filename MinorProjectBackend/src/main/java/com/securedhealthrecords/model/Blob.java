@@ -0,0 +1,43 @@
+package com.securedhealthrecords.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "blobs")
+public class Blob {
+
+    @Id
+    private String id; // SHA-256 of the content, hex encoded
+
+    private Long size;
+    private Long storedSize; // Bytes on disk after compression / encryption
+    private String codec; // Compression codec, null when stored uncompressed
+    private String contentType;
+
+    // Content stored as content-defined chunks, in order, each holding one reference to its chunk blob.
+    // Such a blob has no file of its own; null for blobs stored whole
+    private List<BlobChunk> chunks;
+
+    private Long refCount; // Number of FileRecords / Nodes pointing at this blob
+
+    private StorageTier tier; // Null for blobs stored before tiering, treated as HOT
+    private Long accessCount; // Reads since the blob was stored, flushed in batches
+    private LocalDateTime lastAccessedAt;
+    private LocalDateTime tierChangedAt;
+
+    private IntegrityStatus integrity; // Result of the last scrub, null if never scrubbed
+    private String integrityError;
+    private LocalDateTime lastScrubbedAt;
+
+    private LocalDateTime createdAt;
+    private LocalDateTime updatedAt;
+}
@@ -0,0 +1,17 @@
+package com.securedhealthrecords.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+
+/**
+ * One entry of a chunked blob's manifest: a blob of its own holding the next size bytes.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BlobChunk {
+
+    private String hash;
+    private Long size;
+}
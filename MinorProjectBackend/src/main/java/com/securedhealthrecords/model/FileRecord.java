@@ -8,6 +8,7 @@ import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.core.index.Indexed;
 
 import java.time.LocalDateTime;
+import java.util.List;
 
 @Data
 @NoArgsConstructor
@@ -28,8 +29,28 @@ public class FileRecord {
     private Long size;
     
     private String cloudinaryPublicId;
+    private String storageType; // Backend that holds the content (set by batch uploads), null = CloudinaryService routing
     private String url;
     private String thumbnailUrl;
+    private String codec; // Compression applied by the blob store, null if stored as-is
+    @Indexed(sparse = true)
+    private String contentHash; // SHA-256 of the content, computed while it was written
+    
+    // Set when an uploaded image was normalized before storage (see ImageNormalizationService)
+    private Long originalSize; // Size as uploaded, size above is what was stored
+    private String originalHash; // Blob holding the upload as-is, only with keep-original
+    
+    // Copy-on-write history, oldest first; pruned by FileVersionRetentionService
+    private Integer version; // Number of the current content, null = 1
+    private List<FileVersion> versions;
+    private Long versionBytes; // Total size of the versions above, counted against the quota
+    private Long revision; // Bumped whenever content or versions change, guards against concurrent writers
+    
+    // Asynchronous upload state (see UploadOffloadService)
+    private UploadStatus status;
+    private String spoolPath;
+    private Integer uploadAttempts;
+    private String lastError;
     
     private String shareToken;
     private LocalDateTime shareExpiresAt;
@@ -0,0 +1,46 @@
+package com.securedhealthrecords.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * A previous content of a FileRecord, kept in its versions list when the file is updated.
+ * Each version owns its stored copy, which is deleted when the version is pruned.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class FileVersion {
+
+    private Integer version;
+
+    private String name;
+    private String mimeType;
+    private Long size;
+
+    private String cloudinaryPublicId;
+    private String storageType;
+    private String url;
+    private String thumbnailUrl;
+    private String codec;
+    private String contentHash;
+    private Long originalSize;
+    private String originalHash;
+
+    private LocalDateTime createdAt; // When this content became current
+    private LocalDateTime archivedAt; // When it was replaced
+
+    /**
+     * Snapshot of the record's current content, about to be replaced.
+     */
+    public static FileVersion of(FileRecord file) {
+        return new FileVersion(file.getVersion() != null ? file.getVersion() : 1,
+                file.getName(), file.getMimeType(), file.getSize(),
+                file.getCloudinaryPublicId(), file.getStorageType(), file.getUrl(), file.getThumbnailUrl(),
+                file.getCodec(), file.getContentHash(), file.getOriginalSize(), file.getOriginalHash(),
+                file.getUpdatedAt(), LocalDateTime.now());
+    }
+}
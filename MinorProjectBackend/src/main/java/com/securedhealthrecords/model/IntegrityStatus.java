@@ -0,0 +1,11 @@
+package com.securedhealthrecords.model;
+
+/**
+ * Outcome of the last integrity scrub of a local blob. Blobs that were never scrubbed have none.
+ */
+public enum IntegrityStatus {
+    OK,       // Content read back and matched its hash
+    CORRUPT,  // Unreadable, failed authentication, truncated or hashed to something else
+    MISSING,  // No blob file in any tier
+    REPAIRED  // Was corrupt or missing and has been rewritten from a secondary copy
+}
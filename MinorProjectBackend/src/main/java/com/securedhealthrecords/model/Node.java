@@ -32,7 +32,20 @@ public class Node {
     // File-specific fields (null for folders)
     private String mimeType;
     private String storageKey; // S3 path to encrypted blob
+    private String storageType; // Backend holding the content, null = Cloudinary (older nodes)
+    @Indexed(sparse = true)
+    private String storagePublicId; // Backend's id for the content, null on older nodes (derived from storageKey)
     private String encryptedFileKey; // AES key encrypted with user's password
+    private String thumbnailUrl; // Preview image generated by ThumbnailService
+    private String codec; // Compression applied by the blob store, null if stored as-is
+    @Indexed(sparse = true)
+    private String contentHash; // SHA-256 of the content, computed while it was written
+    
+    // Asynchronous upload state (see UploadOffloadService)
+    private UploadStatus status;
+    private String spoolPath;
+    private Integer uploadAttempts;
+    private String lastError;
     
     private LocalDateTime createdAt;
     
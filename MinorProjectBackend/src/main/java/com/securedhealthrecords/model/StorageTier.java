@@ -0,0 +1,10 @@
+package com.securedhealthrecords.model;
+
+/**
+ * Where a local blob's file lives. Blobs written before tiering existed have no tier
+ * and are treated as HOT.
+ */
+public enum StorageTier {
+    HOT,  // Fan-out blob directory, the default for new and recently read blobs
+    COLD  // Cold tier directory, for blobs nobody has read in a while
+}
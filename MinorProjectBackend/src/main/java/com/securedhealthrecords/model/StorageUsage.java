@@ -0,0 +1,28 @@
+package com.securedhealthrecords.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "storage_usage")
+public class StorageUsage {
+
+    @Id
+    private String id; // User id
+
+    // Maintained with $inc on upload / update / delete, corrected by the reconciliation job
+    private Long totalFiles;
+    private Long totalBytes;
+
+    private Long quotaBytes; // Per-user override, null = app.storage.quota.default-bytes
+
+    private LocalDateTime updatedAt;
+    private LocalDateTime reconciledAt;
+}
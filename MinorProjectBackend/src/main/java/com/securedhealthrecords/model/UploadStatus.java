@@ -0,0 +1,11 @@
+package com.securedhealthrecords.model;
+
+/**
+ * Lifecycle of an uploaded file's content. Records written before this field existed
+ * have no status and are treated as READY.
+ */
+public enum UploadStatus {
+    PENDING, // Accepted into the local spool, waiting for the storage backend
+    READY,   // Content is in its final storage location and url/storageKey are set
+    FAILED   // Gave up after the configured number of attempts, spool file kept
+}
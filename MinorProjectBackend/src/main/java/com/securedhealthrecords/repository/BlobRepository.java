@@ -0,0 +1,9 @@
+package com.securedhealthrecords.repository;
+
+import com.securedhealthrecords.model.Blob;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface BlobRepository extends MongoRepository<Blob, String> {
+}
@@ -1,6 +1,7 @@
 package com.securedhealthrecords.repository;
 
 import com.securedhealthrecords.model.FileRecord;
+import com.securedhealthrecords.model.UploadStatus;
 import org.springframework.data.mongodb.repository.MongoRepository;
 import org.springframework.stereotype.Repository;
 
@@ -13,5 +14,7 @@ public interface FileRecordRepository extends MongoRepository<FileRecord, String
     List<FileRecord> findByUserIdAndFolderId(String userId, String folderId);
     List<FileRecord> findByUserIdAndFolderIdIsNull(String userId);
     Optional<FileRecord> findByShareToken(String shareToken);
+    Optional<FileRecord> findByCloudinaryPublicId(String cloudinaryPublicId);
     long countByUserId(String userId);
+    List<FileRecord> findByStatus(UploadStatus status);
 }
@@ -2,10 +2,12 @@ package com.securedhealthrecords.repository;
 
 import com.securedhealthrecords.model.Node;
 import com.securedhealthrecords.model.Node.NodeType;
+import com.securedhealthrecords.model.UploadStatus;
 import org.springframework.data.mongodb.repository.MongoRepository;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
+import java.util.Optional;
 
 @Repository
 public interface NodeRepository extends MongoRepository<Node, String> {
@@ -20,5 +22,9 @@ public interface NodeRepository extends MongoRepository<Node, String> {
     
     boolean existsByOwnerIdAndParentIdAndName(String ownerId, String parentId, String name);
     
+    List<Node> findByStatus(UploadStatus status);
+    
+    Optional<Node> findByStoragePublicId(String storagePublicId);
+    
     void deleteByParentId(String parentId); // For cascading delete of folder contents
 }
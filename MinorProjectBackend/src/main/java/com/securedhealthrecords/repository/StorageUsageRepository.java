@@ -0,0 +1,9 @@
+package com.securedhealthrecords.repository;
+
+import com.securedhealthrecords.model.StorageUsage;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface StorageUsageRepository extends MongoRepository<StorageUsage, String> {
+}
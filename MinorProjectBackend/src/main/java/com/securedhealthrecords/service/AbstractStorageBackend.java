@@ -0,0 +1,146 @@
+package com.securedhealthrecords.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * StorageBackend over a blocking client. Operations run on a pool of max-concurrency threads
+ * owned by this backend; anything beyond that waits in its queue. Each operation is timed as
+ * storage.backend.requests{backend, operation, outcome}, next to gauges of active and queued work.
+ *
+ * download() only holds a slot while the stream is being opened; reading it is up to the caller.
+ */
+public abstract class AbstractStorageBackend implements StorageBackend {
+
+    private final String name;
+    private final Set<String> aliases;
+    private final int maxConcurrency;
+    private final ThreadPoolExecutor executor;
+    private final MeterRegistry meterRegistry;
+
+    protected AbstractStorageBackend(String name, Set<String> aliases, int maxConcurrency, MeterRegistry meterRegistry) {
+        this.name = name;
+        this.aliases = aliases;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.meterRegistry = meterRegistry;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(this.maxConcurrency, this.maxConcurrency, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "storage-" + name + "-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+
+        Gauge.builder("storage.backend.active", executor, ThreadPoolExecutor::getActiveCount)
+                .tag("backend", name)
+                .register(meterRegistry);
+        Gauge.builder("storage.backend.queued", executor, pool -> pool.getQueue().size())
+                .tag("backend", name)
+                .register(meterRegistry);
+    }
+
+    protected abstract Map<String, Object> doUpload(MultipartFile file, String userId, String folder) throws IOException;
+
+    protected abstract Optional<BlobContentService.BlobContent> doDownload(String publicId) throws IOException;
+
+    protected abstract void doDelete(String publicId) throws IOException;
+
+    protected abstract Optional<StoredObject> doStat(String publicId) throws IOException;
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean handles(String storageType) {
+        return storageType != null && (name.equalsIgnoreCase(storageType) || aliases.contains(storageType.toLowerCase()));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> upload(MultipartFile file, String userId, String folder) {
+        return submit("upload", () -> doUpload(file, userId, folder));
+    }
+
+    @Override
+    public CompletableFuture<Optional<BlobContentService.BlobContent>> download(String publicId) {
+        return submit("download", () -> doDownload(publicId));
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(String publicId) {
+        return submit("delete", () -> {
+            doDelete(publicId);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Optional<StoredObject>> stat(String publicId) {
+        return submit("stat", () -> doStat(publicId));
+    }
+
+    /**
+     * Concurrency limit and current load, for the "storage" actuator endpoint.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("maxConcurrency", maxConcurrency);
+        state.put("active", executor.getActiveCount());
+        state.put("queued", executor.getQueue().size());
+        state.put("completed", executor.getCompletedTaskCount());
+        return state;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private <T> CompletableFuture<T> submit(String operation, StorageCall<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            long start = System.nanoTime();
+            try {
+                T result = call.run();
+                record(operation, "success", start);
+                future.complete(result);
+            } catch (Throwable e) {
+                record(operation, "failure", start);
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private void record(String operation, String outcome, long startNanos) {
+        Timer.builder("storage.backend.requests")
+                .tag("backend", name)
+                .tag("operation", operation)
+                .tag("outcome", outcome)
+                .register(meterRegistry)
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @FunctionalInterface
+    private interface StorageCall<T> {
+        T run() throws Exception;
+    }
+}
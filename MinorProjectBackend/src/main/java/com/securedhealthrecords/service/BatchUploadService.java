@@ -0,0 +1,186 @@
+package com.securedhealthrecords.service;
+
+import com.securedhealthrecords.dto.BatchUploadResultDTO;
+import com.securedhealthrecords.exception.QuotaExceededException;
+import com.securedhealthrecords.model.FileRecord;
+import com.securedhealthrecords.repository.FileRecordRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads the parts of a multi-file request concurrently on a bounded pool, through the
+ * UnifiedStorageService priority/circuit-breaker chain, and persists all resulting
+ * FileRecords with a single saveAll. Every part gets its own result so a partial failure
+ * doesn't hide the files that did make it.
+ */
+@Slf4j
+@Service
+public class BatchUploadService {
+
+    private static final long MAX_FILE_SIZE = 50L * 1024 * 1024;
+
+    private final StorageBackend storageBackend;
+    private final FileRecordRepository fileRecordRepository;
+    private final ThumbnailService thumbnailService;
+    private final StorageUsageService storageUsageService;
+    private final ImageNormalizationService imageNormalizationService;
+    private final SignedUrlService signedUrlService;
+
+    private final ThreadPoolExecutor executor;
+    private final int maxFiles;
+
+    public BatchUploadService(
+            StorageBackend storageBackend,
+            FileRecordRepository fileRecordRepository,
+            ThumbnailService thumbnailService,
+            StorageUsageService storageUsageService,
+            ImageNormalizationService imageNormalizationService,
+            SignedUrlService signedUrlService,
+            @Value("${app.upload.batch.workers:4}") int workers,
+            @Value("${app.upload.batch.queue-capacity:100}") int queueCapacity,
+            @Value("${app.upload.batch.max-files:50}") int maxFiles) {
+        this.storageBackend = storageBackend;
+        this.fileRecordRepository = fileRecordRepository;
+        this.thumbnailService = thumbnailService;
+        this.storageUsageService = storageUsageService;
+        this.imageNormalizationService = imageNormalizationService;
+        this.signedUrlService = signedUrlService;
+        this.maxFiles = maxFiles;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        // When the pool is saturated the request thread does the work itself, which
+        // throttles batch uploads instead of rejecting them
+        this.executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "batch-upload-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    public List<BatchUploadResultDTO> uploadAll(List<MultipartFile> files, String userId, String folderId) {
+        List<CompletableFuture<StoredPart>> uploads = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            int index = i;
+            MultipartFile file = files.get(i);
+            uploads.add(CompletableFuture.supplyAsync(() -> store(index, file, userId, folderId), executor));
+        }
+
+        List<StoredPart> parts = uploads.stream().map(CompletableFuture::join).toList();
+
+        List<StoredPart> stored = parts.stream().filter(part -> part.record() != null).toList();
+        List<FileRecord> saved = List.of();
+        if (!stored.isEmpty()) {
+            try {
+                saved = fileRecordRepository.saveAll(stored.stream().map(StoredPart::record).toList());
+            } catch (RuntimeException e) {
+                log.error("❌ Batch metadata save failed, rolling back {} stored files: {}", stored.size(), e.getMessage());
+                stored.forEach(this::discard);
+                return parts.stream()
+                        .map(part -> part.record() == null ? part.result()
+                                : BatchUploadResultDTO.failed(part.result().getIndex(), part.result().getFileName(),
+                                        "Could not save file metadata: " + e.getMessage()))
+                        .toList();
+            }
+        }
+
+        // saveAll returns the records in input order, with their ids filled in. The url is the
+        // signed proxied link, never the backend address the content was stored at
+        for (int i = 0; i < saved.size(); i++) {
+            FileRecord record = saved.get(i);
+            BatchUploadResultDTO result = stored.get(i).result();
+            result.setFileId(record.getId());
+            result.setUrl(signedUrlService.signContent(record.getId()).url());
+            thumbnailService.submitForFile(record);
+        }
+
+        long failed = parts.stream().filter(part -> part.record() == null).count();
+        log.info("📦 Batch upload for user {}: {} stored, {} failed", userId, parts.size() - failed, failed);
+        return parts.stream().map(StoredPart::result).toList();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private StoredPart store(int index, MultipartFile upload, String userId, String folderId) {
+        String fileName = upload.getOriginalFilename();
+        if (upload.isEmpty()) {
+            return new StoredPart(BatchUploadResultDTO.failed(index, fileName, "File is empty"), null);
+        }
+        if (upload.getSize() > MAX_FILE_SIZE) {
+            return new StoredPart(BatchUploadResultDTO.failed(index, fileName, "File size exceeds 50MB limit"), null);
+        }
+
+        try (ImageNormalizationService.Normalized normalized = imageNormalizationService.normalize(upload)) {
+            return store(index, normalized, userId, folderId);
+        }
+    }
+
+    private StoredPart store(int index, ImageNormalizationService.Normalized normalized, String userId, String folderId) {
+        MultipartFile file = normalized.file();
+        String fileName = file.getOriginalFilename();
+        try {
+            storageUsageService.reserve(userId, 1, file.getSize());
+        } catch (QuotaExceededException e) {
+            imageNormalizationService.discardOriginal(normalized.originalHash());
+            return new StoredPart(BatchUploadResultDTO.failed(index, fileName, e.getMessage()), null);
+        }
+
+        try {
+            Map<String, Object> uploadResult = storageBackend.uploadFile(file, userId, folderId);
+            String publicId = (String) uploadResult.get("public_id");
+            String url = (String) uploadResult.get("secure_url");
+            String storageType = (String) uploadResult.getOrDefault("storage_type", "cloudinary");
+
+            FileRecord record = new FileRecord(userId, fileName, fileName, file.getContentType(), file.getSize(),
+                    publicId, url);
+            record.setStorageType(storageType);
+            record.setCodec((String) uploadResult.get("codec"));
+            record.setContentHash((String) uploadResult.get("sha256"));
+            normalized.applyTo(record);
+            if (folderId != null && !folderId.isEmpty()) {
+                record.setFolderId(folderId);
+            }
+            return new StoredPart(
+                    new BatchUploadResultDTO(index, fileName, "uploaded", null, null, storageType, null), record);
+        } catch (Exception e) {
+            storageUsageService.release(userId, 1, file.getSize());
+            imageNormalizationService.discardOriginal(normalized.originalHash());
+            log.warn("⚠️ Batch part {} ({}) failed: {}", index, fileName, e.getMessage());
+            return new StoredPart(BatchUploadResultDTO.failed(index, fileName, e.getMessage()), null);
+        }
+    }
+
+    private void discard(StoredPart part) {
+        storageUsageService.release(part.record().getUserId(), 1, part.record().getSize());
+        imageNormalizationService.discardOriginal(part.record().getOriginalHash());
+        try {
+            storageBackend.deleteFile(part.record().getCloudinaryPublicId(), part.record().getStorageType());
+        } catch (Exception e) {
+            log.warn("⚠️ Could not roll back stored file {}: {}", part.record().getCloudinaryPublicId(), e.getMessage());
+        }
+    }
+
+    private record StoredPart(BatchUploadResultDTO result, FileRecord record) {
+    }
+}
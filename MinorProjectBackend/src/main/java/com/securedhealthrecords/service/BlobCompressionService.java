@@ -0,0 +1,155 @@
+package com.securedhealthrecords.service;
+
+import com.securedhealthrecords.util.BlobFormat;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decides per upload whether a blob is worth compressing and provides the codec streams.
+ *
+ * Types that are already compressed (JPEG, PNG, video, archives, ...) are skipped outright.
+ * For everything else a prefix of the stream is deflated as a sample and the blob is only
+ * compressed when the sample shrinks below the configured ratio.
+ */
+@Slf4j
+@Service
+public class BlobCompressionService {
+
+    public static final String DEFLATE = "deflate";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final boolean enabled;
+    private final int sampleBytes;
+    private final int minBytes;
+    private final double maxRatio;
+    private final int level;
+    private final List<String> skipTypes;
+
+    public BlobCompressionService(
+            @Value("${app.storage.compression.enabled:true}") boolean enabled,
+            @Value("${app.storage.compression.sample-bytes:65536}") int sampleBytes,
+            @Value("${app.storage.compression.min-bytes:1024}") int minBytes,
+            @Value("${app.storage.compression.max-ratio:0.9}") double maxRatio,
+            @Value("${app.storage.compression.level:6}") int level,
+            @Value("${app.storage.compression.skip-types:image/jpeg,image/png,image/gif,image/webp,image/heic,video/,audio/,application/zip,application/gzip,application/x-7z-compressed,application/x-rar-compressed,application/x-xz,application/zstd}")
+            String skipTypes) {
+        this.enabled = enabled;
+        this.sampleBytes = sampleBytes;
+        this.minBytes = minBytes;
+        this.maxRatio = maxRatio;
+        this.level = level;
+        this.skipTypes = Arrays.stream(skipTypes.split(","))
+                .map(String::trim)
+                .filter(type -> !type.isEmpty())
+                .map(type -> type.toLowerCase(Locale.ROOT))
+                .toList();
+    }
+
+    /**
+     * Wraps the content so a sample can be taken without losing any bytes.
+     */
+    public BufferedInputStream prepare(InputStream content) {
+        return new BufferedInputStream(content, Math.max(sampleBytes, BUFFER_SIZE));
+    }
+
+    /**
+     * Returns the codec to store the blob with, or null to store it as-is. Only looks at
+     * the first sample-bytes of the stream, which is reset afterwards.
+     */
+    public String chooseCodec(String contentType, BufferedInputStream content) throws IOException {
+        if (!enabled || isSkipped(contentType)) {
+            return null;
+        }
+
+        content.mark(sampleBytes);
+        byte[] sample = content.readNBytes(sampleBytes);
+        content.reset();
+        if (sample.length < minBytes) {
+            return null;
+        }
+
+        double ratio = (double) deflatedSize(sample) / sample.length;
+        log.debug("Compression sample for {}: {} bytes -> ratio {}", contentType, sample.length, ratio);
+        return ratio <= maxRatio ? DEFLATE : null;
+    }
+
+    public OutputStream compress(OutputStream out, String codec) {
+        if (!DEFLATE.equals(codec)) {
+            return out;
+        }
+        Deflater deflater = new Deflater(level);
+        return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    public InputStream decompress(InputStream in, String codec) {
+        if (!DEFLATE.equals(codec)) {
+            return in;
+        }
+        Inflater inflater = new Inflater();
+        return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    public static int flagFor(String codec) {
+        return DEFLATE.equals(codec) ? BlobFormat.FLAG_DEFLATE : 0;
+    }
+
+    public static String codecFor(int flags) {
+        return (flags & BlobFormat.FLAG_DEFLATE) != 0 ? DEFLATE : null;
+    }
+
+    private boolean isSkipped(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        return skipTypes.stream().anyMatch(type::startsWith);
+    }
+
+    private long deflatedSize(byte[] sample) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            byte[] scratch = new byte[BUFFER_SIZE];
+            long total = 0;
+            while (!deflater.finished()) {
+                total += deflater.deflate(scratch);
+            }
+            return total;
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.securedhealthrecords.service;
+
+import com.securedhealthrecords.model.FileRecord;
+import com.securedhealthrecords.model.FileVersion;
+import com.securedhealthrecords.model.Node;
+import com.securedhealthrecords.util.BlobResource;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Opens the content behind a stored url / storageKey, whichever backend it lives in.
+ * Our own local and GridFS download URLs are served straight from disk / Mongo. Anything
+ * remote is read through the backend that stored it, with that backend's credentials
+ * (Cloudinary through the local disk cache), never with an anonymous GET of the URL.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class BlobContentService {
+
+    private static final Pattern LOCAL_DOWNLOAD = Pattern.compile(".*/files/download/([^/]+)/([^/?#]+)$");
+    private static final Pattern GRIDFS_DOWNLOAD = Pattern.compile(".*/files/gridfs/([0-9a-fA-F]{24})$");
+
+    private final LocalFileStorageService localFileStorageService;
+    private final GridFsStorageService gridFsStorageService;
+    private final StorageBackend storageBackend;
+
+    public Optional<BlobContent> open(FileRecord file) throws IOException {
+        return open(file.getUrl(), file.getStorageType(), file.getCloudinaryPublicId());
+    }
+
+    public Optional<BlobContent> open(FileVersion version) throws IOException {
+        return open(version.getUrl(), version.getStorageType(), version.getCloudinaryPublicId());
+    }
+
+    public Optional<BlobContent> open(Node node) throws IOException {
+        return open(node.getStorageKey(), node.getStorageType(), node.getStoragePublicId());
+    }
+
+    /**
+     * Opens content by its URL and, for remote content, the storageType and publicId its record
+     * keeps. Older records without a publicId are resolved from the URL by their backend.
+     */
+    public Optional<BlobContent> open(String url, String storageType, String publicId) throws IOException {
+        if (url == null || url.isEmpty()) {
+            return Optional.empty();
+        }
+
+        if (url.startsWith("data:")) {
+            // Legacy base64 records keep their content inline
+            byte[] bytes = Base64.getDecoder().decode(url.substring(url.indexOf(",") + 1));
+            return Optional.of(new BlobContent(new ByteArrayInputStream(bytes), bytes.length));
+        }
+
+        Matcher local = LOCAL_DOWNLOAD.matcher(url);
+        if (local.matches()) {
+            Optional<BlobResource> blob = localFileStorageService.openDownload(local.group(1), local.group(2));
+            if (blob.isEmpty()) {
+                return Optional.empty();
+            }
+            return Optional.of(new BlobContent(blob.get().getInputStream(), blob.get().contentLength()));
+        }
+
+        Matcher gridFs = GRIDFS_DOWNLOAD.matcher(url);
+        if (gridFs.matches()) {
+            return gridFsStorageService.openDownload(gridFs.group(1))
+                    .map(download -> new BlobContent(download.stream(), download.length()));
+        }
+
+        if (url.startsWith("http://") || url.startsWith("https://")) {
+            Optional<StorageBackend> backend = storageBackend.resolve(storageType);
+            String id = publicId != null ? publicId : backend.flatMap(b -> b.publicIdOf(url)).orElse(null);
+            if (backend.isPresent() && id != null) {
+                return StorageBackend.await(backend.get().download(id));
+            }
+        }
+
+        log.warn("⚠️ Don't know how to open content at {}", url);
+        return Optional.empty();
+    }
+
+    /**
+     * An open content stream; length is -1 when unknown. The caller closes the stream.
+     */
+    public record BlobContent(InputStream stream, long length) {
+    }
+}
@@ -0,0 +1,298 @@
+package com.securedhealthrecords.service;
+
+import com.securedhealthrecords.util.BlobFormat;
+import com.securedhealthrecords.util.SegmentedAesGcm;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.core.env.Profiles;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Envelope encryption for blobs at rest, and the container layer that writes/reads the
+ * blob header (see {@link BlobFormat}) around compression and encryption.
+ *
+ * Each blob gets its own random data key (DEK) which is wrapped with the master key and
+ * stored in the blob header, the content itself is sealed with {@link SegmentedAesGcm}.
+ * Unwrapped DEKs are kept in a small LRU cache so hot blobs don't pay the unwrap on every read.
+ */
+@Slf4j
+@Service
+public class BlobEncryptionService {
+
+    private static final byte[] WRAP_AAD = "SHRB-DEK".getBytes(StandardCharsets.US_ASCII);
+    private static final int WRAP_NONCE_BYTES = 12;
+
+    private final BlobCompressionService blobCompressionService;
+
+    private final boolean enabled;
+    private final int segmentSize;
+    private final int keyCacheSize;
+    private final SecretKey masterKey;
+    private final SecureRandom random = new SecureRandom();
+
+    // Base64(wrapped DEK) -> unwrapped DEK, access ordered for LRU eviction
+    private final LinkedHashMap<String, SecretKey> keyCache;
+
+    private final AtomicLong keyCacheHits = new AtomicLong();
+    private final AtomicLong keyCacheMisses = new AtomicLong();
+
+    public BlobEncryptionService(
+            BlobCompressionService blobCompressionService,
+            @Value("${app.storage.encryption.enabled:true}") boolean enabled,
+            @Value("${app.storage.encryption.master-key:}") String masterKey,
+            @Value("${app.storage.encryption.segment-size:65536}") int segmentSize,
+            @Value("${app.storage.encryption.key-cache-size:1024}") int keyCacheSize,
+            @Value("${app.storage.encryption.dev-key-file:${user.home}/.secured-health-records/master.key}") String devKeyFile,
+            @Value("${app.upload.dir:uploads}") String uploadDir,
+            Environment environment) throws IOException {
+        this.blobCompressionService = blobCompressionService;
+        this.enabled = enabled;
+        this.segmentSize = segmentSize;
+        this.keyCacheSize = keyCacheSize;
+        this.masterKey = enabled
+                ? loadMasterKey(masterKey, Paths.get(devKeyFile), Paths.get(uploadDir, ".keys", "master.key"),
+                        environment.acceptsProfiles(Profiles.of("dev")))
+                : null;
+        this.keyCache = new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SecretKey> eldest) {
+                return size() > BlobEncryptionService.this.keyCacheSize;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Writes a fresh header to out and returns a stream that compresses (codec may be null)
+     * and encrypts everything written to it. With neither applied the raw stream is returned
+     * and the blob stays plain.
+     */
+    public OutputStream openForWrite(OutputStream out, String codec) throws IOException {
+        int codecFlag = BlobCompressionService.flagFor(codec);
+        if (!enabled) {
+            if (codecFlag == 0) {
+                return out;
+            }
+            out.write(BlobFormat.newHeader(codecFlag, 0, new byte[SegmentedAesGcm.NONCE_PREFIX_BYTES], new byte[0])
+                    .getEncoded());
+            return blobCompressionService.compress(out, codec);
+        }
+
+        SecretKey dek = newDataKey();
+        byte[] noncePrefix = new byte[SegmentedAesGcm.NONCE_PREFIX_BYTES];
+        random.nextBytes(noncePrefix);
+        BlobFormat.Header header = BlobFormat.newHeader(
+                BlobFormat.FLAG_ENCRYPTED | codecFlag, segmentSize, noncePrefix, wrap(dek));
+        out.write(header.getEncoded());
+        return blobCompressionService.compress(SegmentedAesGcm.encryptingStream(out, dek, header), codec);
+    }
+
+    /**
+     * Opens the blob file for reading at the given plaintext offset. Files written before
+     * encryption was turned on have no header and are read as-is. Compressed blobs can't
+     * seek, so their offset is skipped over after inflating.
+     */
+    public InputStream openForRead(Path path, long offset) throws IOException {
+        SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.READ);
+        try {
+            BlobFormat.Header header = BlobFormat.read(channel);
+            if (header == null) {
+                channel.position(offset);
+                return Channels.newInputStream(channel);
+            }
+
+            String codec = BlobCompressionService.codecFor(header.getFlags());
+            long rawOffset = codec == null ? offset : 0;
+            InputStream raw;
+            if (header.isEncrypted()) {
+                raw = SegmentedAesGcm.decryptingStream(channel, unwrap(header.getWrappedKey()), header, rawOffset);
+            } else {
+                channel.position(header.length() + rawOffset);
+                raw = Channels.newInputStream(channel);
+            }
+            if (codec == null) {
+                return raw;
+            }
+
+            InputStream in = blobCompressionService.decompress(raw, codec);
+            try {
+                in.skipNBytes(offset);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            return in;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Plaintext length of the blob file, worked out from the file size and header alone,
+     * or -1 for compressed blobs whose length is only known from the blob metadata.
+     */
+    public long plaintextSize(Path path) throws IOException {
+        try (SeekableByteChannel channel = Files.newByteChannel(path, StandardOpenOption.READ)) {
+            BlobFormat.Header header = BlobFormat.read(channel);
+            if (header == null) {
+                return channel.size();
+            }
+            if (BlobCompressionService.codecFor(header.getFlags()) != null) {
+                return -1;
+            }
+            if (!header.isEncrypted()) {
+                return channel.size() - header.length();
+            }
+            return SegmentedAesGcm.plaintextLength(channel.size(), header);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("segmentSize", segmentSize);
+        synchronized (keyCache) {
+            stats.put("cachedKeys", keyCache.size());
+        }
+        stats.put("keyCacheSize", keyCacheSize);
+        stats.put("keyCacheHits", keyCacheHits.get());
+        stats.put("keyCacheMisses", keyCacheMisses.get());
+        return stats;
+    }
+
+    private SecretKey unwrap(byte[] wrappedKey) throws IOException {
+        if (masterKey == null) {
+            throw new IOException("Blob is encrypted but encryption at rest is disabled");
+        }
+        String cacheKey = Base64.getEncoder().encodeToString(wrappedKey);
+        synchronized (keyCache) {
+            SecretKey cached = keyCache.get(cacheKey);
+            if (cached != null) {
+                keyCacheHits.incrementAndGet();
+                return cached;
+            }
+        }
+        keyCacheMisses.incrementAndGet();
+
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, masterKey,
+                    new GCMParameterSpec(SegmentedAesGcm.TAG_BYTES * 8, wrappedKey, 0, WRAP_NONCE_BYTES));
+            cipher.updateAAD(WRAP_AAD);
+            byte[] raw = cipher.doFinal(wrappedKey, WRAP_NONCE_BYTES, wrappedKey.length - WRAP_NONCE_BYTES);
+            SecretKey dek = new SecretKeySpec(raw, "AES");
+            Arrays.fill(raw, (byte) 0);
+            synchronized (keyCache) {
+                keyCache.put(cacheKey, dek);
+            }
+            return dek;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not unwrap blob key (wrong master key?)", e);
+        }
+    }
+
+    private byte[] wrap(SecretKey dek) throws IOException {
+        try {
+            byte[] nonce = new byte[WRAP_NONCE_BYTES];
+            random.nextBytes(nonce);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, masterKey, new GCMParameterSpec(SegmentedAesGcm.TAG_BYTES * 8, nonce));
+            cipher.updateAAD(WRAP_AAD);
+            byte[] sealed = cipher.doFinal(dek.getEncoded());
+
+            byte[] wrapped = Arrays.copyOf(nonce, WRAP_NONCE_BYTES + sealed.length);
+            System.arraycopy(sealed, 0, wrapped, WRAP_NONCE_BYTES, sealed.length);
+            return wrapped;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not wrap blob key", e);
+        }
+    }
+
+    private SecretKey newDataKey() throws IOException {
+        try {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(256, random);
+            return generator.generateKey();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not generate blob key", e);
+        }
+    }
+
+    /**
+     * The configured key, or with the dev profile a generated one kept in keyFile. The key never
+     * lives under the upload dir: a copy of the uploads would otherwise carry the key that opens
+     * them. legacyKeyFile is where earlier versions generated it; in dev it is moved out.
+     */
+    private SecretKey loadMasterKey(String configured, Path keyFile, Path legacyKeyFile, boolean dev) throws IOException {
+        if (configured != null && !configured.isBlank()) {
+            byte[] raw = Base64.getDecoder().decode(configured.trim());
+            if (raw.length != 32) {
+                throw new IllegalStateException("app.storage.encryption.master-key must be 32 bytes (base64)");
+            }
+            return new SecretKeySpec(raw, "AES");
+        }
+
+        if (!dev) {
+            String hint = Files.exists(legacyKeyFile)
+                    ? " Existing blobs were encrypted with the generated key at " + legacyKeyFile.toAbsolutePath()
+                            + ": set STORAGE_MASTER_KEY to its base64 and move the file out of the upload dir."
+                    : "";
+            throw new IllegalStateException("Blob encryption is enabled but no master key is configured. Set "
+                    + "STORAGE_MASTER_KEY (32 bytes, base64) or run with the dev profile." + hint);
+        }
+
+        if (!Files.exists(keyFile) && Files.exists(legacyKeyFile)) {
+            Files.createDirectories(keyFile.toAbsolutePath().getParent());
+            Files.move(legacyKeyFile, keyFile, StandardCopyOption.ATOMIC_MOVE);
+            log.warn("⚠️ Moved the generated storage master key out of the upload dir to {}", keyFile.toAbsolutePath());
+        }
+        if (!Files.exists(keyFile)) {
+            byte[] raw = new byte[32];
+            random.nextBytes(raw);
+            Files.createDirectories(keyFile.toAbsolutePath().getParent());
+            Files.write(keyFile, raw, StandardOpenOption.CREATE_NEW);
+            try {
+                Files.setPosixFilePermissions(keyFile, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException e) {
+                log.debug("Filesystem has no POSIX permissions for {}", keyFile);
+            }
+            log.warn("⚠️ No storage master key configured, generated a dev key at {} - set STORAGE_MASTER_KEY outside dev",
+                    keyFile.toAbsolutePath());
+        }
+        byte[] raw = Files.readAllBytes(keyFile);
+        if (raw.length != 32) {
+            throw new IllegalStateException("Master key file " + keyFile + " is not 32 bytes");
+        }
+        return new SecretKeySpec(raw, "AES");
+    }
+}
@@ -0,0 +1,206 @@
+package com.securedhealthrecords.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Online migration of local files into the two-level fan-out layout.
+ *
+ * Moves flat blobs (blobs/{hash} -> blobs/ab/cd/{hash}) and legacy per-user uploads
+ * (health_records/{userId}/... -> legacy/ab/cd/{key}) in throttled batches on a single
+ * background thread. Every move is an atomic rename, and readers look in both places,
+ * so downloads keep working while it runs.
+ */
+@Slf4j
+@Service
+public class BlobLayoutMigrationService {
+
+    private final BlobStoreService blobStoreService;
+    private final LocalFileStorageService localFileStorageService;
+
+    private final boolean autoStart;
+    private final int batchSize;
+    private final long pauseMs;
+
+    private volatile Thread worker;
+    private volatile String state = "IDLE";
+    private volatile LocalDateTime startedAt;
+    private volatile LocalDateTime finishedAt;
+    private final AtomicLong movedBlobs = new AtomicLong();
+    private final AtomicLong movedLegacyFiles = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public BlobLayoutMigrationService(
+            BlobStoreService blobStoreService,
+            LocalFileStorageService localFileStorageService,
+            @Value("${app.storage.migration.auto-start:true}") boolean autoStart,
+            @Value("${app.storage.migration.batch-size:200}") int batchSize,
+            @Value("${app.storage.migration.pause-ms:500}") long pauseMs) {
+        this.blobStoreService = blobStoreService;
+        this.localFileStorageService = localFileStorageService;
+        this.autoStart = autoStart;
+        this.batchSize = Math.max(1, batchSize);
+        this.pauseMs = pauseMs;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startOnBoot() {
+        if (autoStart) {
+            start();
+        }
+    }
+
+    /**
+     * Starts the migration in the background. Returns false if it is already running.
+     */
+    public synchronized boolean start() {
+        if (worker != null && worker.isAlive()) {
+            return false;
+        }
+        movedBlobs.set(0);
+        movedLegacyFiles.set(0);
+        skipped.set(0);
+        failed.set(0);
+        startedAt = LocalDateTime.now();
+        finishedAt = null;
+        state = "RUNNING";
+
+        worker = new Thread(this::run, "blob-layout-migration");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+        return true;
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("state", state);
+        status.put("startedAt", startedAt);
+        status.put("finishedAt", finishedAt);
+        status.put("movedBlobs", movedBlobs.get());
+        status.put("movedLegacyFiles", movedLegacyFiles.get());
+        status.put("skipped", skipped.get());
+        status.put("failed", failed.get());
+        return status;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        Thread running = worker;
+        if (running != null) {
+            running.interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            migrateFlatBlobs();
+            migrateLegacyFiles();
+            state = "COMPLETED";
+            if (movedBlobs.get() > 0 || movedLegacyFiles.get() > 0) {
+                log.info("📂 Layout migration done: {} blobs and {} legacy files moved, {} skipped, {} failed",
+                        movedBlobs.get(), movedLegacyFiles.get(), skipped.get(), failed.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            state = "INTERRUPTED";
+        } catch (Exception e) {
+            state = "FAILED";
+            log.error("❌ Layout migration failed: {}", e.getMessage(), e);
+        } finally {
+            finishedAt = LocalDateTime.now();
+        }
+    }
+
+    private void migrateFlatBlobs() throws IOException, InterruptedException {
+        Set<String> stuck = new HashSet<>();
+        while (true) {
+            List<String> batch = blobStoreService.listFlatBlobs(batchSize, stuck);
+            if (batch.isEmpty()) {
+                return;
+            }
+            for (String hash : batch) {
+                try {
+                    if (blobStoreService.migrateToFanOut(hash)) {
+                        movedBlobs.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    stuck.add(hash);
+                    failed.incrementAndGet();
+                    log.warn("⚠️ Could not move blob {}: {}", hash, e.getMessage());
+                }
+            }
+            pause();
+        }
+    }
+
+    private void migrateLegacyFiles() throws IOException, InterruptedException {
+        Path legacyRoot = localFileStorageService.getLegacyRoot();
+        if (!Files.isDirectory(legacyRoot)) {
+            return;
+        }
+
+        int inBatch = 0;
+        try (Stream<Path> files = Files.walk(legacyRoot)) {
+            Iterator<Path> iterator = files.filter(Files::isRegularFile).iterator();
+            while (iterator.hasNext()) {
+                Path file = iterator.next();
+                try {
+                    if (localFileStorageService.migrateLegacyFile(file)) {
+                        movedLegacyFiles.incrementAndGet();
+                    } else {
+                        skipped.incrementAndGet();
+                        log.warn("⚠️ Legacy file {} left in place, its fan-out slot is taken", file);
+                    }
+                } catch (IOException e) {
+                    failed.incrementAndGet();
+                    log.warn("⚠️ Could not move legacy file {}: {}", file, e.getMessage());
+                }
+                if (++inBatch >= batchSize) {
+                    inBatch = 0;
+                    pause();
+                }
+            }
+        }
+
+        // Drop the now empty per-user directories, deepest first
+        try (Stream<Path> dirs = Files.walk(legacyRoot)) {
+            for (Path dir : (Iterable<Path>) dirs.filter(Files::isDirectory)
+                    .sorted(Comparator.reverseOrder())::iterator) {
+                if (!dir.equals(legacyRoot)) {
+                    try {
+                        Files.delete(dir);
+                    } catch (DirectoryNotEmptyException e) {
+                        // Still holds skipped files
+                    }
+                }
+            }
+        }
+    }
+
+    private void pause() throws InterruptedException {
+        if (pauseMs > 0) {
+            Thread.sleep(pauseMs);
+        }
+    }
+}
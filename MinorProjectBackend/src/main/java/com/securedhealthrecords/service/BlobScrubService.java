@@ -0,0 +1,332 @@
+package com.securedhealthrecords.service;
+
+import com.securedhealthrecords.model.Blob;
+import com.securedhealthrecords.model.FileRecord;
+import com.securedhealthrecords.model.FileVersion;
+import com.securedhealthrecords.model.IntegrityStatus;
+import com.securedhealthrecords.model.Node;
+import com.securedhealthrecords.util.ByteRateLimiter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.NoSuchFileException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Background integrity scrubbing of local blobs.
+ *
+ * Each run re-reads the blobs scrubbed longest ago (never scrubbed first), decrypts them and
+ * checks the plaintext against the SHA-256 they are stored under, which is also the
+ * contentHash recorded on their FileRecords / Nodes. Reads go through a byte budget so the
+ * scrub never competes with downloads for disk bandwidth, and don't count as accesses for tiering.
+ *
+ * A corrupt or missing blob is rewritten from a secondary copy when one exists: a record with
+ * the same contentHash whose content lives on another backend (GridFS, Cloudinary, ...).
+ * The outcome is stored on the blob document and summarised in the run report.
+ */
+@Slf4j
+@Service
+public class BlobScrubService {
+
+    private static final int SAMPLE_SIZE = 20;
+
+    private final MongoTemplate mongoTemplate;
+    private final BlobStoreService blobStoreService;
+    private final BlobContentService blobContentService;
+    private final MeterRegistry meterRegistry;
+
+    private final boolean enabled;
+    private final boolean repair;
+    private final int batchSize;
+    private final Duration rescrubAfter;
+    private final ByteRateLimiter limiter;
+
+    private volatile Thread worker;
+    private volatile Map<String, Object> lastReport = Map.of("state", "NEVER_RUN");
+
+    public BlobScrubService(
+            MongoTemplate mongoTemplate,
+            BlobStoreService blobStoreService,
+            BlobContentService blobContentService,
+            MeterRegistry meterRegistry,
+            @Value("${app.storage.scrub.enabled:true}") boolean enabled,
+            @Value("${app.storage.scrub.repair:true}") boolean repair,
+            @Value("${app.storage.scrub.batch-size:1000}") int batchSize,
+            @Value("${app.storage.scrub.rescrub-after-days:30}") long rescrubAfterDays,
+            @Value("${app.storage.scrub.bytes-per-second:8388608}") long bytesPerSecond) {
+        this.mongoTemplate = mongoTemplate;
+        this.blobStoreService = blobStoreService;
+        this.blobContentService = blobContentService;
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+        this.repair = repair;
+        this.batchSize = Math.max(1, batchSize);
+        this.rescrubAfter = Duration.ofDays(rescrubAfterDays);
+        this.limiter = new ByteRateLimiter(bytesPerSecond);
+    }
+
+    @Scheduled(fixedDelayString = "${app.storage.scrub.interval-ms:21600000}",
+            initialDelayString = "${app.storage.scrub.initial-delay-ms:1800000}")
+    public void scheduledRun() {
+        if (enabled) {
+            start();
+        }
+    }
+
+    /**
+     * Starts a scrub run in the background. Returns false if one is already running.
+     */
+    public synchronized boolean start() {
+        if (worker != null && worker.isAlive()) {
+            return false;
+        }
+        worker = new Thread(this::run, "blob-scrub");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+        return true;
+    }
+
+    public Map<String, Object> getLastReport() {
+        return lastReport;
+    }
+
+    private void run() {
+        LocalDateTime startedAt = LocalDateTime.now();
+        long startNanos = System.nanoTime();
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("state", "RUNNING");
+        report.put("startedAt", startedAt);
+        report.put("bytesPerSecondBudget", limiter.getBytesPerSecond());
+        lastReport = new LinkedHashMap<>(report);
+
+        Map<IntegrityStatus, Long> outcomes = new LinkedHashMap<>();
+        List<Map<String, Object>> problems = new ArrayList<>();
+        long scanned = 0;
+        long bytes = 0;
+        try {
+            for (Blob blob : nextBatch(startedAt.minus(rescrubAfter))) {
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                Check check = scrub(blob);
+                if (check == null) {
+                    break; // Interrupted mid-read, the blob stays due
+                }
+                scanned++;
+                bytes += check.bytes();
+                outcomes.merge(check.status(), 1L, Long::sum);
+                meterRegistry.counter("storage.scrub.blobs", "result", check.status().name()).increment();
+                meterRegistry.counter("storage.scrub.bytes").increment(check.bytes());
+                if (check.status() != IntegrityStatus.OK && problems.size() < SAMPLE_SIZE) {
+                    Map<String, Object> problem = new LinkedHashMap<>();
+                    problem.put("hash", blob.getId());
+                    problem.put("status", check.status());
+                    problem.put("error", check.error());
+                    problems.add(problem);
+                }
+
+                if (scanned % 100 == 0) {
+                    report.put("scanned", scanned);
+                    lastReport = new LinkedHashMap<>(report);
+                }
+            }
+            report.put("state", "COMPLETED");
+        } catch (RuntimeException e) {
+            report.put("state", "FAILED");
+            report.put("error", e.getMessage());
+            log.error("❌ Blob scrub failed: {}", e.getMessage(), e);
+        } finally {
+            long elapsedMs = Math.max(1, (System.nanoTime() - startNanos) / 1_000_000);
+            report.put("scanned", scanned);
+            report.put("bytes", bytes);
+            report.put("outcomes", outcomes);
+            report.put("problems", problems);
+            report.put("elapsedMs", elapsedMs);
+            report.put("bytesPerSecond", bytes * 1000 / elapsedMs);
+            report.put("finishedAt", LocalDateTime.now());
+            lastReport = report;
+        }
+
+        long corrupt = outcomes.getOrDefault(IntegrityStatus.CORRUPT, 0L) + outcomes.getOrDefault(IntegrityStatus.MISSING, 0L);
+        if (corrupt > 0) {
+            log.error("🚨 Blob scrub found {} damaged blobs that could not be repaired, see the storagescrub endpoint", corrupt);
+        }
+        log.info("🔍 Blob scrub checked {} blobs ({} bytes): {}", scanned, bytes, outcomes);
+    }
+
+    private List<Blob> nextBatch(LocalDateTime scrubbedBefore) {
+        Query due = new Query(new Criteria().andOperator(
+                Criteria.where("refCount").gt(0),
+                new Criteria().orOperator(
+                        Criteria.where("lastScrubbedAt").exists(false),
+                        Criteria.where("lastScrubbedAt").lt(scrubbedBefore))))
+                .with(Sort.by(Sort.Direction.ASC, "lastScrubbedAt"))
+                .limit(batchSize);
+        due.fields().include("_id").include("size");
+        return mongoTemplate.find(due, Blob.class);
+    }
+
+    /**
+     * Checks one blob and records the outcome on it. Null if the thread was interrupted.
+     */
+    private Check scrub(Blob blob) {
+        String hash = blob.getId();
+        Check check = verify(hash, blob.getSize());
+        if (check == null) {
+            return null;
+        }
+        if (check.status() == IntegrityStatus.MISSING && !mongoTemplate.exists(byId(hash), Blob.class)) {
+            // Released while we were looking, not a loss
+            return new Check(IntegrityStatus.OK, check.bytes(), null);
+        }
+
+        if (check.status() != IntegrityStatus.OK) {
+            log.warn("⚠️ Blob {} failed its integrity check ({}): {}", hash, check.status(), check.error());
+            if (repair && repairFromSecondary(hash)) {
+                check = new Check(IntegrityStatus.REPAIRED, check.bytes(), check.error());
+            }
+        }
+
+        Update update = new Update()
+                .set("integrity", check.status())
+                .set("lastScrubbedAt", LocalDateTime.now());
+        if (check.error() != null) {
+            update.set("integrityError", check.error());
+        } else {
+            update.unset("integrityError");
+        }
+        // No upsert, a blob reclaimed in the meantime must stay gone
+        mongoTemplate.updateFirst(byId(hash), update, Blob.class);
+        return check;
+    }
+
+    /**
+     * Reads the blob back within the byte budget. Null if the thread was interrupted.
+     */
+    private Check verify(String hash, Long expectedSize) {
+        MessageDigest digest = newDigest();
+        long read = 0;
+        try (InputStream in = new DigestInputStream(limiter.throttle(blobStoreService.openForScrub(hash)), digest)) {
+            read = in.transferTo(OutputStream.nullOutputStream());
+        } catch (NoSuchFileException e) {
+            return new Check(IntegrityStatus.MISSING, 0, "No blob file in any tier");
+        } catch (InterruptedIOException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (IOException | RuntimeException e) {
+            // Failed GCM tags and truncated segments surface here
+            return new Check(IntegrityStatus.CORRUPT, read, e.getClass().getSimpleName() + ": " + e.getMessage());
+        }
+
+        String actual = HexFormat.of().formatHex(digest.digest());
+        if (expectedSize != null && read != expectedSize) {
+            return new Check(IntegrityStatus.CORRUPT, read, "Read " + read + " of " + expectedSize + " bytes");
+        }
+        if (!actual.equals(hash)) {
+            return new Check(IntegrityStatus.CORRUPT, read, "Content hashes to " + actual);
+        }
+        return new Check(IntegrityStatus.OK, read, null);
+    }
+
+    /**
+     * Tries every record with the same content stored on another backend until one copy matches.
+     */
+    private boolean repairFromSecondary(String hash) {
+        for (Copy copy : secondaryCopies(hash)) {
+            String url = copy.url();
+            try {
+                Optional<BlobContentService.BlobContent> content = blobContentService.open(url, copy.storageType(), copy.publicId());
+                if (content.isEmpty()) {
+                    continue;
+                }
+                if (blobStoreService.repair(hash, limiter.throttle(content.get().stream()))) {
+                    log.info("🩹 Blob {} repaired from {}", hash, url);
+                    return true;
+                }
+                log.warn("⚠️ Secondary copy {} of blob {} doesn't match either", url, hash);
+            } catch (IOException | RuntimeException e) {
+                log.warn("⚠️ Could not repair blob {} from {}: {}", hash, url, e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    private Collection<Copy> secondaryCopies(String hash) {
+        Map<String, Copy> copies = new LinkedHashMap<>();
+        Query files = Query.query(new Criteria().orOperator(
+                Criteria.where("contentHash").is(hash),
+                Criteria.where("versions.contentHash").is(hash)));
+        files.fields().include("contentHash", "url", "storageType", "cloudinaryPublicId", "versions");
+        for (FileRecord file : mongoTemplate.find(files, FileRecord.class)) {
+            if (hash.equals(file.getContentHash())) {
+                addIfRemote(copies, new Copy(file.getUrl(), file.getStorageType(), file.getCloudinaryPublicId()));
+            }
+            if (file.getVersions() != null) {
+                for (FileVersion version : file.getVersions()) {
+                    if (hash.equals(version.getContentHash())) {
+                        addIfRemote(copies, new Copy(version.getUrl(), version.getStorageType(), version.getCloudinaryPublicId()));
+                    }
+                }
+            }
+        }
+        Query nodes = Query.query(Criteria.where("contentHash").is(hash));
+        nodes.fields().include("storageKey", "storageType", "storagePublicId");
+        for (Node node : mongoTemplate.find(nodes, Node.class)) {
+            addIfRemote(copies, new Copy(node.getStorageKey(), node.getStorageType(), node.getStoragePublicId()));
+        }
+        return copies.values();
+    }
+
+    private static void addIfRemote(Map<String, Copy> copies, Copy copy) {
+        // A local download URL would just read the damaged blob again
+        String url = copy.url();
+        if (url != null && !url.isEmpty() && !url.contains("/files/download/")) {
+            copies.putIfAbsent(url, copy);
+        }
+    }
+
+    /**
+     * Another stored copy of the content, opened through the backend its record names.
+     */
+    private record Copy(String url, String storageType, String publicId) {
+    }
+
+    private static Query byId(String hash) {
+        return Query.query(Criteria.where("_id").is(hash));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private record Check(IntegrityStatus status, long bytes, String error) {
+    }
+}
@@ -0,0 +1,807 @@
+package com.securedhealthrecords.service;
+
+import com.securedhealthrecords.model.Blob;
+import com.securedhealthrecords.model.BlobChunk;
+import com.securedhealthrecords.model.StorageTier;
+import com.securedhealthrecords.repository.BlobRepository;
+import com.securedhealthrecords.util.ContentDefinedChunker;
+import com.securedhealthrecords.util.FanOutLayout;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+/**
+ * Content-addressed blob store on local disk, laid out as blobs/ab/cd/{sha256}.
+ *
+ * Every blob is stored exactly once under the SHA-256 of its content, and a
+ * reference count in the "blobs" collection tracks how many records point at it.
+ * The blob file is reclaimed when the last reference is released. Blob files are
+ * encrypted at rest by {@link BlobEncryptionService}, hashes are over the plaintext.
+ *
+ * Blobs that go unread are moved to a cold tier directory (cold/ab/cd/{sha256}) by
+ * {@link BlobTieringService}. Reads are served from wherever the file is, and reading a
+ * cold blob promotes it back to the hot tier in the background.
+ *
+ * Large uploads are split into content-defined chunks (FastCDC), each stored as a blob of
+ * its own; the upload's blob then has no file, only a manifest listing its chunks. A new
+ * version of a large record that differs in a few places shares every other chunk with the
+ * previous one, and reads stream the chunks back one after the other.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class BlobStoreService {
+
+    private static final Pattern BLOB_KEY = Pattern.compile("[0-9a-f]{64}");
+    private static final int LOCK_STRIPES = 64;
+
+    private final MongoTemplate mongoTemplate;
+    private final BlobRepository blobRepository;
+    private final BlobEncryptionService blobEncryptionService;
+    private final BlobCompressionService blobCompressionService;
+
+    // Serialises store/release of the same hash so a reclaim can never race a new reference
+    private final Object[] locks = createLocks();
+
+    // Reads since the last flush, written to the blobs collection in bulk by BlobTieringService
+    private final ConcurrentHashMap<String, AccessStats> pendingAccess = new ConcurrentHashMap<>();
+    private final Set<String> promoting = ConcurrentHashMap.newKeySet();
+    private final ExecutorService promotionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "blob-promotion");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Value("${app.upload.dir:uploads}")
+    private String uploadDir;
+
+    // Empty keeps the cold tier under the upload dir; point it at a cheaper volume in production
+    @Value("${app.storage.tiering.cold-dir:}")
+    private String coldDir;
+
+    @Value("${app.storage.chunking.enabled:true}")
+    private boolean chunkingEnabled;
+
+    // Smaller uploads are stored whole, a manifest would only add lookups
+    @Value("${app.storage.chunking.min-file-bytes:8388608}")
+    private long chunkingMinFileBytes;
+
+    @Value("${app.storage.chunking.min-chunk-bytes:262144}")
+    private int minChunkBytes;
+
+    @Value("${app.storage.chunking.avg-chunk-bytes:1048576}")
+    private int avgChunkBytes;
+
+    @Value("${app.storage.chunking.max-chunk-bytes:4194304}")
+    private int maxChunkBytes;
+
+    /**
+     * Streams the content to disk while hashing it, then either keeps the new file or
+     * drops it in favour of an identical blob that is already stored. Either way the
+     * blob's reference count is incremented by one.
+     */
+    public StoredBlob store(InputStream content, String contentType) throws IOException {
+        Path tempDir = getTempDir();
+        Files.createDirectories(tempDir);
+        Path tempFile = Files.createTempFile(tempDir, "upload-", ".part");
+
+        // Hash the plaintext so identical content dedups even though every blob gets its own key
+        MessageDigest digest = newDigest();
+        long size;
+        String codec;
+        try (BufferedInputStream buffered = blobCompressionService.prepare(content)) {
+            codec = blobCompressionService.chooseCodec(contentType, buffered);
+            size = writeSealed(buffered, tempFile, codec, digest);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+        String hash = HexFormat.of().formatHex(digest.digest());
+        long storedSize = Files.size(tempFile);
+
+        synchronized (lockFor(hash)) {
+            Path target = resolve(hash);
+            // Same content stored chunked still gets its file here; reads prefer the file
+            // and the last release drops both
+            boolean deduplicated = locate(hash) != null;
+            if (deduplicated) {
+                Files.deleteIfExists(tempFile);
+            } else {
+                // Fully written temp file + rename, readers never see a partial blob
+                Files.createDirectories(target.getParent());
+                Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+
+            Blob blob;
+            try {
+                blob = acquire(hash, size, storedSize, codec, contentType);
+            } catch (RuntimeException e) {
+                if (!deduplicated) {
+                    Files.deleteIfExists(target);
+                }
+                throw e;
+            }
+
+            // On a dedup hit the existing blob's encoding wins
+            String storedCodec = deduplicated ? blob.getCodec() : codec;
+            long storedBytes = deduplicated && blob.getStoredSize() != null ? blob.getStoredSize() : storedSize;
+            log.info("📦 Blob {} stored ({} bytes, {} on disk, codec={}, refCount={}, deduplicated={})",
+                    hash, size, storedBytes, storedCodec, blob.getRefCount(), deduplicated);
+            return new StoredBlob(hash, size, storedBytes, storedCodec, deduplicated, 0, 0);
+        }
+    }
+
+    /**
+     * Like {@link #store(InputStream, String)}, but content of at least min-file-bytes (or of
+     * unknown size, -1) is split into content-defined chunks, each stored and deduplicated on
+     * its own. The result's storedSize then only counts chunks that weren't stored before.
+     */
+    public StoredBlob store(InputStream content, String contentType, long sizeHint) throws IOException {
+        if (!chunkingEnabled || (sizeHint >= 0 && sizeHint < chunkingMinFileBytes)) {
+            return store(content, contentType);
+        }
+
+        MessageDigest digest = newDigest();
+        List<BlobChunk> chunks = new ArrayList<>();
+        StoredBlob lastChunk = null;
+        long size = 0;
+        long newBytes = 0;
+        int reused = 0;
+        try (ContentDefinedChunker chunker = new ContentDefinedChunker(
+                new DigestInputStream(content, digest), minChunkBytes, avgChunkBytes, maxChunkBytes)) {
+            int length;
+            while ((length = chunker.next()) > 0) {
+                lastChunk = store(new ByteArrayInputStream(chunker.buffer(), 0, length), contentType);
+                chunks.add(new BlobChunk(lastChunk.hash(), (long) length));
+                size += length;
+                if (lastChunk.deduplicated()) {
+                    reused++;
+                } else {
+                    newBytes += lastChunk.storedSize();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            releaseChunks(chunks);
+            throw e;
+        }
+        if (chunks.isEmpty()) {
+            return store(InputStream.nullInputStream(), contentType);
+        }
+        if (chunks.size() == 1) {
+            // The only chunk is the whole content, and already a blob under its hash
+            return lastChunk;
+        }
+
+        String hash = HexFormat.of().formatHex(digest.digest());
+        Blob previous;
+        synchronized (lockFor(hash)) {
+            previous = acquireChunked(hash, size, chunks, contentType);
+        }
+        boolean deduplicated = previous != null;
+        if (deduplicated) {
+            // Same content is already stored, whole or chunked; the chunks just written aren't needed
+            releaseChunks(chunks);
+            newBytes = 0;
+        }
+
+        log.info("🧩 Blob {} stored as {} chunks ({} bytes, {} reused, {} new on disk, deduplicated={})",
+                hash, chunks.size(), size, reused, newBytes, deduplicated);
+        return new StoredBlob(hash, size, newBytes, null, deduplicated, chunks.size(), reused);
+    }
+
+    /**
+     * Drops one reference to the blob and deletes the file once nothing points at it.
+     * A chunked blob releases its chunks at that point.
+     */
+    public void release(String hash) throws IOException {
+        List<BlobChunk> chunks;
+        synchronized (lockFor(hash)) {
+            Blob blob = mongoTemplate.findAndModify(
+                    byId(hash),
+                    new Update().inc("refCount", -1).set("updatedAt", LocalDateTime.now()),
+                    FindAndModifyOptions.options().returnNew(true),
+                    Blob.class);
+
+            if (blob == null) {
+                log.warn("⚠️ Release requested for unknown blob {}", hash);
+                return;
+            }
+            if (blob.getRefCount() != null && blob.getRefCount() > 0) {
+                log.debug("Blob {} still has {} references", hash, blob.getRefCount());
+                return;
+            }
+
+            mongoTemplate.remove(byId(hash), Blob.class);
+            Files.deleteIfExists(resolve(hash));
+            Files.deleteIfExists(flatPath(hash));
+            Files.deleteIfExists(coldPath(hash));
+            pendingAccess.remove(hash);
+            chunks = blob.getChunks();
+            log.info("🗑️ Blob {} reclaimed", hash);
+        }
+        // Outside the lock: chunk hashes map onto the same lock stripes, holding two could deadlock
+        releaseChunks(chunks);
+    }
+
+    public boolean exists(String hash) {
+        if (!isBlobKey(hash)) {
+            return false;
+        }
+        if (locate(hash) != null) {
+            return blobRepository.existsById(hash);
+        }
+        return findChunked(hash).isPresent();
+    }
+
+    /**
+     * Opens the blob's plaintext starting at the given offset, decrypting on the fly.
+     * Counts as an access, and schedules a promotion if the blob is in the cold tier.
+     */
+    public InputStream open(String hash, long offset) throws IOException {
+        Path path = locate(hash);
+        if (path == null) {
+            Optional<Blob> chunked = findChunked(hash);
+            if (chunked.isPresent()) {
+                // Each chunk counts as an access of its own and is tiered on its own
+                return new ChunkedInputStream(chunked.get().getChunks(), offset, this::open);
+            }
+            path = existing(hash);
+        }
+        InputStream in;
+        try {
+            in = blobEncryptionService.openForRead(path, offset);
+        } catch (NoSuchFileException e) {
+            // Moved by the layout migration or a tier change between locate and open, look again
+            path = existing(hash);
+            in = blobEncryptionService.openForRead(path, offset);
+        }
+
+        pendingAccess.merge(hash, new AccessStats(1, LocalDateTime.now()), AccessStats::plus);
+        if (path.equals(coldPath(hash))) {
+            schedulePromotion(hash);
+        }
+        return in;
+    }
+
+    public long contentLength(String hash) throws IOException {
+        if (locate(hash) == null) {
+            Optional<Blob> chunked = findChunked(hash);
+            if (chunked.isPresent()) {
+                return chunked.get().getSize();
+            }
+        }
+        long length;
+        try {
+            length = blobEncryptionService.plaintextSize(existing(hash));
+        } catch (NoSuchFileException e) {
+            length = blobEncryptionService.plaintextSize(existing(hash));
+        }
+        if (length < 0) {
+            // Compressed blobs record their plaintext size in the metadata
+            length = blobRepository.findById(hash).map(Blob::getSize).orElse(-1L);
+        }
+        return length;
+    }
+
+    /**
+     * Opens the blob's plaintext for an integrity check. Unlike {@link #open} this is not
+     * an access, so scrubbing neither keeps blobs hot nor promotes cold ones.
+     */
+    public InputStream openForScrub(String hash) throws IOException {
+        if (locate(hash) == null) {
+            Optional<Blob> chunked = findChunked(hash);
+            if (chunked.isPresent()) {
+                return new ChunkedInputStream(chunked.get().getChunks(), 0, (chunk, offset) -> openForScrub(chunk));
+            }
+        }
+        try {
+            return blobEncryptionService.openForRead(existing(hash), 0);
+        } catch (NoSuchFileException e) {
+            return blobEncryptionService.openForRead(existing(hash), 0);
+        }
+    }
+
+    /**
+     * Rewrites a damaged or missing blob from another copy of its content. The copy is only
+     * used if it hashes to the blob's key; the damaged file is moved to quarantine/ rather
+     * than deleted. Returns false if the copy didn't match.
+     */
+    public boolean repair(String hash, InputStream content) throws IOException {
+        Blob blob = blobRepository.findById(hash).orElse(null);
+        String codec = blob != null ? blob.getCodec() : null;
+
+        Path tempDir = getTempDir();
+        Files.createDirectories(tempDir);
+        Path tempFile = Files.createTempFile(tempDir, "repair-", ".part");
+        MessageDigest digest = newDigest();
+        try (InputStream in = content) {
+            writeSealed(in, tempFile, codec, digest);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+        if (!HexFormat.of().formatHex(digest.digest()).equals(hash)) {
+            Files.deleteIfExists(tempFile);
+            return false;
+        }
+
+        synchronized (lockFor(hash)) {
+            Path damaged = locate(hash);
+            // Put it back in the tier it was in, a missing blob goes to the hot tier
+            Path target = damaged != null ? damaged : resolve(hash);
+            if (damaged != null) {
+                Path quarantine = getQuarantineDir().resolve(hash + "-" + System.currentTimeMillis());
+                Files.createDirectories(quarantine.getParent());
+                Files.move(damaged, quarantine, StandardCopyOption.REPLACE_EXISTING);
+            }
+            moveBetweenTiers(tempFile, target);
+            mongoTemplate.updateFirst(byId(hash), new Update().set("storedSize", Files.size(target)), Blob.class);
+        }
+        log.info("🩹 Blob {} rewritten from a secondary copy", hash);
+        return true;
+    }
+
+    /**
+     * Where the blob is written: blobs/ab/cd/{hash}.
+     */
+    public Path resolve(String hash) {
+        return FanOutLayout.resolve(getBlobRoot(), hash);
+    }
+
+    /**
+     * Where the blob currently is, checking the fan-out path first, then the flat
+     * pre-fan-out location and finally the cold tier. Null if the file is in none.
+     */
+    public Path locate(String hash) {
+        Path fanOut = resolve(hash);
+        if (Files.exists(fanOut)) {
+            return fanOut;
+        }
+        Path flat = flatPath(hash);
+        if (Files.exists(flat)) {
+            return flat;
+        }
+        Path cold = coldPath(hash);
+        return Files.exists(cold) ? cold : null;
+    }
+
+    /**
+     * Moves a hot blob into the cold tier. Returns false if it is already cold, gone, or
+     * was read since its access stats were last flushed.
+     */
+    public boolean demote(String hash) throws IOException {
+        synchronized (lockFor(hash)) {
+            if (pendingAccess.containsKey(hash)) {
+                return false;
+            }
+            Path cold = coldPath(hash);
+            Path hot = locate(hash);
+            if (hot == null || hot.equals(cold)) {
+                return false;
+            }
+            moveBetweenTiers(hot, cold);
+            setTier(hash, StorageTier.COLD);
+            return true;
+        }
+    }
+
+    /**
+     * Moves a cold blob back into the hot fan-out layout. Returns false if it isn't cold.
+     */
+    public boolean promote(String hash) throws IOException {
+        synchronized (lockFor(hash)) {
+            Path cold = coldPath(hash);
+            if (!Files.exists(cold)) {
+                return false;
+            }
+            Path hot = resolve(hash);
+            if (Files.exists(hot)) {
+                Files.delete(cold);
+            } else {
+                moveBetweenTiers(cold, hot);
+            }
+            setTier(hash, StorageTier.HOT);
+            return true;
+        }
+    }
+
+    /**
+     * Hands over the reads recorded since the last call, keyed by hash.
+     */
+    public Map<String, AccessStats> drainAccessStats() {
+        Map<String, AccessStats> drained = new HashMap<>();
+        for (String hash : pendingAccess.keySet()) {
+            AccessStats stats = pendingAccess.remove(hash);
+            if (stats != null) {
+                drained.put(hash, stats);
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Removes a blob that no record references any more (see StorageGcService), returning
+     * the bytes freed. Returns -1 and keeps it if the blob was stored or acquired after
+     * cutoff, since a record pointing at it may be about to be saved. With dryRun nothing
+     * is deleted, only measured.
+     */
+    public long reclaimOrphan(String hash, LocalDateTime cutoff, boolean dryRun) throws IOException {
+        Blob blob;
+        long bytes = 0;
+        synchronized (lockFor(hash)) {
+            blob = blobRepository.findById(hash).orElse(null);
+            if (blob != null && blob.getUpdatedAt() != null && blob.getUpdatedAt().isAfter(cutoff)) {
+                return -1;
+            }
+
+            for (Path path : List.of(resolve(hash), flatPath(hash), coldPath(hash))) {
+                if (!Files.exists(path)) {
+                    continue;
+                }
+                if (blob == null && Files.getLastModifiedTime(path).toInstant()
+                        .isAfter(cutoff.atZone(ZoneId.systemDefault()).toInstant())) {
+                    // Still being stored, the metadata isn't written yet
+                    return -1;
+                }
+                bytes += Files.size(path);
+            }
+            if (dryRun) {
+                return bytes;
+            }
+
+            if (blob != null) {
+                mongoTemplate.remove(byId(hash), Blob.class);
+            }
+            Files.deleteIfExists(resolve(hash));
+            Files.deleteIfExists(flatPath(hash));
+            Files.deleteIfExists(coldPath(hash));
+            pendingAccess.remove(hash);
+            log.info("🧹 Orphaned blob {} reclaimed ({} bytes)", hash, bytes);
+        }
+        // Chunks shared with live blobs keep their other references, the rest go with this one
+        releaseChunks(blob != null ? blob.getChunks() : null);
+        return bytes;
+    }
+
+    public Path getBlobRoot() {
+        return Paths.get(uploadDir, "blobs");
+    }
+
+    public Path getColdRoot() {
+        return coldDir == null || coldDir.isBlank() ? Paths.get(uploadDir, "cold") : Paths.get(coldDir);
+    }
+
+    public Path getTempDir() {
+        return getBlobRoot().resolve(".tmp");
+    }
+
+    public Path getQuarantineDir() {
+        return Paths.get(uploadDir, "quarantine");
+    }
+
+    public int getPendingPromotions() {
+        return promoting.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        promotionExecutor.shutdownNow();
+    }
+
+    /**
+     * Up to max blobs still stored flat in the blob root, skipping the given keys.
+     */
+    public List<String> listFlatBlobs(int max, Set<String> skip) throws IOException {
+        List<String> keys = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(getBlobRoot())) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (isBlobKey(name) && !skip.contains(name) && Files.isRegularFile(entry)) {
+                    keys.add(name);
+                    if (keys.size() >= max) {
+                        break;
+                    }
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing stored yet
+        }
+        return keys;
+    }
+
+    /**
+     * Moves a flat blob into the fan-out layout. Returns false if it was already moved.
+     */
+    public boolean migrateToFanOut(String hash) throws IOException {
+        synchronized (lockFor(hash)) {
+            Path flat = flatPath(hash);
+            if (!Files.exists(flat)) {
+                return false;
+            }
+            Path target = resolve(hash);
+            Files.createDirectories(target.getParent());
+            if (Files.exists(target)) {
+                Files.delete(flat);
+            } else {
+                Files.move(flat, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+            return true;
+        }
+    }
+
+    public static boolean isBlobKey(String key) {
+        return key != null && BLOB_KEY.matcher(key).matches();
+    }
+
+    private Blob acquire(String hash, long size, long storedSize, String codec, String contentType) {
+        LocalDateTime now = LocalDateTime.now();
+        return mongoTemplate.findAndModify(
+                byId(hash),
+                new Update()
+                        .inc("refCount", 1)
+                        .setOnInsert("size", size)
+                        .setOnInsert("storedSize", storedSize)
+                        .setOnInsert("codec", codec)
+                        .setOnInsert("contentType", contentType)
+                        .setOnInsert("createdAt", now)
+                        .set("updatedAt", now),
+                FindAndModifyOptions.options().upsert(true).returnNew(true),
+                Blob.class);
+    }
+
+    /**
+     * Takes a reference to a chunked blob, creating it with the given manifest unless the
+     * content is already stored. Returns the blob as it was before, null if it was created.
+     */
+    private Blob acquireChunked(String hash, long size, List<BlobChunk> chunks, String contentType) {
+        LocalDateTime now = LocalDateTime.now();
+        return mongoTemplate.findAndModify(
+                byId(hash),
+                new Update()
+                        .inc("refCount", 1)
+                        .setOnInsert("size", size)
+                        .setOnInsert("storedSize", 0L)
+                        .setOnInsert("contentType", contentType)
+                        .setOnInsert("chunks", chunks)
+                        .setOnInsert("createdAt", now)
+                        .set("updatedAt", now),
+                FindAndModifyOptions.options().upsert(true).returnNew(false),
+                Blob.class);
+    }
+
+    private Optional<Blob> findChunked(String hash) {
+        Query query = byId(hash).addCriteria(Criteria.where("chunks").exists(true));
+        query.fields().include("size", "chunks");
+        return Optional.ofNullable(mongoTemplate.findOne(query, Blob.class));
+    }
+
+    /**
+     * Drops the references a manifest holds. Failures are logged, the storage GC reclaims
+     * chunks nothing points at.
+     */
+    private void releaseChunks(List<BlobChunk> chunks) {
+        if (chunks == null) {
+            return;
+        }
+        for (BlobChunk chunk : chunks) {
+            try {
+                release(chunk.getHash());
+            } catch (IOException e) {
+                log.warn("⚠️ Could not release chunk {}: {}", chunk.getHash(), e.getMessage());
+            }
+        }
+    }
+
+    private long writeSealed(InputStream content, Path target, String codec, MessageDigest digest) throws IOException {
+        try (InputStream in = new DigestInputStream(content, digest);
+             OutputStream out = blobEncryptionService.openForWrite(
+                     new BufferedOutputStream(Files.newOutputStream(target), 64 * 1024), codec)) {
+            return in.transferTo(out);
+        }
+    }
+
+    private void schedulePromotion(String hash) {
+        if (!promoting.add(hash)) {
+            return;
+        }
+        promotionExecutor.execute(() -> {
+            try {
+                if (promote(hash)) {
+                    log.info("🔥 Blob {} promoted back to the hot tier", hash);
+                }
+            } catch (IOException e) {
+                log.warn("⚠️ Could not promote blob {}: {}", hash, e.getMessage());
+            } finally {
+                promoting.remove(hash);
+            }
+        });
+    }
+
+    private void setTier(String hash, StorageTier tier) {
+        mongoTemplate.updateFirst(byId(hash),
+                new Update().set("tier", tier).set("tierChangedAt", LocalDateTime.now()),
+                Blob.class);
+    }
+
+    private static void moveBetweenTiers(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            // Tiers on different volumes: copy next to the target, then rename it into place
+            Path part = target.resolveSibling(target.getFileName() + ".part");
+            Files.copy(source, part, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(part, target, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(source);
+        }
+    }
+
+    private Query byId(String hash) {
+        return Query.query(Criteria.where("_id").is(hash));
+    }
+
+    private Object lockFor(String hash) {
+        return locks[Math.floorMod(hash.hashCode(), LOCK_STRIPES)];
+    }
+
+    private Path flatPath(String hash) {
+        return getBlobRoot().resolve(hash);
+    }
+
+    private Path coldPath(String hash) {
+        return FanOutLayout.resolve(getColdRoot(), hash);
+    }
+
+    private Path existing(String hash) throws NoSuchFileException {
+        Path path = locate(hash);
+        if (path == null) {
+            throw new NoSuchFileException(resolve(hash).toString());
+        }
+        return path;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static Object[] createLocks() {
+        Object[] stripes = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+        return stripes;
+    }
+
+    public record StoredBlob(String hash, long size, long storedSize, String codec, boolean deduplicated,
+                             int chunks, int reusedChunks) {
+    }
+
+    @FunctionalInterface
+    private interface ChunkOpener {
+        InputStream open(String hash, long offset) throws IOException;
+    }
+
+    /**
+     * Plaintext of a chunked blob from an offset, opening each chunk only when the previous
+     * one is used up.
+     */
+    private static final class ChunkedInputStream extends InputStream {
+
+        private final List<BlobChunk> chunks;
+        private final ChunkOpener opener;
+        private int next;
+        private long skip; // Offset into the first chunk opened
+        private InputStream current;
+
+        ChunkedInputStream(List<BlobChunk> chunks, long offset, ChunkOpener opener) {
+            this.chunks = chunks;
+            this.opener = opener;
+            long start = 0;
+            int index = 0;
+            while (index < chunks.size() && start + chunks.get(index).getSize() <= offset) {
+                start += chunks.get(index).getSize();
+                index++;
+            }
+            this.next = index;
+            this.skip = offset - start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (current != null || advance()) {
+                int b = current.read();
+                if (b >= 0) {
+                    return b;
+                }
+                closeCurrent();
+            }
+            return -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (current != null || advance()) {
+                int read = current.read(b, off, len);
+                if (read > 0) {
+                    return read;
+                }
+                closeCurrent();
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            next = chunks.size();
+            closeCurrent();
+        }
+
+        private boolean advance() throws IOException {
+            if (next >= chunks.size()) {
+                return false;
+            }
+            current = opener.open(chunks.get(next++).getHash(), skip);
+            skip = 0;
+            return true;
+        }
+
+        private void closeCurrent() throws IOException {
+            if (current != null) {
+                InputStream done = current;
+                current = null;
+                done.close();
+            }
+        }
+    }
+
+    public record AccessStats(long count, LocalDateTime lastAccessedAt) {
+        AccessStats plus(AccessStats other) {
+            return new AccessStats(count + other.count,
+                    lastAccessedAt.isAfter(other.lastAccessedAt) ? lastAccessedAt : other.lastAccessedAt);
+        }
+    }
+}
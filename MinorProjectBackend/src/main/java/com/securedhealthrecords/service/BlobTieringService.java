@@ -0,0 +1,152 @@
+package com.securedhealthrecords.service;
+
+import com.securedhealthrecords.model.Blob;
+import com.securedhealthrecords.model.StorageTier;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hot/cold tiering for local blobs.
+ *
+ * Reads are counted in memory by {@link BlobStoreService} and flushed to the "blobs"
+ * collection as one unordered bulk write, so a download never waits on a metadata update.
+ * A periodic job moves blobs that haven't been read for cold-after-days into the cold tier
+ * directory; the next read of such a blob promotes it back.
+ */
+@Slf4j
+@Service
+public class BlobTieringService {
+
+    private final MongoTemplate mongoTemplate;
+    private final BlobStoreService blobStoreService;
+
+    private final boolean enabled;
+    private final Duration coldAfter;
+    private final int batchSize;
+
+    private volatile LocalDateTime lastRunAt;
+    private final AtomicLong demoted = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong flushedReads = new AtomicLong();
+
+    public BlobTieringService(
+            MongoTemplate mongoTemplate,
+            BlobStoreService blobStoreService,
+            @Value("${app.storage.tiering.enabled:true}") boolean enabled,
+            @Value("${app.storage.tiering.cold-after-days:30}") long coldAfterDays,
+            @Value("${app.storage.tiering.batch-size:500}") int batchSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.blobStoreService = blobStoreService;
+        this.enabled = enabled;
+        this.coldAfter = Duration.ofDays(coldAfterDays);
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Writes the buffered access counts and last-access times to the blob documents.
+     */
+    @Scheduled(fixedDelayString = "${app.storage.tiering.flush-interval-ms:60000}")
+    public void flushAccessStats() {
+        Map<String, BlobStoreService.AccessStats> drained = blobStoreService.drainAccessStats();
+        if (drained.isEmpty()) {
+            return;
+        }
+
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Blob.class);
+        long reads = 0;
+        for (Map.Entry<String, BlobStoreService.AccessStats> entry : drained.entrySet()) {
+            bulk.updateOne(Query.query(Criteria.where("_id").is(entry.getKey())),
+                    new Update()
+                            .inc("accessCount", entry.getValue().count())
+                            .max("lastAccessedAt", entry.getValue().lastAccessedAt()));
+            reads += entry.getValue().count();
+        }
+        try {
+            bulk.execute();
+            flushedReads.addAndGet(reads);
+        } catch (RuntimeException e) {
+            // Access stats only steer tiering, losing one flush just delays a demotion
+            log.warn("⚠️ Could not flush access stats for {} blobs: {}", drained.size(), e.getMessage());
+        }
+    }
+
+    /**
+     * Demotes up to batch-size idle blobs per run, least recently read first.
+     */
+    @Scheduled(fixedDelayString = "${app.storage.tiering.interval-ms:3600000}",
+            initialDelayString = "${app.storage.tiering.initial-delay-ms:600000}")
+    public void demoteIdleBlobs() {
+        if (!enabled) {
+            return;
+        }
+        // Make sure recent reads are visible to the query below
+        flushAccessStats();
+        lastRunAt = LocalDateTime.now();
+
+        LocalDateTime cutoff = lastRunAt.minus(coldAfter);
+        Query idle = new Query(new Criteria().andOperator(
+                Criteria.where("tier").ne(StorageTier.COLD),
+                Criteria.where("refCount").gt(0),
+                // Chunked blobs have no file to move, their chunks are tiered on their own
+                Criteria.where("chunks").exists(false),
+                new Criteria().orOperator(
+                        Criteria.where("lastAccessedAt").lt(cutoff),
+                        new Criteria().andOperator(
+                                Criteria.where("lastAccessedAt").exists(false),
+                                Criteria.where("createdAt").lt(cutoff)))))
+                .with(Sort.by(Sort.Direction.ASC, "lastAccessedAt"))
+                .limit(batchSize);
+        idle.fields().include("_id");
+
+        List<Blob> candidates = mongoTemplate.find(idle, Blob.class);
+        int moved = 0;
+        for (Blob blob : candidates) {
+            try {
+                if (blobStoreService.demote(blob.getId())) {
+                    moved++;
+                }
+            } catch (IOException e) {
+                failed.incrementAndGet();
+                log.warn("⚠️ Could not move blob {} to the cold tier: {}", blob.getId(), e.getMessage());
+            }
+        }
+        demoted.addAndGet(moved);
+        if (moved > 0) {
+            log.info("🧊 Moved {} idle blobs to the cold tier", moved);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("coldAfterDays", coldAfter.toDays());
+        stats.put("lastRunAt", lastRunAt);
+        stats.put("demoted", demoted.get());
+        stats.put("failed", failed.get());
+        stats.put("flushedReads", flushedReads.get());
+        stats.put("pendingPromotions", blobStoreService.getPendingPromotions());
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flushAccessStats();
+    }
+}
@@ -2,11 +2,17 @@ package com.securedhealthrecords.service;
 
 import com.cloudinary.Cloudinary;
 import com.cloudinary.utils.ObjectUtils;
+import com.securedhealthrecords.util.HashingMultipartFile;
+import com.securedhealthrecords.util.StreamingMultipartFile;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 @Service
@@ -20,6 +26,7 @@ public class CloudinaryService {
             @Value("${cloudinary.cloud-name}") String cloudName,
             @Value("${cloudinary.api-key}") String apiKey,
             @Value("${cloudinary.api-secret}") String apiSecret,
+            @Value("${cloudinary.upload-prefix:}") String uploadPrefix,
             LocalFileStorageService localFileStorageService) {
         
         this.localFileStorageService = localFileStorageService;
@@ -36,11 +43,18 @@ public class CloudinaryService {
                                     !apiSecret.equals("your-api-secret"); // Check for placeholder
         
         if (hasValidCredentials) {
-            this.cloudinary = new Cloudinary(ObjectUtils.asMap(
+            @SuppressWarnings("unchecked")
+            Map<String, Object> config = ObjectUtils.asMap(
                     "cloud_name", cloudName,
                     "api_key", apiKey,
                     "api_secret", apiSecret
-            ));
+            );
+            if (uploadPrefix != null && !uploadPrefix.isEmpty()) {
+                // Another API host (a regional endpoint, or a stand-in server for benchmarks)
+                config.put("upload_prefix", uploadPrefix);
+                System.out.println("   API: " + uploadPrefix);
+            }
+            this.cloudinary = new Cloudinary(config);
             this.useCloudinary = true;
             System.out.println("✅ Cloudinary initialized successfully!");
         } else {
@@ -72,6 +86,7 @@ public class CloudinaryService {
             return localFileStorageService.uploadFile(file, userId, folder);
         }
         
+        file = HashingMultipartFile.wrap(file);
         try {
             String publicId = userId + "/" + (folder != null ? folder + "/" : "") + System.currentTimeMillis() + "_" + file.getOriginalFilename();
             
@@ -85,15 +100,26 @@ public class CloudinaryService {
             System.out.println("   Public ID: " + publicId);
             System.out.println("   Uploading to Cloudinary...");
             
+            // A streamed upload goes up in chunks instead of being read into memory first
             @SuppressWarnings("unchecked")
-            Map<String, Object> result = cloudinary.uploader().upload(file.getBytes(), uploadParams);
+            Map<String, Object> result = file instanceof StreamingMultipartFile
+                    ? cloudinary.uploader().uploadLarge(file.getInputStream(), uploadParams)
+                    : cloudinary.uploader().upload(file.getBytes(), uploadParams);
             
             System.out.println("✅ File uploaded to Cloudinary successfully!");
             System.out.println("   URL: " + result.get("secure_url"));
             System.out.println("   Public ID: " + result.get("public_id"));
             
-            return result;
+            return HashingMultipartFile.withChecksum(result, file);
         } catch (Exception e) {
+            if (file instanceof StreamingMultipartFile streaming && streaming.isConsumed()) {
+                // Already partly sent, there is nothing left to hand to local storage
+                System.err.println("❌ Streamed Cloudinary upload failed: " + e.getMessage());
+                if (e instanceof RuntimeException runtime) {
+                    throw runtime;
+                }
+                throw new IOException(e.getMessage(), e);
+            }
             // Check if it's a Cloudinary API exception by checking the class name
             if (e.getClass().getSimpleName().contains("ApiException")) {
                 System.err.println("❌ Cloudinary API Error: " + e.getMessage());
@@ -107,7 +133,7 @@ public class CloudinaryService {
     }
 
     public void deleteFile(String publicId) throws IOException {
-        if (!useCloudinary) {
+        if (!useCloudinary || localFileStorageService.isLocalBlob(publicId)) {
             localFileStorageService.deleteFile(publicId);
             return;
         }
@@ -120,6 +146,85 @@ public class CloudinaryService {
         }
     }
 
+    public boolean isEnabled() {
+        return useCloudinary;
+    }
+
+    /**
+     * One page (up to 500) of uploaded resources of a type under prefix. Pass the previous
+     * page's "next_cursor" to continue, null to start.
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> listResources(String resourceType, String prefix, String cursor) throws Exception {
+        Map<String, Object> options = ObjectUtils.asMap(
+                "type", "upload",
+                "resource_type", resourceType,
+                "prefix", prefix,
+                "max_results", 500
+        );
+        if (cursor != null) {
+            options.put("next_cursor", cursor);
+        }
+        return cloudinary.api().resources(options);
+    }
+
+    public void deleteResource(String publicId, String resourceType) throws IOException {
+        cloudinary.uploader().destroy(publicId, ObjectUtils.asMap("resource_type", resourceType));
+    }
+
+    /**
+     * Signs upload parameters so a client can post a file straight to Cloudinary. The returned
+     * form fields are the parameters plus api_key and signature; anything the client adds to
+     * the signed ones makes Cloudinary reject the upload.
+     */
+    public Map<String, String> signUploadParams(Map<String, Object> params) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        params.forEach((key, value) -> fields.put(key, String.valueOf(value)));
+        fields.put("api_key", cloudinary.config.apiKey);
+        fields.put("signature", cloudinary.apiSignRequest(params, cloudinary.config.apiSecret));
+        return fields;
+    }
+
+    public String uploadUrl(String resourceType) {
+        String prefix = cloudinary.config.uploadPrefix != null ? cloudinary.config.uploadPrefix : "https://api.cloudinary.com";
+        return prefix + "/v1_1/" + cloudinary.config.cloudName + "/" + resourceType + "/upload";
+    }
+
+    /**
+     * Checks the signature Cloudinary puts on an upload response, which covers public_id and version.
+     */
+    public boolean verifyUploadResponse(String publicId, String version, String signature) {
+        String expected = cloudinary.apiSignRequest(
+                ObjectUtils.asMap("public_id", publicId, "version", version), cloudinary.config.apiSecret);
+        return signature != null && MessageDigest.isEqual(
+                expected.getBytes(StandardCharsets.US_ASCII),
+                signature.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Details of an uploaded resource as Cloudinary has them (bytes, secure_url, format, version).
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> getResource(String publicId, String resourceType) throws Exception {
+        return cloudinary.api().resource(publicId, ObjectUtils.asMap("resource_type", resourceType));
+    }
+
+    /**
+     * Short-lived link that downloads a resource through Cloudinary's API, signed with our
+     * credentials. It works whatever the asset's delivery type, so reading content back never
+     * depends on the asset being publicly delivered.
+     */
+    public String privateDownloadUrl(String publicId, String resourceType, String format) throws IOException {
+        try {
+            return cloudinary.privateDownload(publicId, format != null ? format : "", ObjectUtils.asMap(
+                    "resource_type", resourceType,
+                    "type", "upload",
+                    "expires_at", Instant.now().plusSeconds(300).getEpochSecond()));
+        } catch (Exception e) {
+            throw new IOException("Could not sign a Cloudinary download for " + publicId + ": " + e.getMessage(), e);
+        }
+    }
+
     public String generateSecureUrl(String publicId) {
         return cloudinary.url().secure(true).generate(publicId);
     }
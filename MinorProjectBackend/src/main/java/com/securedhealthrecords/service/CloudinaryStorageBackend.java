@@ -0,0 +1,110 @@
+package com.securedhealthrecords.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Cloudinary (publicId = Cloudinary public id). Content is read through the remote blob cache,
+ * fetched with a signed API download link rather than the asset's delivery URL.
+ *
+ * CloudinaryService falls back to local storage when Cloudinary is off or failing, and older
+ * records don't say which happened, so blob keys handed to this backend are served locally.
+ */
+@Service
+public class CloudinaryStorageBackend extends AbstractStorageBackend {
+
+    // An upload with resource_type auto may have ended up as any of these
+    private static final List<String> RESOURCE_TYPES = List.of("image", "raw", "video");
+
+    private final CloudinaryService cloudinaryService;
+    private final RemoteBlobCacheService remoteBlobCacheService;
+    private final LocalStorageBackend localStorageBackend;
+
+    public CloudinaryStorageBackend(
+            CloudinaryService cloudinaryService,
+            RemoteBlobCacheService remoteBlobCacheService,
+            LocalStorageBackend localStorageBackend,
+            MeterRegistry meterRegistry,
+            @Value("${app.storage.backends.cloudinary.max-concurrency:8}") int maxConcurrency) {
+        super("cloudinary", Set.of(), maxConcurrency, meterRegistry);
+        this.cloudinaryService = cloudinaryService;
+        this.remoteBlobCacheService = remoteBlobCacheService;
+        this.localStorageBackend = localStorageBackend;
+    }
+
+    @Override
+    protected Map<String, Object> doUpload(MultipartFile file, String userId, String folder) throws IOException {
+        return cloudinaryService.uploadFile(file, userId, folder);
+    }
+
+    @Override
+    protected Optional<BlobContentService.BlobContent> doDownload(String publicId) throws IOException {
+        if (BlobStoreService.isBlobKey(publicId)) {
+            return localStorageBackend.doDownload(publicId);
+        }
+        if (!cloudinaryService.isEnabled()) {
+            return Optional.empty();
+        }
+        String cacheId = getName() + ":" + publicId;
+        try {
+            // Only looked up on a cache miss, the Admin API is rate limited
+            InputStream in = remoteBlobCacheService.open(cacheId, () -> {
+                Map<String, Object> resource = resource(publicId).orElseThrow(() -> new FileNotFoundException(publicId));
+                return remoteBlobCacheService.httpGet(cloudinaryService.privateDownloadUrl(publicId,
+                        (String) resource.get("resource_type"), (String) resource.get("format"))).open();
+            });
+            return Optional.of(new BlobContentService.BlobContent(in, remoteBlobCacheService.size(cacheId)));
+        } catch (FileNotFoundException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    protected void doDelete(String publicId) throws IOException {
+        cloudinaryService.deleteFile(publicId);
+        remoteBlobCacheService.invalidate(getName() + ":" + publicId);
+    }
+
+    @Override
+    protected Optional<StoredObject> doStat(String publicId) throws IOException {
+        if (BlobStoreService.isBlobKey(publicId)) {
+            return localStorageBackend.doStat(publicId);
+        }
+        return resource(publicId).map(resource -> new StoredObject(publicId,
+                resource.get("bytes") instanceof Number bytes ? bytes.longValue() : -1,
+                resource.get("resource_type") + "/" + resource.get("format")));
+    }
+
+    @Override
+    public Optional<String> publicIdOf(String url) {
+        // Old node records only kept the URL, which may also be a local fallback download URL
+        Optional<String> local = localStorageBackend.publicIdOf(url);
+        return local.isPresent() ? local : Optional.ofNullable(cloudinaryService.extractPublicIdFromUrl(url));
+    }
+
+    private Optional<Map<String, Object>> resource(String publicId) throws IOException {
+        if (!cloudinaryService.isEnabled()) {
+            return Optional.empty();
+        }
+        for (String type : RESOURCE_TYPES) {
+            try {
+                return Optional.of(cloudinaryService.getResource(publicId, type));
+            } catch (Exception e) {
+                if (!e.getClass().getSimpleName().equals("NotFound")) {
+                    throw new IOException("Cloudinary lookup of " + publicId + " failed: " + e.getMessage(), e);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+}
@@ -0,0 +1,217 @@
+package com.securedhealthrecords.service;
+
+import com.securedhealthrecords.dto.DirectUploadCompleteRequest;
+import com.securedhealthrecords.dto.DirectUploadTicketDTO;
+import com.securedhealthrecords.dto.NodeDTO;
+import com.securedhealthrecords.exception.InvalidRequestException;
+import com.securedhealthrecords.exception.QuotaExceededException;
+import com.securedhealthrecords.exception.UnauthorizedException;
+import com.securedhealthrecords.model.FileRecord;
+import com.securedhealthrecords.model.StorageUsage;
+import com.securedhealthrecords.repository.FileRecordRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.net.URLConnection;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Uploads that go from the browser straight to Cloudinary, keeping the backend off the data path.
+ *
+ * A ticket carries upload parameters signed with our API secret, pinning the public id under
+ * health_records/{userId}/direct/{resourceType}/, so the resource type Cloudinary stores the
+ * file as is known from the signed public id rather than taken from the client. After the upload the client hands back Cloudinary's signed
+ * response; the signature and the user's prefix are checked and the size and URL are read from
+ * Cloudinary itself before the FileRecord or Node is created. Uploads that are never confirmed
+ * are left for the storage GC.
+ */
+@Slf4j
+@Service
+public class DirectUploadService {
+
+    // The browser uploads with Cloudinary's signed upload protocol, so this flow can't go
+    // through StorageBackend; records are tagged so reads and deletes do
+    private static final String STORAGE_TYPE = "cloudinary";
+
+    // Cloudinary's own limit on how old a signed timestamp may be
+    private static final long SIGNATURE_VALIDITY_SECONDS = 3600;
+
+    private static final Set<String> RESOURCE_TYPES = Set.of("image", "video", "raw");
+
+    private final CloudinaryService cloudinaryService;
+    private final FileRecordRepository fileRecordRepository;
+    private final NodeService nodeService;
+    private final StorageUsageService storageUsageService;
+    private final ThumbnailService thumbnailService;
+    private final long maxFileSize;
+
+    public DirectUploadService(
+            CloudinaryService cloudinaryService,
+            FileRecordRepository fileRecordRepository,
+            NodeService nodeService,
+            StorageUsageService storageUsageService,
+            ThumbnailService thumbnailService,
+            @Value("${app.upload.direct.max-file-size:524288000}") long maxFileSize) {
+        this.cloudinaryService = cloudinaryService;
+        this.fileRecordRepository = fileRecordRepository;
+        this.nodeService = nodeService;
+        this.storageUsageService = storageUsageService;
+        this.thumbnailService = thumbnailService;
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * Signed parameters for one upload. declaredSize is only used to refuse uploads that
+     * can't fit up front; the real size is checked again on confirmation. contentType picks
+     * the Cloudinary resource type, anything that isn't an image or video is uploaded as raw.
+     */
+    public DirectUploadTicketDTO issueTicket(String userId, long declaredSize, String contentType) {
+        if (!cloudinaryService.isEnabled()) {
+            throw new InvalidRequestException("Direct uploads are not available, Cloudinary is not configured");
+        }
+        if (declaredSize > maxFileSize) {
+            throw new InvalidRequestException("File size exceeds the " + maxFileSize + " byte limit");
+        }
+        StorageUsage usage = storageUsageService.getUsage(userId);
+        long used = usage.getTotalBytes() != null ? usage.getTotalBytes() : 0;
+        if (declaredSize > 0 && used + declaredSize > storageUsageService.quotaFor(usage)) {
+            throw new QuotaExceededException("Storage quota exceeded: " + declaredSize + " more bytes would exceed the "
+                    + storageUsageService.quotaFor(usage) + " byte limit");
+        }
+
+        long timestamp = Instant.now().getEpochSecond();
+        Map<String, Object> params = new LinkedHashMap<>();
+        String resourceType = resourceTypeOf(contentType);
+        params.put("public_id", prefixFor(userId) + resourceType + "/" + UUID.randomUUID());
+        params.put("timestamp", timestamp);
+        Map<String, String> fields = cloudinaryService.signUploadParams(params);
+
+        return new DirectUploadTicketDTO(cloudinaryService.uploadUrl(resourceType), fields, fields.get("public_id"),
+                Instant.ofEpochSecond(timestamp + SIGNATURE_VALIDITY_SECONDS));
+    }
+
+    /**
+     * Creates the FileRecord for a finished upload. Confirming the same upload twice returns the first record.
+     */
+    public FileRecord confirmFile(String userId, DirectUploadCompleteRequest request) {
+        UploadedResource resource = verify(userId, request);
+        Optional<FileRecord> existing = fileRecordRepository.findByCloudinaryPublicId(resource.publicId());
+        if (existing.isPresent()) {
+            return existing.get();
+        }
+
+        try {
+            storageUsageService.reserve(userId, 1, resource.bytes());
+        } catch (QuotaExceededException e) {
+            discard(resource);
+            throw e;
+        }
+
+        FileRecord record = new FileRecord(userId, request.getFileName(), request.getFileName(),
+                mimeTypeOf(request), resource.bytes(), resource.publicId(), resource.secureUrl());
+        record.setStorageType(STORAGE_TYPE);
+        if (request.getFolderId() != null && !request.getFolderId().isEmpty()) {
+            record.setFolderId(request.getFolderId());
+        }
+
+        FileRecord saved;
+        try {
+            saved = fileRecordRepository.save(record);
+        } catch (RuntimeException e) {
+            storageUsageService.release(userId, 1, resource.bytes());
+            throw e;
+        }
+        log.info("☁️ Direct upload confirmed: {} ({} bytes) as {}", saved.getOriginalName(), saved.getSize(), saved.getId());
+        thumbnailService.submitForFile(saved);
+        return saved;
+    }
+
+    /**
+     * Creates the Node for a finished upload into a folder tree. Confirming the same upload twice
+     * returns the first node, so two nodes never share (and delete) one Cloudinary asset.
+     */
+    public NodeDTO confirmNode(String ownerId, DirectUploadCompleteRequest request) {
+        if (request.getEncryptedFileKey() == null || request.getEncryptedFileKey().isBlank()) {
+            throw new InvalidRequestException("Encrypted file key is required");
+        }
+        UploadedResource resource = verify(ownerId, request);
+        Optional<NodeDTO> existing = nodeService.findByStoragePublicId(resource.publicId());
+        if (existing.isPresent()) {
+            return existing.get();
+        }
+        NodeDTO node = nodeService.createUploadedFileNode(ownerId, request.getParentId(), request.getFileName(),
+                mimeTypeOf(request), resource.secureUrl(), STORAGE_TYPE, resource.publicId(), request.getEncryptedFileKey());
+        log.info("☁️ Direct upload confirmed: {} ({} bytes) as node {}", node.getName(), resource.bytes(), node.getId());
+        return node;
+    }
+
+    UploadedResource verify(String userId, DirectUploadCompleteRequest request) {
+        // The prefix check stops one user from claiming another user's upload
+        if (!cloudinaryService.verifyUploadResponse(request.getPublicId(), request.getVersion(), request.getSignature())
+                || !request.getPublicId().startsWith(prefixFor(userId))) {
+            throw new UnauthorizedException("Upload signature is not valid");
+        }
+
+        // The ticket put the resource type in the public id, which the signature above covers
+        String rest = request.getPublicId().substring(prefixFor(userId).length());
+        String resourceType = rest.contains("/") ? rest.substring(0, rest.indexOf('/')) : null;
+        if (resourceType == null || !RESOURCE_TYPES.contains(resourceType)) {
+            throw new InvalidRequestException("Upload was not made with a current direct upload ticket");
+        }
+        Map<String, Object> details;
+        try {
+            // Size and URL from the client aren't covered by the signature, ask Cloudinary
+            details = cloudinaryService.getResource(request.getPublicId(), resourceType);
+        } catch (Exception e) {
+            throw new InvalidRequestException("Uploaded file not found: " + e.getMessage());
+        }
+
+        UploadedResource resource = new UploadedResource(request.getPublicId(), resourceType,
+                ((Number) details.get("bytes")).longValue(), (String) details.get("secure_url"));
+        if (resource.bytes() > maxFileSize) {
+            discard(resource);
+            throw new InvalidRequestException("File size exceeds the " + maxFileSize + " byte limit");
+        }
+        return resource;
+    }
+
+    private void discard(UploadedResource resource) {
+        try {
+            cloudinaryService.deleteResource(resource.publicId(), resource.resourceType());
+        } catch (Exception e) {
+            // The storage GC picks it up later
+            log.warn("⚠️ Could not delete rejected direct upload {}: {}", resource.publicId(), e.getMessage());
+        }
+    }
+
+    private static String prefixFor(String userId) {
+        return "health_records/" + userId + "/direct/";
+    }
+
+    private static String resourceTypeOf(String contentType) {
+        if (contentType != null && contentType.startsWith("image/")) {
+            return "image";
+        }
+        if (contentType != null && (contentType.startsWith("video/") || contentType.startsWith("audio/"))) {
+            return "video";
+        }
+        return "raw";
+    }
+
+    private static String mimeTypeOf(DirectUploadCompleteRequest request) {
+        if (request.getMimeType() != null && !request.getMimeType().isBlank()) {
+            return request.getMimeType();
+        }
+        String guessed = URLConnection.guessContentTypeFromName(request.getFileName());
+        return guessed != null ? guessed : "application/octet-stream";
+    }
+
+    record UploadedResource(String publicId, String resourceType, long bytes, String secureUrl) {
+    }
+}
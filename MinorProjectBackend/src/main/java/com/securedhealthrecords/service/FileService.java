@@ -1,13 +1,31 @@
 package com.securedhealthrecords.service;
 
+import com.securedhealthrecords.exception.ConflictException;
+import com.securedhealthrecords.exception.ResourceNotFoundException;
 import com.securedhealthrecords.model.FileRecord;
+import com.securedhealthrecords.model.FileVersion;
+import com.securedhealthrecords.model.StorageUsage;
+import com.securedhealthrecords.model.UploadStatus;
 import com.securedhealthrecords.repository.FileRecordRepository;
 import lombok.RequiredArgsConstructor;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -18,11 +36,45 @@ import java.util.UUID;
 public class FileService {
     
     private final FileRecordRepository fileRecordRepository;
-    private final CloudinaryService cloudinaryService;
+    private final StorageBackend storageBackend;
+    private final UploadOffloadService uploadOffloadService;
+    private final BlobContentService blobContentService;
+    private final ThumbnailService thumbnailService;
+    private final StorageUsageService storageUsageService;
+    private final SignedUrlService signedUrlService;
+    private final BlobStoreService blobStoreService;
+    private final ImageNormalizationService imageNormalizationService;
+    private final MongoTemplate mongoTemplate;
 
-    public FileRecord uploadFile(MultipartFile file, String userId, String folderId) throws IOException {
-        System.out.println("📤 FileService: Starting upload with Cloudinary...");
-        Map<String, Object> uploadResult = cloudinaryService.uploadFile(file, userId, folderId);
+    public FileRecord uploadFile(MultipartFile upload, String userId, String folderId) throws IOException {
+        // Photos are shrunk first, quota and storage only ever see what is actually kept
+        try (ImageNormalizationService.Normalized normalized = imageNormalizationService.normalize(upload)) {
+            MultipartFile file = normalized.file();
+            
+            // Claim quota first so an over-quota upload never reaches storage
+            try {
+                storageUsageService.reserve(userId, 1, file.getSize());
+            } catch (RuntimeException e) {
+                imageNormalizationService.discardOriginal(normalized.originalHash());
+                throw e;
+            }
+            try {
+                if (uploadOffloadService.isEnabled()) {
+                    return acceptUpload(normalized, userId, folderId);
+                }
+                return storeUpload(normalized, userId, folderId);
+            } catch (IOException | RuntimeException e) {
+                storageUsageService.release(userId, 1, file.getSize());
+                imageNormalizationService.discardOriginal(normalized.originalHash());
+                throw e;
+            }
+        }
+    }
+
+    private FileRecord storeUpload(ImageNormalizationService.Normalized upload, String userId, String folderId) throws IOException {
+        MultipartFile file = upload.file();
+        System.out.println("📤 FileService: Starting upload...");
+        Map<String, Object> uploadResult = storageBackend.uploadFile(file, userId, folderId);
         
         String publicId = (String) uploadResult.get("public_id");
         String url = (String) uploadResult.get("secure_url");
@@ -37,13 +89,50 @@ public class FileService {
             url
         );
         
-        System.out.println("✅ FileService: File uploaded successfully using Cloudinary");
+        System.out.println("✅ FileService: File uploaded successfully to " + uploadResult.get("storage_type"));
         
+        fileRecord.setStorageType((String) uploadResult.get("storage_type"));
+        fileRecord.setCodec((String) uploadResult.get("codec"));
+        fileRecord.setContentHash((String) uploadResult.get("sha256"));
+        upload.applyTo(fileRecord);
         if (folderId != null && !folderId.isEmpty()) {
             fileRecord.setFolderId(folderId);
         }
         
-        return fileRecordRepository.save(fileRecord);
+        FileRecord saved = fileRecordRepository.save(fileRecord);
+        thumbnailService.submitForFile(saved);
+        return saved;
+    }
+
+    /**
+     * Spools the upload locally and saves the record as PENDING; the cloud upload
+     * happens in the background and fills in url/publicId when it completes.
+     */
+    private FileRecord acceptUpload(ImageNormalizationService.Normalized upload, String userId, String folderId) throws IOException {
+        MultipartFile file = upload.file();
+        Path spoolFile = uploadOffloadService.spool(file);
+        
+        FileRecord fileRecord = new FileRecord(
+            userId,
+            file.getOriginalFilename(),
+            file.getOriginalFilename(),
+            file.getContentType(),
+            file.getSize(),
+            null,
+            null
+        );
+        fileRecord.setStatus(UploadStatus.PENDING);
+        fileRecord.setSpoolPath(spoolFile.toString());
+        fileRecord.setUploadAttempts(0);
+        upload.applyTo(fileRecord);
+        if (folderId != null && !folderId.isEmpty()) {
+            fileRecord.setFolderId(folderId);
+        }
+        
+        FileRecord saved = fileRecordRepository.save(fileRecord);
+        uploadOffloadService.submitFileRecord(saved.getId());
+        System.out.println("📥 FileService: Upload spooled, offloading in background: " + saved.getId());
+        return saved;
     }
 
     public List<FileRecord> getUserFiles(String userId) {
@@ -58,14 +147,19 @@ public class FileService {
     }
 
     public Map<String, Object> getUserStats(String userId) {
-        List<FileRecord> userFiles = fileRecordRepository.findByUserId(userId);
-        long totalFiles = userFiles.size();
-        long totalSize = userFiles.stream().mapToLong(FileRecord::getSize).sum();
+        // Maintained incrementally by StorageUsageService, a single document read
+        StorageUsage usage = storageUsageService.getUsage(userId);
+        long totalFiles = usage.getTotalFiles() != null ? usage.getTotalFiles() : 0;
+        long totalSize = usage.getTotalBytes() != null ? usage.getTotalBytes() : 0;
+        long quota = storageUsageService.quotaFor(usage);
         
         return Map.of(
             "totalFiles", totalFiles,
             "totalSize", totalSize,
-            "storageUsed", formatFileSize(totalSize)
+            "storageUsed", formatFileSize(totalSize),
+            "quotaBytes", quota,
+            "storageQuota", formatFileSize(quota),
+            "remainingBytes", Math.max(0, quota - totalSize)
         );
     }
 
@@ -73,19 +167,53 @@ public class FileService {
         Optional<FileRecord> fileRecord = fileRecordRepository.findById(fileId);
         if (fileRecord.isPresent() && fileRecord.get().getUserId().equals(userId)) {
             FileRecord file = fileRecord.get();
-            cloudinaryService.deleteFile(file.getCloudinaryPublicId());
+            deleteStoredCopy(file.getCloudinaryPublicId(), file.getStorageType());
+            // Still waiting in the spool: drop the local copy, the worker skips deleted records
+            uploadOffloadService.discardSpool(file.getSpoolPath());
+            thumbnailService.discard(file.getThumbnailUrl());
+            imageNormalizationService.discardOriginal(file.getOriginalHash());
+            if (file.getVersions() != null) {
+                for (FileVersion version : file.getVersions()) {
+                    deleteVersionCopy(version);
+                }
+            }
             fileRecordRepository.deleteById(fileId);
+            long bytes = (file.getSize() != null ? file.getSize() : 0)
+                    + (file.getVersionBytes() != null ? file.getVersionBytes() : 0);
+            storageUsageService.release(userId, 1, bytes);
+        }
+    }
+
+    private void deleteStoredCopy(String publicId, String storageType) {
+        if (publicId == null) {
+            return;
         }
+        // Delete from the backend that took it; records without a storageType went to Cloudinary
+        storageBackend.deleteFile(publicId, storageType);
+    }
+
+    /**
+     * Deletes a pruned or orphaned version's content; failures are left for the storage GC.
+     */
+    void deleteVersionCopy(FileVersion version) {
+        try {
+            deleteStoredCopy(version.getCloudinaryPublicId(), version.getStorageType());
+        } catch (RuntimeException e) {
+            System.err.println("⚠️ FileService: Could not delete version content " + version.getCloudinaryPublicId() + ": " + e.getMessage());
+        }
+        thumbnailService.discard(version.getThumbnailUrl());
+        imageNormalizationService.discardOriginal(version.getOriginalHash());
     }
 
     public String generateShareLink(String fileId, String userId) {
         Optional<FileRecord> fileRecord = fileRecordRepository.findById(fileId);
         if (fileRecord.isPresent() && fileRecord.get().getUserId().equals(userId)) {
-            FileRecord file = fileRecord.get();
             String shareToken = UUID.randomUUID().toString();
-            file.setShareToken(shareToken);
-            file.setShareExpiresAt(LocalDateTime.now().plusDays(7)); // 7 days expiry
-            fileRecordRepository.save(file);
+            // Targeted update, a full save could undo a concurrent version change
+            mongoTemplate.updateFirst(byId(fileId),
+                    new Update().set("shareToken", shareToken)
+                            .set("shareExpiresAt", LocalDateTime.now().plusDays(7)), // 7 days expiry
+                    FileRecord.class);
             return shareToken;
         }
         return null;
@@ -113,12 +241,13 @@ public class FileService {
             throw new RuntimeException("Unauthorized: You don't have permission to rename this file");
         }
         
-        file.setName(newFileName);
-        file.setUpdatedAt(LocalDateTime.now());
-        return fileRecordRepository.save(file);
+        return mongoTemplate.findAndModify(byId(fileId),
+                new Update().set("name", newFileName).set("updatedAt", LocalDateTime.now()),
+                FindAndModifyOptions.options().returnNew(true),
+                FileRecord.class);
     }
 
-    public FileRecord updateFile(String fileId, String userId, MultipartFile newFile) throws IOException {
+    public FileRecord updateFile(String fileId, String userId, MultipartFile upload) throws IOException {
         Optional<FileRecord> fileRecord = fileRecordRepository.findById(fileId);
         if (fileRecord.isEmpty()) {
             throw new RuntimeException("File not found");
@@ -128,26 +257,186 @@ public class FileService {
         if (!file.getUserId().equals(userId)) {
             throw new RuntimeException("Unauthorized: You don't have permission to update this file");
         }
+        requireStored(file);
         
-        // Delete old file from storage
-        cloudinaryService.deleteFile(file.getCloudinaryPublicId());
+        // Same content as now: nothing to store, only the name and type can change
+        String uploadHash = sha256(upload);
+        if (uploadHash.equals(file.getContentHash()) || uploadHash.equals(file.getOriginalHash())) {
+            System.out.println("⏭️ FileService: Content of " + fileId + " unchanged, skipping upload");
+            return mongoTemplate.findAndModify(byId(fileId),
+                    new Update()
+                            .set("name", upload.getOriginalFilename())
+                            .set("originalName", upload.getOriginalFilename())
+                            .set("mimeType", upload.getContentType())
+                            .set("updatedAt", LocalDateTime.now()),
+                    FindAndModifyOptions.options().returnNew(true),
+                    FileRecord.class);
+        }
         
-        // Upload new file
-        Map<String, Object> uploadResult = cloudinaryService.uploadFile(newFile, userId, file.getFolderId());
+        try (ImageNormalizationService.Normalized normalized = imageNormalizationService.normalize(upload)) {
+            return replaceContent(file, userId, normalized, uploadHash);
+        }
+    }
+
+    private FileRecord replaceContent(FileRecord file, String userId, ImageNormalizationService.Normalized normalized,
+                                      String uploadHash) throws IOException {
+        MultipartFile newFile = normalized.file();
+        String fileId = file.getId();
         
-        String publicId = (String) uploadResult.get("public_id");
-        String url = (String) uploadResult.get("secure_url");
+        // Copy-on-write: the current content stays stored as a version, so the new one counts in full
+        try {
+            storageUsageService.reserve(userId, 0, newFile.getSize());
+        } catch (RuntimeException e) {
+            imageNormalizationService.discardOriginal(normalized.originalHash());
+            throw e;
+        }
         
-        // Update file record
+        Map<String, Object> uploadResult;
+        try {
+            uploadResult = storageBackend.uploadFile(newFile, userId, file.getFolderId());
+        } catch (IOException | RuntimeException e) {
+            storageUsageService.release(userId, 0, newFile.getSize());
+            imageNormalizationService.discardOriginal(normalized.originalHash());
+            throw e;
+        }
+        
+        Long seenRevision = file.getRevision();
+        archiveCurrent(file);
         file.setName(newFile.getOriginalFilename());
         file.setOriginalName(newFile.getOriginalFilename());
         file.setMimeType(newFile.getContentType());
         file.setSize(newFile.getSize());
-        file.setCloudinaryPublicId(publicId);
-        file.setUrl(url);
-        file.setUpdatedAt(LocalDateTime.now());
+        file.setCloudinaryPublicId((String) uploadResult.get("public_id"));
+        file.setStorageType((String) uploadResult.get("storage_type"));
+        file.setUrl((String) uploadResult.get("secure_url"));
+        file.setCodec((String) uploadResult.get("codec"));
+        file.setContentHash(uploadResult.get("sha256") != null ? (String) uploadResult.get("sha256")
+                : normalized.isNormalized() ? null : uploadHash);
+        file.setThumbnailUrl(null); // The previous preview stays with its version
+        normalized.applyTo(file); // Also clears the previous content's original, its version keeps it
         
-        return fileRecordRepository.save(file);
+        FileRecord saved = replaceIfUnchanged(file, seenRevision);
+        if (saved == null) {
+            deleteStoredCopy(file.getCloudinaryPublicId(), file.getStorageType());
+            storageUsageService.release(userId, 0, newFile.getSize());
+            imageNormalizationService.discardOriginal(normalized.originalHash());
+            throw new RuntimeException("File was modified concurrently, please retry");
+        }
+        System.out.println("✅ FileService: " + fileId + " updated to version " + saved.getVersion());
+        thumbnailService.submitForFile(saved);
+        return saved;
+    }
+
+    /**
+     * Versions of a file the user owns, oldest first, not including the current content.
+     */
+    public List<FileVersion> getVersions(String fileId, String userId) {
+        FileRecord file = getFileById(fileId, userId)
+                .orElseThrow(() -> new ResourceNotFoundException("File not found"));
+        return file.getVersions() != null ? file.getVersions() : List.of();
+    }
+
+    /**
+     * Makes an earlier version current again. The content it replaces becomes a version itself,
+     * so a rollback can be rolled back too; nothing is uploaded.
+     */
+    public FileRecord restoreVersion(String fileId, String userId, int version) {
+        FileRecord file = getFileById(fileId, userId)
+                .orElseThrow(() -> new ResourceNotFoundException("File not found"));
+        FileVersion target = file.getVersions() == null ? null : file.getVersions().stream()
+                .filter(v -> v.getVersion() != null && v.getVersion() == version)
+                .findFirst()
+                .orElse(null);
+        if (target == null) {
+            throw new ResourceNotFoundException("Version " + version + " of file " + fileId + " not found");
+        }
+        requireStored(file);
+        
+        Long seenRevision = file.getRevision();
+        archiveCurrent(file);
+        file.getVersions().remove(target);
+        file.setVersionBytes(file.getVersionBytes() - (target.getSize() != null ? target.getSize() : 0));
+        file.setName(target.getName());
+        file.setMimeType(target.getMimeType());
+        file.setSize(target.getSize());
+        file.setCloudinaryPublicId(target.getCloudinaryPublicId());
+        file.setStorageType(target.getStorageType());
+        file.setUrl(target.getUrl());
+        file.setThumbnailUrl(target.getThumbnailUrl());
+        file.setCodec(target.getCodec());
+        file.setContentHash(target.getContentHash());
+        file.setOriginalSize(target.getOriginalSize());
+        file.setOriginalHash(target.getOriginalHash());
+        
+        FileRecord saved = replaceIfUnchanged(file, seenRevision);
+        if (saved == null) {
+            throw new RuntimeException("File was modified concurrently, please retry");
+        }
+        System.out.println("⏪ FileService: " + fileId + " rolled back to version " + version + " (now version " + saved.getVersion() + ")");
+        return saved;
+    }
+
+    /**
+     * Content can't be replaced while the upload is still PENDING: the offload worker would
+     * write the spooled upload's location over the new content when it finishes.
+     */
+    private static void requireStored(FileRecord file) {
+        if (file.getStatus() == UploadStatus.PENDING) {
+            throw new ConflictException("File " + file.getId() + " is still uploading, retry once it has finished");
+        }
+    }
+
+    /**
+     * Moves the record's current content into its versions list and bumps the version number.
+     */
+    private void archiveCurrent(FileRecord file) {
+        List<FileVersion> versions = file.getVersions() != null ? new ArrayList<>(file.getVersions()) : new ArrayList<>();
+        FileVersion current = FileVersion.of(file);
+        versions.add(current);
+        file.setVersions(versions);
+        file.setVersionBytes((file.getVersionBytes() != null ? file.getVersionBytes() : 0)
+                + (current.getSize() != null ? current.getSize() : 0));
+        file.setVersion(current.getVersion() + 1);
+        file.setRevision((file.getRevision() != null ? file.getRevision() : 0) + 1);
+        file.setUpdatedAt(LocalDateTime.now());
+    }
+
+    /**
+     * Writes the whole record unless its versions changed since it was read (a concurrent
+     * update or the retention job). Null on conflict.
+     */
+    private FileRecord replaceIfUnchanged(FileRecord file, Long seenRevision) {
+        Query unchanged = Query.query(Criteria.where("_id").is(file.getId()).and("revision").is(seenRevision));
+        FileRecord previous = mongoTemplate.findAndReplace(unchanged, file);
+        return previous != null ? file : null;
+    }
+
+    private static Query byId(String fileId) {
+        return Query.query(Criteria.where("_id").is(fileId));
+    }
+
+    private static String sha256(MultipartFile file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        // Uploads are held in memory or a temp file by the container, reading them twice is cheap
+        try (InputStream in = new DigestInputStream(file.getInputStream(), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * The file behind a signed /files/{id}/content link, empty if the signature is wrong or expired.
+     */
+    public Optional<FileRecord> getFileBySignedLink(String fileId, long expiresAt, String signature) {
+        if (!signedUrlService.verifyContent(fileId, expiresAt, signature)) {
+            return Optional.empty();
+        }
+        return fileRecordRepository.findById(fileId);
     }
 
     public Optional<FileRecord> getFileById(String fileId, String userId) {
@@ -158,6 +447,28 @@ public class FileService {
         return Optional.empty();
     }
 
+    /**
+     * Opens the stored content of a file the user owns, proxying remote backends
+     * through the local cache so their URLs don't have to be public.
+     */
+    public Optional<BlobContentService.BlobContent> openContent(FileRecord file) throws IOException {
+        return blobContentService.open(file);
+    }
+
+    /**
+     * Expiring signed URL for a file kept in the local blob store, empty for other backends.
+     */
+    public Optional<SignedUrlService.SignedUrl> signedDownloadUrl(FileRecord file) throws IOException {
+        String hash = BlobStoreService.isBlobKey(file.getCloudinaryPublicId())
+                ? file.getCloudinaryPublicId()
+                : signedUrlService.parseLocalUrl(file.getUrl()).map(SignedUrlService.LocalBlob::hash).orElse(null);
+        if (hash == null || !blobStoreService.exists(hash)) {
+            return Optional.empty();
+        }
+        // Length comes from the blob itself, it becomes the Content-Length of the download
+        return Optional.of(signedUrlService.sign(hash, file.getName(), blobStoreService.contentLength(hash)));
+    }
+
     private String formatFileSize(long bytes) {
         if (bytes < 1024) return bytes + " B";
         int exp = (int) (Math.log(bytes) / Math.log(1024));
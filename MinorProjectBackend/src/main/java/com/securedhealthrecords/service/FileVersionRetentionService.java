@@ -0,0 +1,121 @@
+package com.securedhealthrecords.service;
+
+import com.securedhealthrecords.model.FileRecord;
+import com.securedhealthrecords.model.FileVersion;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Prunes file versions beyond the retention policy: everything but the newest max-versions,
+ * and anything archived more than max-age-days ago.
+ *
+ * Versions are removed from the record first, guarded by its revision so a concurrent update
+ * or rollback wins; the content is deleted and the quota released only after that write.
+ * A record that changed in the meantime is simply picked up again on the next run.
+ */
+@Slf4j
+@Service
+public class FileVersionRetentionService {
+
+    private final MongoTemplate mongoTemplate;
+    private final FileService fileService;
+    private final StorageUsageService storageUsageService;
+    private final int maxVersions;
+    private final Duration maxAge;
+
+    public FileVersionRetentionService(
+            MongoTemplate mongoTemplate,
+            FileService fileService,
+            StorageUsageService storageUsageService,
+            @Value("${app.storage.versions.max-versions:10}") int maxVersions,
+            @Value("${app.storage.versions.max-age-days:90}") long maxAgeDays) {
+        this.mongoTemplate = mongoTemplate;
+        this.fileService = fileService;
+        this.storageUsageService = storageUsageService;
+        this.maxVersions = Math.max(0, maxVersions);
+        this.maxAge = Duration.ofDays(maxAgeDays);
+    }
+
+    @Scheduled(fixedDelayString = "${app.storage.versions.interval-ms:3600000}",
+            initialDelayString = "${app.storage.versions.initial-delay-ms:600000}")
+    public void prune() {
+        LocalDateTime cutoff = LocalDateTime.now().minus(maxAge);
+        // versions.N exists only when the list holds more than N entries
+        Query due = new Query(new Criteria().orOperator(
+                Criteria.where("versions." + maxVersions).exists(true),
+                Criteria.where("versions.archivedAt").lt(cutoff)));
+        due.fields().include("userId", "versions", "versionBytes", "revision");
+
+        long records = 0;
+        long versions = 0;
+        long bytes = 0;
+        try (Stream<FileRecord> files = mongoTemplate.stream(due, FileRecord.class)) {
+            for (FileRecord file : (Iterable<FileRecord>) files::iterator) {
+                List<FileVersion> pruned = prune(file, cutoff);
+                if (pruned.isEmpty()) {
+                    continue;
+                }
+                records++;
+                versions += pruned.size();
+                bytes += sizeOf(pruned);
+            }
+        } catch (RuntimeException e) {
+            log.error("❌ Version pruning failed: {}", e.getMessage(), e);
+        }
+        if (versions > 0) {
+            log.info("🧹 Pruned {} old versions ({} bytes) from {} files", versions, bytes, records);
+        }
+    }
+
+    /**
+     * Drops the file's expired versions. Empty if there were none or the record changed underneath.
+     */
+    private List<FileVersion> prune(FileRecord file, LocalDateTime cutoff) {
+        List<FileVersion> kept = new ArrayList<>();
+        List<FileVersion> pruned = new ArrayList<>();
+        List<FileVersion> all = file.getVersions();
+        int excess = all.size() - maxVersions;
+        for (int i = 0; i < all.size(); i++) {
+            FileVersion version = all.get(i);
+            // Oldest first, so the excess is at the front
+            boolean expired = i < excess || (version.getArchivedAt() != null && version.getArchivedAt().isBefore(cutoff));
+            (expired ? pruned : kept).add(version);
+        }
+        if (pruned.isEmpty()) {
+            return pruned;
+        }
+
+        long prunedBytes = sizeOf(pruned);
+        Query unchanged = Query.query(Criteria.where("_id").is(file.getId()).and("revision").is(file.getRevision()));
+        Update update = new Update()
+                .set("versions", kept)
+                .inc("versionBytes", -prunedBytes)
+                .inc("revision", 1);
+        if (mongoTemplate.updateFirst(unchanged, update, FileRecord.class).getModifiedCount() == 0) {
+            log.debug("File {} changed while pruning, retrying next run", file.getId());
+            return List.of();
+        }
+
+        for (FileVersion version : pruned) {
+            fileService.deleteVersionCopy(version);
+        }
+        storageUsageService.release(file.getUserId(), 0, prunedBytes);
+        return pruned;
+    }
+
+    private static long sizeOf(List<FileVersion> versions) {
+        return versions.stream().mapToLong(v -> v.getSize() != null ? v.getSize() : 0).sum();
+    }
+}
@@ -0,0 +1,48 @@
+package com.securedhealthrecords.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Firebase Storage. Still simulated: uploads return a URL but nothing can be read back.
+ */
+@Service
+public class FirebaseStorageBackend extends AbstractStorageBackend {
+
+    private final FirebaseStorageService firebaseStorageService;
+
+    public FirebaseStorageBackend(
+            FirebaseStorageService firebaseStorageService,
+            MeterRegistry meterRegistry,
+            @Value("${app.storage.backends.firebase.max-concurrency:4}") int maxConcurrency) {
+        super("firebase", Set.of(), maxConcurrency, meterRegistry);
+        this.firebaseStorageService = firebaseStorageService;
+    }
+
+    @Override
+    protected Map<String, Object> doUpload(MultipartFile file, String userId, String folder) throws IOException {
+        return firebaseStorageService.uploadFile(file, userId, folder);
+    }
+
+    @Override
+    protected Optional<BlobContentService.BlobContent> doDownload(String publicId) {
+        return Optional.empty();
+    }
+
+    @Override
+    protected void doDelete(String publicId) throws IOException {
+        firebaseStorageService.deleteFile(publicId);
+    }
+
+    @Override
+    protected Optional<StoredObject> doStat(String publicId) {
+        return Optional.empty();
+    }
+}
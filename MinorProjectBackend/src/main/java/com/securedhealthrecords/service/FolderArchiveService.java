@@ -0,0 +1,249 @@
+package com.securedhealthrecords.service;
+
+import com.securedhealthrecords.exception.InvalidRequestException;
+import com.securedhealthrecords.exception.ResourceNotFoundException;
+import com.securedhealthrecords.model.Node;
+import com.securedhealthrecords.model.Node.NodeType;
+import com.securedhealthrecords.model.UploadStatus;
+import com.securedhealthrecords.repository.NodeRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams a ZIP of every file under a folder Node straight into the response.
+ *
+ * The subtree is walked lazily one folder at a time, and only a small window of blobs is
+ * opened ahead of the entry being written (remote ones are fetched concurrently through the
+ * blob cache). Nothing is staged in temp files and heap use is bounded by the prefetch window,
+ * not by the size of the folder.
+ */
+@Slf4j
+@Service
+public class FolderArchiveService {
+
+    private static final int COPY_BUFFER = 64 * 1024;
+
+    private final NodeRepository nodeRepository;
+    private final BlobContentService blobContentService;
+
+    private final ExecutorService prefetchPool;
+    private final int prefetch;
+    private final int compressionLevel;
+
+    public FolderArchiveService(
+            NodeRepository nodeRepository,
+            BlobContentService blobContentService,
+            @Value("${app.archive.prefetch-workers:4}") int prefetchWorkers,
+            @Value("${app.archive.prefetch:4}") int prefetch,
+            @Value("${app.archive.compression-level:1}") int compressionLevel) {
+        this.nodeRepository = nodeRepository;
+        this.blobContentService = blobContentService;
+        this.prefetch = Math.max(1, prefetch);
+        this.compressionLevel = compressionLevel;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.prefetchPool = Executors.newFixedThreadPool(prefetchWorkers, runnable -> {
+            Thread thread = new Thread(runnable, "archive-prefetch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Checks the node is a folder owned by ownerId and returns it.
+     */
+    public Node getArchivableFolder(String nodeId, String ownerId) {
+        Node folder = nodeRepository.findById(nodeId)
+            .orElseThrow(() -> new ResourceNotFoundException("Node not found"));
+        if (!folder.getOwnerId().equals(ownerId)) {
+            throw new InvalidRequestException("Unauthorized access to node");
+        }
+        if (folder.getType() != NodeType.FOLDER) {
+            throw new InvalidRequestException("Only folders can be archived");
+        }
+        return folder;
+    }
+
+    public void writeArchive(Node folder, OutputStream out) throws IOException {
+        Iterator<ArchiveEntry> entries = new SubtreeIterator(folder);
+        Deque<PendingEntry> window = new ArrayDeque<>(prefetch);
+        StringBuilder missing = new StringBuilder();
+        int written = 0;
+
+        ZipOutputStream zip = new ZipOutputStream(out, StandardCharsets.UTF_8);
+        zip.setLevel(compressionLevel);
+        try {
+            fill(window, entries);
+            while (!window.isEmpty()) {
+                PendingEntry pending = window.poll();
+                fill(window, entries);
+
+                Optional<BlobContentService.BlobContent> content;
+                try {
+                    content = pending.content().join();
+                } catch (CompletionException e) {
+                    log.warn("⚠️ Skipping {} in archive: {}", pending.entry().path(), e.getCause().getMessage());
+                    missing.append(pending.entry().path()).append(": ").append(e.getCause().getMessage()).append('\n');
+                    continue;
+                }
+                if (content.isEmpty()) {
+                    missing.append(pending.entry().path()).append(": content not available\n");
+                    continue;
+                }
+
+                try (InputStream in = content.get().stream()) {
+                    putEntry(zip, pending.entry());
+                    copy(in, zip);
+                    zip.closeEntry();
+                    written++;
+                }
+            }
+
+            if (missing.length() > 0) {
+                // Tell the recipient what's absent instead of silently handing over a partial folder
+                zip.putNextEntry(new ZipEntry("MISSING_FILES.txt"));
+                zip.write(missing.toString().getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+            zip.finish();
+            log.info("🗜️ Archived folder {} ({} files)", folder.getId(), written);
+        } finally {
+            // Client went away or a write failed: release whatever the window still holds
+            window.forEach(PendingEntry::discard);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        prefetchPool.shutdownNow();
+    }
+
+    private void fill(Deque<PendingEntry> window, Iterator<ArchiveEntry> entries) {
+        while (window.size() < prefetch && entries.hasNext()) {
+            ArchiveEntry entry = entries.next();
+            window.add(new PendingEntry(entry, CompletableFuture.supplyAsync(() -> open(entry), prefetchPool)));
+        }
+    }
+
+    private Optional<BlobContentService.BlobContent> open(ArchiveEntry entry) {
+        try {
+            return blobContentService.open(entry.node());
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private void putEntry(ZipOutputStream zip, ArchiveEntry entry) throws IOException {
+        String path = entry.path();
+        for (int attempt = 1; ; attempt++) {
+            ZipEntry zipEntry = new ZipEntry(path);
+            if (entry.node().getCreatedAt() != null) {
+                zipEntry.setTime(entry.node().getCreatedAt().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+            }
+            try {
+                zip.putNextEntry(zipEntry);
+                return;
+            } catch (ZipException e) {
+                // Two names collapsed onto the same path after sanitising
+                path = withSuffix(entry.path(), attempt);
+            }
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[COPY_BUFFER];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+    }
+
+    private static String withSuffix(String path, int n) {
+        int slash = path.lastIndexOf('/');
+        int dot = path.lastIndexOf('.');
+        if (dot <= slash + 1) {
+            return path + " (" + n + ")";
+        }
+        return path.substring(0, dot) + " (" + n + ")" + path.substring(dot);
+    }
+
+    private static String sanitize(String name) {
+        String cleaned = name == null ? "" : name.replace('/', '_').replace('\\', '_').trim();
+        if (cleaned.isEmpty() || cleaned.equals(".") || cleaned.equals("..")) {
+            return "_";
+        }
+        return cleaned;
+    }
+
+    private record ArchiveEntry(String path, Node node) {
+    }
+
+    private record PendingEntry(ArchiveEntry entry, CompletableFuture<Optional<BlobContentService.BlobContent>> content) {
+        void discard() {
+            content.thenAccept(opened -> opened.ifPresent(blob -> {
+                try {
+                    blob.stream().close();
+                } catch (IOException ignored) {
+                    // Nothing left to do with it
+                }
+            }));
+        }
+    }
+
+    /**
+     * Depth-first walk that only loads the children of one folder at a time.
+     */
+    private class SubtreeIterator implements Iterator<ArchiveEntry> {
+        private final Deque<ArchiveEntry> folders = new ArrayDeque<>();
+        private final Deque<ArchiveEntry> files = new ArrayDeque<>();
+
+        SubtreeIterator(Node root) {
+            folders.push(new ArchiveEntry(sanitize(root.getName()), root));
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (files.isEmpty() && !folders.isEmpty()) {
+                ArchiveEntry folder = folders.pop();
+                for (Node child : nodeRepository.findByOwnerIdAndParentId(folder.node().getOwnerId(), folder.node().getId())) {
+                    String path = folder.path() + "/" + sanitize(child.getName());
+                    if (child.getType() == NodeType.FOLDER) {
+                        folders.push(new ArchiveEntry(path, child));
+                    } else if (child.getStatus() == null || child.getStatus() == UploadStatus.READY) {
+                        files.add(new ArchiveEntry(path, child));
+                    }
+                }
+            }
+            return !files.isEmpty();
+        }
+
+        @Override
+        public ArchiveEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return files.poll();
+        }
+    }
+}
@@ -1,39 +1,102 @@
 package com.securedhealthrecords.service;
 
-import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.InputStreamContent;
 import com.google.api.client.json.gson.GsonFactory;
 import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveScopes;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.Permission;
+import com.google.auth.http.HttpCredentialsAdapter;
+import com.google.auth.oauth2.GoogleCredentials;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.security.GeneralSecurityException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Google Drive uploads through a service account.
+ *
+ * One Drive client is built on first use and shared by every thread. Files above
+ * resumable-threshold-bytes go through Drive's resumable protocol in chunk-size-bytes pieces
+ * read straight from the request or spool, so only one chunk is held in memory and a failed
+ * chunk is retried instead of the whole file.
+ *
+ * Content is read back with the service account's own credentials, so uploads stay private
+ * by default. With permissions.public-read on, each upload also gets an "anyone can read"
+ * grant, queued and sent with other uploads' grants as one Drive batch request.
+ */
 @Service
 public class GoogleDriveService {
 
+    // Drive accepts at most 100 calls per batch request
+    private static final int MAX_BATCH_SIZE = 100;
+
     @Value("${google.drive.service-account-key:}")
     private String serviceAccountKey;
 
     @Value("${google.drive.folder-id:}")
     private String parentFolderId;
 
-    private Drive driveService;
-    private boolean isConfigured = false;
+    @Value("${google.drive.application-name:Secured Health Records}")
+    private String applicationName;
+
+    @Value("${google.drive.upload.chunk-size-bytes:8388608}")
+    private int chunkSizeBytes;
+
+    @Value("${google.drive.upload.resumable-threshold-bytes:5242880}")
+    private long resumableThresholdBytes;
+
+    @Value("${google.drive.permissions.public-read:false}")
+    private boolean publicRead;
+
+    @Value("${google.drive.permissions.batch-size:50}")
+    private int permissionBatchSize;
+
+    @Value("${google.drive.permissions.linger-ms:50}")
+    private long permissionLingerMs;
+
+    @Value("${google.drive.permissions.timeout-ms:30000}")
+    private long permissionTimeoutMs;
+
+    private volatile Drive driveService;
+    private volatile boolean initialized = false;
+
+    private final LinkedBlockingQueue<PendingGrant> pendingGrants = new LinkedBlockingQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private ScheduledExecutorService grantFlusher;
 
     public Map<String, Object> uploadFile(MultipartFile file, String userId, String folder) throws IOException {
         System.out.println("📁 Google Drive upload requested");
         
-        if (!isConfigured && !initializeDriveService()) {
+        Drive drive = drive();
+        if (drive == null) {
             System.out.println("⚠️ Google Drive not configured, using simulation mode");
             return simulateGoogleDriveUpload(file, userId);
         }
@@ -52,27 +115,36 @@ public class GoogleDriveService {
                 fileMetadata.setParents(Collections.singletonList(parentFolderId));
             }
 
-            // Create file content
+            // Stream the content, -1 (still being received) tells the client the length is unknown
             InputStreamContent mediaContent = new InputStreamContent(
                 file.getContentType(),
-                new ByteArrayInputStream(file.getBytes())
+                file.getInputStream()
             );
             mediaContent.setLength(file.getSize());
 
-            // Upload file
-            File uploadedFile = driveService.files()
+            Drive.Files.Create create = drive.files()
                 .create(fileMetadata, mediaContent)
-                .setFields("id,name,webViewLink,webContentLink,size")
-                .execute();
+                .setFields("id,name,webViewLink,webContentLink,size");
 
-            // Make file publicly accessible
-            Permission permission = new Permission();
-            permission.setType("anyone");
-            permission.setRole("reader");
-            
-            driveService.permissions()
-                .create(uploadedFile.getId(), permission)
-                .execute();
+            // Small files in one request, anything larger (or of unknown length) resumably in chunks
+            MediaHttpUploader uploader = create.getMediaHttpUploader();
+            boolean resumable = file.getSize() < 0 || file.getSize() > resumableThresholdBytes;
+            uploader.setDirectUploadEnabled(!resumable);
+            if (resumable) {
+                uploader.setChunkSize(chunkSize());
+            }
+
+            File uploadedFile = create.execute();
+
+            // Only when link sharing is wanted, batched with other uploads' grants
+            if (publicRead) {
+                try {
+                    grantPublicRead(uploadedFile.getId());
+                } catch (IOException e) {
+                    deleteFile(uploadedFile.getId());
+                    throw e;
+                }
+            }
 
             String publicUrl = "https://drive.google.com/file/d/" + uploadedFile.getId() + "/view";
             String downloadUrl = "https://drive.google.com/uc?id=" + uploadedFile.getId() + "&export=download";
@@ -95,8 +167,9 @@ public class GoogleDriveService {
 
         } catch (Exception e) {
             System.err.println("❌ Google Drive upload failed: " + e.getMessage());
-            System.out.println("🔄 Falling back to simulation mode...");
-            return simulateGoogleDriveUpload(file, userId);
+            // Never fall back to simulation here: it stores nothing, and reporting success would
+            // keep UnifiedStorageService from failing over to the next backend
+            throw new IOException("Google Drive upload failed: " + e.getMessage(), e);
         }
     }
 
@@ -124,45 +197,203 @@ public class GoogleDriveService {
         return result;
     }
 
-    private boolean initializeDriveService() {
+    /**
+     * The shared Drive client, built on first use; null when no service account is configured
+     * or it could not be loaded. Initialization is attempted once.
+     */
+    private Drive drive() {
+        if (!initialized) {
+            synchronized (this) {
+                if (!initialized) {
+                    driveService = initializeDriveService();
+                    initialized = true;
+                }
+            }
+        }
+        return driveService;
+    }
+
+    private Drive initializeDriveService() {
         try {
             if (serviceAccountKey == null || serviceAccountKey.isEmpty() || serviceAccountKey.equals("your-service-account-key")) {
                 System.out.println("⚠️ Google Drive service account key not configured");
-                return false;
+                return null;
             }
 
-            // Initialize Google Drive service
-            // This would require proper service account JSON file
             System.out.println("🔧 Initializing Google Drive service...");
-            
-            // For now, return false to use simulation mode
-            // TODO: Implement actual Google Drive authentication
-            return false;
-            
+
+            // The key is either the service account JSON itself or a path to it
+            GoogleCredentials credentials;
+            try (InputStream key = serviceAccountKey.trim().startsWith("{")
+                    ? new ByteArrayInputStream(serviceAccountKey.getBytes(StandardCharsets.UTF_8))
+                    : new FileInputStream(serviceAccountKey)) {
+                credentials = GoogleCredentials.fromStream(key).createScoped(Collections.singletonList(DriveScopes.DRIVE_FILE));
+            }
+
+            Drive drive = new Drive.Builder(
+                    GoogleNetHttpTransport.newTrustedTransport(),
+                    GsonFactory.getDefaultInstance(),
+                    new HttpCredentialsAdapter(credentials))
+                .setApplicationName(applicationName)
+                .build();
+
+            grantFlusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "drive-permissions");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            System.out.println("✅ Google Drive service initialized");
+            return drive;
+
         } catch (Exception e) {
             System.err.println("❌ Failed to initialize Google Drive service: " + e.getMessage());
-            return false;
+            return null;
+        }
+    }
+
+    /**
+     * Resumable chunks must be a multiple of 256 KB.
+     */
+    private int chunkSize() {
+        int unit = MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+        return Math.max(unit, chunkSizeBytes / unit * unit);
+    }
+
+    /**
+     * Queues an "anyone can read" grant for the file and waits for the batch carrying it.
+     * A batch goes out once permissions.batch-size grants are waiting or the oldest has
+     * waited permissions.linger-ms.
+     */
+    private void grantPublicRead(String fileId) throws IOException {
+        PendingGrant grant = new PendingGrant(fileId, new CompletableFuture<>());
+        pendingGrants.add(grant);
+        if (pendingGrants.size() >= Math.min(permissionBatchSize, MAX_BATCH_SIZE)) {
+            grantFlusher.execute(this::flushGrants);
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            grantFlusher.schedule(this::flushGrants, permissionLingerMs, TimeUnit.MILLISECONDS);
+        }
+
+        try {
+            grant.done().get(permissionTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while granting access to " + fileId, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to grant access to " + fileId + ": " + e.getCause().getMessage(), e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out granting access to " + fileId, e);
+        }
+    }
+
+    /**
+     * Sends waiting grants, up to a full batch per request, until none are left.
+     * Only ever runs on the grantFlusher thread.
+     */
+    private void flushGrants() {
+        flushScheduled.set(false);
+        List<PendingGrant> batch = new ArrayList<>();
+        while (pendingGrants.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+            sendGrants(batch);
+            batch.clear();
+        }
+    }
+
+    private void sendGrants(List<PendingGrant> grants) {
+        try {
+            BatchRequest request = driveService.batch();
+            for (PendingGrant grant : grants) {
+                Permission permission = new Permission();
+                permission.setType("anyone");
+                permission.setRole("reader");
+
+                driveService.permissions()
+                    .create(grant.fileId(), permission)
+                    .queue(request, new JsonBatchCallback<Permission>() {
+                        @Override
+                        public void onSuccess(Permission created, HttpHeaders responseHeaders) {
+                            grant.done().complete(null);
+                        }
+
+                        @Override
+                        public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                            grant.done().completeExceptionally(new IOException(error.getMessage()));
+                        }
+                    });
+            }
+            request.execute();
+            System.out.println("🔓 Granted public read on " + grants.size() + " Google Drive file(s) in one batch");
+        } catch (Exception e) {
+            System.err.println("❌ Google Drive permission batch failed: " + e.getMessage());
+            grants.forEach(grant -> grant.done().completeExceptionally(e));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (grantFlusher != null) {
+            grantFlusher.shutdown();
         }
     }
 
     public void deleteFile(String fileId) throws IOException {
-        if (!isConfigured) {
+        Drive drive = drive();
+        if (drive == null) {
             System.out.println("🗑️ Google Drive file deletion simulated: " + fileId);
             return;
         }
 
         try {
-            driveService.files().delete(fileId).execute();
+            drive.files().delete(fileId).execute();
             System.out.println("✅ File deleted from Google Drive: " + fileId);
         } catch (Exception e) {
             System.err.println("❌ Failed to delete from Google Drive: " + e.getMessage());
         }
     }
 
+    /**
+     * Opens a Drive file's content; empty in simulation mode or if Drive doesn't have it.
+     */
+    public Optional<InputStream> openDownload(String fileId) throws IOException {
+        Drive drive = drive();
+        if (drive == null) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(drive.files().get(fileId).executeMediaAsInputStream());
+        } catch (GoogleJsonResponseException e) {
+            if (e.getStatusCode() == 404) {
+                return Optional.empty();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Id, size and MIME type of a Drive file; empty in simulation mode or if Drive doesn't have it.
+     */
+    public Optional<File> getMetadata(String fileId) throws IOException {
+        Drive drive = drive();
+        if (drive == null) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(drive.files().get(fileId).setFields("id,size,mimeType").execute());
+        } catch (GoogleJsonResponseException e) {
+            if (e.getStatusCode() == 404) {
+                return Optional.empty();
+            }
+            throw e;
+        }
+    }
+
     private String getFileExtension(String filename) {
         if (filename != null && filename.contains(".")) {
             return filename.substring(filename.lastIndexOf(".") + 1);
         }
         return "";
     }
-}
\ No newline at end of file
+
+    private record PendingGrant(String fileId, CompletableFuture<Void> done) {
+    }
+}
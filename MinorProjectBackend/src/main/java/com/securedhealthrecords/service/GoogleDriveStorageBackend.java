@@ -0,0 +1,72 @@
+package com.securedhealthrecords.service;
+
+import com.google.api.services.drive.model.File;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Google Drive (publicId = Drive file id). Without a service account uploads are simulated.
+ */
+@Service
+public class GoogleDriveStorageBackend extends AbstractStorageBackend {
+
+    // The view (/file/d/{id}/view) and download (uc?id={id}) URLs uploads report
+    private static final Pattern DRIVE_URL = Pattern.compile("^https://drive\\.google\\.com/(?:file/d/([^/?#]+)|uc\\?id=([^&#]+))");
+
+    private final GoogleDriveService googleDriveService;
+
+    public GoogleDriveStorageBackend(
+            GoogleDriveService googleDriveService,
+            MeterRegistry meterRegistry,
+            @Value("${app.storage.backends.googledrive.max-concurrency:4}") int maxConcurrency) {
+        // The storage_type Drive uploads report
+        super("googledrive", Set.of("google_drive", "google_drive_simulation"), maxConcurrency, meterRegistry);
+        this.googleDriveService = googleDriveService;
+    }
+
+    @Override
+    protected Map<String, Object> doUpload(MultipartFile file, String userId, String folder) throws IOException {
+        return googleDriveService.uploadFile(file, userId, folder);
+    }
+
+    @Override
+    protected Optional<BlobContentService.BlobContent> doDownload(String publicId) throws IOException {
+        Optional<File> metadata = googleDriveService.getMetadata(publicId);
+        if (metadata.isEmpty()) {
+            return Optional.empty();
+        }
+        Optional<InputStream> stream = googleDriveService.openDownload(publicId);
+        return stream.map(in -> new BlobContentService.BlobContent(in,
+                metadata.get().getSize() != null ? metadata.get().getSize() : -1));
+    }
+
+    @Override
+    public Optional<String> publicIdOf(String url) {
+        Matcher matcher = url != null ? DRIVE_URL.matcher(url) : null;
+        if (matcher == null || !matcher.lookingAt()) {
+            return Optional.empty();
+        }
+        return Optional.of(matcher.group(1) != null ? matcher.group(1) : matcher.group(2));
+    }
+
+    @Override
+    protected void doDelete(String publicId) throws IOException {
+        googleDriveService.deleteFile(publicId);
+    }
+
+    @Override
+    protected Optional<StoredObject> doStat(String publicId) throws IOException {
+        return googleDriveService.getMetadata(publicId).map(file -> new StoredObject(publicId,
+                file.getSize() != null ? file.getSize() : -1, file.getMimeType()));
+    }
+}
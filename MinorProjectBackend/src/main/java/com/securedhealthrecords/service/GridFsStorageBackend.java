@@ -0,0 +1,67 @@
+package com.securedhealthrecords.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * GridFS buckets in the application's MongoDB (publicId = GridFS file id).
+ */
+@Service
+public class GridFsStorageBackend extends AbstractStorageBackend {
+
+    private static final Pattern GRIDFS_DOWNLOAD = Pattern.compile(".*/files/gridfs/([0-9a-fA-F]{24})$");
+
+    private final GridFsStorageService gridFsStorageService;
+
+    public GridFsStorageBackend(
+            GridFsStorageService gridFsStorageService,
+            MeterRegistry meterRegistry,
+            @Value("${app.storage.backends.gridfs.max-concurrency:8}") int maxConcurrency) {
+        // base64 is the old inline backend, its records are deleted through GridFS
+        super("gridfs", Set.of("base64"), maxConcurrency, meterRegistry);
+        this.gridFsStorageService = gridFsStorageService;
+    }
+
+    @Override
+    protected Map<String, Object> doUpload(MultipartFile file, String userId, String folder) throws IOException {
+        return gridFsStorageService.uploadFile(file, userId, folder);
+    }
+
+    @Override
+    protected Optional<BlobContentService.BlobContent> doDownload(String publicId) {
+        return gridFsStorageService.openDownload(publicId)
+                .map(download -> new BlobContentService.BlobContent(download.stream(), download.length()));
+    }
+
+    @Override
+    protected void doDelete(String publicId) throws IOException {
+        gridFsStorageService.deleteFile(publicId);
+    }
+
+    @Override
+    protected Optional<StoredObject> doStat(String publicId) throws IOException {
+        Optional<GridFsStorageService.GridFsDownload> download = gridFsStorageService.openDownload(publicId);
+        if (download.isEmpty()) {
+            return Optional.empty();
+        }
+        // Opening only reads the files document, no chunks
+        try (var stream = download.get().stream()) {
+            return Optional.of(new StoredObject(publicId, download.get().length(), download.get().contentType()));
+        }
+    }
+
+    @Override
+    public Optional<String> publicIdOf(String url) {
+        Matcher matcher = url != null ? GRIDFS_DOWNLOAD.matcher(url) : null;
+        return matcher != null && matcher.matches() ? Optional.of(matcher.group(1)) : Optional.empty();
+    }
+}
@@ -0,0 +1,130 @@
+package com.securedhealthrecords.service;
+
+import com.mongodb.MongoGridFSException;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.GridFSDownloadStream;
+import com.mongodb.client.gridfs.GridFSFindIterable;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.model.Filters;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.MongoDatabaseFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Stores file content as binary chunks in MongoDB GridFS. Uploads and downloads are
+ * streamed chunk by chunk, so nothing is base64 encoded or held in memory as a whole.
+ */
+@Slf4j
+@Service
+public class GridFsStorageService {
+
+    private final GridFSBucket bucket;
+    private final int chunkSizeBytes;
+
+    public GridFsStorageService(
+            MongoDatabaseFactory databaseFactory,
+            @Value("${app.storage.gridfs.bucket:health_records}") String bucketName,
+            @Value("${app.storage.gridfs.chunk-size-bytes:261120}") int chunkSizeBytes) {
+        this.bucket = GridFSBuckets.create(databaseFactory.getMongoDatabase(), bucketName)
+                .withChunkSizeBytes(chunkSizeBytes);
+        this.chunkSizeBytes = chunkSizeBytes;
+    }
+
+    public Map<String, Object> uploadFile(MultipartFile file, String userId, String folder) throws IOException {
+        log.info("🗄️ Using GridFS storage (chunk size {} bytes)", chunkSizeBytes);
+
+        Document metadata = new Document()
+                .append("userId", userId)
+                .append("folder", folder)
+                .append("contentType", file.getContentType())
+                .append("originalName", file.getOriginalFilename());
+
+        ObjectId fileId;
+        try (InputStream in = file.getInputStream()) {
+            fileId = bucket.uploadFromStream(
+                    file.getOriginalFilename() != null ? file.getOriginalFilename() : "file",
+                    in,
+                    new GridFSUploadOptions().chunkSizeBytes(chunkSizeBytes).metadata(metadata));
+        }
+
+        // Only a locator for BlobContentService and the GC; there is no route behind it, since
+        // ObjectIds are guessable. Content is served through the signed /files/{id}/content
+        String fileUrl = "http://localhost:8080/api/v1/files/gridfs/" + fileId.toHexString();
+        log.info("✅ File stored in GridFS: {} ({} bytes)", fileId.toHexString(), file.getSize());
+
+        Map<String, Object> result = new HashMap<>();
+        result.put("public_id", fileId.toHexString());
+        result.put("secure_url", fileUrl);
+        result.put("url", fileUrl);
+        result.put("bytes", file.getSize());
+        result.put("format", getFileExtension(file.getOriginalFilename()));
+        result.put("resource_type", file.getContentType() != null && file.getContentType().startsWith("image") ? "image" : "raw");
+        result.put("storage_type", "gridfs");
+
+        return result;
+    }
+
+    /**
+     * Opens a streaming download. The caller is responsible for closing the returned stream.
+     */
+    public Optional<GridFsDownload> openDownload(String fileId) {
+        if (!ObjectId.isValid(fileId)) {
+            return Optional.empty();
+        }
+        try {
+            GridFSDownloadStream stream = bucket.openDownloadStream(new ObjectId(fileId));
+            GridFSFile gridFsFile = stream.getGridFSFile();
+            Document metadata = gridFsFile.getMetadata();
+            String contentType = metadata != null ? metadata.getString("contentType") : null;
+            return Optional.of(new GridFsDownload(stream, gridFsFile.getFilename(),
+                    contentType != null ? contentType : "application/octet-stream", gridFsFile.getLength()));
+        } catch (MongoGridFSException e) {
+            log.warn("⚠️ GridFS file not found: {}", fileId);
+            return Optional.empty();
+        }
+    }
+
+    public void deleteFile(String fileId) throws IOException {
+        if (!ObjectId.isValid(fileId)) {
+            // Records created by the old base64 backend have no GridFS content
+            log.info("🗑️ No GridFS content for legacy id {}", fileId);
+            return;
+        }
+        try {
+            bucket.delete(new ObjectId(fileId));
+            log.info("🗑️ GridFS file deleted: {}", fileId);
+        } catch (MongoGridFSException e) {
+            log.warn("⚠️ GridFS file already gone: {}", fileId);
+        }
+    }
+
+    /**
+     * Every stored file uploaded before the given time, for the orphan collector.
+     */
+    public GridFSFindIterable listFiles(Date uploadedBefore) {
+        return bucket.find(Filters.lt("uploadDate", uploadedBefore));
+    }
+
+    private String getFileExtension(String filename) {
+        if (filename != null && filename.contains(".")) {
+            return filename.substring(filename.lastIndexOf(".") + 1);
+        }
+        return "";
+    }
+
+    public record GridFsDownload(InputStream stream, String filename, String contentType, long length) {
+    }
+}
@@ -0,0 +1,372 @@
+package com.securedhealthrecords.service;
+
+import com.securedhealthrecords.model.FileRecord;
+import com.securedhealthrecords.util.ExifOrientation;
+import com.securedhealthrecords.util.SpooledMultipartFile;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Normalizes uploaded photos before they are stored: applies the EXIF orientation and drops
+ * the metadata (GPS position, device serials), scales anything larger than max-dimension
+ * down, and re-encodes JPEGs at the configured quality. A 12 MP phone photo of a
+ * prescription typically goes from 5-8 MB to well under 1 MB.
+ *
+ * PNGs are only touched when they need scaling (they are usually scans or screenshots with
+ * little metadata, and re-encoding them without resizing rarely saves anything). Formats
+ * ImageIO can't decode (HEIC, WebP) are stored as uploaded.
+ *
+ * Decoding a full-size photo takes ~50 MB of heap, so the work runs on a small bounded pool;
+ * when it is saturated, or a job takes longer than timeout-ms, the upload is stored as-is
+ * instead of waiting. With keep-original the untouched upload also goes into the blob
+ * store's cold tier, linked from FileRecord.originalHash.
+ */
+@Slf4j
+@Service
+public class ImageNormalizationService {
+
+    private static final String JPEG = "image/jpeg";
+    private static final String PNG = "image/png";
+
+    private final BlobStoreService blobStoreService;
+
+    private final boolean enabled;
+    private final int maxDimension;
+    private final float quality;
+    private final boolean keepOriginal;
+    private final long timeoutMs;
+    private final ThreadPoolExecutor executor;
+
+    private final Counter normalized;
+    private final Counter skipped;
+    private final Counter rejected;
+    private final Counter failed;
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    public ImageNormalizationService(
+            BlobStoreService blobStoreService,
+            MeterRegistry meterRegistry,
+            @Value("${app.images.normalization.enabled:true}") boolean enabled,
+            @Value("${app.images.normalization.max-dimension:2048}") int maxDimension,
+            @Value("${app.images.normalization.quality:0.82}") float quality,
+            @Value("${app.images.normalization.keep-original:false}") boolean keepOriginal,
+            @Value("${app.images.normalization.workers:2}") int workers,
+            @Value("${app.images.normalization.queue-capacity:8}") int queueCapacity,
+            @Value("${app.images.normalization.timeout-ms:30000}") long timeoutMs) {
+        this.blobStoreService = blobStoreService;
+        this.enabled = enabled;
+        this.maxDimension = maxDimension;
+        this.quality = quality;
+        this.keepOriginal = keepOriginal;
+        this.timeoutMs = timeoutMs;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "image-normalize-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+
+        Gauge.builder("upload.images.backlog", executor, pool -> pool.getQueue().size())
+                .description("Images waiting to be normalized")
+                .register(meterRegistry);
+        Gauge.builder("upload.images.active", executor, ThreadPoolExecutor::getActiveCount)
+                .description("Images being normalized")
+                .register(meterRegistry);
+        Gauge.builder("upload.images.bytes.saved", () -> bytesIn.get() - bytesOut.get())
+                .description("Bytes not stored thanks to normalization since startup")
+                .register(meterRegistry);
+        this.normalized = meterRegistry.counter("upload.images.normalized");
+        this.skipped = meterRegistry.counter("upload.images.skipped");
+        this.rejected = meterRegistry.counter("upload.images.rejected");
+        this.failed = meterRegistry.counter("upload.images.failed");
+    }
+
+    /**
+     * The upload to store in place of the given one. Callers store result.file(), copy the
+     * original's details onto their record with {@link Normalized#applyTo}, and close the
+     * result once the content has been stored or spooled.
+     */
+    public Normalized normalize(MultipartFile file) {
+        if (!enabled || !isNormalizable(file.getContentType()) || file.getSize() <= 0) {
+            return Normalized.unchanged(file);
+        }
+
+        Future<Normalized> job;
+        try {
+            job = executor.submit(() -> process(file));
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            log.warn("⚠️ Image normalization queue full, storing {} as uploaded", file.getOriginalFilename());
+            return Normalized.unchanged(file);
+        }
+
+        try {
+            return job.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            job.cancel(true);
+            Thread.currentThread().interrupt();
+            return Normalized.unchanged(file);
+        } catch (TimeoutException e) {
+            job.cancel(true);
+            failed.increment();
+            log.warn("⚠️ Normalizing {} took over {} ms, storing it as uploaded", file.getOriginalFilename(), timeoutMs);
+            return Normalized.unchanged(file);
+        } catch (ExecutionException e) {
+            failed.increment();
+            log.warn("⚠️ Could not normalize {}, storing it as uploaded: {}", file.getOriginalFilename(), e.getCause().getMessage());
+            return Normalized.unchanged(file);
+        }
+    }
+
+    /**
+     * Drops the cold copy of an original kept by {@link #normalize}, if there is one.
+     */
+    public void discardOriginal(String originalHash) {
+        if (originalHash == null) {
+            return;
+        }
+        try {
+            blobStoreService.release(originalHash);
+        } catch (IOException e) {
+            log.warn("⚠️ Could not release original image {}: {}", originalHash, e.getMessage());
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("maxDimension", maxDimension);
+        stats.put("quality", quality);
+        stats.put("keepOriginal", keepOriginal);
+        stats.put("normalized", (long) normalized.count());
+        stats.put("skipped", (long) skipped.count());
+        stats.put("rejected", (long) rejected.count());
+        stats.put("failed", (long) failed.count());
+        stats.put("bytesIn", bytesIn.get());
+        stats.put("bytesOut", bytesOut.get());
+        stats.put("bytesSaved", bytesIn.get() - bytesOut.get());
+        stats.put("active", executor.getActiveCount());
+        stats.put("queued", executor.getQueue().size());
+        return stats;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private Normalized process(MultipartFile file) throws IOException {
+        boolean jpeg = JPEG.equals(file.getContentType());
+        int orientation = ExifOrientation.NORMAL;
+        if (jpeg) {
+            try (InputStream in = file.getInputStream()) {
+                orientation = ExifOrientation.read(in);
+            }
+        }
+
+        BufferedImage source = decode(file);
+        if (source == null) {
+            skipped.increment();
+            return Normalized.unchanged(file);
+        }
+
+        int width = source.getWidth();
+        int height = source.getHeight();
+        double scale = Math.min(1.0, (double) maxDimension / Math.max(width, height));
+        if (!jpeg && scale >= 1.0) {
+            skipped.increment();
+            return Normalized.unchanged(file);
+        }
+
+        BufferedImage target = render(source, scale, orientation, jpeg || !source.getColorModel().hasAlpha());
+        source.flush();
+
+        Path output = Files.createTempFile("normalized-", jpeg ? ".jpg" : ".png");
+        try {
+            encode(target, jpeg, output);
+            if (Thread.currentThread().isInterrupted()) {
+                // The caller gave up waiting and stores the upload as-is
+                Files.deleteIfExists(output);
+                return Normalized.unchanged(file);
+            }
+            long size = Files.size(output);
+            if (!jpeg && size >= file.getSize()) {
+                // A resized PNG that came out larger, keep the upload
+                Files.deleteIfExists(output);
+                skipped.increment();
+                return Normalized.unchanged(file);
+            }
+
+            String originalHash = keepOriginal ? storeOriginal(file) : null;
+            normalized.increment();
+            bytesIn.addAndGet(file.getSize());
+            bytesOut.addAndGet(size);
+            log.info("🖼️ Normalized {}: {}x{} -> {}x{}, {} -> {} bytes", file.getOriginalFilename(),
+                    width, height, target.getWidth(), target.getHeight(), file.getSize(), size);
+            return new Normalized(new SpooledMultipartFile(output, file.getOriginalFilename(), file.getContentType()),
+                    file.getSize(), originalHash, output);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(output);
+            throw e;
+        }
+    }
+
+    /**
+     * Decodes the image, skipping pixels while reading when it is over twice max-dimension
+     * so a huge scan never has to be held at full resolution.
+     */
+    private BufferedImage decode(MultipartFile file) throws IOException {
+        try (InputStream in = file.getInputStream();
+             ImageInputStream images = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(images);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(images, true, true);
+                int longSide = Math.max(reader.getWidth(0), reader.getHeight(0));
+                int step = Math.max(1, longSide / (maxDimension * 2));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Scales and turns the image upright in one pass.
+     */
+    private BufferedImage render(BufferedImage source, double scale, int orientation, boolean opaque) {
+        int scaledWidth = Math.max(1, (int) Math.round(source.getWidth() * scale));
+        int scaledHeight = Math.max(1, (int) Math.round(source.getHeight() * scale));
+        boolean swap = ExifOrientation.swapsDimensions(orientation);
+        int targetWidth = swap ? scaledHeight : scaledWidth;
+        int targetHeight = swap ? scaledWidth : scaledHeight;
+
+        BufferedImage target = new BufferedImage(targetWidth, targetHeight,
+                opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            if (opaque) {
+                // JPEG has no alpha, flatten transparent images onto white
+                graphics.setColor(Color.WHITE);
+                graphics.fillRect(0, 0, targetWidth, targetHeight);
+            }
+            AffineTransform transform = ExifOrientation.transform(orientation, scaledWidth, scaledHeight);
+            transform.concatenate(AffineTransform.getScaleInstance(
+                    (double) scaledWidth / source.getWidth(), (double) scaledHeight / source.getHeight()));
+            graphics.drawImage(source, transform, null);
+        } finally {
+            graphics.dispose();
+        }
+        return target;
+    }
+
+    private void encode(BufferedImage image, boolean jpeg, Path output) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(jpeg ? "jpeg" : "png").next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(output.toFile())) {
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (jpeg) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+            // No metadata passed in, so nothing from the upload's EXIF is written back
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private String storeOriginal(MultipartFile file) throws IOException {
+        BlobStoreService.StoredBlob blob;
+        try (InputStream in = file.getInputStream()) {
+            blob = blobStoreService.store(in, file.getContentType());
+        }
+        // Only read again if someone asks for the original, straight to the cold tier
+        blobStoreService.demote(blob.hash());
+        return blob.hash();
+    }
+
+    private boolean isNormalizable(String contentType) {
+        return JPEG.equals(contentType) || PNG.equals(contentType);
+    }
+
+    /**
+     * Outcome of {@link #normalize}: the file to store, and when it differs from the upload,
+     * the upload's size and the hash of its cold copy (null unless keep-original).
+     */
+    public record Normalized(MultipartFile file, Long originalSize, String originalHash, Path tempFile)
+            implements AutoCloseable {
+
+        static Normalized unchanged(MultipartFile file) {
+            return new Normalized(file, null, null, null);
+        }
+
+        public boolean isNormalized() {
+            return originalSize != null;
+        }
+
+        public void applyTo(FileRecord record) {
+            record.setOriginalSize(originalSize);
+            record.setOriginalHash(originalHash);
+        }
+
+        @Override
+        public void close() {
+            if (tempFile != null) {
+                try {
+                    Files.deleteIfExists(tempFile);
+                } catch (IOException e) {
+                    log.warn("⚠️ Could not delete normalized image {}: {}", tempFile, e.getMessage());
+                }
+            }
+        }
+    }
+}
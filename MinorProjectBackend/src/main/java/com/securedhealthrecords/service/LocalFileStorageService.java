@@ -1,72 +1,253 @@
 package com.securedhealthrecords.service;
 
+import com.securedhealthrecords.exception.ResourceNotFoundException;
+import com.securedhealthrecords.model.FileRecord;
+import com.securedhealthrecords.model.Node;
+import com.securedhealthrecords.util.BlobResource;
+import com.securedhealthrecords.util.FanOutLayout;
+import lombok.RequiredArgsConstructor;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.Map;
-import java.util.UUID;
+import java.util.Optional;
+import java.util.regex.Pattern;
 
 @Service
+@RequiredArgsConstructor
 public class LocalFileStorageService {
 
+    private final BlobStoreService blobStoreService;
+    private final MongoTemplate mongoTemplate;
+
     @Value("${app.upload.dir:uploads}")
     private String uploadDir;
 
     public Map<String, Object> uploadFile(MultipartFile file, String userId, String folder) throws IOException {
         System.out.println("📁 Using local file storage (Cloudinary fallback)");
         
-        // Create upload directory if it doesn't exist
-        Path uploadPath = Paths.get(uploadDir, "health_records", userId);
-        if (folder != null && !folder.isEmpty()) {
-            uploadPath = uploadPath.resolve(folder);
-        }
-        Files.createDirectories(uploadPath);
-        
-        // Generate unique filename
+        // Work out the extension so download URLs keep a meaningful suffix
         String originalFilename = file.getOriginalFilename();
         String extension = "";
         if (originalFilename != null && originalFilename.contains(".")) {
             extension = originalFilename.substring(originalFilename.lastIndexOf("."));
         }
-        String uniqueFilename = UUID.randomUUID().toString() + extension;
         
-        // Save file
-        Path filePath = uploadPath.resolve(uniqueFilename);
-        Files.copy(file.getInputStream(), filePath, StandardCopyOption.REPLACE_EXISTING);
+        // Save file into the content-addressed blob store (hashed while streaming, large files chunked)
+        BlobStoreService.StoredBlob blob;
+        try (InputStream in = file.getInputStream()) {
+            blob = blobStoreService.store(in, file.getContentType(), file.getSize());
+        }
         
         // Generate URL (for local development)
-        String fileUrl = "http://localhost:8080/api/v1/files/download/" + userId + "/" + uniqueFilename;
-        String publicId = userId + "/" + uniqueFilename;
+        String fileUrl = downloadUrl(userId, blob.hash(), extension);
+        String publicId = blob.hash();
         
         System.out.println("✅ File saved locally:");
-        System.out.println("   Path: " + filePath.toString());
+        System.out.println("   SHA-256: " + blob.hash() + (blob.deduplicated() ? " (deduplicated)" : ""));
+        System.out.println("   Stored: " + blob.storedSize() + " of " + blob.size() + " bytes"
+                + (blob.codec() != null ? " (" + blob.codec() + ")" : ""));
+        if (blob.chunks() > 0) {
+            System.out.println("   Chunks: " + blob.chunks() + " (" + blob.reusedChunks() + " already stored)");
+        }
         System.out.println("   URL: " + fileUrl);
         
         Map<String, Object> result = new HashMap<>();
         result.put("public_id", publicId);
         result.put("secure_url", fileUrl);
         result.put("url", fileUrl);
-        result.put("bytes", file.getSize());
+        result.put("bytes", blob.size());
         result.put("format", extension.replace(".", ""));
         result.put("resource_type", file.getContentType().startsWith("image") ? "image" : "raw");
+        result.put("storage_type", "local");
+        result.put("sha256", blob.hash());
+        result.put("deduplicated", blob.deduplicated());
+        result.put("codec", blob.codec());
+        result.put("stored_bytes", blob.storedSize());
+        result.put("chunks", blob.chunks());
+        result.put("reused_chunks", blob.reusedChunks());
         
         return result;
     }
 
     public void deleteFile(String publicId) throws IOException {
         try {
-            Path filePath = Paths.get(uploadDir, "health_records", publicId);
+            if (BlobStoreService.isBlobKey(publicId)) {
+                // Shared blob: drop this reference, the store reclaims it at zero
+                blobStoreService.release(publicId);
+                return;
+            }
+            
+            // Legacy per-upload file ("userId/filename"), either still under health_records/
+            // or already moved into the fan-out layout
+            Path filePath = getLegacyRoot().resolve(publicId);
             Files.deleteIfExists(filePath);
+            int slash = publicId.indexOf('/');
+            if (slash > 0) {
+                Files.deleteIfExists(migratedLegacyPath(publicId.substring(0, slash), publicId.substring(slash + 1)));
+            }
             System.out.println("🗑️ Local file deleted: " + filePath);
         } catch (Exception e) {
             System.err.println("❌ Error deleting local file: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    public String downloadUrl(String userId, String hash, String extension) {
+        return "http://localhost:8080/api/v1/files/download/" + userId + "/" + hash + extension;
+    }
+
+    public boolean isLocalBlob(String publicId) {
+        return BlobStoreService.isBlobKey(publicId);
+    }
+
+    /**
+     * Opens a download URL's filename for reading. Content-addressed blobs are addressed
+     * by hash (plus an optional extension) and decrypted while streaming; anything else
+     * is a legacy plain upload under health_records/.
+     *
+     * Blobs are shared between users, so a hash is only served under a userId whose own
+     * files or nodes reference it.
+     */
+    public Optional<BlobResource> openDownload(String userId, String filename) throws IOException {
+        String key = filename.contains(".") ? filename.substring(0, filename.indexOf(".")) : filename;
+        if (BlobStoreService.isBlobKey(key) && isReferencedBy(userId, key) && blobStoreService.exists(key)) {
+            return Optional.of(new BlobResource(filename, blobStoreService.contentLength(key),
+                    offset -> blobStoreService.open(key, offset)));
+        }
+        
+        Path legacyPath = locateLegacy(userId, filename);
+        if (legacyPath == null) {
+            return Optional.empty();
+        }
+        return Optional.of(new BlobResource(filename, Files.size(legacyPath), offset -> {
+            // Located again on open, the layout migration may have moved it in between
+            Path current = locateLegacy(userId, filename);
+            if (current == null) {
+                throw new NoSuchFileException(legacyPath.toString());
+            }
+            InputStream in = Files.newInputStream(current);
+            in.skipNBytes(offset);
+            return in;
+        }));
+    }
+
+    /**
+     * Opens a blob whose length is already known (signed URLs carry it). The signature vouches
+     * for the hash, so nothing is looked up in Mongo first: a whole blob is found on disk when
+     * the body is written, only a chunked one reads its manifest. A blob that is gone by then
+     * is a 404.
+     */
+    public Optional<BlobResource> openBlob(String hash, String filename, long length) {
+        if (!BlobStoreService.isBlobKey(hash)) {
+            return Optional.empty();
+        }
+        return Optional.of(new BlobResource(filename, length, offset -> {
+            try {
+                return blobStoreService.open(hash, offset);
+            } catch (NoSuchFileException e) {
+                throw new ResourceNotFoundException("File content not available");
+            }
+        }));
+    }
+
+    public Path getLegacyRoot() {
+        return Paths.get(uploadDir, "health_records");
+    }
+
+    /**
+     * Root of the fan-out layout legacy uploads are migrated into (legacy/ab/cd/{key}).
+     */
+    public Path getMigratedLegacyRoot() {
+        return Paths.get(uploadDir, "legacy");
+    }
+
+    /**
+     * File name a legacy upload gets in the fan-out layout.
+     */
+    public String migratedLegacyKey(String userId, String filename) {
+        return sha256(userId + "/" + filename);
+    }
+
+    /**
+     * Moves a legacy upload (health_records/{userId}/[folder/]file) into the fan-out layout,
+     * keyed the same way its download URL is. Returns false if the target is already taken.
+     */
+    public boolean migrateLegacyFile(Path file) throws IOException {
+        Path relative = getLegacyRoot().relativize(file);
+        if (relative.getNameCount() < 2) {
+            return false;
+        }
+        String userId = relative.getName(0).toString();
+        Path target = migratedLegacyPath(userId, file.getFileName().toString());
+        if (Files.exists(target)) {
+            return false;
+        }
+        Files.createDirectories(target.getParent());
+        Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+        return true;
+    }
+
+    /**
+     * Whether any file (current content, earlier versions, previews, kept originals) or node
+     * of the user points at the blob.
+     */
+    private boolean isReferencedBy(String userId, String hash) {
+        // Download URLs end in /{userId}/{hash}{extension}
+        Pattern url = Pattern.compile(Pattern.quote("/" + userId + "/" + hash) + "(\\.[^/]*)?$");
+        Query files = Query.query(Criteria.where("userId").is(userId).orOperator(
+                Criteria.where("cloudinaryPublicId").is(hash),
+                Criteria.where("originalHash").is(hash),
+                Criteria.where("url").regex(url),
+                Criteria.where("thumbnailUrl").regex(url),
+                Criteria.where("versions.cloudinaryPublicId").is(hash),
+                Criteria.where("versions.originalHash").is(hash),
+                Criteria.where("versions.url").regex(url),
+                Criteria.where("versions.thumbnailUrl").regex(url)));
+        if (mongoTemplate.exists(files, FileRecord.class)) {
+            return true;
+        }
+        Query nodes = Query.query(Criteria.where("ownerId").is(userId).orOperator(
+                Criteria.where("storagePublicId").is(hash),
+                Criteria.where("storageKey").regex(url),
+                Criteria.where("thumbnailUrl").regex(url)));
+        return mongoTemplate.exists(nodes, Node.class);
+    }
+
+    private Path locateLegacy(String userId, String filename) {
+        Path migrated = migratedLegacyPath(userId, filename);
+        if (Files.exists(migrated)) {
+            return migrated;
+        }
+        Path original = getLegacyRoot().resolve(userId).resolve(filename);
+        return Files.exists(original) ? original : null;
+    }
+
+    private Path migratedLegacyPath(String userId, String filename) {
+        return FanOutLayout.resolve(getMigratedLegacyRoot(), migratedLegacyKey(userId, filename));
+    }
+
+    private static String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.securedhealthrecords.service;
+
+import com.securedhealthrecords.util.BlobResource;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Local disk: content-addressed blobs (publicId = SHA-256) and legacy "userId/filename" uploads.
+ */
+@Service
+public class LocalStorageBackend extends AbstractStorageBackend {
+
+    private static final Pattern LOCAL_DOWNLOAD = Pattern.compile(".*/files/download/([^/]+)/([^/?#]+)$");
+
+    private final LocalFileStorageService localFileStorageService;
+    private final BlobStoreService blobStoreService;
+
+    public LocalStorageBackend(
+            LocalFileStorageService localFileStorageService,
+            BlobStoreService blobStoreService,
+            MeterRegistry meterRegistry,
+            @Value("${app.storage.backends.local.max-concurrency:16}") int maxConcurrency) {
+        super("local", Set.of(), maxConcurrency, meterRegistry);
+        this.localFileStorageService = localFileStorageService;
+        this.blobStoreService = blobStoreService;
+    }
+
+    @Override
+    protected Map<String, Object> doUpload(MultipartFile file, String userId, String folder) throws IOException {
+        return localFileStorageService.uploadFile(file, userId, folder);
+    }
+
+    @Override
+    protected Optional<BlobContentService.BlobContent> doDownload(String publicId) throws IOException {
+        if (BlobStoreService.isBlobKey(publicId)) {
+            if (!blobStoreService.exists(publicId)) {
+                return Optional.empty();
+            }
+            return Optional.of(new BlobContentService.BlobContent(
+                    blobStoreService.open(publicId, 0), blobStoreService.contentLength(publicId)));
+        }
+        Optional<BlobResource> legacy = openLegacy(publicId);
+        if (legacy.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(new BlobContentService.BlobContent(legacy.get().getInputStream(), legacy.get().contentLength()));
+    }
+
+    @Override
+    protected void doDelete(String publicId) throws IOException {
+        localFileStorageService.deleteFile(publicId);
+    }
+
+    @Override
+    protected Optional<StoredObject> doStat(String publicId) throws IOException {
+        if (BlobStoreService.isBlobKey(publicId)) {
+            return blobStoreService.exists(publicId)
+                    ? Optional.of(new StoredObject(publicId, blobStoreService.contentLength(publicId), null))
+                    : Optional.empty();
+        }
+        Optional<BlobResource> legacy = openLegacy(publicId);
+        return legacy.map(resource -> new StoredObject(publicId, resource.contentLength(), null));
+    }
+
+    @Override
+    public Optional<String> publicIdOf(String url) {
+        Matcher matcher = url != null ? LOCAL_DOWNLOAD.matcher(url) : null;
+        if (matcher == null || !matcher.matches()) {
+            return Optional.empty();
+        }
+        String filename = matcher.group(2);
+        String key = filename.contains(".") ? filename.substring(0, filename.indexOf('.')) : filename;
+        return Optional.of(BlobStoreService.isBlobKey(key) ? key : matcher.group(1) + "/" + filename);
+    }
+
+    private Optional<BlobResource> openLegacy(String publicId) throws IOException {
+        int slash = publicId.indexOf('/');
+        if (slash <= 0) {
+            return Optional.empty();
+        }
+        return localFileStorageService.openDownload(publicId.substring(0, slash), publicId.substring(slash + 1));
+    }
+}
@@ -5,6 +5,7 @@ import com.securedhealthrecords.exception.InvalidRequestException;
 import com.securedhealthrecords.exception.ResourceNotFoundException;
 import com.securedhealthrecords.model.Node;
 import com.securedhealthrecords.model.Node.NodeType;
+import com.securedhealthrecords.model.UploadStatus;
 import com.securedhealthrecords.repository.NodeRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -15,6 +16,7 @@ import org.springframework.web.multipart.MultipartFile;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -23,7 +25,11 @@ import java.util.stream.Collectors;
 public class NodeService {
     
     private final NodeRepository nodeRepository;
-    private final CloudinaryService cloudinaryService;
+    private final StorageBackend storageBackend;
+    private final UploadOffloadService uploadOffloadService;
+    private final BlobContentService blobContentService;
+    private final ThumbnailService thumbnailService;
+    private final SignedUrlService signedUrlService;
     
     public List<NodeDTO> getNodesByParent(String ownerId, String parentId) {
         List<Node> nodes = nodeRepository.findByOwnerIdAndParentId(ownerId, parentId);
@@ -50,17 +56,79 @@ public class NodeService {
             throw new InvalidRequestException("File with name '" + name + "' already exists");
         }
         
-        // Upload file to Cloudinary
+        if (uploadOffloadService.isEnabled()) {
+            // Spool locally and let the offload workers push it to the storage backend
+            Node pendingNode = new Node(ownerId, parentId, name, mimeType, null, encryptedFileKey);
+            pendingNode.setStatus(UploadStatus.PENDING);
+            pendingNode.setSpoolPath(uploadOffloadService.spool(file).toString());
+            pendingNode.setUploadAttempts(0);
+            Node savedPending = nodeRepository.save(pendingNode);
+            uploadOffloadService.submitNode(savedPending.getId());
+            return convertToDTO(savedPending);
+        }
+        
         String folderName = parentId != null ? "folder_" + parentId : "root";
-        Map<String, Object> uploadResult = cloudinaryService.uploadFile(file, ownerId, folderName);
-        String cloudinaryUrl = (String) uploadResult.get("secure_url");
+        Map<String, Object> uploadResult = storageBackend.uploadFile(file, ownerId, folderName);
+        String url = (String) uploadResult.get("secure_url");
         
-        Node fileNode = new Node(ownerId, parentId, name, mimeType, cloudinaryUrl, encryptedFileKey);
+        Node fileNode = new Node(ownerId, parentId, name, mimeType, url, encryptedFileKey);
+        fileNode.setStorageType((String) uploadResult.get("storage_type"));
+        fileNode.setStoragePublicId((String) uploadResult.get("public_id"));
+        fileNode.setCodec((String) uploadResult.get("codec"));
+        fileNode.setContentHash((String) uploadResult.get("sha256"));
         Node savedFile = nodeRepository.save(fileNode);
+        thumbnailService.submitForNode(savedFile);
+        
+        return convertToDTO(savedFile);
+    }
+    
+    /**
+     * File node for content that is already stored (a confirmed direct upload).
+     */
+    public NodeDTO createUploadedFileNode(String ownerId, String parentId, String name, String mimeType, String storageKey,
+                                          String storageType, String storagePublicId, String encryptedFileKey) {
+        if (nodeRepository.existsByOwnerIdAndParentIdAndName(ownerId, parentId, name)) {
+            throw new InvalidRequestException("File with name '" + name + "' already exists");
+        }
         
+        Node fileNode = new Node(ownerId, parentId, name, mimeType, storageKey, encryptedFileKey);
+        fileNode.setStorageType(storageType);
+        fileNode.setStoragePublicId(storagePublicId);
+        Node savedFile = nodeRepository.save(fileNode);
+        thumbnailService.submitForNode(savedFile);
         return convertToDTO(savedFile);
     }
     
+    public Optional<NodeDTO> findByStoragePublicId(String storagePublicId) {
+        return nodeRepository.findByStoragePublicId(storagePublicId).map(this::convertToDTO);
+    }
+    
+    public NodeDTO getNode(String nodeId, String ownerId) {
+        Node node = nodeRepository.findById(nodeId)
+            .orElseThrow(() -> new ResourceNotFoundException("Node not found"));
+        
+        if (!node.getOwnerId().equals(ownerId)) {
+            throw new InvalidRequestException("Unauthorized access to node");
+        }
+        
+        return convertToDTO(node);
+    }
+    
+    public BlobContentService.BlobContent openContent(String nodeId, String ownerId) throws IOException {
+        Node node = nodeRepository.findById(nodeId)
+            .orElseThrow(() -> new ResourceNotFoundException("Node not found"));
+        
+        if (!node.getOwnerId().equals(ownerId)) {
+            throw new InvalidRequestException("Unauthorized access to node");
+        }
+        if (node.getType() != NodeType.FILE) {
+            throw new InvalidRequestException("Only files have content");
+        }
+        
+        return blobContentService.open(node)
+            .orElseThrow(() -> new ResourceNotFoundException("File content not available"));
+    }
+    
     public NodeDTO updateNode(String nodeId, String ownerId, String newName) {
         Node node = nodeRepository.findById(nodeId)
             .orElseThrow(() -> new ResourceNotFoundException("Node not found"));
@@ -94,21 +162,29 @@ public class NodeService {
             // Delete all children recursively
             deleteNodeRecursively(nodeId);
         } else {
-            // Delete file from Cloudinary
-            if (node.getStorageKey() != null) {
-                try {
-                    String publicId = cloudinaryService.extractPublicIdFromUrl(node.getStorageKey());
-                    if (publicId != null) {
-                        cloudinaryService.deleteFile(publicId);
-                    }
-                } catch (IOException e) {
-                    log.error("Failed to delete file from Cloudinary: {}", e.getMessage());
-                }
-            }
+            deleteStoredContent(node);
+            uploadOffloadService.discardSpool(node.getSpoolPath());
+            thumbnailService.discard(node.getThumbnailUrl());
             nodeRepository.deleteById(nodeId);
         }
     }
     
+    private void deleteStoredContent(Node node) {
+        if (node.getStorageKey() == null) {
+            return;
+        }
+        String publicId = node.getStoragePublicId();
+        if (publicId == null) {
+            // Older nodes only kept the URL, and were uploaded through Cloudinary
+            publicId = storageBackend.resolve(node.getStorageType())
+                .flatMap(backend -> backend.publicIdOf(node.getStorageKey()))
+                .orElse(null);
+        }
+        if (publicId != null) {
+            storageBackend.deleteFile(publicId, node.getStorageType());
+        }
+    }
+    
     private void deleteNodeRecursively(String nodeId) {
         // Find all children
         List<Node> children = nodeRepository.findByParentId(nodeId);
@@ -117,17 +193,9 @@ public class NodeService {
             if (child.getType() == NodeType.FOLDER) {
                 deleteNodeRecursively(child.getId());
             } else {
-                // Delete file from Cloudinary
-                if (child.getStorageKey() != null) {
-                    try {
-                        String publicId = cloudinaryService.extractPublicIdFromUrl(child.getStorageKey());
-                        if (publicId != null) {
-                            cloudinaryService.deleteFile(publicId);
-                        }
-                    } catch (IOException e) {
-                        log.error("Failed to delete file from Cloudinary: {}", e.getMessage());
-                    }
-                }
+                deleteStoredContent(child);
+                uploadOffloadService.discardSpool(child.getSpoolPath());
+                thumbnailService.discard(child.getThumbnailUrl());
                 nodeRepository.deleteById(child.getId());
             }
         }
@@ -145,13 +213,14 @@ public class NodeService {
         dto.setType(node.getType());
         dto.setName(node.getName());
         dto.setMimeType(node.getMimeType());
-        dto.setStorageKey(node.getStorageKey());
         dto.setEncryptedFileKey(node.getEncryptedFileKey());
+        dto.setThumbnailUrl(node.getThumbnailUrl());
         dto.setCreatedAt(node.getCreatedAt());
+        dto.setStatus(node.getType() == NodeType.FILE && node.getStatus() == null ? UploadStatus.READY : node.getStatus());
         
-        // Set download URL for files (Cloudinary URL is already public)
+        // Content is proxied, the backend URL in storageKey stays on the server
         if (node.getType() == NodeType.FILE && node.getStorageKey() != null) {
-            dto.setDownloadUrl(node.getStorageKey()); // Cloudinary URL is the direct download URL
+            dto.setDownloadUrl(signedUrlService.apiUrl("/nodes/" + node.getId() + "/content"));
         }
         
         return dto;
@@ -0,0 +1,293 @@
+package com.securedhealthrecords.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Bounded read-through disk cache for blobs that live in remote storage (Cloudinary,
+ * Google Drive, ...). Entries are kept in an access-ordered in-memory index and evicted
+ * least-recently-used first once the total size exceeds the byte budget. The index is
+ * rebuilt from the cache directory (ordered by file mtime) on startup.
+ *
+ * Entries are keyed by a stable id (backend plus public id) rather than a URL: the backend
+ * supplies the content on a miss with its own credentials, typically through a short-lived
+ * signed link, so nothing here relies on the stored object being publicly readable.
+ */
+@Slf4j
+@Service
+public class RemoteBlobCacheService {
+
+    private final Path cacheDir;
+    private final Path tempDir;
+    private final long maxBytes;
+    private final HttpClient httpClient;
+    private final Duration readTimeout;
+
+    // key -> size in bytes, access ordered so the eldest entry is the LRU one
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalBytes;
+
+    // Concurrent misses for the same id share one remote fetch
+    private final Map<String, CompletableFuture<Path>> pendingFetches = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public RemoteBlobCacheService(
+            @Value("${app.upload.dir:uploads}") String uploadDir,
+            @Value("${app.storage.cache.max-bytes:1073741824}") long maxBytes,
+            @Value("${app.storage.cache.connect-timeout-ms:5000}") long connectTimeoutMs,
+            @Value("${app.storage.cache.read-timeout-ms:60000}") long readTimeoutMs) {
+        this.cacheDir = Paths.get(uploadDir, "cache");
+        this.tempDir = cacheDir.resolve(".tmp");
+        this.maxBytes = maxBytes;
+        this.readTimeout = Duration.ofMillis(readTimeoutMs);
+        this.httpClient = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    @PostConstruct
+    public void recoverIndex() throws IOException {
+        Files.createDirectories(tempDir);
+
+        // Half-written downloads from a previous run are useless
+        try (Stream<Path> leftovers = Files.list(tempDir)) {
+            for (Path leftover : (Iterable<Path>) leftovers::iterator) {
+                Files.deleteIfExists(leftover);
+            }
+        }
+
+        List<Path> entries = new ArrayList<>();
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            files.filter(Files::isRegularFile).forEach(entries::add);
+        }
+        entries.sort(Comparator.comparing(this::lastModified));
+
+        synchronized (index) {
+            for (Path entry : entries) {
+                long size = Files.size(entry);
+                index.put(entry.getFileName().toString(), size);
+                totalBytes += size;
+            }
+            evictIfNeeded();
+        }
+        log.info("🗃️ Remote blob cache recovered {} entries ({} bytes, budget {} bytes)",
+                index.size(), totalBytes, maxBytes);
+    }
+
+    /**
+     * Opens the blob with the given id, reading it from source into the cache on a miss.
+     */
+    public InputStream open(String id, Source source) throws IOException {
+        String key = keyFor(id);
+        Path cached = cacheDir.resolve(key);
+
+        synchronized (index) {
+            if (index.get(key) != null && Files.exists(cached)) {
+                hits.incrementAndGet();
+                touch(cached);
+                return Files.newInputStream(cached);
+            }
+        }
+
+        misses.incrementAndGet();
+        Path fetched = fetch(key, id, source);
+        if (fetched.startsWith(tempDir)) {
+            // Too big to cache, stream it once and drop it
+            return Files.newInputStream(fetched, StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        return Files.newInputStream(fetched);
+    }
+
+    public long size(String id) throws IOException {
+        Path cached = cacheDir.resolve(keyFor(id));
+        return Files.exists(cached) ? Files.size(cached) : -1;
+    }
+
+    public void invalidate(String id) {
+        String key = keyFor(id);
+        synchronized (index) {
+            Long size = index.remove(key);
+            if (size != null) {
+                totalBytes -= size;
+            }
+        }
+        try {
+            Files.deleteIfExists(cacheDir.resolve(key));
+        } catch (IOException e) {
+            log.warn("⚠️ Could not remove cache entry {}: {}", key, e.getMessage());
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (index) {
+            stats.put("entries", index.size());
+            stats.put("bytes", totalBytes);
+        }
+        stats.put("maxBytes", maxBytes);
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        return stats;
+    }
+
+    /**
+     * A source that GETs the given URL, meant for signed links a backend just issued.
+     */
+    public Source httpGet(String url) {
+        return () -> {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                    .timeout(readTimeout)
+                    .GET()
+                    .build();
+            try {
+                HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+                if (response.statusCode() / 100 != 2) {
+                    response.body().close();
+                    throw new IOException("Remote storage returned HTTP " + response.statusCode());
+                }
+                return response.body();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while fetching remote blob", e);
+            }
+        };
+    }
+
+    private Path fetch(String key, String id, Source source) throws IOException {
+        CompletableFuture<Path> mine = new CompletableFuture<>();
+        CompletableFuture<Path> existing = pendingFetches.putIfAbsent(key, mine);
+        if (existing != null) {
+            try {
+                Path path = existing.join();
+                if (!path.startsWith(tempDir)) {
+                    return path;
+                }
+            } catch (CompletionException e) {
+                throw new IOException("Remote fetch failed: " + e.getCause().getMessage(), e.getCause());
+            }
+            // The leader's uncacheable temp file is single use, fetch our own copy
+            return download(id, source, Files.createTempFile(tempDir, key, ".part"));
+        }
+
+        try {
+            Path path = download(id, source, Files.createTempFile(tempDir, key, ".part"));
+            long size = Files.size(path);
+            if (size <= maxBytes) {
+                Path target = cacheDir.resolve(key);
+                Files.move(path, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                synchronized (index) {
+                    Long previous = index.put(key, size);
+                    totalBytes += size - (previous != null ? previous : 0);
+                    evictIfNeeded();
+                }
+                path = target;
+            }
+            mine.complete(path);
+            return path;
+        } catch (IOException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            pendingFetches.remove(key, mine);
+        }
+    }
+
+    private Path download(String id, Source source, Path tempFile) throws IOException {
+        // The id, not the URL: signed links carry credentials
+        log.info("🌐 Cache miss, fetching {}", id);
+        try (InputStream in = source.open()) {
+            Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            return tempFile;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+    }
+
+    // Caller must hold the index lock
+    private void evictIfNeeded() {
+        Iterator<Map.Entry<String, Long>> eldest = index.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            eldest.remove();
+            totalBytes -= entry.getValue();
+            evictions.incrementAndGet();
+            try {
+                // Readers that already opened the file keep their handle
+                Files.deleteIfExists(cacheDir.resolve(entry.getKey()));
+            } catch (IOException e) {
+                log.warn("⚠️ Could not evict cache entry {}: {}", entry.getKey(), e.getMessage());
+            }
+        }
+    }
+
+    private void touch(Path path) {
+        try {
+            // Keeps the on-disk order meaningful for index recovery after a restart
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            log.debug("Could not touch cache entry {}", path);
+        }
+    }
+
+    private FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private String keyFor(String id) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(id.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Where the content of a missing entry comes from. The cache closes the stream.
+     */
+    @FunctionalInterface
+    public interface Source {
+        InputStream open() throws IOException;
+    }
+}
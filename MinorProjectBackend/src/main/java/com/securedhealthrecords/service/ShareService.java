@@ -15,6 +15,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.io.IOException;
 import java.security.SecureRandom;
 import java.time.LocalDateTime;
 import java.util.Base64;
@@ -29,15 +30,20 @@ public class ShareService {
     private final ShareRepository shareRepository;
     private final UserRepository userRepository;
     private final MailerSendService mailerSendService;
+    private final BlobContentService blobContentService;
+    private final SignedUrlService signedUrlService;
     private final String frontendUrl;
     
     public ShareService(NodeRepository nodeRepository, ShareRepository shareRepository, 
                        UserRepository userRepository, MailerSendService mailerSendService,
+                       BlobContentService blobContentService, SignedUrlService signedUrlService,
                        @Value("${frontend.url}") String frontendUrl) {
         this.nodeRepository = nodeRepository;
         this.shareRepository = shareRepository;
         this.userRepository = userRepository;
         this.mailerSendService = mailerSendService;
+        this.blobContentService = blobContentService;
+        this.signedUrlService = signedUrlService;
         this.frontendUrl = frontendUrl;
     }
     
@@ -92,7 +98,7 @@ public class ShareService {
         // Convert to DTO
         ShareDTO responseDTO = convertToDTO(savedShare);
         responseDTO.setSharedNodes(nodesToShare.stream()
-            .map(this::convertNodeToDTO)
+            .map(node -> convertNodeToDTO(node, accessToken))
             .collect(Collectors.toList()));
         
         return responseDTO;
@@ -111,12 +117,39 @@ public class ShareService {
         
         ShareDTO shareDTO = convertToDTO(share);
         shareDTO.setSharedNodes(sharedNodes.stream()
-            .map(this::convertNodeToDTO)
+            .map(node -> convertNodeToDTO(node, accessToken))
             .collect(Collectors.toList()));
         
         return shareDTO;
     }
     
+    /**
+     * A file node of a live share, for serving its content to the recipient.
+     */
+    public Node getSharedNode(String accessToken, String nodeId) {
+        Share share = shareRepository.findByAccessToken(accessToken)
+            .orElseThrow(() -> new ResourceNotFoundException("Share not found"));
+        
+        if (share.isExpired()) {
+            throw new InvalidRequestException("Share has expired");
+        }
+        if (!share.getNodeIds().contains(nodeId)) {
+            throw new ResourceNotFoundException("Node not found in this share");
+        }
+        
+        Node node = nodeRepository.findById(nodeId)
+            .orElseThrow(() -> new ResourceNotFoundException("Node not found"));
+        if (node.getType() != Node.NodeType.FILE) {
+            throw new InvalidRequestException("Only files have content");
+        }
+        return node;
+    }
+    
+    public BlobContentService.BlobContent openSharedContent(Node node) throws IOException {
+        return blobContentService.open(node)
+            .orElseThrow(() -> new ResourceNotFoundException("File content not available"));
+    }
+    
     public List<ShareDTO> getUserShares(String ownerId) {
         LocalDateTime now = LocalDateTime.now();
         List<Share> activeShares = shareRepository.findByOwnerIdAndExpiresAtAfter(ownerId, now);
@@ -169,7 +202,7 @@ public class ShareService {
         return dto;
     }
     
-    private NodeDTO convertNodeToDTO(Node node) {
+    private NodeDTO convertNodeToDTO(Node node, String accessToken) {
         NodeDTO dto = new NodeDTO();
         dto.setId(node.getId());
         dto.setOwnerId(node.getOwnerId());
@@ -177,9 +210,13 @@ public class ShareService {
         dto.setType(node.getType());
         dto.setName(node.getName());
         dto.setMimeType(node.getMimeType());
-        dto.setStorageKey(node.getStorageKey());
         dto.setEncryptedFileKey(node.getEncryptedFileKey());
         dto.setCreatedAt(node.getCreatedAt());
+        
+        // Proxied for the recipient, the backend URL in storageKey stays on the server
+        if (node.getType() == Node.NodeType.FILE && node.getStorageKey() != null) {
+            dto.setDownloadUrl(signedUrlService.apiUrl("/share/view/" + accessToken + "/nodes/" + node.getId() + "/content"));
+        }
         return dto;
     }
 }
@@ -0,0 +1,173 @@
+package com.securedhealthrecords.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.util.UriUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Issues and verifies expiring download URLs for local blobs:
+ *
+ *   /files/signed/{hash}?name=..&len=..&exp=..&sig=..
+ *
+ * The signature is an HMAC-SHA256 over everything the download handler needs (blob key, file
+ * name, plaintext length, expiry), so a request can be served straight from the blob store
+ * without loading the FileRecord or the user.
+ *
+ * Also signs links to a file's proxied content (/files/{id}/content?exp=..&sig=..), which is
+ * what clients get as FileRecord.url in place of the backend URL.
+ */
+@Slf4j
+@Service
+public class SignedUrlService {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    // First line of content link payloads; blob payloads start with a hex hash, so the two can't collide
+    private static final String CONTENT_SCOPE = "file-content";
+    private static final Pattern LOCAL_DOWNLOAD = Pattern.compile(".*/files/download/([^/]+)/([^/?#]+)$");
+
+    private final SecretKeySpec key;
+    private final Duration ttl;
+    private final String baseUrl;
+    private final boolean unsignedDownloads;
+
+    public SignedUrlService(
+            @Value("${app.download.signing.secret:}") String secret,
+            @Value("${jwt.secret}") String jwtSecret,
+            @Value("${app.download.signing.ttl-seconds:900}") long ttlSeconds,
+            @Value("${app.download.signing.base-url:http://localhost:8080/api/v1}") String baseUrl,
+            @Value("${app.download.unsigned-enabled:true}") boolean unsignedDownloads) {
+        if (secret == null || secret.isBlank()) {
+            // Derived rather than reused, so a leaked download signature says nothing about JWTs
+            log.warn("⚠️ app.download.signing.secret not set, deriving the URL signing key from jwt.secret");
+            this.key = new SecretKeySpec(hmac(new SecretKeySpec(jwtSecret.getBytes(StandardCharsets.UTF_8), ALGORITHM),
+                    "signed-download-urls"), ALGORITHM);
+        } else {
+            this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        }
+        this.ttl = Duration.ofSeconds(ttlSeconds);
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.unsignedDownloads = unsignedDownloads;
+    }
+
+    public Duration getTtl() {
+        return ttl;
+    }
+
+    /**
+     * Whether the old unauthenticated /files/download/{userId}/{filename} route still serves content.
+     */
+    public boolean isUnsignedDownloadsEnabled() {
+        return unsignedDownloads;
+    }
+
+    /**
+     * Signed URL for a blob, valid for the configured TTL.
+     */
+    public SignedUrl sign(String hash, String filename, long length) {
+        Instant expiresAt = Instant.now().plus(ttl);
+        String signature = signature(hash, filename, length, expiresAt.getEpochSecond());
+        String url = baseUrl + "/files/signed/" + hash
+                + "?name=" + UriUtils.encodeQueryParam(filename, StandardCharsets.UTF_8)
+                + "&len=" + length
+                + "&exp=" + expiresAt.getEpochSecond()
+                + "&sig=" + signature;
+        return new SignedUrl(url, expiresAt);
+    }
+
+    /**
+     * Signed link to /files/{fileId}/content, valid for the configured TTL.
+     */
+    public SignedUrl signContent(String fileId) {
+        Instant expiresAt = Instant.now().plus(ttl);
+        String url = baseUrl + "/files/" + UriUtils.encodePathSegment(fileId, StandardCharsets.UTF_8) + "/content"
+                + "?exp=" + expiresAt.getEpochSecond()
+                + "&sig=" + contentSignature(fileId, expiresAt.getEpochSecond());
+        return new SignedUrl(url, expiresAt);
+    }
+
+    /**
+     * True if the content link signature matches and the link hasn't expired. Compared in constant time.
+     */
+    public boolean verifyContent(String fileId, long expiresAt, String signature) {
+        if (signature == null || Instant.now().getEpochSecond() > expiresAt) {
+            return false;
+        }
+        byte[] expected = contentSignature(fileId, expiresAt).getBytes(StandardCharsets.US_ASCII);
+        return MessageDigest.isEqual(expected, signature.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Public URL of one of our own API paths (e.g. "/nodes/{id}/content").
+     */
+    public String apiUrl(String path) {
+        return baseUrl + path;
+    }
+
+    /**
+     * Hash and filename of a legacy /files/download/{userId}/{hash.ext} URL, if it points at a blob.
+     */
+    public Optional<LocalBlob> parseLocalUrl(String url) {
+        if (url == null) {
+            return Optional.empty();
+        }
+        Matcher matcher = LOCAL_DOWNLOAD.matcher(url);
+        if (!matcher.matches()) {
+            return Optional.empty();
+        }
+        String filename = matcher.group(2);
+        String hash = filename.contains(".") ? filename.substring(0, filename.indexOf('.')) : filename;
+        return BlobStoreService.isBlobKey(hash) ? Optional.of(new LocalBlob(hash, filename)) : Optional.empty();
+    }
+
+    /**
+     * True if the signature matches and the URL hasn't expired. Compared in constant time.
+     */
+    public boolean verify(String hash, String filename, long length, long expiresAt, String signature) {
+        if (signature == null || filename == null || Instant.now().getEpochSecond() > expiresAt) {
+            return false;
+        }
+        byte[] expected = signature(hash, filename, length, expiresAt).getBytes(StandardCharsets.US_ASCII);
+        return MessageDigest.isEqual(expected, signature.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private String signature(String hash, String filename, long length, long expiresAt) {
+        // Length and expiry are numeric and come last, so a newline in the name can't shift them
+        String payload = hash + "\n" + filename + "\n" + length + "\n" + expiresAt;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(hmac(key, payload));
+    }
+
+    private String contentSignature(String fileId, long expiresAt) {
+        String payload = CONTENT_SCOPE + "\n" + fileId + "\n" + expiresAt;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(hmac(key, payload));
+    }
+
+    private static byte[] hmac(SecretKeySpec key, String payload) {
+        try {
+            // Mac isn't thread-safe, and getInstance is cheap next to reading the blob
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " not available", e);
+        }
+    }
+
+    public record SignedUrl(String url, Instant expiresAt) {
+    }
+
+    public record LocalBlob(String hash, String filename) {
+    }
+}
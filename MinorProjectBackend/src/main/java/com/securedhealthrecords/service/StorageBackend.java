@@ -0,0 +1,131 @@
+package com.securedhealthrecords.service;
+
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A place file content can be stored: local blobs, GridFS, Cloudinary, Google Drive, Firebase.
+ *
+ * Every registered bean is one backend. UnifiedStorageService is the primary one and routes
+ * uploads over the others by priority; file services inject that and never a concrete
+ * backend, so backends can be added, measured and reordered without touching them.
+ *
+ * Operations are asynchronous. Each backend runs them on its own bounded pool, so a slow
+ * backend queues its own work instead of tying up threads another backend could use.
+ * A publicId is whatever the backend returned as "public_id" on upload.
+ */
+public interface StorageBackend {
+
+    /**
+     * storageType of records that predate the storageType field; those were all uploaded through Cloudinary.
+     */
+    String LEGACY_STORAGE_TYPE = "cloudinary";
+
+    String getName();
+
+    /**
+     * Whether content recorded with this storageType lives here (the name plus older aliases).
+     */
+    boolean handles(String storageType);
+
+    /**
+     * The backend holding content of a storageType. Null means {@link #LEGACY_STORAGE_TYPE}.
+     */
+    default Optional<StorageBackend> resolve(String storageType) {
+        return handles(storageType != null ? storageType : LEGACY_STORAGE_TYPE) ? Optional.of(this) : Optional.empty();
+    }
+
+    /**
+     * Stores the file. The result follows Cloudinary's upload response ("public_id", "secure_url",
+     * "bytes", ...) plus "storage_type" and, when known, "sha256".
+     */
+    CompletableFuture<Map<String, Object>> upload(MultipartFile file, String userId, String folder);
+
+    /**
+     * Opens the content for reading; empty if the backend doesn't have it. The caller closes the stream.
+     */
+    CompletableFuture<Optional<BlobContentService.BlobContent>> download(String publicId);
+
+    /**
+     * Removes the content. Deleting something that is already gone is not an error.
+     */
+    CompletableFuture<Void> delete(String publicId);
+
+    /**
+     * Size and type of the content without reading it; empty if the backend doesn't have it.
+     */
+    CompletableFuture<Optional<StoredObject>> stat(String publicId);
+
+    /**
+     * The publicId behind a URL this backend handed out, for records that only kept the URL.
+     */
+    default Optional<String> publicIdOf(String url) {
+        return Optional.empty();
+    }
+
+    /**
+     * Blocking upload for callers that have nothing else to do meanwhile.
+     */
+    default Map<String, Object> uploadFile(MultipartFile file, String userId, String folder) throws IOException {
+        return await(upload(file, userId, folder));
+    }
+
+    /**
+     * Blocking delete from the backend a record's storageType names. Failures are logged,
+     * the storage GC catches anything left behind.
+     */
+    default void deleteFile(String publicId, String storageType) {
+        System.out.println("🗑️ Deleting file from " + storageType + ": " + publicId);
+
+        Optional<StorageBackend> backend = resolve(storageType);
+        if (backend.isEmpty()) {
+            System.out.println("⚠️ Unknown storage type for deletion: " + storageType);
+            return;
+        }
+        try {
+            await(backend.get().delete(publicId));
+        } catch (Exception e) {
+            System.err.println("❌ Failed to delete from " + storageType + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Waits for an operation from a caller that is blocking anyway, unwrapping its failure.
+     */
+    static <T> T await(CompletableFuture<T> operation) throws IOException {
+        try {
+            return operation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for storage", e);
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    /**
+     * The exception behind a failed future, as something a blocking caller can throw.
+     */
+    static IOException rethrow(Throwable failure) {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+        if (cause instanceof IOException io) {
+            return io;
+        }
+        if (cause instanceof RuntimeException runtime) {
+            throw runtime;
+        }
+        if (cause instanceof Error error) {
+            throw error;
+        }
+        return new IOException(cause.getMessage(), cause);
+    }
+
+    record StoredObject(String publicId, long size, String contentType) {
+    }
+}
@@ -0,0 +1,586 @@
+package com.securedhealthrecords.service;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.securedhealthrecords.model.Blob;
+import com.securedhealthrecords.model.FileRecord;
+import com.securedhealthrecords.model.FileVersion;
+import com.securedhealthrecords.model.Node;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Mark-and-sweep collector for stored content nothing points at any more.
+ *
+ * Mark collects every blob hash, legacy file, GridFS id, Cloudinary public id and spool
+ * file referenced by a FileRecord or Node. Sweep then walks each storage location in
+ * parallel (local blobs, legacy uploads, the spool, stray files in the upload root, GridFS
+ * and the Cloudinary listing) and removes what isn't referenced. Anything newer than the
+ * grace period is left alone so uploads still in flight are never touched, and a dry run
+ * only reports what would go.
+ */
+@Slf4j
+@Service
+public class StorageGcService {
+
+    private static final int SAMPLE_SIZE = 20;
+    private static final Pattern LOCAL_DOWNLOAD = Pattern.compile("/files/download/([^/]+)/([^/?#]+)");
+    private static final Pattern GRIDFS_DOWNLOAD = Pattern.compile("/files/gridfs/([0-9a-fA-F]{24})");
+    private static final Pattern CLOUDINARY_URL = Pattern.compile("res\\.cloudinary\\.com/.+?/upload/(?:v\\d+/)?([^?#]+)");
+    private static final List<String> CLOUDINARY_TYPES = List.of("image", "raw", "video");
+
+    private final MongoTemplate mongoTemplate;
+    private final BlobStoreService blobStoreService;
+    private final LocalFileStorageService localFileStorageService;
+    private final GridFsStorageService gridFsStorageService;
+    private final CloudinaryService cloudinaryService;
+    private final UploadOffloadService uploadOffloadService;
+    private final MeterRegistry meterRegistry;
+
+    private final Path uploadRoot;
+    private final boolean enabled;
+    private final boolean defaultDryRun;
+    private final Duration grace;
+    private final ExecutorService sweepPool;
+
+    private volatile Thread worker;
+    private volatile Map<String, Object> lastReport = Map.of("state", "NEVER_RUN");
+
+    public StorageGcService(
+            MongoTemplate mongoTemplate,
+            BlobStoreService blobStoreService,
+            LocalFileStorageService localFileStorageService,
+            GridFsStorageService gridFsStorageService,
+            CloudinaryService cloudinaryService,
+            UploadOffloadService uploadOffloadService,
+            MeterRegistry meterRegistry,
+            @Value("${app.upload.dir:uploads}") String uploadDir,
+            @Value("${app.storage.gc.enabled:true}") boolean enabled,
+            @Value("${app.storage.gc.dry-run:true}") boolean defaultDryRun,
+            @Value("${app.storage.gc.grace-hours:24}") long graceHours) {
+        this.mongoTemplate = mongoTemplate;
+        this.blobStoreService = blobStoreService;
+        this.localFileStorageService = localFileStorageService;
+        this.gridFsStorageService = gridFsStorageService;
+        this.cloudinaryService = cloudinaryService;
+        this.uploadOffloadService = uploadOffloadService;
+        this.meterRegistry = meterRegistry;
+        this.uploadRoot = Paths.get(uploadDir);
+        this.enabled = enabled;
+        this.defaultDryRun = defaultDryRun;
+        this.grace = Duration.ofHours(graceHours);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.sweepPool = Executors.newFixedThreadPool(6, runnable -> {
+            Thread thread = new Thread(runnable, "storage-gc-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    @Scheduled(cron = "${app.storage.gc.cron:0 30 3 * * *}")
+    public void scheduledRun() {
+        if (enabled) {
+            start(defaultDryRun);
+        }
+    }
+
+    public boolean isDefaultDryRun() {
+        return defaultDryRun;
+    }
+
+    /**
+     * Starts a collection in the background. Returns false if one is already running.
+     */
+    public synchronized boolean start(boolean dryRun) {
+        if (worker != null && worker.isAlive()) {
+            return false;
+        }
+        worker = new Thread(() -> run(dryRun), "storage-gc");
+        worker.setDaemon(true);
+        worker.start();
+        return true;
+    }
+
+    public Map<String, Object> getLastReport() {
+        return lastReport;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sweepPool.shutdownNow();
+    }
+
+    private void run(boolean dryRun) {
+        LocalDateTime startedAt = LocalDateTime.now();
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("state", "RUNNING");
+        report.put("dryRun", dryRun);
+        report.put("startedAt", startedAt);
+        // Readers only ever see copies, the report itself is still being filled in
+        lastReport = new LinkedHashMap<>(report);
+
+        try {
+            // Anything stored after this may belong to a record that isn't saved yet
+            LocalDateTime cutoff = startedAt.minus(grace);
+            long markStart = System.nanoTime();
+            References refs = mark();
+            report.put("markMs", (System.nanoTime() - markStart) / 1_000_000);
+            report.put("references", refs.summary());
+            lastReport = new LinkedHashMap<>(report);
+
+            List<CompletableFuture<Sweep>> sweeps = List.of(
+                    sweepAsync("blobs", dryRun, sweep -> sweepBlobs(sweep, refs, cutoff)),
+                    sweepAsync("legacy", dryRun, sweep -> sweepLegacy(sweep, refs, cutoff)),
+                    sweepAsync("spool", dryRun, sweep -> sweepSpool(sweep, refs, cutoff)),
+                    sweepAsync("stray", dryRun, sweep -> sweepStray(sweep, cutoff)),
+                    sweepAsync("gridfs", dryRun, sweep -> sweepGridFs(sweep, refs, cutoff)),
+                    sweepAsync("cloudinary", dryRun, sweep -> sweepCloudinary(sweep, refs, cutoff)));
+
+            Map<String, Object> sources = new LinkedHashMap<>();
+            long orphans = 0;
+            long bytes = 0;
+            for (CompletableFuture<Sweep> future : sweeps) {
+                Sweep sweep = future.join();
+                sources.put(sweep.source, sweep.report());
+                orphans += sweep.orphans;
+                bytes += sweep.bytes;
+            }
+            report.put("sources", sources);
+            report.put("orphans", orphans);
+            report.put(dryRun ? "reclaimableBytes" : "reclaimedBytes", bytes);
+            report.put("state", "COMPLETED");
+            log.info("🧹 Storage GC {}: {} orphans, {} bytes{}", dryRun ? "dry run" : "run", orphans, bytes,
+                    dryRun ? " reclaimable" : " reclaimed");
+        } catch (RuntimeException e) {
+            report.put("state", "FAILED");
+            report.put("error", e.getMessage());
+            log.error("❌ Storage GC failed: {}", e.getMessage(), e);
+        } finally {
+            report.put("finishedAt", LocalDateTime.now());
+            lastReport = report;
+        }
+    }
+
+    private References mark() {
+        References refs = new References();
+
+        Query fileFields = new Query();
+        fileFields.fields().include("cloudinaryPublicId", "storageType", "url", "thumbnailUrl", "spoolPath", "versions", "originalHash");
+        try (Stream<FileRecord> files = mongoTemplate.stream(fileFields, FileRecord.class)) {
+            files.forEach(file -> {
+                refs.records++;
+                refs.addPublicId(file.getCloudinaryPublicId(), file.getStorageType());
+                refs.addUrl(file.getUrl());
+                refs.addUrl(file.getThumbnailUrl());
+                refs.addSpool(file.getSpoolPath());
+                refs.addPublicId(file.getOriginalHash(), "local");
+                if (file.getVersions() != null) {
+                    for (FileVersion version : file.getVersions()) {
+                        refs.addPublicId(version.getCloudinaryPublicId(), version.getStorageType());
+                        refs.addUrl(version.getUrl());
+                        refs.addUrl(version.getThumbnailUrl());
+                        refs.addPublicId(version.getOriginalHash(), "local");
+                    }
+                }
+            });
+        }
+
+        Query nodeFields = new Query();
+        nodeFields.fields().include("storageKey", "storageType", "storagePublicId", "thumbnailUrl", "spoolPath");
+        try (Stream<Node> nodes = mongoTemplate.stream(nodeFields, Node.class)) {
+            nodes.forEach(node -> {
+                refs.records++;
+                refs.addUrl(node.getStorageKey());
+                refs.addPublicId(node.getStoragePublicId(), node.getStorageType());
+                refs.addUrl(node.getThumbnailUrl());
+                refs.addSpool(node.getSpoolPath());
+            });
+        }
+        addChunks(refs);
+        return refs;
+    }
+
+    /**
+     * Chunked blobs are only referenced by their manifests, so the chunks of every
+     * referenced blob are references too.
+     */
+    private void addChunks(References refs) {
+        List<String> hashes = new ArrayList<>(refs.blobs);
+        for (int from = 0; from < hashes.size(); from += 1000) {
+            Query chunked = Query.query(Criteria.where("_id").in(hashes.subList(from, Math.min(from + 1000, hashes.size())))
+                    .and("chunks").exists(true));
+            chunked.fields().include("chunks");
+            for (Blob blob : mongoTemplate.find(chunked, Blob.class)) {
+                blob.getChunks().forEach(chunk -> refs.blobs.add(chunk.getHash()));
+            }
+        }
+    }
+
+    private CompletableFuture<Sweep> sweepAsync(String source, boolean dryRun, Consumer<Sweep> body) {
+        return CompletableFuture.supplyAsync(() -> {
+            Sweep sweep = new Sweep(source, dryRun);
+            try {
+                body.accept(sweep);
+            } catch (RuntimeException e) {
+                sweep.error(source, e);
+            }
+            sweep.finish();
+            return sweep;
+        }, sweepPool);
+    }
+
+    private void sweepBlobs(Sweep sweep, References refs, LocalDateTime cutoff) {
+        // Blobs with metadata, plus files on disk whose metadata never got written
+        Set<String> candidates = new HashSet<>();
+        Query ids = new Query();
+        ids.fields().include("_id");
+        try (Stream<Blob> blobs = mongoTemplate.stream(ids, Blob.class)) {
+            blobs.forEach(blob -> candidates.add(blob.getId()));
+        }
+        Path tempDir = blobStoreService.getTempDir();
+        for (Path root : List.of(blobStoreService.getBlobRoot(), blobStoreService.getColdRoot())) {
+            walk(sweep, root, file -> {
+                String name = file.getFileName().toString();
+                if (!file.startsWith(tempDir) && BlobStoreService.isBlobKey(name)) {
+                    candidates.add(name);
+                }
+            });
+        }
+
+        for (String hash : candidates) {
+            sweep.scanned++;
+            if (refs.blobs.contains(hash)) {
+                continue;
+            }
+            try {
+                long bytes = blobStoreService.reclaimOrphan(hash, cutoff, sweep.dryRun);
+                if (bytes >= 0) {
+                    sweep.orphan(hash, bytes);
+                }
+            } catch (IOException e) {
+                sweep.error(hash, e);
+            }
+        }
+
+        // Temp files left behind by uploads that died half way
+        Instant cutoffInstant = toInstant(cutoff);
+        walk(sweep, tempDir, file -> {
+            sweep.scanned++;
+            sweepFile(sweep, file, cutoffInstant);
+        });
+    }
+
+    private void sweepLegacy(Sweep sweep, References refs, LocalDateTime cutoff) {
+        Instant cutoffInstant = toInstant(cutoff);
+        Path legacyRoot = localFileStorageService.getLegacyRoot();
+        walk(sweep, legacyRoot, file -> {
+            sweep.scanned++;
+            Path relative = legacyRoot.relativize(file);
+            String key = relative.getName(0) + "/" + file.getFileName();
+            if (relative.getNameCount() < 2 || !refs.legacy.contains(key)) {
+                sweepFile(sweep, file, cutoffInstant);
+            }
+        });
+        walk(sweep, localFileStorageService.getMigratedLegacyRoot(), file -> {
+            sweep.scanned++;
+            if (!refs.migratedLegacy.contains(file.getFileName().toString())) {
+                sweepFile(sweep, file, cutoffInstant);
+            }
+        });
+    }
+
+    private void sweepSpool(Sweep sweep, References refs, LocalDateTime cutoff) {
+        Instant cutoffInstant = toInstant(cutoff);
+        walk(sweep, uploadOffloadService.getSpoolDir(), file -> {
+            sweep.scanned++;
+            if (!refs.spool.contains(file.toAbsolutePath().normalize().toString())) {
+                sweepFile(sweep, file, cutoffInstant);
+            }
+        });
+    }
+
+    /**
+     * Files dropped straight into the upload root (/files/simple-upload), which no record
+     * ever points at.
+     */
+    private void sweepStray(Sweep sweep, LocalDateTime cutoff) {
+        Instant cutoffInstant = toInstant(cutoff);
+        try (Stream<Path> entries = Files.list(uploadRoot)) {
+            entries.filter(Files::isRegularFile).forEach(file -> {
+                sweep.scanned++;
+                sweepFile(sweep, file, cutoffInstant);
+            });
+        } catch (NoSuchFileException e) {
+            // Nothing uploaded yet
+        } catch (IOException e) {
+            sweep.error(uploadRoot.toString(), e);
+        }
+    }
+
+    private void sweepGridFs(Sweep sweep, References refs, LocalDateTime cutoff) {
+        for (GridFSFile file : gridFsStorageService.listFiles(Date.from(toInstant(cutoff)))) {
+            sweep.scanned++;
+            String id = file.getObjectId().toHexString();
+            if (refs.gridFs.contains(id)) {
+                continue;
+            }
+            sweep.orphan(id, file.getLength());
+            if (!sweep.dryRun) {
+                try {
+                    gridFsStorageService.deleteFile(id);
+                } catch (IOException e) {
+                    sweep.error(id, e);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void sweepCloudinary(Sweep sweep, References refs, LocalDateTime cutoff) {
+        if (!cloudinaryService.isEnabled()) {
+            sweep.skipped = "Cloudinary not configured";
+            return;
+        }
+        Instant cutoffInstant = toInstant(cutoff);
+        for (String type : CLOUDINARY_TYPES) {
+            String cursor = null;
+            do {
+                Map<String, Object> page;
+                try {
+                    page = cloudinaryService.listResources(type, "health_records/", cursor);
+                } catch (Exception e) {
+                    sweep.error("list " + type, e);
+                    break;
+                }
+                for (Map<String, Object> resource : (List<Map<String, Object>>) page.getOrDefault("resources", List.of())) {
+                    sweep.scanned++;
+                    String publicId = (String) resource.get("public_id");
+                    Object createdAt = resource.get("created_at");
+                    if (refs.cloudinary.contains(publicId)
+                            || (createdAt != null && Instant.parse(createdAt.toString()).isAfter(cutoffInstant))) {
+                        continue;
+                    }
+                    Object bytes = resource.get("bytes");
+                    sweep.orphan(publicId, bytes instanceof Number number ? number.longValue() : 0);
+                    if (!sweep.dryRun) {
+                        try {
+                            cloudinaryService.deleteResource(publicId, type);
+                        } catch (IOException e) {
+                            sweep.error(publicId, e);
+                        }
+                    }
+                }
+                cursor = (String) page.get("next_cursor");
+            } while (cursor != null);
+        }
+    }
+
+    private void sweepFile(Sweep sweep, Path file, Instant cutoff) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if (attributes.lastModifiedTime().toInstant().isAfter(cutoff)) {
+                return;
+            }
+            sweep.orphan(uploadRoot.relativize(file).toString(), attributes.size());
+            if (!sweep.dryRun) {
+                Files.deleteIfExists(file);
+            }
+        } catch (NoSuchFileException e) {
+            // Moved or deleted while we looked at it
+        } catch (IOException e) {
+            sweep.error(file.toString(), e);
+        }
+    }
+
+    private static void walk(Sweep sweep, Path root, Consumer<Path> visitor) {
+        try (Stream<Path> files = Files.walk(root)) {
+            Iterator<Path> iterator = files.filter(Files::isRegularFile).iterator();
+            while (iterator.hasNext()) {
+                visitor.accept(iterator.next());
+            }
+        } catch (NoSuchFileException e) {
+            // Location not in use
+        } catch (IOException | UncheckedIOException e) {
+            sweep.error(root.toString(), e);
+        }
+    }
+
+    private static Instant toInstant(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant();
+    }
+
+    /**
+     * Everything the records point at, split by where it lives.
+     */
+    private final class References {
+        final Set<String> blobs = new HashSet<>();
+        final Set<String> legacy = new HashSet<>(); // "userId/filename"
+        final Set<String> migratedLegacy = new HashSet<>(); // Fan-out keys of the above
+        final Set<String> gridFs = new HashSet<>();
+        final Set<String> cloudinary = new HashSet<>();
+        final Set<String> spool = new HashSet<>();
+        long records;
+
+        void addPublicId(String publicId, String storageType) {
+            if (publicId == null) {
+                return;
+            }
+            if (BlobStoreService.isBlobKey(publicId)) {
+                blobs.add(publicId);
+            } else if ("gridfs".equals(storageType) || "base64".equals(storageType)) {
+                gridFs.add(publicId);
+            } else {
+                cloudinary.add(publicId);
+            }
+        }
+
+        void addUrl(String url) {
+            if (url == null) {
+                return;
+            }
+            Matcher local = LOCAL_DOWNLOAD.matcher(url);
+            if (local.find()) {
+                String userId = local.group(1);
+                String filename = local.group(2);
+                String key = filename.contains(".") ? filename.substring(0, filename.indexOf('.')) : filename;
+                if (BlobStoreService.isBlobKey(key)) {
+                    blobs.add(key);
+                } else {
+                    legacy.add(userId + "/" + filename);
+                    migratedLegacy.add(localFileStorageService.migratedLegacyKey(userId, filename));
+                }
+                return;
+            }
+            Matcher gridFsUrl = GRIDFS_DOWNLOAD.matcher(url);
+            if (gridFsUrl.find()) {
+                gridFs.add(gridFsUrl.group(1));
+                return;
+            }
+            Matcher cloudinaryUrl = CLOUDINARY_URL.matcher(url);
+            if (cloudinaryUrl.find()) {
+                // Raw resources keep their extension in the public id, images don't
+                String publicId = cloudinaryUrl.group(1);
+                cloudinary.add(publicId);
+                int dot = publicId.lastIndexOf('.');
+                if (dot > publicId.lastIndexOf('/')) {
+                    cloudinary.add(publicId.substring(0, dot));
+                }
+            }
+        }
+
+        void addSpool(String spoolPath) {
+            if (spoolPath != null) {
+                spool.add(Paths.get(spoolPath).toAbsolutePath().normalize().toString());
+            }
+        }
+
+        Map<String, Object> summary() {
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("records", records);
+            summary.put("blobs", blobs.size());
+            summary.put("legacy", legacy.size());
+            summary.put("gridfs", gridFs.size());
+            summary.put("cloudinary", cloudinary.size());
+            summary.put("spool", spool.size());
+            return summary;
+        }
+    }
+
+    /**
+     * Progress and throughput of one storage location's sweep.
+     */
+    private final class Sweep {
+        final String source;
+        final boolean dryRun;
+        final long startNanos = System.nanoTime();
+        final List<String> sample = new ArrayList<>();
+        long scanned;
+        long orphans;
+        long bytes;
+        long errors;
+        long elapsedNanos;
+        String skipped;
+
+        Sweep(String source, boolean dryRun) {
+            this.source = source;
+            this.dryRun = dryRun;
+        }
+
+        void orphan(String id, long size) {
+            orphans++;
+            bytes += size;
+            if (sample.size() < SAMPLE_SIZE) {
+                sample.add(id);
+            }
+        }
+
+        void error(String id, Exception e) {
+            errors++;
+            log.warn("⚠️ Storage GC ({}) failed on {}: {}", source, id, e.getMessage());
+        }
+
+        void finish() {
+            elapsedNanos = System.nanoTime() - startNanos;
+            meterRegistry.counter("storage.gc.scanned", "source", source).increment(scanned);
+            meterRegistry.counter("storage.gc.errors", "source", source).increment(errors);
+            if (!dryRun) {
+                meterRegistry.counter("storage.gc.reclaimed", "source", source).increment(orphans);
+                meterRegistry.counter("storage.gc.reclaimed.bytes", "source", source).increment(bytes);
+            }
+        }
+
+        Map<String, Object> report() {
+            double seconds = Math.max(elapsedNanos, 1) / 1e9;
+            Map<String, Object> report = new LinkedHashMap<>();
+            if (skipped != null) {
+                report.put("skipped", skipped);
+                return report;
+            }
+            report.put("scanned", scanned);
+            report.put("orphans", orphans);
+            report.put("bytes", bytes);
+            report.put("errors", errors);
+            report.put("elapsedMs", elapsedNanos / 1_000_000);
+            report.put("scannedPerSecond", Math.round(scanned / seconds));
+            report.put("orphanBytesPerSecond", Math.round(bytes / seconds));
+            report.put("sample", sample);
+            return report;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.securedhealthrecords.service;
+
+import com.mongodb.client.result.UpdateResult;
+import com.securedhealthrecords.exception.QuotaExceededException;
+import com.securedhealthrecords.model.FileRecord;
+import com.securedhealthrecords.model.StorageUsage;
+import com.securedhealthrecords.repository.StorageUsageRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Per-user storage counters, kept in the "storage_usage" collection and maintained with
+ * atomic $inc on upload, update and delete so stats are a single document read.
+ *
+ * Uploads reserve their bytes up front with a conditional $inc that only matches while
+ * the user stays within quota. A periodic job recomputes the totals from file_records
+ * to correct any drift (crashes between storing and saving, manual DB edits, ...).
+ */
+@Slf4j
+@Service
+public class StorageUsageService {
+
+    private final MongoTemplate mongoTemplate;
+    private final StorageUsageRepository storageUsageRepository;
+    private final long defaultQuotaBytes;
+
+    public StorageUsageService(
+            MongoTemplate mongoTemplate,
+            StorageUsageRepository storageUsageRepository,
+            @Value("${app.storage.quota.default-bytes:5368709120}") long defaultQuotaBytes) {
+        this.mongoTemplate = mongoTemplate;
+        this.storageUsageRepository = storageUsageRepository;
+        this.defaultQuotaBytes = defaultQuotaBytes;
+    }
+
+    /**
+     * Claims room for new content, throwing QuotaExceededException if it doesn't fit.
+     * Pass files = 0 when replacing existing content. Undo with {@link #release}.
+     */
+    public void reserve(String userId, long files, long bytes) {
+        StorageUsage usage = getOrCreate(userId);
+        if (bytes <= 0) {
+            record(userId, files, bytes);
+            return;
+        }
+
+        long quota = quotaFor(usage);
+        UpdateResult reserved = mongoTemplate.updateFirst(
+                Query.query(Criteria.where("_id").is(userId).and("totalBytes").lte(quota - bytes)),
+                new Update().inc("totalFiles", files).inc("totalBytes", bytes).set("updatedAt", LocalDateTime.now()),
+                StorageUsage.class);
+        if (reserved.getMatchedCount() == 0) {
+            throw new QuotaExceededException("Storage quota exceeded: " + bytes + " more bytes would exceed the "
+                    + quota + " byte limit");
+        }
+    }
+
+    public void release(String userId, long files, long bytes) {
+        record(userId, -files, -bytes);
+    }
+
+    public StorageUsage getUsage(String userId) {
+        return getOrCreate(userId);
+    }
+
+    public long quotaFor(StorageUsage usage) {
+        return usage.getQuotaBytes() != null ? usage.getQuotaBytes() : defaultQuotaBytes;
+    }
+
+    /**
+     * Recomputes every user's totals from file_records. A counter that moved while the
+     * aggregation ran is left alone and picked up again on the next run.
+     */
+    @Scheduled(fixedDelayString = "${app.storage.quota.reconcile-interval-ms:3600000}",
+            initialDelayString = "${app.storage.quota.reconcile-initial-delay-ms:300000}")
+    public void reconcile() {
+        Map<String, StorageUsage> snapshot = new HashMap<>();
+        storageUsageRepository.findAll().forEach(usage -> snapshot.put(usage.getId(), usage));
+
+        Map<String, long[]> actual = aggregate(null);
+        Set<String> users = new HashSet<>(snapshot.keySet());
+        users.addAll(actual.keySet());
+
+        int corrected = 0;
+        for (String userId : users) {
+            long[] totals = actual.getOrDefault(userId, new long[]{0, 0});
+            StorageUsage seen = snapshot.get(userId);
+            if (seen == null) {
+                // Files but no counter yet, seeding it computes the same totals
+                getOrCreate(userId);
+                continue;
+            }
+            if (value(seen.getTotalFiles()) == totals[0] && value(seen.getTotalBytes()) == totals[1]) {
+                continue;
+            }
+            if (applyTotals(userId, seen, totals)) {
+                corrected++;
+                log.info("🔧 Storage usage for {} corrected to {} files / {} bytes", userId, totals[0], totals[1]);
+            }
+        }
+        if (corrected > 0) {
+            log.info("🔧 Storage usage reconciliation corrected {} users", corrected);
+        }
+    }
+
+    private boolean applyTotals(String userId, StorageUsage seen, long[] totals) {
+        LocalDateTime now = LocalDateTime.now();
+        Update update = new Update()
+                .set("totalFiles", totals[0])
+                .set("totalBytes", totals[1])
+                .set("updatedAt", now)
+                .set("reconciledAt", now);
+        // Optimistic: only overwrite if nothing was reserved/released since the snapshot
+        Query unchanged = Query.query(Criteria.where("_id").is(userId)
+                .and("totalFiles").is(seen.getTotalFiles())
+                .and("totalBytes").is(seen.getTotalBytes()));
+        return mongoTemplate.updateFirst(unchanged, update, StorageUsage.class).getMatchedCount() > 0;
+    }
+
+    private Map<String, long[]> aggregate(String userId) {
+        Aggregation aggregation = userId == null
+                ? Aggregation.newAggregation(
+                        Aggregation.group("userId").count().as("files").sum("size").as("bytes").sum("versionBytes").as("versionBytes"))
+                : Aggregation.newAggregation(
+                        Aggregation.match(Criteria.where("userId").is(userId)),
+                        Aggregation.group("userId").count().as("files").sum("size").as("bytes").sum("versionBytes").as("versionBytes"));
+
+        Map<String, long[]> totals = new HashMap<>();
+        for (Document row : mongoTemplate.aggregate(aggregation, FileRecord.class, Document.class)) {
+            Object id = row.get("_id");
+            if (id == null) {
+                continue;
+            }
+            totals.put(id.toString(), new long[]{
+                    ((Number) row.get("files")).longValue(),
+                    // Kept versions count against the quota like current content
+                    (row.get("bytes") instanceof Number bytes ? bytes.longValue() : 0)
+                            + (row.get("versionBytes") instanceof Number versions ? versions.longValue() : 0)});
+        }
+        return totals;
+    }
+
+    private void record(String userId, long files, long bytes) {
+        mongoTemplate.upsert(
+                Query.query(Criteria.where("_id").is(userId)),
+                new Update().inc("totalFiles", files).inc("totalBytes", bytes).set("updatedAt", LocalDateTime.now()),
+                StorageUsage.class);
+    }
+
+    private StorageUsage getOrCreate(String userId) {
+        StorageUsage existing = storageUsageRepository.findById(userId).orElse(null);
+        if (existing != null) {
+            return existing;
+        }
+        // First upload for this user: seed the counter from whatever is already stored
+        long[] totals = aggregate(userId).getOrDefault(userId, new long[]{0, 0});
+        return mongoTemplate.findAndModify(
+                Query.query(Criteria.where("_id").is(userId)),
+                new Update()
+                        .setOnInsert("totalFiles", totals[0])
+                        .setOnInsert("totalBytes", totals[1])
+                        .setOnInsert("reconciledAt", LocalDateTime.now())
+                        .set("updatedAt", LocalDateTime.now()),
+                FindAndModifyOptions.options().upsert(true).returnNew(true),
+                StorageUsage.class);
+    }
+
+    private static long value(Long value) {
+        return value != null ? value : 0;
+    }
+}
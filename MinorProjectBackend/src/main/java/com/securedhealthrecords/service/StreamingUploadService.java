@@ -0,0 +1,140 @@
+package com.securedhealthrecords.service;
+
+import com.securedhealthrecords.exception.InvalidRequestException;
+import com.securedhealthrecords.model.FileRecord;
+import com.securedhealthrecords.repository.FileRecordRepository;
+import com.securedhealthrecords.util.MultipartStreamReader;
+import com.securedhealthrecords.util.StreamingMultipartFile;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Single-file upload that reads the multipart body part by part and pipes the file part
+ * straight into the backend UnifiedStorageService selects. Nothing is staged by the servlet
+ * container or the spool first: the local blob store is the only place the bytes hit disk,
+ * and remote backends get them without touching disk at all.
+ *
+ * The size limit, SHA-256 and content type sniffing happen inline (see {@link StreamingMultipartFile}).
+ * Quota is reserved from the request's Content-Length up front and trimmed to the real size after.
+ */
+@Slf4j
+@Service
+public class StreamingUploadService {
+
+    private static final int MAX_FIELD_BYTES = 1024;
+
+    private final StorageBackend storageBackend;
+    private final FileRecordRepository fileRecordRepository;
+    private final ThumbnailService thumbnailService;
+    private final StorageUsageService storageUsageService;
+    private final long maxFileSize;
+
+    public StreamingUploadService(
+            StorageBackend storageBackend,
+            FileRecordRepository fileRecordRepository,
+            ThumbnailService thumbnailService,
+            StorageUsageService storageUsageService,
+            @Value("${app.upload.stream.max-file-size:52428800}") long maxFileSize) {
+        this.storageBackend = storageBackend;
+        this.fileRecordRepository = fileRecordRepository;
+        this.thumbnailService = thumbnailService;
+        this.storageUsageService = storageUsageService;
+        this.maxFileSize = maxFileSize;
+    }
+
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    /**
+     * Stores the first file part of the body. A "folderId" form field sent before the file
+     * part overrides the folderId argument.
+     */
+    public FileRecord upload(InputStream body, String contentType, long contentLength,
+                             String userId, String folderId) throws IOException {
+        String boundary = MultipartStreamReader.boundaryOf(contentType);
+        if (boundary == null) {
+            throw new InvalidRequestException("Expected a multipart/form-data request");
+        }
+
+        // Content-Length also counts the multipart framing, so this over-reserves a little
+        long reserved = contentLength > 0 ? Math.min(contentLength, maxFileSize) : maxFileSize;
+        storageUsageService.reserve(userId, 1, reserved);
+
+        FileRecord saved;
+        try {
+            saved = storeFirstFilePart(new MultipartStreamReader(body, boundary), userId, folderId);
+        } catch (IOException | RuntimeException e) {
+            storageUsageService.release(userId, 1, reserved);
+            throw e;
+        }
+
+        // Give back what the reservation overshot
+        storageUsageService.release(userId, 0, reserved - saved.getSize());
+        thumbnailService.submitForFile(saved);
+        return saved;
+    }
+
+    private FileRecord storeFirstFilePart(MultipartStreamReader reader, String userId, String folderId) throws IOException {
+        String folder = folderId;
+        MultipartStreamReader.Part part;
+        while ((part = reader.nextPart()) != null) {
+            if (!part.isFile()) {
+                if ("folderId".equals(part.getName())) {
+                    folder = part.readString(MAX_FIELD_BYTES);
+                }
+                continue;
+            }
+
+            StreamingMultipartFile file = new StreamingMultipartFile(
+                    part.getName(), part.getFileName(), part.getContentType(), part.getInputStream(), maxFileSize);
+            if (file.isEmpty()) {
+                throw new InvalidRequestException("File is empty");
+            }
+            if (!file.getContentType().equals(file.getDeclaredContentType())) {
+                log.info("🔎 {} declared as {}, stored as {}", file.getOriginalFilename(),
+                        file.getDeclaredContentType(), file.getContentType());
+            }
+            return store(file, userId, folder);
+        }
+        throw new InvalidRequestException("No file part in request");
+    }
+
+    private FileRecord store(StreamingMultipartFile file, String userId, String folderId) throws IOException {
+        Map<String, Object> uploadResult = storageBackend.uploadFile(file, userId, folderId);
+        String publicId = (String) uploadResult.get("public_id");
+        String storageType = (String) uploadResult.getOrDefault("storage_type", "cloudinary");
+
+        try {
+            // Simulated backends never read the stream, the limit and hash must still see every byte
+            file.drain();
+        } catch (IOException | RuntimeException e) {
+            storageBackend.deleteFile(publicId, storageType);
+            throw e;
+        }
+
+        FileRecord record = new FileRecord(userId, file.getOriginalFilename(), file.getOriginalFilename(),
+                file.getContentType(), file.getSize(), publicId, (String) uploadResult.get("secure_url"));
+        record.setStorageType(storageType);
+        record.setCodec((String) uploadResult.get("codec"));
+        record.setContentHash(file.getSha256());
+        if (folderId != null && !folderId.isEmpty()) {
+            record.setFolderId(folderId);
+        }
+
+        try {
+            FileRecord saved = fileRecordRepository.save(record);
+            log.info("📥 Streamed {} ({} bytes, sha256 {}) to {}", saved.getOriginalName(), saved.getSize(),
+                    saved.getContentHash(), storageType);
+            return saved;
+        } catch (RuntimeException e) {
+            storageBackend.deleteFile(publicId, storageType);
+            throw e;
+        }
+    }
+}
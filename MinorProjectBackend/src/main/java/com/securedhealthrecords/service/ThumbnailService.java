@@ -0,0 +1,287 @@
+package com.securedhealthrecords.service;
+
+import com.mongodb.client.result.UpdateResult;
+import com.securedhealthrecords.model.FileRecord;
+import com.securedhealthrecords.model.Node;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates small JPEG previews for uploaded images (ImageIO) and the first page of PDFs
+ * (PDFBox) on a bounded worker pool, off the upload request thread. Previews go into the
+ * content-addressed blob store and are linked through FileRecord/Node.thumbnailUrl.
+ *
+ * Jobs that don't fit in the queue are dropped rather than blocking uploads; the backlog
+ * is published as the "storage.thumbnails.backlog" gauge.
+ *
+ * A preview is only attached if the record still has the content it was rendered from and
+ * no preview yet, otherwise its blob is released again. Images are checked against
+ * max-source-pixels from their header before decoding, and PDF pages are rendered at a
+ * lower DPI when needed to stay under it, so a small decompression bomb can't exhaust the heap.
+ */
+@Slf4j
+@Service
+public class ThumbnailService {
+
+    private static final String PDF = "application/pdf";
+
+    private final BlobContentService blobContentService;
+    private final BlobStoreService blobStoreService;
+    private final LocalFileStorageService localFileStorageService;
+    private final MongoTemplate mongoTemplate;
+
+    private final ThreadPoolExecutor executor;
+    private final int maxDimension;
+    private final int pdfRenderDpi;
+    private final long maxSourcePixels;
+
+    private final Counter generated;
+    private final Counter failed;
+    private final Counter dropped;
+
+    public ThumbnailService(
+            BlobContentService blobContentService,
+            BlobStoreService blobStoreService,
+            LocalFileStorageService localFileStorageService,
+            MongoTemplate mongoTemplate,
+            MeterRegistry meterRegistry,
+            @Value("${app.thumbnails.workers:2}") int workers,
+            @Value("${app.thumbnails.queue-capacity:500}") int queueCapacity,
+            @Value("${app.thumbnails.max-dimension:320}") int maxDimension,
+            @Value("${app.thumbnails.pdf-render-dpi:48}") int pdfRenderDpi,
+            @Value("${app.thumbnails.max-source-pixels:50000000}") long maxSourcePixels) {
+        this.blobContentService = blobContentService;
+        this.blobStoreService = blobStoreService;
+        this.localFileStorageService = localFileStorageService;
+        this.mongoTemplate = mongoTemplate;
+        this.maxDimension = maxDimension;
+        this.pdfRenderDpi = pdfRenderDpi;
+        this.maxSourcePixels = maxSourcePixels;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "thumbnail-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+
+        Gauge.builder("storage.thumbnails.backlog", executor, pool -> pool.getQueue().size())
+                .description("Thumbnail jobs waiting for a worker")
+                .register(meterRegistry);
+        Gauge.builder("storage.thumbnails.active", executor, ThreadPoolExecutor::getActiveCount)
+                .description("Thumbnail jobs currently running")
+                .register(meterRegistry);
+        this.generated = meterRegistry.counter("storage.thumbnails.generated");
+        this.failed = meterRegistry.counter("storage.thumbnails.failed");
+        this.dropped = meterRegistry.counter("storage.thumbnails.dropped");
+    }
+
+    public void submitForFile(FileRecord file) {
+        submit(FileRecord.class, "url", file.getId(), file.getUserId(), file.getMimeType(),
+                file.getUrl(), file.getStorageType(), file.getCloudinaryPublicId());
+    }
+
+    public void submitForNode(Node node) {
+        submit(Node.class, "storageKey", node.getId(), node.getOwnerId(), node.getMimeType(),
+                node.getStorageKey(), node.getStorageType(), node.getStoragePublicId());
+    }
+
+    /**
+     * Releases the stored preview behind a thumbnailUrl (if any).
+     */
+    public void discard(String thumbnailUrl) {
+        if (thumbnailUrl == null) {
+            return;
+        }
+        String filename = thumbnailUrl.substring(thumbnailUrl.lastIndexOf('/') + 1);
+        String hash = filename.contains(".") ? filename.substring(0, filename.indexOf('.')) : filename;
+        if (localFileStorageService.isLocalBlob(hash)) {
+            try {
+                localFileStorageService.deleteFile(hash);
+            } catch (IOException e) {
+                log.warn("⚠️ Could not release thumbnail {}: {}", hash, e.getMessage());
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * urlField names the entity's field holding url; the preview is only attached while it still holds it.
+     */
+    private void submit(Class<?> entityClass, String urlField, String id, String ownerId, String mimeType,
+                        String url, String storageType, String publicId) {
+        if (url == null || !isPreviewable(mimeType)) {
+            return;
+        }
+        try {
+            executor.execute(() -> generate(entityClass, urlField, id, ownerId, mimeType, url, storageType, publicId));
+        } catch (RejectedExecutionException e) {
+            dropped.increment();
+            log.warn("⚠️ Thumbnail queue full, skipping preview for {}", id);
+        }
+    }
+
+    private void generate(Class<?> entityClass, String urlField, String id, String ownerId, String mimeType,
+                          String url, String storageType, String publicId) {
+        try {
+            Optional<BlobContentService.BlobContent> content = blobContentService.open(url, storageType, publicId);
+            if (content.isEmpty()) {
+                log.debug("No content to preview for {}", id);
+                return;
+            }
+
+            BufferedImage source;
+            try (InputStream in = content.get().stream()) {
+                source = PDF.equals(mimeType) ? renderFirstPage(in) : decode(in);
+            }
+            if (source == null) {
+                log.debug("Unsupported image format for {} ({})", id, mimeType);
+                return;
+            }
+
+            byte[] jpeg = toJpegThumbnail(source);
+            BlobStoreService.StoredBlob blob = blobStoreService.store(new ByteArrayInputStream(jpeg), "image/jpeg");
+            String thumbnailUrl = localFileStorageService.downloadUrl(ownerId, blob.hash(), ".jpg");
+
+            // Same content as rendered and no preview yet: an update that replaced the content,
+            // or another job that got there first, would otherwise get a stale or leaked preview
+            UpdateResult updated = mongoTemplate.updateFirst(
+                    Query.query(Criteria.where("_id").is(id).and(urlField).is(url).and("thumbnailUrl").is(null)),
+                    new Update().set("thumbnailUrl", thumbnailUrl),
+                    entityClass);
+            if (updated.getMatchedCount() == 0) {
+                // Deleted, updated or already previewed while we were rendering
+                blobStoreService.release(blob.hash());
+                return;
+            }
+
+            generated.increment();
+            log.info("🖼️ Thumbnail generated for {} ({} bytes)", id, jpeg.length);
+        } catch (Exception e) {
+            failed.increment();
+            log.warn("⚠️ Thumbnail generation failed for {}: {}", id, e.getMessage());
+        }
+    }
+
+    private BufferedImage renderFirstPage(InputStream in) throws IOException {
+        // PDFBox wants random access, spill to a temp file rather than buffering in memory
+        Path tempFile = Files.createTempFile("preview-", ".pdf");
+        try {
+            Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            try (PDDocument document = Loader.loadPDF(tempFile.toFile())) {
+                if (document.getNumberOfPages() == 0) {
+                    return null;
+                }
+                // Page size is in points (1/72 inch); a huge page gets a lower DPI instead of a huge bitmap
+                PDRectangle page = document.getPage(0).getCropBox();
+                double squareInches = (page.getWidth() / 72.0) * (page.getHeight() / 72.0);
+                float dpi = (float) Math.min(pdfRenderDpi, Math.sqrt(maxSourcePixels / Math.max(squareInches, 1e-6)));
+                return new PDFRenderer(document).renderImageWithDPI(0, dpi, ImageType.RGB);
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Decodes an image after checking its dimensions, skipping pixels while reading so only
+     * about twice the thumbnail size is ever held. Null if ImageIO can't read the format.
+     */
+    private BufferedImage decode(InputStream in) throws IOException {
+        try (ImageInputStream images = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = images != null ? ImageIO.getImageReaders(images) : null;
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(images, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if ((long) width * height > maxSourcePixels) {
+                    throw new IOException("Image is " + width + "x" + height + ", over the " + maxSourcePixels + " pixel limit");
+                }
+                int step = Math.max(1, Math.max(width, height) / (maxDimension * 2));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private byte[] toJpegThumbnail(BufferedImage source) throws IOException {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        double scale = Math.min(1.0, (double) maxDimension / Math.max(width, height));
+        int targetWidth = Math.max(1, (int) Math.round(width * scale));
+        int targetHeight = Math.max(1, (int) Math.round(height * scale));
+
+        BufferedImage thumbnail = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = thumbnail.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            // JPEG has no alpha, flatten transparent PNGs onto white
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, targetWidth, targetHeight);
+            graphics.drawImage(source, 0, 0, targetWidth, targetHeight, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(thumbnail, "jpg", out);
+        return out.toByteArray();
+    }
+
+    private boolean isPreviewable(String mimeType) {
+        return mimeType != null && (mimeType.startsWith("image/") || PDF.equals(mimeType));
+    }
+}
@@ -1,112 +1,211 @@
 package com.securedhealthrecords.service;
 
+import com.securedhealthrecords.util.CircuitBreaker;
+import com.securedhealthrecords.util.HashingMultipartFile;
+import com.securedhealthrecords.util.StreamingMultipartFile;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
 import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
+/**
+ * The StorageBackend file services use. Uploads go to the registered backends in
+ * app.storage.priority order, skipping those whose circuit breaker is open; reads and deletes
+ * go to the backend a record's storageType names, via {@link #resolve}.
+ */
+@Primary
 @Service
-public class UnifiedStorageService {
+public class UnifiedStorageService implements StorageBackend {
 
-    private final CloudinaryService cloudinaryService;
-    private final GoogleDriveService googleDriveService;
-    private final FirebaseStorageService firebaseStorageService;
-    private final Base64StorageService base64StorageService;
-    private final LocalFileStorageService localFileStorageService;
+    private final List<StorageBackend> backends;
 
-    @Value("${app.storage.priority:local,base64,firebase,googledrive,cloudinary}")
+    @Value("${app.storage.priority:cloudinary,local,gridfs,firebase,googledrive}")
     private String storagePriority;
 
-    public UnifiedStorageService(
-            CloudinaryService cloudinaryService,
-            GoogleDriveService googleDriveService,
-            FirebaseStorageService firebaseStorageService,
-            Base64StorageService base64StorageService,
-            LocalFileStorageService localFileStorageService) {
-        
-        this.cloudinaryService = cloudinaryService;
-        this.googleDriveService = googleDriveService;
-        this.firebaseStorageService = firebaseStorageService;
-        this.base64StorageService = base64StorageService;
-        this.localFileStorageService = localFileStorageService;
+    @Value("${app.storage.circuit.failure-threshold:3}")
+    private int circuitFailureThreshold;
+
+    @Value("${app.storage.circuit.error-rate-threshold:0.5}")
+    private double circuitErrorRateThreshold;
+
+    @Value("${app.storage.circuit.open-duration-ms:30000}")
+    private long circuitOpenDurationMs;
+
+    @Value("${app.storage.circuit.ewma-alpha:0.2}")
+    private double circuitEwmaAlpha;
+
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    // Spring leaves this bean itself out of the list
+    public UnifiedStorageService(List<StorageBackend> backends) {
+        this.backends = List.copyOf(backends);
+    }
+
+    @Override
+    public String getName() {
+        return "unified";
+    }
+
+    @Override
+    public boolean handles(String storageType) {
+        return backends.stream().anyMatch(backend -> backend.handles(storageType));
+    }
+
+    @Override
+    public Optional<StorageBackend> resolve(String storageType) {
+        String type = storageType != null ? storageType : LEGACY_STORAGE_TYPE;
+        return backends.stream().filter(backend -> backend.handles(type)).findFirst();
     }
 
-    public Map<String, Object> uploadFile(MultipartFile file, String userId, String folder) throws IOException {
+    @Override
+    public CompletableFuture<Map<String, Object>> upload(MultipartFile file, String userId, String folder) {
         System.out.println("🔄 Unified Storage: Trying multiple storage options...");
         System.out.println("   Priority order: " + storagePriority);
-        
-        String[] priorities = storagePriority.split(",");
-        
-        for (String storage : priorities) {
-            try {
-                switch (storage.trim().toLowerCase()) {
-                    case "local":
-                        System.out.println("📁 Trying local storage...");
-                        return localFileStorageService.uploadFile(file, userId, folder);
-                        
-                    case "base64":
-                        System.out.println("📊 Trying Base64 storage...");
-                        if (file.getSize() <= 5 * 1024 * 1024) { // Only for files <= 5MB
-                            return base64StorageService.uploadFile(file, userId, folder);
-                        } else {
-                            System.out.println("⚠️ File too large for Base64, trying next option...");
-                            continue;
-                        }
-                        
-                    case "firebase":
-                        System.out.println("🔥 Trying Firebase storage...");
-                        return firebaseStorageService.uploadFile(file, userId, folder);
-                        
-                    case "googledrive":
-                        System.out.println("📁 Trying Google Drive...");
-                        return googleDriveService.uploadFile(file, userId, folder);
-                        
-                    case "cloudinary":
-                        System.out.println("☁️ Trying Cloudinary...");
-                        return cloudinaryService.uploadFile(file, userId, folder);
-                        
-                    default:
-                        System.out.println("⚠️ Unknown storage type: " + storage);
-                        continue;
+
+        // Checksummed on the way through, whichever backend ends up reading it
+        return uploadFrom(prioritized(), 0, HashingMultipartFile.wrap(file), userId, folder);
+    }
+
+    private CompletableFuture<Map<String, Object>> uploadFrom(List<StorageBackend> order, int index,
+                                                              MultipartFile file, String userId, String folder) {
+        for (int i = index; i < order.size(); i++) {
+            StorageBackend backend = order.get(i);
+
+            // Skip backends whose breaker is open instead of paying their timeout again
+            CircuitBreaker breaker = breakerFor(backend.getName());
+            if (!breaker.tryAcquire()) {
+                System.out.println("⏭️ Skipping " + backend.getName() + " (circuit " + breaker.getState() + ")");
+                continue;
+            }
+
+            System.out.println("📦 Trying " + backend.getName() + " storage...");
+            int next = i + 1;
+            long start = System.nanoTime();
+            return backend.upload(file, userId, folder).handle((result, error) -> {
+                long elapsed = System.nanoTime() - start;
+                if (error == null) {
+                    breaker.recordSuccess(elapsed);
+                    return CompletableFuture.completedFuture(tagged(result, backend, file));
+                }
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                if (cause instanceof MaxUploadSizeExceededException) {
+                    // The client sent too much, not the backend's fault
+                    breaker.recordSuccess(elapsed);
+                    return CompletableFuture.<Map<String, Object>>failedFuture(cause);
+                }
+                breaker.recordFailure(elapsed);
+                System.err.println("❌ " + backend.getName() + " failed: " + cause.getMessage());
+                if (file instanceof StreamingMultipartFile streaming && streaming.isConsumed()) {
+                    // A streamed upload can't be replayed to the next backend, the client has to retry
+                    return CompletableFuture.<Map<String, Object>>failedFuture(cause instanceof IOException ? cause
+                            : new IOException(backend.getName() + " upload failed: " + cause.getMessage(), cause));
                 }
-            } catch (Exception e) {
-                System.err.println("❌ " + storage + " failed: " + e.getMessage());
                 // Continue to next storage option
-            }
+                return uploadFrom(order, next, file, userId, folder);
+            }).thenCompose(Function.identity());
         }
-        
+
         // If all else fails, use local storage as final fallback
         System.out.println("🆘 All configured storage options failed, using local as final fallback...");
-        return localFileStorageService.uploadFile(file, userId, folder);
+        Optional<StorageBackend> local = resolve("local");
+        if (local.isEmpty()) {
+            return CompletableFuture.failedFuture(new IOException("No storage backend accepted the upload"));
+        }
+        return local.get().upload(file, userId, folder).thenApply(result -> tagged(result, local.get(), file));
+    }
+
+    /**
+     * Finds the content by asking each backend in priority order. Callers that know the
+     * storageType should {@link #resolve} it instead.
+     */
+    @Override
+    public CompletableFuture<Optional<BlobContentService.BlobContent>> download(String publicId) {
+        return probe(backend -> backend.download(publicId));
+    }
+
+    @Override
+    public CompletableFuture<Optional<StoredObject>> stat(String publicId) {
+        return probe(backend -> backend.stat(publicId));
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(String publicId) {
+        List<StorageBackend> order = prioritized();
+        CompletableFuture<Optional<StorageBackend>> owner = CompletableFuture.completedFuture(Optional.empty());
+        for (StorageBackend backend : order) {
+            owner = owner.thenCompose(found -> found.isPresent()
+                    ? CompletableFuture.completedFuture(found)
+                    : backend.stat(publicId).handle((stat, error) -> error == null && stat.isPresent()
+                            ? Optional.of(backend) : Optional.empty()));
+        }
+        return owner.thenCompose(found -> found
+                .map(backend -> backend.delete(publicId))
+                .orElseGet(() -> CompletableFuture.completedFuture(null)));
+    }
+
+    /**
+     * Per-backend breaker state, latency and error rate plus pool load (exposed through the "storage" actuator endpoint).
+     */
+    public Map<String, Object> getBackendStates() {
+        Map<String, Object> states = new LinkedHashMap<>();
+        for (StorageBackend backend : prioritized()) {
+            Map<String, Object> state = new LinkedHashMap<>(breakerFor(backend.getName()).snapshot());
+            if (backend instanceof AbstractStorageBackend pooled) {
+                state.put("pool", pooled.snapshot());
+            }
+            states.put(backend.getName(), state);
+        }
+        return states;
+    }
+
+    private <T> CompletableFuture<Optional<T>> probe(Function<StorageBackend, CompletableFuture<Optional<T>>> operation) {
+        CompletableFuture<Optional<T>> result = CompletableFuture.completedFuture(Optional.empty());
+        for (StorageBackend backend : prioritized()) {
+            result = result.thenCompose(found -> found.isPresent()
+                    ? CompletableFuture.completedFuture(found)
+                    : operation.apply(backend).exceptionally(error -> Optional.empty()));
+        }
+        return result;
     }
 
-    public void deleteFile(String publicId, String storageType) throws IOException {
-        System.out.println("🗑️ Deleting file from " + storageType + ": " + publicId);
-        
-        try {
-            switch (storageType.toLowerCase()) {
-                case "local":
-                    localFileStorageService.deleteFile(publicId);
-                    break;
-                case "base64":
-                    base64StorageService.deleteFile(publicId);
-                    break;
-                case "firebase":
-                    firebaseStorageService.deleteFile(publicId);
-                    break;
-                case "google_drive":
-                    googleDriveService.deleteFile(publicId);
-                    break;
-                case "cloudinary":
-                    cloudinaryService.deleteFile(publicId);
-                    break;
-                default:
-                    System.out.println("⚠️ Unknown storage type for deletion: " + storageType);
+    /**
+     * Registered backends in priority order; unknown names are skipped with a warning.
+     */
+    private List<StorageBackend> prioritized() {
+        List<StorageBackend> order = new ArrayList<>();
+        for (String storage : storagePriority.split(",")) {
+            Optional<StorageBackend> backend = resolve(storage.trim().toLowerCase());
+            if (backend.isEmpty()) {
+                System.out.println("⚠️ Unknown storage type: " + storage);
+            } else if (!order.contains(backend.get())) {
+                order.add(backend.get());
             }
-        } catch (Exception e) {
-            System.err.println("❌ Failed to delete from " + storageType + ": " + e.getMessage());
         }
+        return order;
+    }
+
+    private static Map<String, Object> tagged(Map<String, Object> result, StorageBackend backend, MultipartFile file) {
+        Map<String, Object> tagged = new HashMap<>(HashingMultipartFile.withChecksum(result, file));
+        // Backends that fall back internally report where the content really went
+        tagged.putIfAbsent("storage_type", backend.getName());
+        return tagged;
+    }
+
+    private CircuitBreaker breakerFor(String backend) {
+        return breakers.computeIfAbsent(backend, name -> new CircuitBreaker(
+                name, circuitFailureThreshold, circuitErrorRateThreshold, circuitOpenDurationMs, circuitEwmaAlpha));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,310 @@
+package com.securedhealthrecords.service;
+
+import com.mongodb.client.result.UpdateResult;
+import com.securedhealthrecords.model.FileRecord;
+import com.securedhealthrecords.model.Node;
+import com.securedhealthrecords.model.UploadStatus;
+import com.securedhealthrecords.repository.FileRecordRepository;
+import com.securedhealthrecords.repository.NodeRepository;
+import com.securedhealthrecords.util.SpooledMultipartFile;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Takes the cloud round trip off the upload request thread.
+ *
+ * Uploads are spooled to local disk and their FileRecord / Node is saved as PENDING.
+ * Background workers push the spooled file to the storage backend, retrying with
+ * exponential backoff, and flip the record to READY once url/storageKey are known.
+ * PENDING records are picked up again on startup, so the spool survives restarts.
+ * Uploads that give up are marked FAILED and their spool file is removed; the client
+ * sees lastError and uploads again.
+ */
+@Slf4j
+@Service
+public class UploadOffloadService {
+
+    private final FileRecordRepository fileRecordRepository;
+    private final NodeRepository nodeRepository;
+    private final StorageBackend storageBackend;
+    private final MongoTemplate mongoTemplate;
+    private final ThumbnailService thumbnailService;
+
+    private final boolean enabled;
+    private final Path spoolDir;
+    private final int maxAttempts;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private final ScheduledExecutorService workers;
+
+    // Guards against the same record being queued twice (e.g. startup recovery + retry)
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    public UploadOffloadService(
+            FileRecordRepository fileRecordRepository,
+            NodeRepository nodeRepository,
+            StorageBackend storageBackend,
+            MongoTemplate mongoTemplate,
+            ThumbnailService thumbnailService,
+            @Value("${app.upload.offload.enabled:false}") boolean enabled,
+            @Value("${app.upload.dir:uploads}") String uploadDir,
+            @Value("${app.upload.offload.workers:4}") int workerCount,
+            @Value("${app.upload.offload.max-attempts:5}") int maxAttempts,
+            @Value("${app.upload.offload.initial-backoff-ms:2000}") long initialBackoffMs,
+            @Value("${app.upload.offload.max-backoff-ms:300000}") long maxBackoffMs) {
+        this.fileRecordRepository = fileRecordRepository;
+        this.nodeRepository = nodeRepository;
+        this.storageBackend = storageBackend;
+        this.mongoTemplate = mongoTemplate;
+        this.thumbnailService = thumbnailService;
+        this.enabled = enabled;
+        this.spoolDir = Paths.get(uploadDir, "spool").toAbsolutePath();
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        this.workers = Executors.newScheduledThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "upload-offload-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Path getSpoolDir() {
+        return spoolDir;
+    }
+
+    /**
+     * Moves the multipart content into the spool directory. The servlet container can
+     * usually rename its own temp file here instead of copying the bytes again.
+     */
+    public Path spool(MultipartFile file) throws IOException {
+        Files.createDirectories(spoolDir);
+        Path target = spoolDir.resolve(UUID.randomUUID() + ".spool");
+        file.transferTo(target.toFile());
+        return target;
+    }
+
+    public void submitFileRecord(String fileId) {
+        if (inFlight.add(fileKey(fileId))) {
+            workers.execute(() -> processFileRecord(fileId));
+        }
+    }
+
+    public void submitNode(String nodeId) {
+        if (inFlight.add(nodeKey(nodeId))) {
+            workers.execute(() -> processNode(nodeId));
+        }
+    }
+
+    public void discardSpool(String spoolPath) {
+        if (spoolPath == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(Paths.get(spoolPath));
+        } catch (IOException e) {
+            log.warn("⚠️ Could not remove spool file {}: {}", spoolPath, e.getMessage());
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumePendingUploads() {
+        // Also when offloading has since been switched off: the spooled uploads still need to finish
+        List<FileRecord> pendingFiles = fileRecordRepository.findByStatus(UploadStatus.PENDING);
+        List<Node> pendingNodes = nodeRepository.findByStatus(UploadStatus.PENDING);
+        if (!pendingFiles.isEmpty() || !pendingNodes.isEmpty()) {
+            log.info("🔁 Resuming {} spooled file uploads and {} spooled node uploads",
+                    pendingFiles.size(), pendingNodes.size());
+        }
+        pendingFiles.forEach(file -> submitFileRecord(file.getId()));
+        pendingNodes.forEach(node -> submitNode(node.getId()));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        // Anything still queued stays PENDING and is resumed on the next start
+        workers.shutdownNow();
+    }
+
+    private void processFileRecord(String fileId) {
+        String key = fileKey(fileId);
+        FileRecord record = fileRecordRepository.findById(fileId).orElse(null);
+        if (record == null || record.getStatus() != UploadStatus.PENDING) {
+            inFlight.remove(key);
+            return;
+        }
+
+        Path spoolFile = Paths.get(record.getSpoolPath());
+        if (!Files.exists(spoolFile)) {
+            markFailed(key, fileId, FileRecord.class, "Spool file is missing");
+            return;
+        }
+
+        try {
+            Map<String, Object> uploadResult = storageBackend.uploadFile(
+                    new SpooledMultipartFile(spoolFile, record.getOriginalName(), record.getMimeType()),
+                    record.getUserId(),
+                    record.getFolderId());
+            String publicId = (String) uploadResult.get("public_id");
+            String storageType = (String) uploadResult.get("storage_type");
+            String url = (String) uploadResult.get("secure_url");
+
+            UpdateResult updated = mongoTemplate.updateFirst(pending(fileId),
+                    new Update()
+                            .set("cloudinaryPublicId", publicId)
+                            .set("storageType", storageType)
+                            .set("url", url)
+                            .set("codec", uploadResult.get("codec"))
+                            .set("contentHash", uploadResult.get("sha256"))
+                            .set("status", UploadStatus.READY)
+                            .set("updatedAt", LocalDateTime.now())
+                            .unset("spoolPath")
+                            .unset("lastError"),
+                    FileRecord.class);
+            if (updated.getMatchedCount() == 0) {
+                // Record was deleted while we were uploading, don't leak the stored copy
+                storageBackend.deleteFile(publicId, storageType);
+            } else {
+                record.setUrl(url);
+                record.setCloudinaryPublicId(publicId);
+                record.setStorageType(storageType);
+                thumbnailService.submitForFile(record);
+            }
+
+            Files.deleteIfExists(spoolFile);
+            inFlight.remove(key);
+            log.info("✅ Offloaded upload for file {} to {}", fileId, url);
+        } catch (Exception e) {
+            retryOrFail(key, fileId, FileRecord.class, record.getUploadAttempts(), e,
+                    () -> processFileRecord(fileId));
+        }
+    }
+
+    private void processNode(String nodeId) {
+        String key = nodeKey(nodeId);
+        Node node = nodeRepository.findById(nodeId).orElse(null);
+        if (node == null || node.getStatus() != UploadStatus.PENDING) {
+            inFlight.remove(key);
+            return;
+        }
+
+        Path spoolFile = Paths.get(node.getSpoolPath());
+        if (!Files.exists(spoolFile)) {
+            markFailed(key, nodeId, Node.class, "Spool file is missing");
+            return;
+        }
+
+        try {
+            String folderName = node.getParentId() != null ? "folder_" + node.getParentId() : "root";
+            Map<String, Object> uploadResult = storageBackend.uploadFile(
+                    new SpooledMultipartFile(spoolFile, node.getName(), node.getMimeType()),
+                    node.getOwnerId(),
+                    folderName);
+            String publicId = (String) uploadResult.get("public_id");
+            String storageType = (String) uploadResult.get("storage_type");
+            String url = (String) uploadResult.get("secure_url");
+
+            UpdateResult updated = mongoTemplate.updateFirst(pending(nodeId),
+                    new Update()
+                            .set("storageKey", url)
+                            .set("storageType", storageType)
+                            .set("storagePublicId", publicId)
+                            .set("codec", uploadResult.get("codec"))
+                            .set("contentHash", uploadResult.get("sha256"))
+                            .set("status", UploadStatus.READY)
+                            .unset("spoolPath")
+                            .unset("lastError"),
+                    Node.class);
+            if (updated.getMatchedCount() == 0) {
+                storageBackend.deleteFile(publicId, storageType);
+            } else {
+                node.setStorageKey(url);
+                node.setStorageType(storageType);
+                node.setStoragePublicId(publicId);
+                thumbnailService.submitForNode(node);
+            }
+
+            Files.deleteIfExists(spoolFile);
+            inFlight.remove(key);
+            log.info("✅ Offloaded upload for node {} to {}", nodeId, url);
+        } catch (Exception e) {
+            retryOrFail(key, nodeId, Node.class, node.getUploadAttempts(), e, () -> processNode(nodeId));
+        }
+    }
+
+    private void retryOrFail(String key, String id, Class<?> entityClass, Integer previousAttempts,
+                             Exception error, Runnable retry) {
+        int attempts = (previousAttempts != null ? previousAttempts : 0) + 1;
+        if (attempts >= maxAttempts) {
+            log.error("❌ Upload for {} failed after {} attempts: {}", key, attempts, error.getMessage());
+            mongoTemplate.updateFirst(pending(id),
+                    new Update().set("uploadAttempts", attempts).set("lastError", error.getMessage()),
+                    entityClass);
+            markFailed(key, id, entityClass, error.getMessage());
+            return;
+        }
+
+        long delay = Math.min(maxBackoffMs, initialBackoffMs * (1L << Math.min(attempts - 1, 20)));
+        log.warn("⚠️ Upload for {} failed (attempt {}/{}), retrying in {} ms: {}",
+                key, attempts, maxAttempts, delay, error.getMessage());
+        mongoTemplate.updateFirst(pending(id),
+                new Update().set("uploadAttempts", attempts).set("lastError", error.getMessage()),
+                entityClass);
+        workers.schedule(retry, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void markFailed(String key, String id, Class<?> entityClass, String reason) {
+        // Nothing retries a FAILED upload, so its spooled copy would only take up disk
+        Object previous = mongoTemplate.findAndModify(pending(id),
+                new Update().set("status", UploadStatus.FAILED).set("lastError", reason).unset("spoolPath"),
+                entityClass);
+        if (previous instanceof FileRecord file) {
+            discardSpool(file.getSpoolPath());
+        } else if (previous instanceof Node node) {
+            discardSpool(node.getSpoolPath());
+        }
+        inFlight.remove(key);
+    }
+
+    private Query pending(String id) {
+        return Query.query(Criteria.where("_id").is(id).and("status").is(UploadStatus.PENDING));
+    }
+
+    private String fileKey(String fileId) {
+        return "file:" + fileId;
+    }
+
+    private String nodeKey(String nodeId) {
+        return "node:" + nodeId;
+    }
+}
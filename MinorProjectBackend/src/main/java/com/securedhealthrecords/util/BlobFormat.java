@@ -0,0 +1,134 @@
+package com.securedhealthrecords.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+
+/**
+ * On-disk container header for blobs written by the blob store.
+ *
+ * <pre>
+ * magic "SHRB" | version (1) | flags (1) | segment size (4) | nonce prefix (7) | wrapped key length (2) | wrapped key
+ * </pre>
+ *
+ * The header is self-describing so a blob can be read back without a database lookup.
+ * Compression (if flagged) is applied before encryption. Files without the magic are
+ * plain legacy blobs.
+ */
+public final class BlobFormat {
+
+    public static final int FLAG_ENCRYPTED = 1;
+    public static final int FLAG_DEFLATE = 2;
+
+    private static final byte[] MAGIC = {'S', 'H', 'R', 'B'};
+    private static final int VERSION = 1;
+    private static final int FIXED_LENGTH = 4 + 1 + 1 + 4 + SegmentedAesGcm.NONCE_PREFIX_BYTES + 2;
+
+    private BlobFormat() {
+    }
+
+    public static Header newHeader(int flags, int segmentSize, byte[] noncePrefix, byte[] wrappedKey) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(FIXED_LENGTH + wrappedKey.length);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte(flags);
+            out.writeInt(segmentSize);
+            out.write(noncePrefix);
+            out.writeShort(wrappedKey.length);
+            out.write(wrappedKey);
+            return new Header(flags, segmentSize, noncePrefix, wrappedKey, bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads the header from the start of the channel, or returns null if the file has none.
+     */
+    public static Header read(SeekableByteChannel channel) throws IOException {
+        if (channel.size() < FIXED_LENGTH) {
+            return null;
+        }
+        ByteBuffer fixed = ByteBuffer.allocate(FIXED_LENGTH);
+        channel.position(0);
+        readFully(channel, fixed);
+        fixed.flip();
+
+        byte[] magic = new byte[MAGIC.length];
+        fixed.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            return null;
+        }
+        int version = fixed.get() & 0xFF;
+        if (version != VERSION) {
+            throw new IOException("Unsupported blob format version " + version);
+        }
+        int flags = fixed.get() & 0xFF;
+        int segmentSize = fixed.getInt();
+        byte[] noncePrefix = new byte[SegmentedAesGcm.NONCE_PREFIX_BYTES];
+        fixed.get(noncePrefix);
+        int wrappedKeyLength = fixed.getShort() & 0xFFFF;
+
+        ByteBuffer wrappedKey = ByteBuffer.allocate(wrappedKeyLength);
+        readFully(channel, wrappedKey);
+        return newHeader(flags, segmentSize, noncePrefix, wrappedKey.array());
+    }
+
+    static void readFully(SeekableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of blob");
+            }
+        }
+    }
+
+    public static final class Header {
+        private final int flags;
+        private final int segmentSize;
+        private final byte[] noncePrefix;
+        private final byte[] wrappedKey;
+        private final byte[] encoded;
+
+        private Header(int flags, int segmentSize, byte[] noncePrefix, byte[] wrappedKey, byte[] encoded) {
+            this.flags = flags;
+            this.segmentSize = segmentSize;
+            this.noncePrefix = noncePrefix;
+            this.wrappedKey = wrappedKey;
+            this.encoded = encoded;
+        }
+
+        public boolean isEncrypted() {
+            return (flags & FLAG_ENCRYPTED) != 0;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        public int getSegmentSize() {
+            return segmentSize;
+        }
+
+        public byte[] getNoncePrefix() {
+            return noncePrefix;
+        }
+
+        public byte[] getWrappedKey() {
+            return wrappedKey;
+        }
+
+        /** The serialized header, also used as associated data for every segment. */
+        public byte[] getEncoded() {
+            return encoded;
+        }
+
+        public int length() {
+            return encoded.length;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.securedhealthrecords.util;
+
+import org.springframework.core.io.AbstractResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Resource over a stored blob with a known plaintext length.
+ *
+ * Unlike InputStreamResource it can be opened more than once, so Spring MVC serves
+ * Range requests for it (206 Partial Content) by skipping into a fresh stream.
+ */
+public class BlobResource extends AbstractResource {
+
+    private final String filename;
+    private final long contentLength;
+    private final Opener opener;
+
+    public BlobResource(String filename, long contentLength, Opener opener) {
+        this.filename = filename;
+        this.contentLength = contentLength;
+        this.opener = opener;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return opener.open(0);
+    }
+
+    public InputStream getInputStream(long offset) throws IOException {
+        return opener.open(offset);
+    }
+
+    @Override
+    public long contentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Blob [" + filename + "]";
+    }
+
+    @FunctionalInterface
+    public interface Opener {
+        InputStream open(long offset) throws IOException;
+    }
+}
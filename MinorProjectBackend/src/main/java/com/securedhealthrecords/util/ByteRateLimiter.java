@@ -0,0 +1,88 @@
+package com.securedhealthrecords.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket over bytes, for background jobs that must stay within an I/O budget.
+ *
+ * The bucket holds at most one second's worth of bytes, so an idle period doesn't turn
+ * into a burst that competes with foreground reads.
+ */
+public class ByteRateLimiter {
+
+    private final long bytesPerSecond;
+    private double available;
+    private long refilledAt;
+
+    public ByteRateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.available = bytesPerSecond;
+        this.refilledAt = System.nanoTime();
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Blocks until the bytes fit in the budget. A non-positive rate means unlimited.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0 || bytes <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            available -= bytes;
+            // Going into debt lets a read larger than the bucket through, paid for by sleeping
+            waitNanos = available >= 0 ? 0 : (long) (-available * 1_000_000_000L / bytesPerSecond);
+        }
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        }
+    }
+
+    /**
+     * Stream whose reads are charged against this budget.
+     */
+    public InputStream throttle(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    charge(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    charge(read);
+                }
+                return read;
+            }
+
+            private void charge(int bytes) throws InterruptedIOException {
+                try {
+                    acquire(bytes);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+            }
+        };
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        available = Math.min(bytesPerSecond, available + (now - refilledAt) * (double) bytesPerSecond / 1_000_000_000L);
+        refilledAt = now;
+    }
+}
@@ -0,0 +1,142 @@
+package com.securedhealthrecords.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Minimal per-backend circuit breaker with latency and error-rate tracking.
+ *
+ * CLOSED lets every call through. The breaker OPENs after too many consecutive failures
+ * or when the smoothed error rate crosses the threshold, and rejects calls until the
+ * open period has passed. It then goes HALF_OPEN and lets a single probe through:
+ * success closes the breaker again, failure re-opens it.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    // Don't trip on error rate until we have seen a few calls
+    private static final int MIN_CALLS_FOR_ERROR_RATE = 10;
+
+    private final String name;
+    private final int failureThreshold;
+    private final double errorRateThreshold;
+    private final long openDurationMs;
+    private final double alpha;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean probeInFlight;
+
+    private double latencyEwmaMs = Double.NaN;
+    private double errorRateEwma;
+    private long successCount;
+    private long failureCount;
+    private long rejectedCount;
+
+    public CircuitBreaker(String name, int failureThreshold, double errorRateThreshold,
+                          long openDurationMs, double alpha) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.errorRateThreshold = errorRateThreshold;
+        this.openDurationMs = openDurationMs;
+        this.alpha = alpha;
+    }
+
+    /**
+     * Returns true if the caller may use the backend now. Callers that get true must
+     * report the outcome through recordSuccess or recordFailure.
+     */
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt >= openDurationMs) {
+                    state = State.HALF_OPEN;
+                    probeInFlight = true;
+                    return true;
+                }
+                rejectedCount++;
+                return false;
+            case HALF_OPEN:
+            default:
+                if (!probeInFlight) {
+                    probeInFlight = true;
+                    return true;
+                }
+                rejectedCount++;
+                return false;
+        }
+    }
+
+    public synchronized void recordSuccess(long elapsedNanos) {
+        updateLatency(elapsedNanos);
+        successCount++;
+        consecutiveFailures = 0;
+        errorRateEwma = (1 - alpha) * errorRateEwma;
+
+        if (state == State.HALF_OPEN) {
+            state = State.CLOSED;
+            probeInFlight = false;
+            errorRateEwma = 0;
+        }
+    }
+
+    public synchronized void recordFailure(long elapsedNanos) {
+        updateLatency(elapsedNanos);
+        failureCount++;
+        consecutiveFailures++;
+        errorRateEwma = alpha + (1 - alpha) * errorRateEwma;
+
+        if (state == State.HALF_OPEN) {
+            open();
+            return;
+        }
+
+        boolean tooManyFailures = consecutiveFailures >= failureThreshold;
+        boolean errorRateTooHigh = successCount + failureCount >= MIN_CALLS_FOR_ERROR_RATE
+                && errorRateEwma >= errorRateThreshold;
+        if (state == State.CLOSED && (tooManyFailures || errorRateTooHigh)) {
+            open();
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("state", state);
+        snapshot.put("latencyEwmaMs", Double.isNaN(latencyEwmaMs) ? null : Math.round(latencyEwmaMs * 10) / 10.0);
+        snapshot.put("errorRate", Math.round(errorRateEwma * 1000) / 1000.0);
+        snapshot.put("consecutiveFailures", consecutiveFailures);
+        snapshot.put("successes", successCount);
+        snapshot.put("failures", failureCount);
+        snapshot.put("rejected", rejectedCount);
+        if (state != State.CLOSED) {
+            snapshot.put("openedAt", openedAt);
+            snapshot.put("retryAfterMs", Math.max(0, openDurationMs - (System.currentTimeMillis() - openedAt)));
+        }
+        return snapshot;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        probeInFlight = false;
+    }
+
+    private void updateLatency(long elapsedNanos) {
+        double elapsedMs = elapsedNanos / 1_000_000.0;
+        latencyEwmaMs = Double.isNaN(latencyEwmaMs) ? elapsedMs : alpha * elapsedMs + (1 - alpha) * latencyEwmaMs;
+    }
+}
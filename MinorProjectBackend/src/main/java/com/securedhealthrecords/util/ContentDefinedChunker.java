@@ -0,0 +1,127 @@
+package com.securedhealthrecords.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.SplittableRandom;
+
+/**
+ * Splits a stream into content-defined chunks with FastCDC (gear rolling hash, normalized
+ * chunking). Cut points depend only on the bytes around them, so an edit in the middle of
+ * a file changes the chunk it falls in and leaves the chunks before and after it, and
+ * their hashes, as they were.
+ *
+ * Chunks are between minSize and maxSize bytes, averaging about avgSize. Only one chunk is
+ * held at a time: {@link #next()} fills the internal buffer, which stays valid until the
+ * following call.
+ */
+public class ContentDefinedChunker implements AutoCloseable {
+
+    // Fixed seed: the table has to be the same on every run or no chunk would ever match again
+    private static final long[] GEAR = gearTable(0x5EC0_4EDL);
+
+    private final InputStream in;
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final long maskSmall;
+    private final long maskLarge;
+
+    private final byte[] buffer;
+    private int buffered; // Bytes read ahead into buffer
+    private int chunkLength; // Length of the chunk at the start of buffer, returned by the last next()
+    private boolean eof;
+
+    public ContentDefinedChunker(InputStream in, int minSize, int avgSize, int maxSize) {
+        if (minSize <= 0 || minSize > avgSize || avgSize > maxSize) {
+            throw new IllegalArgumentException("Expected 0 < min <= avg <= max, got " + minSize + "/" + avgSize + "/" + maxSize);
+        }
+        this.in = in;
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+
+        // Normalized chunking: a harder mask before the average size, an easier one after
+        int bits = 63 - Long.numberOfLeadingZeros(avgSize);
+        this.maskSmall = topBits(bits + 1);
+        this.maskLarge = topBits(Math.max(1, bits - 1));
+        this.buffer = new byte[maxSize];
+    }
+
+    /**
+     * Reads the next chunk into {@link #buffer()}, returning its length, or -1 at the end.
+     */
+    public int next() throws IOException {
+        // Drop the previous chunk, keep what was read beyond it
+        if (chunkLength > 0) {
+            System.arraycopy(buffer, chunkLength, buffer, 0, buffered - chunkLength);
+            buffered -= chunkLength;
+            chunkLength = 0;
+        }
+        fill();
+        if (buffered == 0) {
+            return -1;
+        }
+        chunkLength = cutPoint(buffered);
+        return chunkLength;
+    }
+
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void fill() throws IOException {
+        while (!eof && buffered < buffer.length) {
+            int read = in.read(buffer, buffered, buffer.length - buffered);
+            if (read < 0) {
+                eof = true;
+            } else {
+                buffered += read;
+            }
+        }
+    }
+
+    private int cutPoint(int available) {
+        if (available <= minSize) {
+            return available;
+        }
+        int end = Math.min(available, maxSize);
+        int normal = Math.min(avgSize, end);
+        long fingerprint = 0;
+        // Nothing can be cut before minSize, so hashing starts there
+        int i = minSize;
+        for (; i < normal; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[buffer[i] & 0xFF];
+            if ((fingerprint & maskSmall) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[buffer[i] & 0xFF];
+            if ((fingerprint & maskLarge) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * The gear hash shifts left, so its high bits depend on the most bytes; masks test those.
+     */
+    private static long topBits(int count) {
+        return count >= 64 ? -1L : ((1L << count) - 1) << (64 - count);
+    }
+
+    private static long[] gearTable(long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        long[] table = new long[256];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = random.nextLong();
+        }
+        return table;
+    }
+}
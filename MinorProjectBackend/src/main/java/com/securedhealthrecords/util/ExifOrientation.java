@@ -0,0 +1,120 @@
+package com.securedhealthrecords.util;
+
+import java.awt.geom.AffineTransform;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the EXIF Orientation tag of a JPEG and turns it into the transform that makes the
+ * pixels upright. Phones store photos as the sensor saw them and rely on this tag, so any
+ * re-encode that drops EXIF has to apply it first or the photo ends up sideways.
+ */
+public final class ExifOrientation {
+
+    public static final int NORMAL = 1;
+
+    private static final int ORIENTATION_TAG = 0x0112;
+
+    private ExifOrientation() {
+    }
+
+    /**
+     * The orientation (1-8) from the JPEG's APP1 segment, NORMAL if there is none.
+     * Reads only the segments before the image data.
+     */
+    public static int read(InputStream jpeg) throws IOException {
+        DataInputStream in = new DataInputStream(jpeg);
+        try {
+            if (in.readUnsignedShort() != 0xFFD8) {
+                return NORMAL;
+            }
+            while (true) {
+                int marker = in.readUnsignedShort();
+                if ((marker & 0xFF00) != 0xFF00 || marker == 0xFFDA || marker == 0xFFD9) {
+                    // Not a marker, or start of scan / end of image: no EXIF before the pixels
+                    return NORMAL;
+                }
+                int length = in.readUnsignedShort() - 2;
+                if (length < 0) {
+                    return NORMAL;
+                }
+                byte[] segment = new byte[length];
+                in.readFully(segment);
+                if (marker == 0xFFE1 && length > 14 && startsWithExif(segment)) {
+                    return orientation(segment, 6);
+                }
+            }
+        } catch (EOFException e) {
+            return NORMAL;
+        }
+    }
+
+    /**
+     * Whether the orientation swaps width and height (the 90 degree cases).
+     */
+    public static boolean swapsDimensions(int orientation) {
+        return orientation >= 5 && orientation <= 8;
+    }
+
+    /**
+     * Maps an image of width x height, stored with the given orientation, onto an upright one.
+     */
+    public static AffineTransform transform(int orientation, double width, double height) {
+        return switch (orientation) {
+            case 2 -> new AffineTransform(-1, 0, 0, 1, width, 0);      // Mirrored
+            case 3 -> new AffineTransform(-1, 0, 0, -1, width, height); // Upside down
+            case 4 -> new AffineTransform(1, 0, 0, -1, 0, height);      // Mirrored vertically
+            case 5 -> new AffineTransform(0, 1, 1, 0, 0, 0);            // Transposed
+            case 6 -> new AffineTransform(0, 1, -1, 0, height, 0);      // Rotate 90 clockwise
+            case 7 -> new AffineTransform(0, -1, -1, 0, height, width); // Transversed
+            case 8 -> new AffineTransform(0, -1, 1, 0, 0, width);       // Rotate 90 counter-clockwise
+            default -> new AffineTransform();
+        };
+    }
+
+    private static boolean startsWithExif(byte[] segment) {
+        return segment[0] == 'E' && segment[1] == 'x' && segment[2] == 'i' && segment[3] == 'f'
+                && segment[4] == 0 && segment[5] == 0;
+    }
+
+    /**
+     * Looks up the Orientation entry in IFD0 of the TIFF structure starting at tiff.
+     */
+    private static int orientation(byte[] data, int tiff) {
+        boolean littleEndian = data[tiff] == 'I' && data[tiff + 1] == 'I';
+        if (!littleEndian && !(data[tiff] == 'M' && data[tiff + 1] == 'M')) {
+            return NORMAL;
+        }
+        long ifd = tiff + uint32(data, tiff + 4, littleEndian);
+        if (ifd + 2 > data.length) {
+            return NORMAL;
+        }
+        int entries = uint16(data, (int) ifd, littleEndian);
+        for (int i = 0; i < entries; i++) {
+            int entry = (int) ifd + 2 + i * 12;
+            if (entry + 12 > data.length) {
+                return NORMAL;
+            }
+            if (uint16(data, entry, littleEndian) == ORIENTATION_TAG) {
+                // SHORT value, stored left-aligned in the 4-byte value field
+                int value = uint16(data, entry + 8, littleEndian);
+                return value >= 1 && value <= 8 ? value : NORMAL;
+            }
+        }
+        return NORMAL;
+    }
+
+    private static int uint16(byte[] data, int offset, boolean littleEndian) {
+        int a = data[offset] & 0xFF;
+        int b = data[offset + 1] & 0xFF;
+        return littleEndian ? (b << 8) | a : (a << 8) | b;
+    }
+
+    private static long uint32(byte[] data, int offset, boolean littleEndian) {
+        long high = uint16(data, offset + (littleEndian ? 2 : 0), littleEndian);
+        long low = uint16(data, offset + (littleEndian ? 0 : 2), littleEndian);
+        return (high << 16) | low;
+    }
+}
@@ -0,0 +1,24 @@
+package com.securedhealthrecords.util;
+
+import java.nio.file.Path;
+
+/**
+ * Two-level hash fan-out ("ab/cd/abcd...") so no single directory ends up holding
+ * more than a few hundred entries, whatever the number of stored files.
+ */
+public final class FanOutLayout {
+
+    private FanOutLayout() {
+    }
+
+    /**
+     * Places fileName under root using the first four hex characters of key.
+     */
+    public static Path resolve(Path root, String key, String fileName) {
+        return root.resolve(key.substring(0, 2)).resolve(key.substring(2, 4)).resolve(fileName);
+    }
+
+    public static Path resolve(Path root, String key) {
+        return resolve(root, key, key);
+    }
+}
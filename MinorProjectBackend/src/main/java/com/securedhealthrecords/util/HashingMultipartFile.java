@@ -0,0 +1,173 @@
+package com.securedhealthrecords.util;
+
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+
+/**
+ * Passes a MultipartFile through to a storage backend while computing the SHA-256 of
+ * whatever the backend reads, so every upload gets a checksum without a second pass.
+ *
+ * The hash is only known once some read covered the whole content; each new read starts over.
+ */
+public class HashingMultipartFile implements MultipartFile {
+
+    private final MultipartFile delegate;
+    private volatile String sha256;
+
+    private HashingMultipartFile(MultipartFile delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Wraps the file unless it already computes its own hash.
+     */
+    public static MultipartFile wrap(MultipartFile file) {
+        return file instanceof HashingMultipartFile || file instanceof StreamingMultipartFile
+                ? file : new HashingMultipartFile(file);
+    }
+
+    /**
+     * Hex SHA-256 of the content if the backend read all of it, otherwise null.
+     */
+    public static String sha256Of(MultipartFile file) {
+        if (file instanceof HashingMultipartFile hashing) {
+            return hashing.sha256;
+        }
+        if (file instanceof StreamingMultipartFile streaming && streaming.getSize() >= 0) {
+            return streaming.getSha256();
+        }
+        return null;
+    }
+
+    /**
+     * The upload result with a "sha256" entry added if the backend didn't report one itself.
+     */
+    public static Map<String, Object> withChecksum(Map<String, Object> result, MultipartFile file) {
+        String sha256 = sha256Of(file);
+        if (result == null || result.get("sha256") != null || sha256 == null) {
+            return result;
+        }
+        Map<String, Object> copy = new HashMap<>(result);
+        copy.put("sha256", sha256);
+        return copy;
+    }
+
+    @Override
+    public String getName() {
+        return delegate.getName();
+    }
+
+    @Override
+    public String getOriginalFilename() {
+        return delegate.getOriginalFilename();
+    }
+
+    @Override
+    public String getContentType() {
+        return delegate.getContentType();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return delegate.isEmpty();
+    }
+
+    @Override
+    public long getSize() {
+        return delegate.getSize();
+    }
+
+    @Override
+    public byte[] getBytes() throws IOException {
+        sha256 = null;
+        byte[] bytes = delegate.getBytes();
+        MessageDigest digest = newDigest();
+        digest.update(bytes);
+        sha256 = HexFormat.of().formatHex(digest.digest());
+        return bytes;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        sha256 = null;
+        MessageDigest digest = newDigest();
+        return new FilterInputStream(delegate.getInputStream()) {
+            private boolean completed;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b == -1) {
+                    complete();
+                } else {
+                    digest.update((byte) b);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read == -1) {
+                    complete();
+                } else {
+                    digest.update(b, off, read);
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                // Skipped bytes would be missing from the hash, read them instead
+                byte[] buffer = new byte[(int) Math.min(Math.max(n, 0), 8192)];
+                long skipped = 0;
+                while (skipped < n) {
+                    int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                    if (read == -1) {
+                        break;
+                    }
+                    skipped += read;
+                }
+                return skipped;
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+
+            private void complete() {
+                if (!completed) {
+                    completed = true;
+                    sha256 = HexFormat.of().formatHex(digest.digest());
+                }
+            }
+        };
+    }
+
+    @Override
+    public void transferTo(File dest) throws IOException, IllegalStateException {
+        try (InputStream in = getInputStream()) {
+            Files.copy(in, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.securedhealthrecords.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Detects the content type of an upload from its leading bytes, for the formats health
+ * records actually arrive in (scans, photos, PDFs, DICOM).
+ */
+public final class MimeSniffer {
+
+    public static final String OCTET_STREAM = "application/octet-stream";
+
+    // Enough for the DICOM preamble (128 bytes) plus its "DICM" marker
+    public static final int SNIFF_BYTES = 512;
+
+    private MimeSniffer() {
+    }
+
+    /**
+     * The type the first bytes identify, or null if they don't match a known signature.
+     */
+    public static String sniff(byte[] head, int length) {
+        if (startsWith(head, length, 0, "%PDF-")) {
+            return "application/pdf";
+        }
+        if (startsWith(head, length, 0, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) {
+            return "image/png";
+        }
+        if (startsWith(head, length, 0, 0xFF, 0xD8, 0xFF)) {
+            return "image/jpeg";
+        }
+        if (startsWith(head, length, 0, "GIF87a") || startsWith(head, length, 0, "GIF89a")) {
+            return "image/gif";
+        }
+        if (startsWith(head, length, 0, "RIFF") && startsWith(head, length, 8, "WEBP")) {
+            return "image/webp";
+        }
+        if (startsWith(head, length, 0, 'I', 'I', 0x2A, 0x00) || startsWith(head, length, 0, 'M', 'M', 0x00, 0x2A)) {
+            return "image/tiff";
+        }
+        if (startsWith(head, length, 128, "DICM")) {
+            return "application/dicom";
+        }
+        if (startsWith(head, length, 4, "ftyp")) {
+            return startsWith(head, length, 8, "heic") || startsWith(head, length, 8, "heix")
+                    || startsWith(head, length, 8, "mif1") ? "image/heic" : "video/mp4";
+        }
+        if (startsWith(head, length, 0, 0x1F, 0x8B)) {
+            return "application/gzip";
+        }
+        if (startsWith(head, length, 0, 'P', 'K', 0x03, 0x04)) {
+            return "application/zip";
+        }
+        return null;
+    }
+
+    /**
+     * Picks the type to store: the sniffed one wins over what the client declared, except
+     * for ZIP, which is also the container of docx/xlsx/odt and friends.
+     */
+    public static String resolve(String declared, String sniffed) {
+        boolean declaredUseful = declared != null && !declared.isBlank() && !declared.equalsIgnoreCase(OCTET_STREAM);
+        if (sniffed == null) {
+            return declaredUseful ? declared : OCTET_STREAM;
+        }
+        if (sniffed.equals("application/zip") && declaredUseful) {
+            return declared;
+        }
+        return sniffed;
+    }
+
+    private static boolean startsWith(byte[] head, int length, int offset, String signature) {
+        byte[] expected = signature.getBytes(StandardCharsets.ISO_8859_1);
+        if (length < offset + expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (head[offset + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWith(byte[] head, int length, int offset, int... signature) {
+        if (length < offset + signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if ((head[offset + i] & 0xFF) != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,308 @@
+package com.securedhealthrecords.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Pull parser for a multipart/form-data body (RFC 7578) that hands out each part as a
+ * stream while it is still arriving, so nothing is buffered beyond one read window.
+ *
+ * Parts must be read in order: calling {@link #nextPart()} skips whatever is left of the
+ * current one.
+ */
+public class MultipartStreamReader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final byte[] buffer;
+    private int pos;
+    private int limit;
+    private int scanned; // Offsets below this are known not to start a delimiter
+    private boolean eof;
+
+    private PartInputStream current;
+    private boolean finished;
+
+    public MultipartStreamReader(InputStream in, String boundary) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.buffer = new byte[BUFFER_SIZE + delimiter.length];
+        // The first boundary has no CRLF in front of it, pretend it does so every
+        // delimiter looks the same
+        buffer[0] = '\r';
+        buffer[1] = '\n';
+        this.limit = 2;
+    }
+
+    /**
+     * The boundary parameter of a multipart Content-Type, or null if it isn't multipart.
+     */
+    public static String boundaryOf(String contentType) {
+        if (contentType == null || !contentType.toLowerCase(Locale.ROOT).startsWith("multipart/")) {
+            return null;
+        }
+        String boundary = parameters(contentType).get("boundary");
+        return boundary == null || boundary.isEmpty() || boundary.length() > 70 ? null : boundary;
+    }
+
+    /**
+     * Advances to the next part, or returns null after the closing boundary.
+     */
+    public Part nextPart() throws IOException {
+        if (finished) {
+            return null;
+        }
+        // Skips the preamble on the first call, the rest of the previous part afterwards
+        if (current == null) {
+            current = new PartInputStream();
+        }
+        current.skipRemaining();
+
+        int first = readByte();
+        if (first == '-' && readByte() == '-') {
+            finished = true;
+            return null;
+        }
+        if (first != '\n') {
+            readLine(); // Rest of the boundary line, CRLF possibly after transport padding
+        }
+
+        Map<String, String> headers = readHeaders();
+        Map<String, String> disposition = parameters(headers.getOrDefault("content-disposition", ""));
+        current = new PartInputStream();
+        return new Part(disposition.get("name"), disposition.get("filename"),
+                headers.get("content-type"), current);
+    }
+
+    private Map<String, String> readHeaders() throws IOException {
+        Map<String, String> headers = new LinkedHashMap<>();
+        int total = 0;
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            total += line.length();
+            if (total > MAX_HEADER_BYTES) {
+                throw new IOException("Multipart part headers too large");
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = readByte()) != '\n') {
+            if (line.size() > MAX_HEADER_BYTES) {
+                throw new IOException("Multipart header line too long");
+            }
+            line.write(b);
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private int readByte() throws IOException {
+        if (pos == limit && !fill()) {
+            throw new EOFException("Unexpected end of multipart body");
+        }
+        return buffer[pos++] & 0xff;
+    }
+
+    /**
+     * Compacts the buffer and reads more input behind what is left. False at end of input.
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            scanned = Math.max(0, scanned - pos);
+            pos = 0;
+        }
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+            eof = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    private int indexOfDelimiter() {
+        byte first = delimiter[0];
+        int last = limit - delimiter.length;
+        outer:
+        for (int i = Math.max(pos, scanned); i <= last; i++) {
+            if (buffer[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < delimiter.length; j++) {
+                if (buffer[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            scanned = i;
+            return i;
+        }
+        scanned = Math.max(scanned, last + 1);
+        return -1;
+    }
+
+    /**
+     * Splits "value; key=value; key="quoted value"" into lower-cased keys and unquoted values.
+     */
+    static Map<String, String> parameters(String header) {
+        Map<String, String> params = new LinkedHashMap<>();
+        int i = header.indexOf(';');
+        while (i >= 0 && i < header.length()) {
+            int eq = header.indexOf('=', i + 1);
+            if (eq < 0) {
+                break;
+            }
+            String key = header.substring(i + 1, eq).trim().toLowerCase(Locale.ROOT);
+            int start = eq + 1;
+            while (start < header.length() && header.charAt(start) == ' ') {
+                start++;
+            }
+            StringBuilder value = new StringBuilder();
+            int next;
+            if (start < header.length() && header.charAt(start) == '"') {
+                next = start + 1;
+                while (next < header.length() && header.charAt(next) != '"') {
+                    char c = header.charAt(next);
+                    if (c == '\\' && next + 1 < header.length()) {
+                        c = header.charAt(++next);
+                    }
+                    value.append(c);
+                    next++;
+                }
+                next = header.indexOf(';', next);
+            } else {
+                next = header.indexOf(';', start);
+                value.append(header, start, next < 0 ? header.length() : next);
+            }
+            params.putIfAbsent(key, value.toString().trim());
+            i = next;
+        }
+        return params;
+    }
+
+    public static class Part {
+        private final String name;
+        private final String fileName;
+        private final String contentType;
+        private final InputStream content;
+
+        Part(String name, String fileName, String contentType, InputStream content) {
+            this.name = name;
+            this.fileName = fileName;
+            this.contentType = contentType;
+            this.content = content;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public boolean isFile() {
+            return fileName != null;
+        }
+
+        public InputStream getInputStream() {
+            return content;
+        }
+
+        /**
+         * Reads a form field value, failing if it is longer than maxBytes.
+         */
+        public String readString(int maxBytes) throws IOException {
+            byte[] value = content.readNBytes(maxBytes + 1);
+            if (value.length > maxBytes) {
+                throw new IOException("Form field " + name + " is too long");
+            }
+            return new String(value, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Body of the current part, ending right before the next delimiter.
+     */
+    private class PartInputStream extends InputStream {
+        private boolean ended;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (ended) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                int found = indexOfDelimiter();
+                int available;
+                if (found >= 0) {
+                    available = found - pos;
+                    if (available == 0) {
+                        pos += delimiter.length;
+                        ended = true;
+                        return -1;
+                    }
+                } else {
+                    // Keep a possible partial delimiter at the end of the window
+                    available = limit - pos - (delimiter.length - 1);
+                }
+                if (available > 0) {
+                    int n = Math.min(len, available);
+                    System.arraycopy(buffer, pos, b, off, n);
+                    pos += n;
+                    return n;
+                }
+                if (!fill()) {
+                    throw new EOFException("Multipart body ended without a closing boundary");
+                }
+            }
+        }
+
+        void skipRemaining() throws IOException {
+            byte[] discard = new byte[8192];
+            while (read(discard, 0, discard.length) != -1) {
+                // Drain
+            }
+        }
+
+        @Override
+        public void close() {
+            // The request body belongs to the container
+        }
+    }
+}
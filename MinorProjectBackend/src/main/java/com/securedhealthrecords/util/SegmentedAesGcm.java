@@ -0,0 +1,269 @@
+package com.securedhealthrecords.util;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+
+/**
+ * Streaming AES-GCM over fixed-size plaintext segments.
+ *
+ * Every segment is sealed on its own with nonce = prefix (7) | segment index (4) | last flag (1)
+ * and the blob header as associated data, so a blob can be encrypted and decrypted with one
+ * segment of memory, reads can start at any segment, and reordered, truncated or extended
+ * ciphertext fails authentication.
+ */
+public final class SegmentedAesGcm {
+
+    public static final int NONCE_PREFIX_BYTES = 7;
+    public static final int TAG_BYTES = 16;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int NONCE_BYTES = 12;
+
+    private SegmentedAesGcm() {
+    }
+
+    /**
+     * Wraps the output stream so everything written to it is encrypted. The header must
+     * already have been written to out; closing the returned stream seals the final segment.
+     */
+    public static OutputStream encryptingStream(OutputStream out, SecretKey key, BlobFormat.Header header) {
+        return new EncryptingOutputStream(out, key, header);
+    }
+
+    /**
+     * Opens a decrypting stream positioned at the given plaintext offset. The channel is
+     * closed together with the stream.
+     */
+    public static InputStream decryptingStream(SeekableByteChannel channel, SecretKey key,
+                                               BlobFormat.Header header, long offset) throws IOException {
+        return new DecryptingInputStream(channel, key, header, offset);
+    }
+
+    public static long plaintextLength(long fileSize, BlobFormat.Header header) {
+        long body = fileSize - header.length();
+        long sealedSegment = (long) header.getSegmentSize() + TAG_BYTES;
+        long segments = Math.max(1, (body + sealedSegment - 1) / sealedSegment);
+        return Math.max(0, body - segments * TAG_BYTES);
+    }
+
+    private static GCMParameterSpec nonce(byte[] prefix, long segmentIndex, boolean last) {
+        if (segmentIndex > 0xFFFFFFFFL) {
+            throw new IllegalStateException("Blob has too many segments");
+        }
+        ByteBuffer nonce = ByteBuffer.allocate(NONCE_BYTES);
+        nonce.put(prefix);
+        nonce.putInt((int) segmentIndex);
+        nonce.put((byte) (last ? 1 : 0));
+        return new GCMParameterSpec(TAG_BYTES * 8, nonce.array());
+    }
+
+    private static Cipher newCipher() throws IOException {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES-GCM not available", e);
+        }
+    }
+
+    private static final class EncryptingOutputStream extends FilterOutputStream {
+        private final SecretKey key;
+        private final BlobFormat.Header header;
+        private final byte[] segment;
+        private final byte[] sealed;
+        private Cipher cipher;
+        private int buffered;
+        private long segmentIndex;
+        private boolean closed;
+
+        EncryptingOutputStream(OutputStream out, SecretKey key, BlobFormat.Header header) {
+            super(out);
+            this.key = key;
+            this.header = header;
+            this.segment = new byte[header.getSegmentSize()];
+            this.sealed = new byte[header.getSegmentSize() + TAG_BYTES];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                // A full segment is only sealed once more data shows up, so the last one is always flagged
+                if (buffered == segment.length) {
+                    seal(false);
+                }
+                int n = Math.min(len, segment.length - buffered);
+                System.arraycopy(b, off, segment, buffered, n);
+                buffered += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                seal(true);
+            } finally {
+                out.close();
+            }
+        }
+
+        private void seal(boolean last) throws IOException {
+            try {
+                if (cipher == null) {
+                    cipher = newCipher();
+                }
+                cipher.init(Cipher.ENCRYPT_MODE, key, nonce(header.getNoncePrefix(), segmentIndex, last));
+                cipher.updateAAD(header.getEncoded());
+                int length = cipher.doFinal(segment, 0, buffered, sealed, 0);
+                out.write(sealed, 0, length);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not encrypt blob segment", e);
+            }
+            segmentIndex++;
+            buffered = 0;
+        }
+    }
+
+    private static final class DecryptingInputStream extends InputStream {
+        private final SeekableByteChannel channel;
+        private final SecretKey key;
+        private final BlobFormat.Header header;
+        private final Cipher cipher;
+        private final long bodyStart;
+        private final long fileSize;
+        private final int segmentSize;
+        private final ByteBuffer sealed;
+        private final byte[] plain;
+
+        private long segmentIndex = -1;
+        private int plainLength;
+        private int plainPosition;
+        private boolean lastLoaded;
+
+        DecryptingInputStream(SeekableByteChannel channel, SecretKey key, BlobFormat.Header header,
+                              long offset) throws IOException {
+            this.channel = channel;
+            this.key = key;
+            this.header = header;
+            this.cipher = newCipher();
+            this.bodyStart = header.length();
+            this.fileSize = channel.size();
+            this.segmentSize = header.getSegmentSize();
+            this.sealed = ByteBuffer.allocate(segmentSize + TAG_BYTES);
+            this.plain = new byte[segmentSize];
+            seek(offset);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (plainPosition >= plainLength) {
+                if (lastLoaded) {
+                    return -1;
+                }
+                load(segmentIndex + 1);
+                plainPosition = 0;
+            }
+            int n = Math.min(len, plainLength - plainPosition);
+            System.arraycopy(plain, plainPosition, b, off, n);
+            plainPosition += n;
+            return n;
+        }
+
+        /**
+         * Skips by jumping straight to the target segment, so range requests don't
+         * decrypt everything in front of them.
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0) {
+                return 0;
+            }
+            long position = Math.max(segmentIndex, 0) * segmentSize + plainPosition;
+            long target = Math.min(position + n, SegmentedAesGcm.plaintextLength(fileSize, header));
+            seek(target);
+            return target - position;
+        }
+
+        @Override
+        public int available() {
+            return Math.max(0, plainLength - plainPosition);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private void seek(long offset) throws IOException {
+            long target = offset / segmentSize;
+            if (target != segmentIndex) {
+                load(target);
+            }
+            plainPosition = (int) Math.min(offset - target * segmentSize, plainLength);
+        }
+
+        private void load(long index) throws IOException {
+            long position = bodyStart + index * (segmentSize + TAG_BYTES);
+            if (position >= fileSize) {
+                if (index == 0) {
+                    throw new IOException("Blob is truncated");
+                }
+                // Offset lies past the end, nothing left to read
+                segmentIndex = index;
+                plainLength = 0;
+                lastLoaded = true;
+                return;
+            }
+            int toRead = (int) Math.min(segmentSize + TAG_BYTES, fileSize - position);
+            boolean last = position + toRead == fileSize;
+
+            sealed.clear().limit(toRead);
+            channel.position(position);
+            BlobFormat.readFully(channel, sealed);
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, key, nonce(header.getNoncePrefix(), index, last));
+                cipher.updateAAD(header.getEncoded());
+                plainLength = cipher.doFinal(sealed.array(), 0, toRead, plain, 0);
+            } catch (AEADBadTagException e) {
+                throw new IOException("Blob failed integrity check at segment " + index, e);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not decrypt blob segment " + index, e);
+            }
+            segmentIndex = index;
+            lastLoaded = last;
+        }
+    }
+}
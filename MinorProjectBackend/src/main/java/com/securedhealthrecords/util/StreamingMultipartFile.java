@@ -0,0 +1,204 @@
+package com.securedhealthrecords.util;
+
+import org.springframework.web.multipart.MaxUploadSizeExceededException;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * MultipartFile view over a part that is still being read off the request, so it can be
+ * piped into the existing storage services without being buffered first.
+ *
+ * The content can be read exactly once. The size limit, SHA-256 and content type sniffing
+ * all happen on the way through; {@link #getSize()} is -1 until the stream was read to the end.
+ */
+public class StreamingMultipartFile implements MultipartFile {
+
+    private final String name;
+    private final String originalFilename;
+    private final String declaredContentType;
+    private final String contentType;
+    private final boolean empty;
+    private final InspectingInputStream content;
+    private boolean consumed;
+
+    public StreamingMultipartFile(String name, String originalFilename, String declaredContentType,
+                                  InputStream part, long maxSize) throws IOException {
+        this.name = name;
+        this.originalFilename = originalFilename;
+        this.declaredContentType = declaredContentType;
+
+        // Peek at the head for sniffing, then push it back so the backend still sees every byte
+        PushbackInputStream pushback = new PushbackInputStream(part, MimeSniffer.SNIFF_BYTES);
+        byte[] head = pushback.readNBytes(MimeSniffer.SNIFF_BYTES);
+        pushback.unread(head);
+        this.empty = head.length == 0;
+        this.contentType = MimeSniffer.resolve(declaredContentType, MimeSniffer.sniff(head, head.length));
+        this.content = new InspectingInputStream(pushback, maxSize);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String getOriginalFilename() {
+        return originalFilename;
+    }
+
+    /**
+     * The sniffed content type, falling back to what the client declared.
+     */
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getDeclaredContentType() {
+        return declaredContentType;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    @Override
+    public long getSize() {
+        return content.complete ? content.count : -1;
+    }
+
+    @Override
+    public byte[] getBytes() throws IOException {
+        try (InputStream in = getInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (consumed) {
+            throw new IOException("Upload stream for " + originalFilename + " was already consumed");
+        }
+        consumed = true;
+        return content;
+    }
+
+    @Override
+    public void transferTo(File dest) throws IOException, IllegalStateException {
+        try (InputStream in = getInputStream()) {
+            Files.copy(in, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * True once a backend has started reading, after which the upload can't be retried elsewhere.
+     */
+    public boolean isConsumed() {
+        return consumed;
+    }
+
+    /**
+     * Reads whatever the backend left unread (a simulated upload reads nothing), so the
+     * size limit, size and hash cover the whole part.
+     */
+    public void drain() throws IOException {
+        consumed = true;
+        content.transferTo(OutputStream.nullOutputStream());
+    }
+
+    /**
+     * Hex SHA-256 of the content, available once it was read to the end.
+     */
+    public String getSha256() {
+        if (!content.complete) {
+            throw new IllegalStateException("Upload stream not fully read yet");
+        }
+        if (content.hash == null) {
+            content.hash = HexFormat.of().formatHex(content.digest.digest());
+        }
+        return content.hash;
+    }
+
+    private static class InspectingInputStream extends FilterInputStream {
+        private final long maxSize;
+        private final MessageDigest digest;
+        private long count;
+        private boolean complete;
+        private String hash;
+
+        InspectingInputStream(InputStream in, long maxSize) {
+            super(in);
+            this.maxSize = maxSize;
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (count > maxSize) {
+                // Sticky, a backend that swallowed the first one must not get a clean EOF
+                throw new MaxUploadSizeExceededException(maxSize);
+            }
+            if (complete) {
+                return -1;
+            }
+            int read = in.read(b, off, len);
+            if (read == -1) {
+                complete = true;
+                return -1;
+            }
+            count += read;
+            if (count > maxSize) {
+                throw new MaxUploadSizeExceededException(maxSize);
+            }
+            digest.update(b, off, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes still have to be counted and hashed
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // Backends close what they are given, the rest of the request may still follow
+        }
+    }
+}
@@ -3,7 +3,8 @@ package com.securedhealthrecords;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
-@SpringBootTest
+// Blob encryption refuses to start without a master key outside the dev profile
+@SpringBootTest(properties = "app.storage.encryption.master-key=AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA=")
 class MinorProjectBackendApplicationTests {
 
 	@Test
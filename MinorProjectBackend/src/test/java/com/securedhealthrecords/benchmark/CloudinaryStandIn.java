@@ -0,0 +1,145 @@
+package com.securedhealthrecords.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local HTTP server answering Cloudinary's upload and destroy calls, so the real SDK and
+ * CloudinaryService can be measured without an account. Point cloudinary.upload-prefix at
+ * {@link #getUploadPrefix()}.
+ *
+ * Request bodies are read and thrown away. Each request waits latencyMs first, and fails with
+ * a 500 API error with probability failureRate. bytesPerSecond (0 = unlimited) caps how fast
+ * a single request's body is read, like a slow uplink. Chunked uploadLarge calls get the same
+ * answer for every chunk, which is all the SDK needs.
+ */
+public class CloudinaryStandIn implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMs;
+    private final double failureRate;
+    private final long bytesPerSecond;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong ids = new AtomicLong();
+
+    public CloudinaryStandIn(long latencyMs, double failureRate, long bytesPerSecond) throws IOException {
+        this.latencyMs = latencyMs;
+        this.failureRate = failureRate;
+        this.bytesPerSecond = bytesPerSecond;
+
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            // Named so the benchmark can leave the stand-in out of its allocation numbers
+            Thread thread = new Thread(runnable, "standin-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+        this.server.createContext("/v1_1/", this::handle);
+        this.server.setExecutor(executor);
+        this.server.start();
+    }
+
+    public String getUploadPrefix() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            requests.incrementAndGet();
+            // /v1_1/{cloud}/{resource_type}/{action}
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            String resourceType = path.length > 3 ? path[3] : "image";
+            String action = path.length > 4 ? path[4] : "";
+
+            long received = drain(exchange.getRequestBody());
+            bytesReceived.addAndGet(received);
+            if (latencyMs > 0) {
+                Thread.sleep(latencyMs);
+            }
+
+            if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+                failures.incrementAndGet();
+                respond(exchange, 500, "{\"error\":{\"message\":\"Injected failure\"}}");
+                return;
+            }
+
+            switch (action) {
+                case "upload" -> {
+                    String publicId = "health_records/bench/" + ids.incrementAndGet();
+                    String type = "auto".equals(resourceType) ? "raw" : resourceType;
+                    String url = getUploadPrefix() + "/bench/" + type + "/upload/v1/" + publicId;
+                    // The multipart body, slightly more than the file itself
+                    respond(exchange, 200, "{\"public_id\":\"" + publicId + "\",\"version\":1,"
+                            + "\"resource_type\":\"" + type + "\","
+                            + "\"type\":\"upload\",\"format\":\"bin\",\"bytes\":" + received + ","
+                            + "\"url\":\"" + url + "\",\"secure_url\":\"" + url + "\"}");
+                }
+                case "destroy" -> respond(exchange, 200, "{\"result\":\"ok\"}");
+                default -> respond(exchange, 404, "{\"error\":{\"message\":\"Unsupported action " + action + "\"}}");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long drain(InputStream body) throws IOException, InterruptedException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        long start = System.nanoTime();
+        int read;
+        while ((read = body.read(buffer)) != -1) {
+            total += read;
+            if (bytesPerSecond > 0) {
+                long dueNanos = total * 1_000_000_000L / bytesPerSecond;
+                long aheadNanos = dueNanos - (System.nanoTime() - start);
+                if (aheadNanos > 0) {
+                    Thread.sleep(aheadNanos / 1_000_000, (int) (aheadNanos % 1_000_000));
+                }
+            }
+        }
+        return total;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.securedhealthrecords.benchmark;
+
+import com.securedhealthrecords.util.BlobFormat;
+import com.securedhealthrecords.util.SegmentedAesGcm;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Compares plain file writes/reads with segmented AES-GCM at rest, and checks that a
+ * ranged read from the middle of a blob decrypts the right bytes.
+ *
+ * Not a unit test, run it by hand:
+ *   java -cp target/classes:target/test-classes com.securedhealthrecords.benchmark.EncryptionThroughputBenchmark [sizeMb] [segmentKb]
+ */
+public class EncryptionThroughputBenchmark {
+
+    private static final int ITERATIONS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int segmentSize = (args.length > 1 ? Integer.parseInt(args[1]) : 64) * 1024;
+
+        byte[] data = new byte[sizeMb * 1024 * 1024];
+        new SecureRandom().nextBytes(data);
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        SecretKey key = generator.generateKey();
+
+        Path plainFile = Files.createTempFile("bench-plain-", ".bin");
+        Path sealedFile = Files.createTempFile("bench-sealed-", ".bin");
+        try {
+            for (int i = 0; i <= ITERATIONS; i++) {
+                boolean warmup = i == 0;
+
+                long start = System.nanoTime();
+                try (OutputStream out = open(plainFile)) {
+                    out.write(data);
+                }
+                long plainWrite = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                BlobFormat.Header header = BlobFormat.newHeader(BlobFormat.FLAG_ENCRYPTED, segmentSize,
+                        new byte[SegmentedAesGcm.NONCE_PREFIX_BYTES], new byte[60]);
+                try (OutputStream raw = open(sealedFile)) {
+                    raw.write(header.getEncoded());
+                    try (OutputStream out = SegmentedAesGcm.encryptingStream(raw, key, header)) {
+                        out.write(data);
+                    }
+                }
+                long sealedWrite = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                drain(Files.newInputStream(plainFile));
+                long plainRead = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                byte[] decrypted = readSealed(sealedFile, key, 0, data.length);
+                long sealedRead = System.nanoTime() - start;
+
+                if (!Arrays.equals(data, decrypted)) {
+                    throw new IllegalStateException("Round trip mismatch");
+                }
+                if (!warmup) {
+                    System.out.printf("run %d: write plain %.0f MB/s, encrypted %.0f MB/s | read plain %.0f MB/s, decrypted %.0f MB/s%n",
+                            i, mbPerSecond(sizeMb, plainWrite), mbPerSecond(sizeMb, sealedWrite),
+                            mbPerSecond(sizeMb, plainRead), mbPerSecond(sizeMb, sealedRead));
+                }
+            }
+
+            // Range read starting in the middle of a segment
+            long offset = data.length / 2 + 123;
+            int length = 1000;
+            long start = System.nanoTime();
+            byte[] range = readSealed(sealedFile, key, offset, length);
+            long rangeRead = System.nanoTime() - start;
+            if (!Arrays.equals(range, Arrays.copyOfRange(data, (int) offset, (int) offset + length))) {
+                throw new IllegalStateException("Range read mismatch");
+            }
+            System.out.printf("range read of %d bytes at offset %d: %.2f ms, overhead on disk %d bytes%n",
+                    length, offset, rangeRead / 1e6, Files.size(sealedFile) - data.length);
+        } finally {
+            Files.deleteIfExists(plainFile);
+            Files.deleteIfExists(sealedFile);
+        }
+    }
+
+    private static byte[] readSealed(Path file, SecretKey key, long offset, int length) throws IOException {
+        SeekableByteChannel channel = Files.newByteChannel(file, StandardOpenOption.READ);
+        BlobFormat.Header header = BlobFormat.read(channel);
+        try (InputStream in = SegmentedAesGcm.decryptingStream(channel, key, header, offset)) {
+            return in.readNBytes(length);
+        }
+    }
+
+    private static OutputStream open(Path file) throws IOException {
+        return new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024);
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        try (in) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    private static double mbPerSecond(int sizeMb, long nanos) {
+        return sizeMb / (nanos / 1e9);
+    }
+}
@@ -0,0 +1,244 @@
+package com.securedhealthrecords.benchmark;
+
+import com.securedhealthrecords.MinorProjectBackendApplication;
+import com.securedhealthrecords.service.CloudinaryService;
+import com.securedhealthrecords.service.LocalFileStorageService;
+import com.securedhealthrecords.service.StorageBackend;
+import com.securedhealthrecords.service.UnifiedStorageService;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Upload throughput, p99 latency and allocation per upload for UnifiedStorageService,
+ * CloudinaryService and LocalFileStorageService, across file sizes and client concurrency.
+ *
+ * Boots the application against a throwaway upload directory and a local MongoDB (the blob
+ * store keeps its metadata there), with Cloudinary pointed at {@link CloudinaryStandIn}.
+ * Every upload is a distinct {@link SyntheticMultipartFile}, so nothing is deduplicated;
+ * everything stored is deleted again after each run.
+ *
+ * Not a unit test, run it by hand with a MongoDB on localhost:
+ *   java -cp target/classes:target/test-classes:<dependencies> com.securedhealthrecords.benchmark.StorageThroughputBenchmark \
+ *       [sizes-mb=1,10,50] [concurrency=1,4,16] [uploads=16] [targets=unified,cloudinary,local] \
+ *       [latency-ms=50] [failure-rate=0.0] [bandwidth-mbps=0] [priority=cloudinary,local] \
+ *       [mongodb-uri=mongodb://localhost:27017/shr_benchmark]
+ *
+ * Allocation is summed over all threads except the stand-in's, so it includes the SDK's HTTP
+ * client and the backend pools. Peak heap is the largest heap occupancy seen during the run.
+ */
+public class StorageThroughputBenchmark {
+
+    private static final long MB = 1024 * 1024;
+    private static final PrintStream REPORT = System.out;
+    private static final AtomicLong SEEDS = new AtomicLong(System.nanoTime());
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        long[] sizesMb = Arrays.stream(options.getOrDefault("sizes-mb", "1,10,50").split(",")).mapToLong(Long::parseLong).toArray();
+        int[] concurrency = Arrays.stream(options.getOrDefault("concurrency", "1,4,16").split(",")).mapToInt(Integer::parseInt).toArray();
+        int uploads = Integer.parseInt(options.getOrDefault("uploads", "16"));
+        List<String> targets = List.of(options.getOrDefault("targets", "unified,cloudinary,local").split(","));
+        long latencyMs = Long.parseLong(options.getOrDefault("latency-ms", "50"));
+        double failureRate = Double.parseDouble(options.getOrDefault("failure-rate", "0.0"));
+        long bandwidth = (long) (Double.parseDouble(options.getOrDefault("bandwidth-mbps", "0")) * 1_000_000 / 8);
+
+        Path uploadDir = Files.createTempDirectory("bench-uploads-");
+        try (CloudinaryStandIn standIn = new CloudinaryStandIn(latencyMs, failureRate, bandwidth)) {
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("server.port", 0);
+            properties.put("spring.data.mongodb.uri", options.getOrDefault("mongodb-uri", "mongodb://localhost:27017/shr_benchmark"));
+            properties.put("app.upload.dir", uploadDir.toString());
+            properties.put("app.storage.priority", options.getOrDefault("priority", "cloudinary,local"));
+            properties.put("cloudinary.cloud-name", "bench");
+            properties.put("cloudinary.api-key", "bench");
+            properties.put("cloudinary.api-secret", "bench-secret");
+            properties.put("cloudinary.upload-prefix", standIn.getUploadPrefix());
+            // Background jobs would compete with the uploads being measured
+            properties.put("app.storage.migration.auto-start", false);
+            properties.put("app.storage.tiering.enabled", false);
+            properties.put("app.storage.gc.enabled", false);
+            properties.put("app.storage.scrub.enabled", false);
+            properties.put("logging.level.com.securedhealthrecords", "WARN");
+
+            try (ConfigurableApplicationContext context = new SpringApplicationBuilder(MinorProjectBackendApplication.class)
+                    .properties(properties)
+                    .run()) {
+                UnifiedStorageService unified = context.getBean(UnifiedStorageService.class);
+                CloudinaryService cloudinary = context.getBean(CloudinaryService.class);
+                LocalFileStorageService local = context.getBean(LocalFileStorageService.class);
+
+                Map<String, Uploader> uploaders = new LinkedHashMap<>();
+                uploaders.put("unified", file -> unified.uploadFile(file, "bench", "bench"));
+                uploaders.put("cloudinary", file -> cloudinary.uploadFile(file, "bench", "bench"));
+                uploaders.put("local", file -> local.uploadFile(file, "bench", "bench"));
+
+                REPORT.printf("stand-in: %d ms latency, %.0f%% failures, %s%n", latencyMs, failureRate * 100,
+                        bandwidth > 0 ? options.get("bandwidth-mbps") + " Mbit/s per request" : "unlimited bandwidth");
+                for (String target : targets) {
+                    Uploader uploader = uploaders.get(target.trim());
+                    if (uploader == null) {
+                        REPORT.println("Unknown target " + target + ", expected one of " + uploaders.keySet());
+                        continue;
+                    }
+                    // JIT and connection pool warm-up, not reported
+                    run(uploader, unified, !"local".equals(target.trim()), 1 * MB, 1, 4);
+                    for (long sizeMb : sizesMb) {
+                        for (int threads : concurrency) {
+                            Result result = run(uploader, unified, !"local".equals(target.trim()), sizeMb * MB, threads, uploads);
+                            REPORT.printf("%-10s %4d MB x%-3d | %8.1f MB/s | p50 %8.1f ms  p99 %8.1f ms | %7.1f MB alloc/upload | peak heap %6d MB | failed %d, fell back %d%n",
+                                    target, sizeMb, threads, result.mbPerSecond(), result.p50Ms(), result.p99Ms(),
+                                    result.allocatedPerUpload() / (double) MB, result.peakHeap() / MB,
+                                    result.failed(), result.fellBack());
+                        }
+                    }
+                }
+                REPORT.printf("stand-in saw %d requests (%d failed), %d MB%n",
+                        standIn.getRequests(), standIn.getFailures(), standIn.getBytesReceived() / MB);
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(uploadDir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private static Result run(Uploader uploader, StorageBackend cleanup, boolean remote, long size, int threads, int uploads) throws Exception {
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        List<Map<String, Object>> stored = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger threadIds = new AtomicInteger();
+        ExecutorService clients = Executors.newFixedThreadPool(threads,
+                runnable -> new Thread(runnable, "bench-client-" + threadIds.incrementAndGet()));
+
+        // The services log every upload to stdout, keep that out of the report
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        System.gc();
+        resetPeakHeap();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> pending = new ArrayList<>();
+            for (int i = 0; i < uploads; i++) {
+                MultipartFile file = new SyntheticMultipartFile("bench-" + i + ".bin", size, SEEDS.incrementAndGet());
+                pending.add(clients.submit(() -> {
+                    long begin = System.nanoTime();
+                    try {
+                        stored.add(uploader.upload(file));
+                        latencies.add(System.nanoTime() - begin);
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    }
+                }));
+            }
+            for (Future<?> future : pending) {
+                future.get();
+            }
+        } finally {
+            clients.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        long peakHeap = peakHeap();
+
+        int fellBack = 0;
+        for (Map<String, Object> result : stored) {
+            if (remote && "local".equals(result.get("storage_type"))) {
+                fellBack++;
+            }
+            cleanup.deleteFile((String) result.get("public_id"), (String) result.get("storage_type"));
+        }
+        System.setOut(REPORT);
+
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        return new Result(
+                stored.size() * size / (double) MB / (elapsed / 1e9),
+                percentile(sorted, 0.50) / 1e6,
+                percentile(sorted, 0.99) / 1e6,
+                allocated / Math.max(1, uploads),
+                peakHeap,
+                failed.get(),
+                fellBack);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.max(0, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    /**
+     * Bytes allocated so far by every live thread except the stand-in server's.
+     */
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] ids = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> !thread.getName().startsWith("standin-"))
+                .mapToLong(Thread::threadId)
+                .toArray();
+        return Arrays.stream(threads.getThreadAllocatedBytes(ids)).filter(bytes -> bytes > 0).sum();
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        return options;
+    }
+
+    @FunctionalInterface
+    private interface Uploader {
+        Map<String, Object> upload(MultipartFile file) throws IOException;
+    }
+
+    private record Result(double mbPerSecond, double p50Ms, double p99Ms, long allocatedPerUpload,
+                          long peakHeap, int failed, int fellBack) {
+    }
+}
@@ -0,0 +1,104 @@
+package com.securedhealthrecords.benchmark;
+
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.SplittableRandom;
+
+/**
+ * Upload of pseudo-random bytes generated while it is read, so benchmarks can send many
+ * distinct large files (no dedup hits, nothing compressible) without holding them in memory.
+ * The same seed always produces the same content.
+ */
+public class SyntheticMultipartFile implements MultipartFile {
+
+    private final String filename;
+    private final long size;
+    private final long seed;
+
+    public SyntheticMultipartFile(String filename, long size, long seed) {
+        this.filename = filename;
+        this.size = size;
+        this.seed = seed;
+    }
+
+    @Override
+    public String getName() {
+        return "file";
+    }
+
+    @Override
+    public String getOriginalFilename() {
+        return filename;
+    }
+
+    @Override
+    public String getContentType() {
+        return "application/octet-stream";
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public byte[] getBytes() throws IOException {
+        try (InputStream in = getInputStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        SplittableRandom random = new SplittableRandom(seed);
+        return new InputStream() {
+            private long remaining = size;
+
+            @Override
+            public int read() {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                remaining--;
+                return random.nextInt(256);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int count = (int) Math.min(len, remaining);
+                int i = 0;
+                for (; i + 8 <= count; i += 8) {
+                    long value = random.nextLong();
+                    for (int shift = 0; shift < 64; shift += 8) {
+                        b[off + i + shift / 8] = (byte) (value >>> shift);
+                    }
+                }
+                for (; i < count; i++) {
+                    b[off + i] = (byte) random.nextInt(256);
+                }
+                remaining -= count;
+                return count;
+            }
+        };
+    }
+
+    @Override
+    public void transferTo(File dest) throws IOException {
+        try (InputStream in = getInputStream()) {
+            Files.copy(in, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.securedhealthrecords.config;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UploadAdmissionFilterTest {
+
+    private static final long BUDGET = 10 * 1024;
+    private static final long UNKNOWN_LENGTH = 4 * 1024;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final UploadAdmissionFilter filter = new UploadAdmissionFilter(meterRegistry, true, BUDGET, UNKNOWN_LENGTH, 50, 5);
+
+    @Test
+    void claimsTheContentLengthWhileTheRequestRunsAndReleasesItAfter() throws Exception {
+        AtomicReference<Double> during = new AtomicReference<>();
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(upload(6 * 1024), response, (req, res) -> during.set(inFlight()));
+
+        assertEquals(6 * 1024.0, during.get());
+        assertEquals(0.0, inFlight());
+        assertEquals(200, response.getStatus());
+        assertEquals(1.0, meterRegistry.get("upload.admission.admitted").counter().count());
+    }
+
+    @Test
+    void releasesTheClaimWhenTheRequestFails() throws Exception {
+        assertThrows(IllegalStateException.class, () -> filter.doFilter(upload(BUDGET), new MockHttpServletResponse(),
+                (req, res) -> {
+                    throw new IllegalStateException("storage down");
+                }));
+        assertThrows(ServletException.class, () -> filter.doFilter(upload(BUDGET), new MockHttpServletResponse(),
+                (req, res) -> {
+                    throw new ServletException("handler failed");
+                }));
+        assertEquals(0.0, inFlight());
+
+        // The whole budget is free again
+        AtomicBoolean ran = new AtomicBoolean();
+        filter.doFilter(upload(BUDGET), new MockHttpServletResponse(), (req, res) -> ran.set(true));
+        assertTrue(ran.get());
+    }
+
+    @Test
+    void rejectsWith429WhileTheBudgetIsTaken() throws Exception {
+        CountDownLatch holding = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> first = executor.submit(() -> {
+                filter.doFilter(upload(8 * 1024), new MockHttpServletResponse(), (req, res) -> {
+                    holding.countDown();
+                    await(done);
+                });
+                return null;
+            });
+            assertTrue(holding.await(5, TimeUnit.SECONDS));
+
+            AtomicBoolean ran = new AtomicBoolean();
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            filter.doFilter(upload(4 * 1024), response, (req, res) -> ran.set(true));
+
+            assertFalse(ran.get());
+            assertEquals(429, response.getStatus());
+            assertEquals("5", response.getHeader("Retry-After"));
+            assertEquals(1.0, meterRegistry.get("upload.admission.rejected").counter().count());
+
+            done.countDown();
+            first.get(5, TimeUnit.SECONDS);
+            assertEquals(0.0, inFlight());
+        } finally {
+            done.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void chunkedUploadsClaimTheUnknownLengthBudget() throws Exception {
+        AtomicReference<Double> during = new AtomicReference<>();
+        MockHttpServletRequest request = upload(0);
+        request.setContent(null); // No Content-Length
+
+        filter.doFilter(request, new MockHttpServletResponse(), (req, res) -> during.set(inFlight()));
+
+        assertEquals((double) UNKNOWN_LENGTH, during.get());
+        assertEquals(0.0, inFlight());
+    }
+
+    @Test
+    void uploadsLargerThanTheBudgetTakeTheWholeBudget() throws Exception {
+        AtomicReference<Double> during = new AtomicReference<>();
+
+        filter.doFilter(upload(10 * BUDGET), new MockHttpServletResponse(), (req, res) -> during.set(inFlight()));
+
+        assertEquals((double) BUDGET, during.get());
+        assertEquals(0.0, inFlight());
+    }
+
+    @Test
+    void leavesOtherRequestsAlone() throws Exception {
+        MockHttpServletRequest json = new MockHttpServletRequest("POST", "/files/rename");
+        json.setContentType("application/json");
+        json.setContent(new byte[(int) BUDGET * 2]);
+        MockHttpServletRequest download = new MockHttpServletRequest("GET", "/files/abc/content");
+
+        FilterChain chain = (req, res) -> assertEquals(0.0, inFlight());
+        filter.doFilter(json, new MockHttpServletResponse(), chain);
+        filter.doFilter(download, new MockHttpServletResponse(), chain);
+
+        assertEquals(0.0, meterRegistry.get("upload.admission.admitted").counter().count());
+    }
+
+    private static MockHttpServletRequest upload(long length) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/files/upload");
+        request.setContentType("multipart/form-data; boundary=x");
+        request.setContent(new byte[(int) length]);
+        return request;
+    }
+
+    private double inFlight() {
+        return meterRegistry.get("upload.admission.in-flight.bytes").gauge().value();
+    }
+
+    private static void await(CountDownLatch latch) throws IOException {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.securedhealthrecords.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The blob container: compression and encryption applied on write, undone on read, and
+ * headerless files from before either existed read as they are. Also where the master key
+ * comes from when none is configured.
+ */
+class BlobEncryptionServiceTest {
+
+    private static final String MASTER_KEY = Base64.getEncoder().encodeToString(new byte[32]);
+    private static final int SEGMENT = 1024;
+
+    @TempDir
+    Path dir;
+
+    private final BlobCompressionService compression = new BlobCompressionService(true, 65536, 1024, 0.9, 6, "image/jpeg");
+
+    @Test
+    void compressedAndEncryptedBlobsRoundTrip() throws IOException {
+        BlobEncryptionService service = service(true);
+        byte[] plain = compressible(50_000);
+
+        Path blob = write(service, plain, BlobCompressionService.DEFLATE);
+
+        assertTrue(Files.size(blob) < plain.length / 2, "stored " + Files.size(blob) + " bytes");
+        assertArrayEquals(plain, read(service, blob, 0));
+        assertArrayEquals(Arrays.copyOfRange(plain, 12_345, plain.length), read(service, blob, 12_345));
+        // Only the metadata knows the plaintext size of a compressed blob
+        assertEquals(-1, service.plaintextSize(blob));
+    }
+
+    @Test
+    void encryptedBlobsSupportRangedReadsAndKnowTheirSize() throws IOException {
+        BlobEncryptionService service = service(true);
+        byte[] plain = random(5 * SEGMENT + 3);
+
+        Path blob = write(service, plain, null);
+
+        assertEquals(plain.length, service.plaintextSize(blob));
+        assertArrayEquals(plain, read(service, blob, 0));
+        assertArrayEquals(Arrays.copyOfRange(plain, 3 * SEGMENT - 1, plain.length), read(service, blob, 3 * SEGMENT - 1));
+    }
+
+    @Test
+    void compressedBlobsWithoutEncryptionStillGetAHeader() throws IOException {
+        BlobEncryptionService service = service(false);
+        byte[] plain = compressible(20_000);
+
+        Path blob = write(service, plain, BlobCompressionService.DEFLATE);
+
+        assertTrue(Files.size(blob) < plain.length / 2);
+        assertArrayEquals(plain, read(service, blob, 0));
+        assertArrayEquals(Arrays.copyOfRange(plain, 777, plain.length), read(service, blob, 777));
+    }
+
+    @Test
+    void plainBlobsWithoutEncryptionAreStoredAsIs() throws IOException {
+        BlobEncryptionService service = service(false);
+        byte[] plain = random(3000);
+
+        Path blob = write(service, plain, null);
+
+        assertArrayEquals(plain, Files.readAllBytes(blob));
+        assertEquals(plain.length, service.plaintextSize(blob));
+    }
+
+    @Test
+    void filesWrittenBeforeEncryptionAreReadAsIs() throws IOException {
+        BlobEncryptionService service = service(true);
+        byte[] plain = "stored before at-rest encryption".getBytes(StandardCharsets.UTF_8);
+        Path legacy = dir.resolve("legacy");
+        Files.write(legacy, plain);
+
+        assertArrayEquals(plain, read(service, legacy, 0));
+        assertArrayEquals(Arrays.copyOfRange(plain, 7, plain.length), read(service, legacy, 7));
+        assertEquals(plain.length, service.plaintextSize(legacy));
+    }
+
+    @Test
+    void damagedCompressedBlobsFailToRead() throws IOException {
+        BlobEncryptionService service = service(true);
+        Path blob = write(service, compressible(30_000), BlobCompressionService.DEFLATE);
+
+        byte[] raw = Files.readAllBytes(blob);
+        raw[raw.length - 20] ^= 0x01;
+        Files.write(blob, raw);
+
+        assertThrows(IOException.class, () -> read(service, blob, 0));
+    }
+
+    @Test
+    void refusesToStartWithoutAMasterKeyOutsideDev() {
+        IllegalStateException error = assertThrows(IllegalStateException.class,
+                () -> service("", new MockEnvironment()));
+
+        assertTrue(error.getMessage().contains("STORAGE_MASTER_KEY"));
+        assertFalse(Files.exists(dir.resolve("dev.key")));
+    }
+
+    @Test
+    void pointsAtTheOldGeneratedKeyOutsideDev() throws IOException {
+        Path legacyKey = dir.resolve("uploads").resolve(".keys").resolve("master.key");
+        Files.createDirectories(legacyKey.getParent());
+        Files.write(legacyKey, new byte[32]);
+
+        IllegalStateException error = assertThrows(IllegalStateException.class,
+                () -> service("", new MockEnvironment()));
+
+        assertTrue(error.getMessage().contains(legacyKey.toAbsolutePath().toString()));
+        assertTrue(Files.exists(legacyKey));
+    }
+
+    @Test
+    void generatesTheDevKeyOutsideTheUploadDir() throws IOException {
+        byte[] plain = random(100);
+        BlobEncryptionService first = service("", devProfile());
+        Path blob = write(first, plain, null);
+
+        assertTrue(Files.exists(dir.resolve("dev.key")));
+        assertFalse(Files.exists(dir.resolve("uploads").resolve(".keys")));
+        // The next start reuses the key, so the blob stays readable
+        assertArrayEquals(plain, read(service("", devProfile()), blob, 0));
+    }
+
+    @Test
+    void movesTheOldGeneratedKeyOutOfTheUploadDirInDev() throws IOException {
+        byte[] legacyKeyBytes = random(32);
+        Path legacyKey = dir.resolve("uploads").resolve(".keys").resolve("master.key");
+        Files.createDirectories(legacyKey.getParent());
+        Files.write(legacyKey, legacyKeyBytes);
+
+        service("", devProfile());
+
+        assertFalse(Files.exists(legacyKey));
+        assertArrayEquals(legacyKeyBytes, Files.readAllBytes(dir.resolve("dev.key")));
+    }
+
+    @Test
+    void rejectsAMasterKeyOfTheWrongLength() {
+        String shortKey = Base64.getEncoder().encodeToString(new byte[16]);
+
+        assertThrows(IllegalStateException.class, () -> service(shortKey, new MockEnvironment()));
+    }
+
+    private BlobEncryptionService service(boolean encrypted) throws IOException {
+        return new BlobEncryptionService(compression, encrypted, MASTER_KEY, SEGMENT, 16,
+                dir.resolve("dev.key").toString(), dir.resolve("uploads").toString(), new MockEnvironment());
+    }
+
+    private BlobEncryptionService service(String masterKey, MockEnvironment environment) throws IOException {
+        return new BlobEncryptionService(compression, true, masterKey, SEGMENT, 16,
+                dir.resolve("dev.key").toString(), dir.resolve("uploads").toString(), environment);
+    }
+
+    private static MockEnvironment devProfile() {
+        MockEnvironment environment = new MockEnvironment();
+        environment.setActiveProfiles("dev");
+        return environment;
+    }
+
+    private Path write(BlobEncryptionService service, byte[] plain, String codec) throws IOException {
+        Path blob = Files.createTempFile(dir, "blob-", ".bin");
+        try (OutputStream out = service.openForWrite(Files.newOutputStream(blob), codec)) {
+            out.write(plain);
+        }
+        return blob;
+    }
+
+    private static byte[] read(BlobEncryptionService service, Path blob, long offset) throws IOException {
+        try (InputStream in = service.openForRead(blob, offset)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] compressible(int length) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < length; i++) {
+            text.append("Haemoglobin ").append(130 + i % 20).append(" g/L, reference range 130-175 g/L\n");
+        }
+        return text.substring(0, length).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
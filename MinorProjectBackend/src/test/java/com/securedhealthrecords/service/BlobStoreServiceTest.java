@@ -0,0 +1,252 @@
+package com.securedhealthrecords.service;
+
+import com.securedhealthrecords.model.Blob;
+import com.securedhealthrecords.model.BlobChunk;
+import com.securedhealthrecords.repository.BlobRepository;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Reference counting of the blob store on dedup and release. The "blobs" collection is a map
+ * here; the store only touches it through findAndModify ($inc refCount, $setOnInsert), findOne
+ * and remove, which the mocked MongoTemplate applies to the map the way MongoDB would.
+ */
+class BlobStoreServiceTest {
+
+    private static final int CHUNKING_MIN_FILE_BYTES = 64 * 1024;
+
+    @TempDir
+    Path uploadDir;
+
+    private final Map<String, Blob> blobs = new HashMap<>();
+    private BlobStoreService blobStoreService;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+        when(mongoTemplate.findAndModify(any(Query.class), any(Update.class), any(FindAndModifyOptions.class), eq(Blob.class)))
+                .thenAnswer(call -> findAndModify(call.getArgument(0), call.getArgument(1), call.getArgument(2)));
+        when(mongoTemplate.findOne(any(Query.class), eq(Blob.class)))
+                .thenAnswer(call -> {
+                    Blob blob = blobs.get(idOf(call.getArgument(0)));
+                    return blob != null && blob.getChunks() != null ? blob : null;
+                });
+        when(mongoTemplate.remove(any(Query.class), eq(Blob.class)))
+                .thenAnswer(call -> {
+                    blobs.remove(idOf(call.getArgument(0)));
+                    return null;
+                });
+        BlobRepository blobRepository = mock(BlobRepository.class);
+        when(blobRepository.existsById(anyString())).thenAnswer(call -> blobs.containsKey(call.<String>getArgument(0)));
+
+        BlobCompressionService compression = new BlobCompressionService(true, 65536, 1024, 0.9, 6, "image/jpeg");
+        String masterKey = Base64.getEncoder().encodeToString(new byte[32]);
+        BlobEncryptionService encryption = new BlobEncryptionService(compression, true, masterKey, 4096, 16,
+                uploadDir.resolve("dev.key").toString(), uploadDir.toString(), new MockEnvironment());
+
+        blobStoreService = new BlobStoreService(mongoTemplate, blobRepository, encryption, compression);
+        ReflectionTestUtils.setField(blobStoreService, "uploadDir", uploadDir.toString());
+        ReflectionTestUtils.setField(blobStoreService, "chunkingEnabled", true);
+        ReflectionTestUtils.setField(blobStoreService, "chunkingMinFileBytes", (long) CHUNKING_MIN_FILE_BYTES);
+        ReflectionTestUtils.setField(blobStoreService, "minChunkBytes", 2048);
+        ReflectionTestUtils.setField(blobStoreService, "avgChunkBytes", 8192);
+        ReflectionTestUtils.setField(blobStoreService, "maxChunkBytes", 32768);
+    }
+
+    @Test
+    void identicalContentIsStoredOnceWithOneReferencePerStore() throws IOException {
+        byte[] content = "blood panel, 2024-03-01".getBytes(StandardCharsets.UTF_8);
+
+        BlobStoreService.StoredBlob first = blobStoreService.store(new ByteArrayInputStream(content), "text/plain");
+        BlobStoreService.StoredBlob second = blobStoreService.store(new ByteArrayInputStream(content), "text/plain");
+
+        assertFalse(first.deduplicated());
+        assertTrue(second.deduplicated());
+        assertEquals(first.hash(), second.hash());
+        assertEquals(2L, blobs.get(first.hash()).getRefCount());
+        assertEquals(1, blobFiles().size());
+        assertArrayEquals(content, read(first.hash()));
+    }
+
+    @Test
+    void fileIsReclaimedWithTheLastReference() throws IOException {
+        byte[] content = "x-ray report".getBytes(StandardCharsets.UTF_8);
+        String hash = blobStoreService.store(new ByteArrayInputStream(content), "text/plain").hash();
+        blobStoreService.store(new ByteArrayInputStream(content), "text/plain");
+
+        blobStoreService.release(hash);
+        assertEquals(1L, blobs.get(hash).getRefCount());
+        assertTrue(Files.exists(blobStoreService.resolve(hash)));
+        assertTrue(blobStoreService.exists(hash));
+
+        blobStoreService.release(hash);
+        assertFalse(blobs.containsKey(hash));
+        assertFalse(Files.exists(blobStoreService.resolve(hash)));
+        assertFalse(blobStoreService.exists(hash));
+    }
+
+    @Test
+    void releasingAnUnknownBlobChangesNothing() throws IOException {
+        String hash = blobStoreService.store(new ByteArrayInputStream(new byte[]{1, 2, 3}), "application/octet-stream").hash();
+
+        blobStoreService.release("0".repeat(64));
+
+        assertEquals(1L, blobs.get(hash).getRefCount());
+        assertEquals(1, blobs.size());
+    }
+
+    @Test
+    void editedVersionSharesTheUnchangedChunks() throws IOException {
+        byte[] original = randomBytes(CHUNKING_MIN_FILE_BYTES * 4, 1);
+        byte[] edited = original.clone();
+        edited[edited.length / 2] ^= 0x5A;
+
+        BlobStoreService.StoredBlob first = store(original);
+        BlobStoreService.StoredBlob second = store(edited);
+
+        assertTrue(first.chunks() > 2, "expected the content to be chunked");
+        assertEquals(0, first.reusedChunks());
+        assertTrue(second.reusedChunks() > 0, "chunks before and after the edit should be reused");
+        assertTrue(second.storedSize() < first.storedSize());
+        assertArrayEquals(original, read(first.hash()));
+        assertArrayEquals(edited, read(second.hash()));
+
+        // Chunks both versions use are held once per manifest
+        List<BlobChunk> shared = blobs.get(first.hash()).getChunks().stream()
+                .filter(blobs.get(second.hash()).getChunks()::contains)
+                .toList();
+        assertFalse(shared.isEmpty());
+        shared.forEach(chunk -> assertEquals(2L, blobs.get(chunk.getHash()).getRefCount()));
+
+        blobStoreService.release(first.hash());
+        assertArrayEquals(edited, read(second.hash()));
+        shared.forEach(chunk -> assertEquals(1L, blobs.get(chunk.getHash()).getRefCount()));
+
+        blobStoreService.release(second.hash());
+        assertTrue(blobs.isEmpty());
+        assertTrue(blobFiles().isEmpty());
+    }
+
+    @Test
+    void storingChunkedContentAgainOnlyAddsAReferenceToTheManifest() throws IOException {
+        byte[] content = randomBytes(CHUNKING_MIN_FILE_BYTES * 2, 2);
+
+        BlobStoreService.StoredBlob first = store(content);
+        BlobStoreService.StoredBlob second = store(content);
+
+        assertTrue(second.deduplicated());
+        assertEquals(0, second.storedSize());
+        assertEquals(2L, blobs.get(first.hash()).getRefCount());
+        // The chunks written for the second copy were handed back
+        blobs.get(first.hash()).getChunks()
+                .forEach(chunk -> assertEquals(1L, blobs.get(chunk.getHash()).getRefCount()));
+
+        blobStoreService.release(first.hash());
+        blobStoreService.release(first.hash());
+        assertTrue(blobs.isEmpty());
+        assertTrue(blobFiles().isEmpty());
+    }
+
+    private BlobStoreService.StoredBlob store(byte[] content) throws IOException {
+        return blobStoreService.store(new ByteArrayInputStream(content), "application/octet-stream", content.length);
+    }
+
+    private byte[] read(String hash) throws IOException {
+        try (InputStream in = blobStoreService.open(hash, 0)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private List<Path> blobFiles() throws IOException {
+        try (Stream<Path> files = Files.walk(blobStoreService.getBlobRoot())) {
+            return files.filter(Files::isRegularFile)
+                    .filter(file -> !file.startsWith(blobStoreService.getTempDir()))
+                    .toList();
+        }
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Blob findAndModify(Query query, Update update, FindAndModifyOptions options) {
+        String id = idOf(query);
+        Blob current = blobs.get(id);
+        if (current == null && !options.isUpsert()) {
+            return null;
+        }
+        Blob previous = current != null ? copyOf(current) : null;
+
+        Document changes = update.getUpdateObject();
+        Blob blob = current;
+        if (blob == null) {
+            blob = new Blob();
+            blob.setId(id);
+            blob.setRefCount(0L);
+            Document onInsert = changes.get("$setOnInsert", Document.class);
+            if (onInsert != null) {
+                blob.setSize((Long) onInsert.get("size"));
+                blob.setStoredSize((Long) onInsert.get("storedSize"));
+                blob.setCodec((String) onInsert.get("codec"));
+                blob.setContentType((String) onInsert.get("contentType"));
+                blob.setChunks((List<BlobChunk>) onInsert.get("chunks"));
+            }
+            blobs.put(id, blob);
+        }
+        Document inc = changes.get("$inc", Document.class);
+        if (inc != null && inc.get("refCount") != null) {
+            blob.setRefCount(blob.getRefCount() + ((Number) inc.get("refCount")).longValue());
+        }
+        return options.isReturnNew() ? copyOf(blob) : previous;
+    }
+
+    private static Blob copyOf(Blob blob) {
+        Blob copy = new Blob();
+        copy.setId(blob.getId());
+        copy.setSize(blob.getSize());
+        copy.setStoredSize(blob.getStoredSize());
+        copy.setCodec(blob.getCodec());
+        copy.setContentType(blob.getContentType());
+        copy.setChunks(blob.getChunks());
+        copy.setRefCount(blob.getRefCount());
+        return copy;
+    }
+
+    private static String idOf(Query query) {
+        return (String) query.getQueryObject().get("_id");
+    }
+}
@@ -0,0 +1,176 @@
+package com.securedhealthrecords.service;
+
+import com.securedhealthrecords.dto.DirectUploadCompleteRequest;
+import com.securedhealthrecords.dto.DirectUploadTicketDTO;
+import com.securedhealthrecords.dto.NodeDTO;
+import com.securedhealthrecords.exception.InvalidRequestException;
+import com.securedhealthrecords.exception.QuotaExceededException;
+import com.securedhealthrecords.exception.UnauthorizedException;
+import com.securedhealthrecords.model.StorageUsage;
+import com.securedhealthrecords.repository.FileRecordRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tickets and confirmation of browser-to-Cloudinary uploads. Cloudinary itself is mocked:
+ * the response signature check answers as configured per test, and the Admin API lookup
+ * returns the size and URL of the uploaded resource.
+ */
+class DirectUploadServiceTest {
+
+    private static final String USER = "user-1";
+    private static final long MAX_FILE_SIZE = 10 * 1024 * 1024;
+    private static final long QUOTA = 100 * 1024 * 1024;
+
+    private final CloudinaryService cloudinaryService = mock(CloudinaryService.class);
+    private final FileRecordRepository fileRecordRepository = mock(FileRecordRepository.class);
+    private final NodeService nodeService = mock(NodeService.class);
+    private final StorageUsageService storageUsageService = mock(StorageUsageService.class);
+
+    private final DirectUploadService service = new DirectUploadService(cloudinaryService, fileRecordRepository,
+            nodeService, storageUsageService, mock(ThumbnailService.class), MAX_FILE_SIZE);
+
+    @BeforeEach
+    void setUp() {
+        when(cloudinaryService.isEnabled()).thenReturn(true);
+        when(cloudinaryService.uploadUrl(anyString())).thenAnswer(call -> "https://api.cloudinary.test/" + call.getArgument(0) + "/upload");
+        when(cloudinaryService.signUploadParams(any())).thenAnswer(call -> {
+            Map<String, String> fields = new LinkedHashMap<>();
+            call.<Map<String, Object>>getArgument(0).forEach((key, value) -> fields.put(key, String.valueOf(value)));
+            fields.put("signature", "signed");
+            return fields;
+        });
+        StorageUsage usage = new StorageUsage(USER, 3L, QUOTA - 4096, null, null, null);
+        when(storageUsageService.getUsage(USER)).thenReturn(usage);
+        when(storageUsageService.quotaFor(usage)).thenReturn(QUOTA);
+    }
+
+    @Test
+    void ticketsPinTheResourceTypeInTheUsersPrefix() {
+        DirectUploadTicketDTO pdf = service.issueTicket(USER, 1000, "application/pdf");
+        DirectUploadTicketDTO photo = service.issueTicket(USER, 1000, "image/jpeg");
+        DirectUploadTicketDTO undeclared = service.issueTicket(USER, 1000, null);
+
+        assertTrue(pdf.getPublicId().startsWith("health_records/" + USER + "/direct/raw/"), pdf.getPublicId());
+        assertEquals("https://api.cloudinary.test/raw/upload", pdf.getUploadUrl());
+        assertEquals(pdf.getPublicId(), pdf.getFields().get("public_id"));
+        assertTrue(photo.getPublicId().startsWith("health_records/" + USER + "/direct/image/"), photo.getPublicId());
+        assertEquals("https://api.cloudinary.test/image/upload", photo.getUploadUrl());
+        assertTrue(undeclared.getPublicId().startsWith("health_records/" + USER + "/direct/raw/"), undeclared.getPublicId());
+    }
+
+    @Test
+    void ticketsAreRefusedForUploadsThatCannotFit() {
+        assertThrows(InvalidRequestException.class, () -> service.issueTicket(USER, MAX_FILE_SIZE + 1, "image/png"));
+        assertThrows(QuotaExceededException.class, () -> service.issueTicket(USER, 4097, "image/png"));
+    }
+
+    @Test
+    void rejectsAnInvalidUploadSignature() throws Exception {
+        DirectUploadCompleteRequest request = request("health_records/" + USER + "/direct/raw/abc");
+        when(cloudinaryService.verifyUploadResponse(request.getPublicId(), "1", "sig")).thenReturn(false);
+
+        assertThrows(UnauthorizedException.class, () -> service.verify(USER, request));
+        verify(cloudinaryService, never()).getResource(anyString(), anyString());
+    }
+
+    @Test
+    void rejectsAnotherUsersUploadEvenWithAValidSignature() throws Exception {
+        DirectUploadCompleteRequest request = request("health_records/user-2/direct/raw/abc");
+        when(cloudinaryService.verifyUploadResponse(request.getPublicId(), "1", "sig")).thenReturn(true);
+
+        assertThrows(UnauthorizedException.class, () -> service.verify(USER, request));
+        // A prefix of the user id is not the user's prefix either
+        DirectUploadCompleteRequest sibling = request("health_records/" + USER + "0/direct/raw/abc");
+        when(cloudinaryService.verifyUploadResponse(sibling.getPublicId(), "1", "sig")).thenReturn(true);
+        assertThrows(UnauthorizedException.class, () -> service.verify(USER, sibling));
+        verify(cloudinaryService, never()).getResource(anyString(), anyString());
+    }
+
+    @Test
+    void rejectsPublicIdsWithoutAResourceType() {
+        DirectUploadCompleteRequest request = request("health_records/" + USER + "/direct/abc");
+        when(cloudinaryService.verifyUploadResponse(request.getPublicId(), "1", "sig")).thenReturn(true);
+
+        assertThrows(InvalidRequestException.class, () -> service.verify(USER, request));
+    }
+
+    @Test
+    void looksTheUploadUpAsTheResourceTypeFromItsTicket() throws Exception {
+        DirectUploadCompleteRequest request = signed("health_records/" + USER + "/direct/raw/abc", 2048);
+
+        DirectUploadService.UploadedResource resource = service.verify(USER, request);
+
+        assertEquals("raw", resource.resourceType());
+        assertEquals(2048, resource.bytes());
+        verify(cloudinaryService).getResource(request.getPublicId(), "raw");
+    }
+
+    @Test
+    void oversizedUploadsAreDeleted() throws Exception {
+        DirectUploadCompleteRequest request = signed("health_records/" + USER + "/direct/video/abc", MAX_FILE_SIZE + 1);
+
+        assertThrows(InvalidRequestException.class, () -> service.verify(USER, request));
+        verify(cloudinaryService).deleteResource(request.getPublicId(), "video");
+    }
+
+    @Test
+    void uploadsOverTheQuotaAreDeletedOnConfirmation() throws Exception {
+        DirectUploadCompleteRequest request = signed("health_records/" + USER + "/direct/image/abc", 4096);
+        when(fileRecordRepository.findByCloudinaryPublicId(request.getPublicId())).thenReturn(Optional.empty());
+        doThrow(new QuotaExceededException("full")).when(storageUsageService).reserve(USER, 1, 4096);
+
+        assertThrows(QuotaExceededException.class, () -> service.confirmFile(USER, request));
+        verify(cloudinaryService).deleteResource(request.getPublicId(), "image");
+        verify(fileRecordRepository, never()).save(any());
+    }
+
+    @Test
+    void confirmingANodeTwiceReturnsTheFirstNode() throws Exception {
+        DirectUploadCompleteRequest request = signed("health_records/" + USER + "/direct/raw/abc", 4096);
+        request.setEncryptedFileKey("wrapped-key");
+        NodeDTO first = new NodeDTO();
+        first.setId("node-1");
+        when(nodeService.findByStoragePublicId(request.getPublicId())).thenReturn(Optional.of(first));
+
+        assertSame(first, service.confirmNode(USER, request));
+        verify(nodeService, never()).createUploadedFileNode(anyString(), any(), anyString(), anyString(), anyString(),
+                anyString(), anyString(), anyString());
+        verify(storageUsageService, never()).reserve(anyString(), anyLong(), anyLong());
+    }
+
+    private DirectUploadCompleteRequest signed(String publicId, long bytes) throws Exception {
+        DirectUploadCompleteRequest request = request(publicId);
+        when(cloudinaryService.verifyUploadResponse(publicId, "1", "sig")).thenReturn(true);
+        when(cloudinaryService.getResource(eq(publicId), anyString()))
+                .thenReturn(Map.of("bytes", bytes, "secure_url", "https://res.cloudinary.test/" + publicId));
+        return request;
+    }
+
+    private static DirectUploadCompleteRequest request(String publicId) {
+        DirectUploadCompleteRequest request = new DirectUploadCompleteRequest();
+        request.setPublicId(publicId);
+        request.setVersion("1");
+        request.setSignature("sig");
+        request.setFileName("report.pdf");
+        return request;
+    }
+}
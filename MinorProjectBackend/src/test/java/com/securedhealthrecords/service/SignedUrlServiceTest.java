@@ -0,0 +1,137 @@
+package com.securedhealthrecords.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.web.util.UriUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Signing and verification of blob download links and proxied content links. Links are read
+ * back from the URL the service hands out, the way the controllers receive them.
+ */
+class SignedUrlServiceTest {
+
+    private static final String HASH = "ab".repeat(32);
+    private static final String JWT_SECRET = "jwt-secret-used-only-to-derive-the-signing-key";
+
+    private final SignedUrlService service = service("download-signing-secret", 900);
+
+    @Test
+    void aSignedBlobLinkVerifies() {
+        Map<String, String> link = query(service.sign(HASH, "lab results (final).pdf", 12_345).url());
+
+        assertEquals("lab results (final).pdf", link.get("name"));
+        assertTrue(verify(service, link));
+    }
+
+    @Test
+    void changingAnySignedFieldBreaksTheSignature() {
+        Map<String, String> link = query(service.sign(HASH, "scan.png", 4096).url());
+        long length = Long.parseLong(link.get("len"));
+        long expiresAt = Long.parseLong(link.get("exp"));
+        String signature = link.get("sig");
+
+        assertFalse(service.verify("cd".repeat(32), "scan.png", length, expiresAt, signature));
+        assertFalse(service.verify(HASH, "other.png", length, expiresAt, signature));
+        assertFalse(service.verify(HASH, "scan.png", length + 1, expiresAt, signature));
+        assertFalse(service.verify(HASH, "scan.png", length, expiresAt + 3600, signature));
+    }
+
+    @Test
+    void aTamperedSignatureIsRejected() {
+        Map<String, String> link = query(service.sign(HASH, "scan.png", 4096).url());
+        String signature = link.get("sig");
+        char last = signature.charAt(signature.length() - 1);
+        link.put("sig", signature.substring(0, signature.length() - 1) + (last == 'A' ? 'B' : 'A'));
+
+        assertFalse(verify(service, link));
+        link.put("sig", null);
+        assertFalse(verify(service, link));
+    }
+
+    @Test
+    void anExpiredLinkIsRejected() {
+        SignedUrlService expired = service("download-signing-secret", -1);
+        Map<String, String> link = query(expired.sign(HASH, "scan.png", 4096).url());
+
+        assertFalse(verify(expired, link));
+    }
+
+    @Test
+    void aLinkSignedWithAnotherSecretIsRejected() {
+        Map<String, String> link = query(service("another-secret", 900).sign(HASH, "scan.png", 4096).url());
+
+        assertFalse(verify(service, link));
+    }
+
+    @Test
+    void contentLinksVerifyForTheirFileOnly() {
+        String url = service.signContent("file-1").url();
+        Map<String, String> link = query(url);
+        long expiresAt = Long.parseLong(link.get("exp"));
+
+        assertTrue(url.startsWith("http://localhost:8080/api/v1/files/file-1/content?"));
+        assertTrue(service.verifyContent("file-1", expiresAt, link.get("sig")));
+        assertFalse(service.verifyContent("file-2", expiresAt, link.get("sig")));
+        assertFalse(service.verifyContent("file-1", expiresAt + 1, link.get("sig")));
+        assertFalse(service.verifyContent("file-1", expiresAt, null));
+        assertFalse(service("download-signing-secret", -1).verifyContent("file-1", expiresAt - 1000, link.get("sig")));
+    }
+
+    @Test
+    void blobAndContentSignaturesAreNotInterchangeable() {
+        Map<String, String> content = query(service.signContent(HASH).url());
+        long expiresAt = Long.parseLong(content.get("exp"));
+
+        assertFalse(service.verify(HASH, "x", 0, expiresAt, content.get("sig")));
+    }
+
+    @Test
+    void withoutASecretTheKeyIsDerivedFromTheJwtSecret() {
+        SignedUrlService derived = service("", 900);
+        Map<String, String> link = query(derived.sign(HASH, "scan.png", 4096).url());
+
+        assertTrue(verify(derived, link));
+        assertTrue(verify(service("", 900), link));
+        // Derived, not the JWT secret itself
+        assertFalse(verify(service(JWT_SECRET, 900), link));
+    }
+
+    @Test
+    void parsesLegacyLocalDownloadUrls() {
+        SignedUrlService.LocalBlob blob = service.parseLocalUrl(
+                "http://localhost:8080/api/v1/files/download/user-1/" + HASH + ".pdf").orElseThrow();
+
+        assertEquals(HASH, blob.hash());
+        assertEquals(HASH + ".pdf", blob.filename());
+        assertTrue(service.parseLocalUrl("http://localhost:8080/api/v1/files/download/user-1/report.pdf").isEmpty());
+        assertTrue(service.parseLocalUrl("https://res.cloudinary.com/demo/image/upload/v1/x.png").isEmpty());
+        assertTrue(service.parseLocalUrl(null).isEmpty());
+    }
+
+    private static SignedUrlService service(String secret, long ttlSeconds) {
+        return new SignedUrlService(secret, JWT_SECRET, ttlSeconds, "http://localhost:8080/api/v1/", true);
+    }
+
+    private static boolean verify(SignedUrlService service, Map<String, String> link) {
+        return service.verify(link.get("hash"), link.get("name"), Long.parseLong(link.get("len")),
+                Long.parseLong(link.get("exp")), link.get("sig"));
+    }
+
+    private static Map<String, String> query(String url) {
+        Map<String, String> params = new HashMap<>();
+        String path = url.substring(0, url.indexOf('?'));
+        params.put("hash", path.substring(path.lastIndexOf('/') + 1));
+        for (String pair : url.substring(url.indexOf('?') + 1).split("&")) {
+            int equals = pair.indexOf('=');
+            params.put(pair.substring(0, equals), UriUtils.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+}
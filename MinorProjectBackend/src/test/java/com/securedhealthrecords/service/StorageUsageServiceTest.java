@@ -0,0 +1,176 @@
+package com.securedhealthrecords.service;
+
+import com.mongodb.client.result.UpdateResult;
+import com.securedhealthrecords.exception.QuotaExceededException;
+import com.securedhealthrecords.model.StorageUsage;
+import com.securedhealthrecords.repository.StorageUsageRepository;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Quota reservations. The "storage_usage" collection is a map here; updateFirst and upsert
+ * apply the query's totalBytes $lte condition and the $inc to it atomically, the way MongoDB
+ * applies a single-document update.
+ */
+class StorageUsageServiceTest {
+
+    private static final String USER = "user-1";
+    private static final long QUOTA = 10_000;
+
+    private final Map<String, StorageUsage> usages = new HashMap<>();
+    private StorageUsageService storageUsageService;
+
+    @BeforeEach
+    void setUp() {
+        MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+        when(mongoTemplate.updateFirst(any(Query.class), any(Update.class), eq(StorageUsage.class)))
+                .thenAnswer(call -> update(call.getArgument(0), call.getArgument(1), false));
+        when(mongoTemplate.upsert(any(Query.class), any(Update.class), eq(StorageUsage.class)))
+                .thenAnswer(call -> update(call.getArgument(0), call.getArgument(1), true));
+        StorageUsageRepository storageUsageRepository = mock(StorageUsageRepository.class);
+        when(storageUsageRepository.findById(anyString())).thenAnswer(call -> {
+            synchronized (usages) {
+                return Optional.ofNullable(usages.get(call.<String>getArgument(0))).map(StorageUsageServiceTest::copy);
+            }
+        });
+
+        storageUsageService = new StorageUsageService(mongoTemplate, storageUsageRepository, QUOTA);
+        usages.put(USER, new StorageUsage(USER, 2L, 6_000L, null, null, null));
+    }
+
+    @Test
+    void aReservationWithinTheQuotaIsCounted() {
+        storageUsageService.reserve(USER, 1, 3_000);
+
+        assertEquals(3L, usages.get(USER).getTotalFiles());
+        assertEquals(9_000L, usages.get(USER).getTotalBytes());
+    }
+
+    @Test
+    void aReservationThatFillsTheQuotaExactlyFits() {
+        assertDoesNotThrow(() -> storageUsageService.reserve(USER, 1, 4_000));
+
+        assertEquals(QUOTA, usages.get(USER).getTotalBytes());
+    }
+
+    @Test
+    void aReservationThatWouldExceedTheQuotaIsRefusedAndCountsNothing() {
+        assertThrows(QuotaExceededException.class, () -> storageUsageService.reserve(USER, 1, 4_001));
+
+        assertEquals(2L, usages.get(USER).getTotalFiles());
+        assertEquals(6_000L, usages.get(USER).getTotalBytes());
+    }
+
+    @Test
+    void aPerUserQuotaReplacesTheDefault() {
+        usages.get(USER).setQuotaBytes(20_000L);
+
+        storageUsageService.reserve(USER, 1, 14_000);
+        assertThrows(QuotaExceededException.class, () -> storageUsageService.reserve(USER, 1, 1));
+
+        assertEquals(20_000L, usages.get(USER).getTotalBytes());
+    }
+
+    @Test
+    void releasingMakesRoomAgain() {
+        assertThrows(QuotaExceededException.class, () -> storageUsageService.reserve(USER, 1, 5_000));
+
+        storageUsageService.release(USER, 1, 1_000);
+        storageUsageService.reserve(USER, 1, 5_000);
+
+        assertEquals(2L, usages.get(USER).getTotalFiles());
+        assertEquals(QUOTA, usages.get(USER).getTotalBytes());
+    }
+
+    @Test
+    void shrinkingContentIsRecordedEvenOverTheQuota() {
+        // An admin lowered the quota below what the user already stores
+        usages.get(USER).setQuotaBytes(1_000L);
+
+        storageUsageService.reserve(USER, 0, -500);
+
+        assertEquals(5_500L, usages.get(USER).getTotalBytes());
+        assertThrows(QuotaExceededException.class, () -> storageUsageService.reserve(USER, 0, 1));
+    }
+
+    @Test
+    void concurrentReservationsNeverOvershootTheQuota() throws Exception {
+        List<Callable<Boolean>> uploads = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            uploads.add(() -> {
+                try {
+                    storageUsageService.reserve(USER, 1, 300);
+                    return true;
+                } catch (QuotaExceededException e) {
+                    return false;
+                }
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        int admitted = 0;
+        try {
+            for (Future<Boolean> upload : executor.invokeAll(uploads)) {
+                admitted += upload.get() ? 1 : 0;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // 4,000 bytes of room fit 13 uploads of 300
+        assertEquals(13, admitted);
+        assertEquals(9_900L, usages.get(USER).getTotalBytes());
+        assertEquals(15L, usages.get(USER).getTotalFiles());
+    }
+
+    private UpdateResult update(Query query, Update update, boolean upsert) {
+        Document criteria = query.getQueryObject();
+        String id = criteria.getString("_id");
+        synchronized (usages) {
+            StorageUsage usage = usages.get(id);
+            if (usage == null) {
+                if (!upsert) {
+                    return UpdateResult.acknowledged(0, 0L, null);
+                }
+                usage = new StorageUsage(id, 0L, 0L, null, null, null);
+                usages.put(id, usage);
+            }
+            if (criteria.get("totalBytes") instanceof Document condition
+                    && usage.getTotalBytes() > ((Number) condition.get("$lte")).longValue()) {
+                return UpdateResult.acknowledged(0, 0L, null);
+            }
+            Document inc = update.getUpdateObject().get("$inc", Document.class);
+            usage.setTotalFiles(usage.getTotalFiles() + ((Number) inc.get("totalFiles")).longValue());
+            usage.setTotalBytes(usage.getTotalBytes() + ((Number) inc.get("totalBytes")).longValue());
+            return UpdateResult.acknowledged(1, 1L, null);
+        }
+    }
+
+    private static StorageUsage copy(StorageUsage usage) {
+        return new StorageUsage(usage.getId(), usage.getTotalFiles(), usage.getTotalBytes(), usage.getQuotaBytes(),
+                usage.getUpdatedAt(), usage.getReconciledAt());
+    }
+}
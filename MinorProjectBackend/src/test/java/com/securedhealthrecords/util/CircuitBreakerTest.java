@@ -0,0 +1,95 @@
+package com.securedhealthrecords.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CircuitBreakerTest {
+
+    private static final long ELAPSED = 1_000_000; // 1 ms
+    private static final long NEVER = Long.MAX_VALUE / 2;
+
+    @Test
+    void opensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 3, 1.1, NEVER, 0.2);
+
+        breaker.recordFailure(ELAPSED);
+        breaker.recordFailure(ELAPSED);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.recordFailure(ELAPSED);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(1L, breaker.snapshot().get("rejected"));
+    }
+
+    @Test
+    void successResetsTheConsecutiveFailureCount() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 3, 1.1, NEVER, 0.2);
+
+        breaker.recordFailure(ELAPSED);
+        breaker.recordFailure(ELAPSED);
+        breaker.recordSuccess(ELAPSED);
+        breaker.recordFailure(ELAPSED);
+        breaker.recordFailure(ELAPSED);
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    void opensOnErrorRateOnlyAfterEnoughCalls() {
+        // Alternating outcomes never reach 3 consecutive failures, only the error rate can trip it
+        CircuitBreaker breaker = new CircuitBreaker("test", 3, 0.4, NEVER, 0.5);
+
+        for (int i = 0; i < 4; i++) {
+            breaker.recordSuccess(ELAPSED);
+            breaker.recordFailure(ELAPSED);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(), "fewer than 10 calls seen");
+
+        breaker.recordSuccess(ELAPSED);
+        breaker.recordFailure(ELAPSED);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void halfOpenLetsASingleProbeThroughAndClosesOnSuccess() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 1.1, 0, 0.2);
+        breaker.recordFailure(ELAPSED);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        // Open period is over: the first caller is the probe, everyone else waits for it
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+
+        breaker.recordSuccess(ELAPSED);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    void failedProbeReopens() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 1.1, 0, 0.2);
+        breaker.recordFailure(ELAPSED);
+        assertTrue(breaker.tryAcquire());
+
+        breaker.recordFailure(ELAPSED);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void staysOpenUntilTheOpenPeriodHasPassed() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 1.1, 50, 0.2);
+        breaker.recordFailure(ELAPSED);
+
+        assertFalse(breaker.tryAcquire());
+        Thread.sleep(80);
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+}
@@ -0,0 +1,153 @@
+package com.securedhealthrecords.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ContentDefinedChunkerTest {
+
+    private static final int MIN = 2 * 1024;
+    private static final int AVG = 8 * 1024;
+    private static final int MAX = 32 * 1024;
+
+    @Test
+    void chunksReassembleToTheInputWithinTheSizeBounds() throws IOException {
+        byte[] content = randomBytes(1024 * 1024 + 7, 1);
+
+        List<byte[]> chunks = chunk(new ByteArrayInputStream(content));
+
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (int i = 0; i < chunks.size(); i++) {
+            int length = chunks.get(i).length;
+            assertTrue(length <= MAX, "chunk " + i + " is " + length + " bytes");
+            if (i < chunks.size() - 1) {
+                assertTrue(length >= MIN, "chunk " + i + " is " + length + " bytes");
+            }
+            joined.write(chunks.get(i));
+        }
+        assertArrayEquals(content, joined.toByteArray());
+
+        // Normalized chunking keeps the average near the target
+        double average = (double) content.length / chunks.size();
+        assertTrue(average > AVG / 2.0 && average < AVG * 2.0, "average chunk size " + average);
+    }
+
+    @Test
+    void cutPointsDoNotDependOnHowTheInputArrives() throws IOException {
+        byte[] content = randomBytes(200 * 1024, 2);
+
+        List<String> whole = hashes(chunk(new ByteArrayInputStream(content)));
+        List<String> trickled = hashes(chunk(new TrickleInputStream(content, 1000)));
+
+        assertEquals(whole, trickled);
+    }
+
+    @Test
+    void anEditOnlyChangesTheChunksAroundIt() throws IOException {
+        byte[] original = randomBytes(1024 * 1024, 3);
+        // Insert a few bytes in the middle, shifting everything after them
+        int at = original.length / 2;
+        byte[] edited = new byte[original.length + 5];
+        System.arraycopy(original, 0, edited, 0, at);
+        System.arraycopy(new byte[]{9, 8, 7, 6, 5}, 0, edited, at, 5);
+        System.arraycopy(original, at, edited, at + 5, original.length - at);
+
+        List<String> before = hashes(chunk(new ByteArrayInputStream(original)));
+        List<String> after = hashes(chunk(new ByteArrayInputStream(edited)));
+
+        Set<String> unchanged = new HashSet<>(before);
+        long changed = after.stream().filter(hash -> !unchanged.contains(hash)).count();
+        assertTrue(changed <= 3, changed + " of " + after.size() + " chunks changed");
+    }
+
+    @Test
+    void inputShorterThanTheMinimumIsOneChunk() throws IOException {
+        byte[] content = randomBytes(MIN - 1, 4);
+
+        List<byte[]> chunks = chunk(new ByteArrayInputStream(content));
+
+        assertEquals(1, chunks.size());
+        assertArrayEquals(content, chunks.get(0));
+    }
+
+    @Test
+    void emptyInputHasNoChunks() throws IOException {
+        assertTrue(chunk(InputStream.nullInputStream()).isEmpty());
+    }
+
+    @Test
+    void uniformContentIsCutAtTheMaximum() throws IOException {
+        // A run of zeros doesn't hit either mask with this gear table, so every cut is forced at MAX
+        List<byte[]> chunks = chunk(new ByteArrayInputStream(new byte[3 * MAX + 100]));
+
+        assertEquals(4, chunks.size());
+        assertEquals(MAX, chunks.get(0).length);
+        assertEquals(100, chunks.get(3).length);
+    }
+
+    @Test
+    void rejectsInconsistentSizes() {
+        InputStream in = InputStream.nullInputStream();
+        assertThrows(IllegalArgumentException.class, () -> new ContentDefinedChunker(in, 0, AVG, MAX));
+        assertThrows(IllegalArgumentException.class, () -> new ContentDefinedChunker(in, AVG + 1, AVG, MAX));
+        assertThrows(IllegalArgumentException.class, () -> new ContentDefinedChunker(in, MIN, MAX + 1, MAX));
+    }
+
+    private static List<byte[]> chunk(InputStream in) throws IOException {
+        List<byte[]> chunks = new ArrayList<>();
+        try (ContentDefinedChunker chunker = new ContentDefinedChunker(in, MIN, AVG, MAX)) {
+            int length;
+            while ((length = chunker.next()) > 0) {
+                byte[] chunk = new byte[length];
+                System.arraycopy(chunker.buffer(), 0, chunk, 0, length);
+                chunks.add(chunk);
+            }
+        }
+        return chunks;
+    }
+
+    private static List<String> hashes(List<byte[]> chunks) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return chunks.stream().map(chunk -> HexFormat.of().formatHex(digest.digest(chunk))).toList();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        private final int chunk;
+
+        TrickleInputStream(byte[] bytes, int chunk) {
+            super(bytes);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, chunk));
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.securedhealthrecords.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MultipartStreamReaderTest {
+
+    private static final String BOUNDARY = "----formBoundary7MA4YWxk";
+
+    @Test
+    void readsFieldsAndFiles() throws IOException {
+        byte[] body = body(
+                "--" + BOUNDARY + "\r\n"
+                        + "Content-Disposition: form-data; name=\"folderId\"\r\n\r\n"
+                        + "abc123\r\n"
+                        + "--" + BOUNDARY + "\r\n"
+                        + "Content-Disposition: form-data; name=\"file\"; filename=\"scan.pdf\"\r\n"
+                        + "Content-Type: application/pdf\r\n\r\n"
+                        + "%PDF-1.7 content\r\n"
+                        + "--" + BOUNDARY + "--\r\n");
+        MultipartStreamReader reader = new MultipartStreamReader(new ByteArrayInputStream(body), BOUNDARY);
+
+        MultipartStreamReader.Part field = reader.nextPart();
+        assertEquals("folderId", field.getName());
+        assertFalse(field.isFile());
+        assertEquals("abc123", field.readString(100));
+
+        MultipartStreamReader.Part file = reader.nextPart();
+        assertEquals("file", file.getName());
+        assertEquals("scan.pdf", file.getFileName());
+        assertEquals("application/pdf", file.getContentType());
+        assertEquals("%PDF-1.7 content", new String(file.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+
+        assertNull(reader.nextPart());
+        assertNull(reader.nextPart());
+    }
+
+    @Test
+    void findsDelimitersSplitAcrossReads() throws IOException {
+        byte[] first = randomBytes(5000, 1);
+        byte[] second = randomBytes(3000, 2);
+        byte[] body = twoFiles(first, second);
+
+        // Every chunk size puts the delimiter's bytes on a different side of a read
+        for (int chunk = 1; chunk <= 48; chunk++) {
+            MultipartStreamReader reader = new MultipartStreamReader(new TrickleInputStream(body, chunk), BOUNDARY);
+            assertArrayEquals(first, reader.nextPart().getInputStream().readAllBytes(), "chunk " + chunk);
+            assertArrayEquals(second, reader.nextPart().getInputStream().readAllBytes(), "chunk " + chunk);
+            assertNull(reader.nextPart(), "chunk " + chunk);
+        }
+    }
+
+    @Test
+    void streamsPartsLargerThanTheBuffer() throws IOException {
+        byte[] large = randomBytes(300 * 1024 + 13, 3);
+        byte[] small = randomBytes(10, 4);
+        MultipartStreamReader reader = new MultipartStreamReader(
+                new TrickleInputStream(twoFiles(large, small), 8191), BOUNDARY);
+
+        assertArrayEquals(large, reader.nextPart().getInputStream().readAllBytes());
+        assertArrayEquals(small, reader.nextPart().getInputStream().readAllBytes());
+        assertNull(reader.nextPart());
+    }
+
+    @Test
+    void keepsContentThatOnlyLooksLikeADelimiter() throws IOException {
+        // Prefixes of the delimiter, and the boundary without the CRLF in front of it
+        String tricky = "line\r\n--" + BOUNDARY.substring(0, 10) + "\r\n-- \r\n\r--" + BOUNDARY + "\r\n-";
+        byte[] body = body("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\n\r\n"
+                + tricky + "\r\n"
+                + "--" + BOUNDARY + "--");
+
+        for (int chunk = 1; chunk <= 8; chunk++) {
+            MultipartStreamReader reader = new MultipartStreamReader(new TrickleInputStream(body, chunk), BOUNDARY);
+            String content = new String(reader.nextPart().getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+            assertEquals(tricky, content, "chunk " + chunk);
+            assertNull(reader.nextPart(), "chunk " + chunk);
+        }
+    }
+
+    @Test
+    void skipsPreambleAndEpilogue() throws IOException {
+        byte[] body = body("This is the preamble, it is to be ignored.\r\n"
+                + "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"note\"\r\n\r\n"
+                + "hello\r\n"
+                + "--" + BOUNDARY + "--\r\n"
+                + "This is the epilogue.\r\n");
+        MultipartStreamReader reader = new MultipartStreamReader(new ByteArrayInputStream(body), BOUNDARY);
+
+        assertEquals("hello", reader.nextPart().readString(100));
+        assertNull(reader.nextPart());
+    }
+
+    @Test
+    void ignoresTransportPaddingAfterBoundaries() throws IOException {
+        byte[] body = body("--" + BOUNDARY + " \t \r\n"
+                + "Content-Disposition: form-data; name=\"a\"\r\n\r\n"
+                + "1\r\n"
+                + "--" + BOUNDARY + "   \r\n"
+                + "Content-Disposition: form-data; name=\"b\"\r\n\r\n"
+                + "2\r\n"
+                + "--" + BOUNDARY + "--  \r\n");
+        MultipartStreamReader reader = new MultipartStreamReader(new ByteArrayInputStream(body), BOUNDARY);
+
+        assertEquals("1", reader.nextPart().readString(10));
+        assertEquals("2", reader.nextPart().readString(10));
+        assertNull(reader.nextPart());
+    }
+
+    @Test
+    void nextPartSkipsTheUnreadRestOfAPart() throws IOException {
+        byte[] first = randomBytes(100_000, 5);
+        byte[] second = randomBytes(50, 6);
+        MultipartStreamReader reader = new MultipartStreamReader(new ByteArrayInputStream(twoFiles(first, second)), BOUNDARY);
+
+        reader.nextPart().getInputStream().readNBytes(10);
+        assertArrayEquals(second, reader.nextPart().getInputStream().readAllBytes());
+    }
+
+    @Test
+    void failsOnABodyWithoutClosingBoundary() throws IOException {
+        byte[] body = body("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"cut.bin\"\r\n\r\n"
+                + "the connection dropped here");
+        MultipartStreamReader reader = new MultipartStreamReader(new ByteArrayInputStream(body), BOUNDARY);
+
+        InputStream content = reader.nextPart().getInputStream();
+        assertThrows(EOFException.class, content::readAllBytes);
+    }
+
+    @Test
+    void rejectsOversizedFormFields() throws IOException {
+        byte[] body = body("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"folderId\"\r\n\r\n"
+                + "x".repeat(200) + "\r\n"
+                + "--" + BOUNDARY + "--\r\n");
+        MultipartStreamReader reader = new MultipartStreamReader(new ByteArrayInputStream(body), BOUNDARY);
+
+        MultipartStreamReader.Part field = reader.nextPart();
+        assertThrows(IOException.class, () -> field.readString(100));
+    }
+
+    @Test
+    void parsesTheBoundaryParameter() {
+        assertEquals(BOUNDARY, MultipartStreamReader.boundaryOf("multipart/form-data; boundary=" + BOUNDARY));
+        assertEquals("a b;c", MultipartStreamReader.boundaryOf("Multipart/Form-Data; charset=UTF-8; Boundary=\"a b;c\""));
+        assertNull(MultipartStreamReader.boundaryOf("application/json"));
+        assertNull(MultipartStreamReader.boundaryOf("multipart/form-data"));
+        assertNull(MultipartStreamReader.boundaryOf("multipart/form-data; boundary=" + "x".repeat(71)));
+        assertNull(MultipartStreamReader.boundaryOf(null));
+    }
+
+    @Test
+    void unquotesDispositionParameters() {
+        var params = MultipartStreamReader.parameters("form-data; name=\"file\"; filename=\"lab \\\"final\\\"; v2.pdf\"");
+        assertEquals("file", params.get("name"));
+        assertEquals("lab \"final\"; v2.pdf", params.get("filename"));
+        assertTrue(MultipartStreamReader.parameters("form-data").isEmpty());
+    }
+
+    private static byte[] twoFiles(byte[] first, byte[] second) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(body("--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"files\"; filename=\"one.bin\"\r\n\r\n"));
+        body.write(first);
+        body.write(body("\r\n--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"files\"; filename=\"two.bin\"\r\n\r\n"));
+        body.write(second);
+        body.write(body("\r\n--" + BOUNDARY + "--\r\n"));
+        return body.toByteArray();
+    }
+
+    private static byte[] body(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Hands out at most chunk bytes per read, like a slow client.
+     */
+    private static class TrickleInputStream extends ByteArrayInputStream {
+        private final int chunk;
+
+        TrickleInputStream(byte[] bytes, int chunk) {
+            super(bytes);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, chunk));
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.securedhealthrecords.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SegmentedAesGcmTest {
+
+    private static final int SEGMENT = 64;
+
+    private final SecretKey key = key(1);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void roundTripsAroundSegmentBoundaries() throws IOException {
+        for (int size : new int[]{0, 1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 2 * SEGMENT, 3 * SEGMENT + 17}) {
+            byte[] plain = bytes(size);
+            Path blob = seal(plain);
+
+            assertArrayEquals(plain, read(blob, key, 0), "size " + size);
+            try (SeekableByteChannel channel = Files.newByteChannel(blob)) {
+                BlobFormat.Header header = BlobFormat.read(channel);
+                assertEquals(size, SegmentedAesGcm.plaintextLength(Files.size(blob), header), "size " + size);
+            }
+        }
+    }
+
+    @Test
+    void readsFromAnyOffset() throws IOException {
+        byte[] plain = bytes(3 * SEGMENT + 17);
+        Path blob = seal(plain);
+
+        for (int offset : new int[]{1, SEGMENT - 1, SEGMENT, SEGMENT + 1, 3 * SEGMENT, plain.length - 1, plain.length}) {
+            assertArrayEquals(Arrays.copyOfRange(plain, offset, plain.length), read(blob, key, offset), "offset " + offset);
+        }
+    }
+
+    @Test
+    void skipJumpsAcrossSegments() throws IOException {
+        byte[] plain = bytes(4 * SEGMENT);
+        Path blob = seal(plain);
+
+        try (InputStream in = open(blob, key, 10)) {
+            assertEquals(2 * SEGMENT, in.skip(2 * SEGMENT));
+            assertEquals(plain[10 + 2 * SEGMENT] & 0xFF, in.read());
+            // Skipping past the end stops at the end
+            assertEquals(plain.length - (11 + 2 * SEGMENT), in.skip(10 * SEGMENT));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    void rejectsAModifiedCiphertextByte() throws IOException {
+        byte[] plain = bytes(3 * SEGMENT);
+        Path blob = seal(plain);
+        int headerLength = headerLength(blob);
+
+        flip(blob, headerLength + SEGMENT + 16 + 5); // Inside the second sealed segment
+
+        // The first segment is still fine, the error surfaces where the damage is
+        try (InputStream in = open(blob, key, 0)) {
+            assertArrayEquals(Arrays.copyOf(plain, SEGMENT), in.readNBytes(SEGMENT));
+            assertThrows(IOException.class, in::read);
+        }
+    }
+
+    @Test
+    void rejectsAModifiedHeader() throws IOException {
+        Path blob = seal(bytes(SEGMENT));
+
+        // The header is authenticated with every segment, so even the wrapped key field counts
+        flip(blob, headerLength(blob) - 1);
+
+        assertThrows(IOException.class, () -> read(blob, key, 0));
+    }
+
+    @Test
+    void rejectsTruncationAtASegmentBoundary() throws IOException {
+        Path blob = seal(bytes(3 * SEGMENT + 5));
+        int sealedSegment = SEGMENT + SegmentedAesGcm.TAG_BYTES;
+
+        // Dropping whole trailing segments leaves a segment that was not sealed as the last one
+        truncate(blob, headerLength(blob) + 2L * sealedSegment);
+
+        assertThrows(IOException.class, () -> read(blob, key, 0));
+    }
+
+    @Test
+    void rejectsTruncationInsideASegment() throws IOException {
+        Path blob = seal(bytes(2 * SEGMENT + 30));
+
+        truncate(blob, Files.size(blob) - 3);
+
+        assertThrows(IOException.class, () -> read(blob, key, 0));
+    }
+
+    @Test
+    void rejectsABlobWithNoSegments() throws IOException {
+        Path blob = seal(bytes(10));
+
+        truncate(blob, headerLength(blob));
+
+        assertThrows(IOException.class, () -> read(blob, key, 0));
+    }
+
+    @Test
+    void rejectsSwappedSegments() throws IOException {
+        Path blob = seal(bytes(3 * SEGMENT));
+        int sealedSegment = SEGMENT + SegmentedAesGcm.TAG_BYTES;
+        int first = headerLength(blob);
+
+        byte[] raw = Files.readAllBytes(blob);
+        byte[] swapped = raw.clone();
+        System.arraycopy(raw, first, swapped, first + sealedSegment, sealedSegment);
+        System.arraycopy(raw, first + sealedSegment, swapped, first, sealedSegment);
+        Files.write(blob, swapped);
+
+        assertThrows(IOException.class, () -> read(blob, key, 0));
+    }
+
+    @Test
+    void rejectsTheWrongKey() throws IOException {
+        Path blob = seal(bytes(SEGMENT + 1));
+
+        assertThrows(IOException.class, () -> read(blob, key(2), 0));
+    }
+
+    @Test
+    void headerRoundTrips() throws IOException {
+        byte[] noncePrefix = {1, 2, 3, 4, 5, 6, 7};
+        byte[] wrappedKey = bytes(60);
+        BlobFormat.Header header = BlobFormat.newHeader(BlobFormat.FLAG_ENCRYPTED | BlobFormat.FLAG_DEFLATE,
+                SEGMENT, noncePrefix, wrappedKey);
+        Path file = dir.resolve("header");
+        Files.write(file, header.getEncoded());
+
+        try (SeekableByteChannel channel = Files.newByteChannel(file)) {
+            BlobFormat.Header read = BlobFormat.read(channel);
+            assertEquals(header.getFlags(), read.getFlags());
+            assertEquals(SEGMENT, read.getSegmentSize());
+            assertArrayEquals(noncePrefix, read.getNoncePrefix());
+            assertArrayEquals(wrappedKey, read.getWrappedKey());
+            assertEquals(header.length(), read.length());
+            assertEquals(header.length(), channel.position());
+        }
+    }
+
+    @Test
+    void filesWithoutTheMagicHaveNoHeader() throws IOException {
+        Path plainFile = dir.resolve("plain");
+        Files.write(plainFile, bytes(200));
+        Path tinyFile = dir.resolve("tiny");
+        Files.write(tinyFile, new byte[]{'S', 'H', 'R', 'B'});
+
+        try (SeekableByteChannel plain = Files.newByteChannel(plainFile);
+             SeekableByteChannel tiny = Files.newByteChannel(tinyFile)) {
+            assertNull(BlobFormat.read(plain));
+            assertNull(BlobFormat.read(tiny));
+        }
+    }
+
+    @Test
+    void rejectsAnUnknownFormatVersion() throws IOException {
+        byte[] encoded = BlobFormat.newHeader(0, SEGMENT, new byte[SegmentedAesGcm.NONCE_PREFIX_BYTES], new byte[0])
+                .getEncoded();
+        encoded[4] = 99;
+        Path file = dir.resolve("future");
+        Files.write(file, encoded);
+
+        try (SeekableByteChannel channel = Files.newByteChannel(file)) {
+            assertThrows(IOException.class, () -> BlobFormat.read(channel));
+        }
+    }
+
+    private Path seal(byte[] plain) throws IOException {
+        Path blob = Files.createTempFile(dir, "blob-", ".bin");
+        BlobFormat.Header header = BlobFormat.newHeader(BlobFormat.FLAG_ENCRYPTED, SEGMENT,
+                bytes(SegmentedAesGcm.NONCE_PREFIX_BYTES), bytes(40));
+        try (OutputStream raw = Files.newOutputStream(blob)) {
+            raw.write(header.getEncoded());
+            try (OutputStream out = SegmentedAesGcm.encryptingStream(raw, key, header)) {
+                // Odd-sized writes so segments are filled across calls
+                for (int offset = 0; offset < plain.length; offset += 7) {
+                    out.write(plain, offset, Math.min(7, plain.length - offset));
+                }
+            }
+        }
+        return blob;
+    }
+
+    private static InputStream open(Path blob, SecretKey key, long offset) throws IOException {
+        SeekableByteChannel channel = Files.newByteChannel(blob, StandardOpenOption.READ);
+        try {
+            return SegmentedAesGcm.decryptingStream(channel, key, BlobFormat.read(channel), offset);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static byte[] read(Path blob, SecretKey key, long offset) throws IOException {
+        try (InputStream in = open(blob, key, offset)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static int headerLength(Path blob) throws IOException {
+        try (SeekableByteChannel channel = Files.newByteChannel(blob)) {
+            return BlobFormat.read(channel).length();
+        }
+    }
+
+    private static void flip(Path file, int position) throws IOException {
+        byte[] raw = Files.readAllBytes(file);
+        raw[position] ^= 0x01;
+        Files.write(file, raw);
+    }
+
+    private static void truncate(Path file, long size) throws IOException {
+        try (SeekableByteChannel channel = Files.newByteChannel(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static SecretKey key(int seed) {
+        byte[] raw = new byte[32];
+        new Random(seed).nextBytes(raw);
+        return new SecretKeySpec(raw, "AES");
+    }
+}